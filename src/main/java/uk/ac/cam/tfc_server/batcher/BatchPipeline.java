@@ -0,0 +1,404 @@
+package uk.ac.cam.tfc_server.batcher;
+
+// BatchPipeline.java
+//
+// The BatcherWorker processing of feed files, as a bounded pipeline of four stages so that disk,
+// CPU and output can overlap:
+//
+//   read    - on the calling thread: read() memory-maps each file (or takes it from a mapped
+//             archive) and submits it for decoding
+//   decode  - on the decode pool: GTFS protobuf -> PositionBatch, many files in parallel,
+//             parsed directly from the mapped file
+//   compute - on one 'compute' thread: takes the decoded batches strictly in file order
+//             and passes them to the Compute (i.e. the zones)
+//   write   - on one 'writer' thread: the messages from msg_handler() are passed in order
+//             to the downstream IMsgHandler (i.e. the blocking filers)
+//
+// The decoded batches and the messages to write are held in bounded queues, so a slow stage
+// blocks the stages before it rather than the memory use growing.
+//
+// finish() waits for all the stages to complete, and stats() reports the items processed,
+// time spent and queue depths of each stage. If the read stage fails, abort() discards the files
+// still queued and ends the compute and write threads.
+//
+
+import io.vertx.core.json.JsonObject;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+import uk.ac.cam.tfc_server.util.GTFS;
+import uk.ac.cam.tfc_server.util.IMsgHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class BatchPipeline {
+
+    // The compute stage, called in file order on the compute thread
+    public interface Compute {
+        void compute(PositionBatch batch) throws Exception;
+        void flush() throws Exception; // called after the last batch
+    }
+
+    private final int DECODE_QUEUE_SIZE = 64; // max files read but not yet computed
+    private final int WRITE_QUEUE_SIZE = 16384; // max messages waiting for the writer
+
+    private static final Future<PositionBatch> END_OF_FILES = new CompletableFuture<PositionBatch>();
+    private static final JsonObject END_OF_MSGS = new JsonObject();
+
+    private ExecutorService decode_pool;
+    private Compute compute;
+    private IMsgHandler writer;
+
+    private BlockingQueue<Future<PositionBatch>> decode_queue; // decoded (or decoding) batches in file order
+    private BlockingQueue<JsonObject> write_queue;
+
+    private IMsgHandler queue_handler; // queues messages for the writer thread
+
+    private Thread compute_thread;
+    private Thread writer_thread;
+
+    private volatile Exception error; // first exception in the compute or write stage
+
+    private Stage read_stage;
+    private Stage decode_stage;
+    private Stage compute_stage;
+    private Stage write_stage;
+
+    private long start_time; // System.nanoTime() at start()
+
+    public BatchPipeline(ExecutorService decode_pool, Compute compute, IMsgHandler writer)
+    {
+        this.decode_pool = decode_pool;
+        this.compute = compute;
+        this.writer = writer;
+
+        decode_queue = new ArrayBlockingQueue<Future<PositionBatch>>(DECODE_QUEUE_SIZE);
+        write_queue = new ArrayBlockingQueue<JsonObject>(WRITE_QUEUE_SIZE);
+
+        queue_handler = msg -> {
+            try
+                {
+                    write_queue.put(msg);
+                }
+            catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+        };
+
+        read_stage = new Stage("read");
+        decode_stage = new Stage("decode");
+        compute_stage = new Stage("compute");
+        write_stage = new Stage("write");
+    }
+
+    public void start()
+    {
+        start_time = System.nanoTime();
+
+        compute_thread = new Thread(this::run_compute, "batch-compute");
+        writer_thread = new Thread(this::run_writer, "batch-writer");
+
+        compute_thread.start();
+        writer_thread.start();
+    }
+
+    // The IMsgHandler to be used by the compute stage, queueing each message for the writer
+    public IMsgHandler msg_handler()
+    {
+        return queue_handler;
+    }
+
+    // READ STAGE: map a file and queue it for decoding
+    // The file is memory-mapped rather than read, so it is decoded directly from the page cache
+    // with no copy of the file on the heap.
+    // Blocks if DECODE_QUEUE_SIZE files are already waiting to be computed.
+    public void read(String file_path, String filename, String filepath) throws Exception
+    {
+        if (error != null)
+            {
+                throw error;
+            }
+
+        long t = System.nanoTime();
+
+        ByteBuffer file_data;
+        try (FileChannel channel = FileChannel.open(Paths.get(file_path), StandardOpenOption.READ))
+            {
+                file_data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        catch (Exception e)
+            {
+                System.err.println("BatchPipeline: error reading "+file_path);
+                e.printStackTrace();
+                return;
+            }
+
+        read_stage.done(System.nanoTime() - t, file_data.remaining());
+
+        queue_decode(file_data, filename, filepath);
+    }
+
+    // READ STAGE: queue a feed file already in memory (e.g. mapped from a BinArchive) for decoding
+    public void read(ByteBuffer file_data, String filename, String filepath) throws Exception
+    {
+        if (error != null)
+            {
+                throw error;
+            }
+
+        read_stage.done(0, file_data.remaining());
+
+        queue_decode(file_data, filename, filepath);
+    }
+
+    private void queue_decode(ByteBuffer file_data, String filename, String filepath) throws InterruptedException
+    {
+        Future<PositionBatch> batch = decode_pool.submit(() -> decode(file_data, filename, filepath));
+
+        read_stage.queued(decode_queue.size());
+
+        decode_queue.put(batch);
+    }
+
+    // Wait for all the files read so far to be computed and all messages written
+    public void finish() throws Exception
+    {
+        decode_queue.put(END_OF_FILES);
+
+        compute_thread.join();
+        writer_thread.join();
+
+        if (error != null)
+            {
+                throw error;
+            }
+    }
+
+    // End the compute and write threads after a failure in the read stage, discarding the files
+    // and messages still queued (the flush of the compute stage is skipped)
+    public void abort()
+    {
+        if (error == null)
+            {
+                error = new Exception("BatchPipeline aborted");
+            }
+
+        if (compute_thread == null)
+            {
+                return; // not started
+            }
+
+        try
+            {
+                // the compute thread discards the queued files, so there is room for END_OF_FILES
+                decode_queue.put(END_OF_FILES);
+
+                compute_thread.join();
+                writer_thread.join();
+            }
+        catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+    }
+
+    // DECODE STAGE: on the decode_pool
+    private PositionBatch decode(ByteBuffer file_data, String filename, String filepath)
+    {
+        long t = System.nanoTime();
+        try
+            {
+                int length = file_data.remaining();
+                PositionBatch batch = GTFS.buf_to_batch(file_data, filename, filepath);
+                decode_stage.done(System.nanoTime() - t, length);
+                return batch;
+            }
+        catch (Exception e)
+            {
+                System.err.println("BatchPipeline: exception decoding "+filepath+"/"+filename);
+                return null;
+            }
+    }
+
+    // COMPUTE STAGE: batches in file order
+    // After an error, the remaining batches are discarded (so the read stage never blocks)
+    private void run_compute()
+    {
+        try
+            {
+                while (true)
+                    {
+                        Future<PositionBatch> next = decode_queue.take();
+                        if (next == END_OF_FILES)
+                            {
+                                break;
+                            }
+
+                        if (error != null)
+                            {
+                                continue;
+                            }
+
+                        try
+                            {
+                                PositionBatch batch = next.get();
+                                if (batch == null)
+                                    {
+                                        continue; // decode failed, already reported
+                                    }
+
+                                long t = System.nanoTime();
+
+                                compute.compute(batch);
+
+                                compute_stage.done(System.nanoTime() - t, batch.size);
+                                compute_stage.queued(write_queue.size());
+                            }
+                        catch (Exception e)
+                            {
+                                System.err.println("BatchPipeline: exception in compute stage");
+                                e.printStackTrace();
+                                error = e;
+                            }
+                    }
+
+                if (error == null)
+                    {
+                        long t = System.nanoTime();
+                        compute.flush();
+                        compute_stage.done(System.nanoTime() - t, 0);
+                    }
+
+                write_queue.put(END_OF_MSGS);
+            }
+        catch (Exception e)
+            {
+                System.err.println("BatchPipeline: exception in compute stage");
+                e.printStackTrace();
+                error = e;
+                try
+                    {
+                        // the writer discards the queued messages after an error, so there will be room
+                        write_queue.put(END_OF_MSGS);
+                    }
+                catch (InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+            }
+    }
+
+    // WRITE STAGE: messages in the order they were produced
+    // After an error, the remaining messages are discarded (so the compute stage never blocks)
+    private void run_writer()
+    {
+        while (true)
+            {
+                JsonObject msg;
+                try
+                    {
+                        msg = write_queue.take();
+                    }
+                catch (InterruptedException e)
+                    {
+                        error = e;
+                        return;
+                    }
+
+                if (msg == END_OF_MSGS)
+                    {
+                        return;
+                    }
+
+                if (error != null)
+                    {
+                        continue;
+                    }
+
+                try
+                    {
+                        long t = System.nanoTime();
+
+                        writer.handle_msg(msg);
+
+                        write_stage.done(System.nanoTime() - t, 1);
+                    }
+                catch (Exception e)
+                    {
+                        System.err.println("BatchPipeline: exception in write stage");
+                        e.printStackTrace();
+                        error = e;
+                    }
+            }
+    }
+
+    // Return a summary of the throughput of each stage, and the depth of the queue after it
+    public String stats()
+    {
+        double elapsed = (System.nanoTime() - start_time) / 1e9;
+
+        return String.format("elapsed %.1fs\n", elapsed) +
+               read_stage.summary(elapsed, "bytes", "decode queue") +
+               decode_stage.summary(elapsed, "bytes", null) +
+               compute_stage.summary(elapsed, "records", "write queue") +
+               write_stage.summary(elapsed, "msgs", null);
+    }
+
+    //*************************************************************************************
+    // Class Stage
+    //*************************************************************************************
+
+    // Counters for one pipeline stage (updated from possibly many threads)
+    class Stage {
+        String name;
+
+        long calls = 0;     // number of items processed
+        long count = 0;     // e.g. bytes or records in those items
+        long busy_ns = 0;   // total time spent in this stage (summed over threads)
+
+        long depth_sum = 0; // sum of queue depth samples
+        long depth_samples = 0;
+        long depth_max = 0;
+
+        Stage(String name)
+        {
+            this.name = name;
+        }
+
+        synchronized void done(long ns, long n)
+        {
+            calls++;
+            count += n;
+            busy_ns += ns;
+        }
+
+        // sample the depth of the queue following this stage
+        synchronized void queued(long depth)
+        {
+            depth_sum += depth;
+            depth_samples++;
+            if (depth > depth_max) depth_max = depth;
+        }
+
+        synchronized String summary(double elapsed, String unit, String queue_name)
+        {
+            double busy = busy_ns / 1e9;
+            String s = String.format("%-8s %8d items %12d %s busy %7.1fs %10.0f %s/s overall",
+                                     name, calls, count, unit, busy, elapsed > 0 ? count / elapsed : 0, unit);
+            if (queue_name != null)
+                {
+                    s += String.format(", %s depth avg %.1f max %d",
+                                       queue_name, depth_samples > 0 ? (double) depth_sum / depth_samples : 0, depth_max);
+                }
+            return s + "\n";
+        }
+    } // end class Stage
+
+} // end class BatchPipeline
@@ -27,19 +27,23 @@ package uk.ac.cam.tfc_server.batcher;
 // *************************************************************************************************
 
 import io.vertx.core.Future;
-import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import uk.ac.cam.tfc_server.core.AbstractTFCVerticle;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
 import uk.ac.cam.tfc_server.msgfiler.FilerConfig;
 import uk.ac.cam.tfc_server.msgfiler.FilerUtils;
+import uk.ac.cam.tfc_server.msgfiler.FilerWriterPool;
+import uk.ac.cam.tfc_server.util.BinArchive;
+import uk.ac.cam.tfc_server.util.BinIndex;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.GTFS;
 import uk.ac.cam.tfc_server.util.IMsgHandler;
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.zone.ZoneCompute;
 import uk.ac.cam.tfc_server.zone.ZoneConfig;
+import uk.ac.cam.tfc_server.zone.ZoneSet;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -54,6 +58,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 
@@ -74,12 +80,27 @@ public class BatcherWorker extends AbstractTFCVerticle {
     private Long   FINISH_TS;  // UTC timestamp to end feed
     private ArrayList<String> ZONE_NAMES; // from config() MODULE_NAME.zones
     private ArrayList<FilerConfig> FILERS; // config() MODULE_NAME.filers parameters
+    private int    THREADS; // config() MODULE_NAME.threads, number of threads for zone processing, default 1
+    private int    FLUSH_COUNT; // config() MODULE_NAME.flush_count, messages buffered per output file, default 1000
+    private int    MAX_OPEN; // config() MODULE_NAME.max_open, max output files kept open, default 64
     private int    LOG_LEVEL;
+
+    private final int PARTITION_FILES = 120; // number of feed files processed together by the ZonePartitions
     
     private HashMap<String, ZoneCompute> zones; // zones to run against bin gtfs records
 
+    private ZoneSet zone_set; // routes each position record to the zones that need it
+
+    private ZonePartitions zone_partitions; // zones partitioned by vehicle across threads, if THREADS > 1
+
+    private ExecutorService pool; // THREADS threads for decoding and the zone_partitions
+
+    private BatchPipeline pipeline; // read -> decode -> compute -> write stages for the feed files
+
     private ArrayList<FilerUtils> filers; // filers to call to store messages
 
+    private FilerWriterPool writer_pool; // open append files of the filers
+
     private MsgHandler msg_handler; // will provide handle_msg method which calls filers
     
     private EventBus eb = null;
@@ -111,8 +132,34 @@ public class BatcherWorker extends AbstractTFCVerticle {
         // Create msg_handler
         // See MsgHandler definition below
         msg_handler = new MsgHandler();
-        
-        zones = create_zones(ZONE_NAMES, msg_handler);
+
+        pool = Executors.newFixedThreadPool(THREADS);
+
+        // the pipeline write stage calls msg_handler, and the zones pass their messages to
+        // the pipeline so they are written on the pipeline writer thread
+        pipeline = new BatchPipeline(pool, new ComputeStage(), msg_handler);
+
+        if (THREADS > 1)
+            {
+                // each partition has its own copy of the zones, processing a subset of the vehicles
+                zone_partitions = new ZonePartitions(THREADS, pool, pipeline.msg_handler());
+
+                for (int p=0; p<THREADS; p++)
+                    {
+                        zones = create_zones(ZONE_NAMES, zone_partitions.msg_handler(p), zone_partitions.zone_set(p));
+                    }
+            }
+        else
+            {
+                // the ZoneSet holds the vehicle positions from the feed once, shared by all the zones
+                zone_set = new ZoneSet();
+
+                zones = create_zones(ZONE_NAMES, pipeline.msg_handler(), zone_set);
+            }
+
+        // batch output is only complete when the run finishes, so messages are written in large
+        // groups and only fsync'd when the files are closed at the end of the run
+        writer_pool = new FilerWriterPool(FLUSH_COUNT, Long.MAX_VALUE, 0, MAX_OPEN, 0);
 
         filers = create_filers(FILERS); // create list of FilerUtils from FilerConfig list
 
@@ -128,6 +175,12 @@ public class BatcherWorker extends AbstractTFCVerticle {
                     e.printStackTrace();
                     future.complete("FAILED");
                     return;
+                } finally {
+                    pool.shutdown();
+                    // write the remaining buffered messages and close the files
+                    // (the pipeline writer thread has ended, see process_bin_files)
+                    writer_pool.close();
+                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": filer stats "+writer_pool.stats());
                 }
                 future.complete("OK");
             }, res -> {
@@ -142,9 +195,9 @@ public class BatcherWorker extends AbstractTFCVerticle {
     // ************************************************************************
     //
     // Given a list of strings containing the zone_id's
-    // create a HashMap of zone_id -> ZoneCompute
+    // create a HashMap of zone_id -> ZoneCompute, and add the zones to ZoneSet zs
     //
-    HashMap<String, ZoneCompute> create_zones(ArrayList<String> zone_list, MsgHandler msg_handler)
+    HashMap<String, ZoneCompute> create_zones(ArrayList<String> zone_list, IMsgHandler msg_handler, ZoneSet zs)
     {
         HashMap<String, ZoneCompute> zc_list = new HashMap<String, ZoneCompute>();
 
@@ -152,17 +205,23 @@ public class BatcherWorker extends AbstractTFCVerticle {
             {
                 String zone_id = zone_list.get(i);
         
-                zc_list.put(zone_id, create_zone(zone_id, msg_handler));
+                zc_list.put(zone_id, create_zone(zone_id, msg_handler, zs));
 
                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": ZoneCompute("+zone_id+") created");
             }
+
+        for (ZoneCompute zc : zc_list.values())
+            {
+                zs.add(zc);
+            }
+
         return zc_list;
     }
 
     // create_zone
     //
     // read the zone_id json config and return a ZoneCompute for this zone_id
-    ZoneCompute create_zone(String zone_id, MsgHandler msg_handler)
+    ZoneCompute create_zone(String zone_id, IMsgHandler msg_handler, ZoneSet zs)
     {
     
         String json_path = "/uk.ac.cam.tfc_server.zone."+zone_id+".json";
@@ -188,7 +247,7 @@ public class BatcherWorker extends AbstractTFCVerticle {
         // override LOG_LEVEL in ZoneConfig with one that was passed to Batcherworker
         zone_config.LOG_LEVEL = LOG_LEVEL;
 
-        return new ZoneCompute(zone_config, msg_handler);
+        return new ZoneCompute(zone_config, zs.vehicles(), msg_handler);
 
     }
 
@@ -204,7 +263,7 @@ public class BatcherWorker extends AbstractTFCVerticle {
 
         for (int i=0; i<filerconfig_list.size(); i++)
             {
-                filer_list.add( new FilerUtils(vertx, filerconfig_list.get(i)) );
+                filer_list.add( new FilerUtils(vertx, filerconfig_list.get(i), writer_pool) );
             }
         return filer_list;
     }
@@ -217,30 +276,64 @@ public class BatcherWorker extends AbstractTFCVerticle {
         
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy/MM/dd");
 
-        while (next_start_ts < finish_ts)
-            {
-                Instant i = Instant.ofEpochSecond(next_start_ts); // convert UNIX ts to java Instant
+        pipeline.start();
+
+        try {
+            while (next_start_ts < finish_ts)
+                {
+                    Instant i = Instant.ofEpochSecond(next_start_ts); // convert UNIX ts to java Instant
 
-                ZonedDateTime zoned_datetime = i.atZone(ZoneId.systemDefault()); // convert Instant to local Date
+                    ZonedDateTime zoned_datetime = i.atZone(ZoneId.systemDefault()); // convert Instant to local Date
                 
-                String yyyymmdd =  zoned_datetime.format(formatter);
+                    String yyyymmdd =  zoned_datetime.format(formatter);
 
-                logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": processing date "+yyyymmdd);
+                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": processing date "+yyyymmdd);
 
-                // iterate through current bin file directory, (will skip if if doesn't exist)
-                process_bin_dir(next_start_ts, finish_ts, TFC_DATA_BIN+"/"+yyyymmdd);
+                    // use the index of the day if there is one (see BinIndex), or the packed archive of
+                    // the day if there is one (see BinArchive), otherwise
+                    // iterate through current bin file directory, (will skip if if doesn't exist)
+                    String index_path = BinIndex.index_path(TFC_DATA_BIN, yyyymmdd);
+                    String archive_path = BinArchive.archive_path(TFC_DATA_BIN, yyyymmdd);
+                    if (Files.isRegularFile(Paths.get(index_path)))
+                        {
+                            process_bin_index(next_start_ts, finish_ts, index_path, yyyymmdd);
+                        }
+                    else if (Files.isRegularFile(Paths.get(archive_path)))
+                        {
+                            process_bin_archive(next_start_ts, finish_ts, archive_path, yyyymmdd);
+                        }
+                    else
+                        {
+                            process_bin_dir(next_start_ts, finish_ts, TFC_DATA_BIN+"/"+yyyymmdd);
+                        }
                 
-                ZonedDateTime next_day = zoned_datetime.plusDays(1L).withHour(0).withMinute(0).withSecond(0); // add a day
+                    ZonedDateTime next_day = zoned_datetime.plusDays(1L).withHour(0).withMinute(0).withSecond(0); // add a day
 
-                next_start_ts = next_day.toEpochSecond();
+                    next_start_ts = next_day.toEpochSecond();
 
-            }
+                }
+        } catch (Exception e) {
+            // end the pipeline threads (discarding the files still queued) so the run can finish
+            pipeline.abort();
+            throw e;
+        }
+
+        // wait for the decode, compute and write stages to complete
+        pipeline.finish();
 
         logger.log(Constants.LOG_INFO, "finished at "+next_start_ts);
 
+        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": pipeline stats\n"+pipeline.stats());
+
     } // end process_bin_files()
 
-    // iterate through bin files in directory <bin_path>
+    // ************************************************************************************
+    // process_bin_dir(start_ts, finish_ts, bin_path)
+    // ************************************************************************************
+    //
+    // Pass the gtfs binary files in bin_path, within the time boundaries, to the pipeline
+    // (which reads the file on this thread and then decodes and processes it on others)
+    //
     void process_bin_dir(long start_ts, Long finish_ts, String bin_path) throws Exception
     {
 
@@ -258,88 +351,152 @@ public class BatcherWorker extends AbstractTFCVerticle {
         }
         
         Collections.sort(file_paths);
-        
-        file_paths.forEach(file_path -> {
-        
+
+        for (Path file_path : file_paths)
+            {
                 // filenames are <UTC-TS>_YYYY_MM_DD_hh_mm_ss.bin
                 // with the hh_mm_ss in local time
 
+                String fs = file_path.toString();
+
                 // get UTC timestamp from filename
-                Long file_ts = get_ts(file_path.toString());
+                Long file_ts = get_ts(fs);
                 
                 if (start_ts < file_ts && finish_ts > file_ts)
                     {
-                        try
-                            {
-                                process_gtfs_file(file_path);
-                            }
-                        catch (Exception e)
-                            {
-                                System.err.println(MODULE_NAME+"."+MODULE_ID+
-                                                       ": process_gtfs_file exception "+file_path.toString());
-                            }
+                        pipeline.read(fs, get_basename(fs), get_date(fs));
                     }
-        
-            });
+            }
         
       } // end process_gtfs_dir()
 
-    // process single gtfs binary file
-    void process_gtfs_file(Path file_path) throws Exception
+    // ************************************************************************************
+    // process_bin_archive(start_ts, finish_ts, archive_path, yyyymmdd)
+    // ************************************************************************************
+    //
+    // As process_bin_dir, but for the day archive archive_path, read with a single sequential
+    // scan of the memory-mapped archive
+    //
+    void process_bin_archive(long start_ts, Long finish_ts, String archive_path, String yyyymmdd) throws Exception
     {
-        Buffer file_data;
-        
-        // Read the file
-        try
-            {
-                file_data = vertx.fileSystem().readFileBlocking(file_path.toString());
-            }
-        catch (Exception e)
+        BinArchive.Reader reader;
+        try {
+              reader = new BinArchive.Reader(archive_path);
+        } catch (Exception e) {
+                System.err.println(MODULE_NAME+"."+MODULE_ID+": process_bin_archive skipping "+archive_path);
+            return;
+        }
+
+        // skip to the first file after start_ts
+        reader.seek(start_ts + 1);
+
+        for (BinArchive.Entry entry = reader.next(); entry != null; entry = reader.next())
             {
-                System.err.println(MODULE_NAME+"."+MODULE_ID+": error reading "+file_path.toString());
-                e.printStackTrace();
-                return;
+                if (entry.ts >= finish_ts)
+                    {
+                        break;
+                    }
+
+                // the entry data is decoded in place, from the mapped archive
+                pipeline.read(entry.data, entry.filename, yyyymmdd);
             }
+      } // end process_bin_archive()
 
-        try
-        {
-            String fs = file_path.toString();
-            String basename = get_basename(fs);
-            String yyyymmdd = get_date(fs);
+    // ************************************************************************************
+    // process_bin_index(start_ts, finish_ts, index_path, yyyymmdd)
+    // ************************************************************************************
+    //
+    // As process_bin_dir, but taking the files within the time boundaries from the day index
+    // (see BinIndex.entries)
+    //
+    void process_bin_index(long start_ts, Long finish_ts, String index_path, String yyyymmdd) throws Exception
+    {
+        List<BinIndex.Entry> entries;
+        try {
+              entries = BinIndex.entries(TFC_DATA_BIN, yyyymmdd, start_ts + 1, finish_ts - 1);
+        } catch (Exception e) {
+                System.err.println(MODULE_NAME+"."+MODULE_ID+": process_bin_index skipping "+index_path);
+            return;
+        }
 
-            //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": processing gtfs file "+yyyymmdd+"/"+basename);
+        BinArchive.Reader archive = null; // opened if any of the files are in the day archive
+
+        for (BinIndex.Entry entry : entries)
+            {
+                if (entry.archived())
+                    {
+                        if (archive == null)
+                            {
+                                archive = new BinArchive.Reader(BinArchive.archive_path(TFC_DATA_BIN, yyyymmdd));
+                            }
+                        BinArchive.Entry archive_entry = archive.entry_at(entry.offset);
+                        if (archive_entry == null)
+                            {
+                                System.err.println(MODULE_NAME+"."+MODULE_ID+": process_bin_index missing archive record "+entry.filename);
+                                continue;
+                            }
+                        pipeline.read(archive_entry.data, archive_entry.filename, yyyymmdd);
+                    }
+                else
+                    {
+                        pipeline.read(TFC_DATA_BIN+"/"+yyyymmdd+"/"+entry.filename, entry.basename(), yyyymmdd);
+                    }
+            }
+      } // end process_bin_index()
 
-            JsonObject msg = GTFS.buf_to_json(file_data, basename, yyyymmdd);
+    //*************************************************************************************
+    // Class ComputeStage
+    //*************************************************************************************
+    //
+    // The compute stage of the pipeline, called with each decoded feed file in order
+    //
+    class ComputeStage implements BatchPipeline.Compute {
 
-            msg.put("module_name", MODULE_NAME);
-            msg.put("module_id", MODULE_ID);
-            msg.put("msg_type", Constants.FEED_BUS_POSITION);
+        // batches waiting for the zone_partitions
+        private ArrayList<PositionBatch> partition_batches = new ArrayList<PositionBatch>();
 
+        public void compute(PositionBatch batch) throws Exception
+        {
             // Here is where we process the current feed_bus_position message
             // If there are NO zones then we pass the message straight to the filers
-            // If there are zones then we pass the message to each zone.
+            // If there are zones then we pass the batch to the ZoneSet, which passes each
+            // position record to the zones that could be affected by it.
             if (zones.size() == 0)
                 {
-                    msg_handler.handle_msg(msg);
+                    JsonObject msg = batch.to_json();
+
+                    msg.put("module_name", MODULE_NAME);
+                    msg.put("module_id", MODULE_ID);
+                    msg.put("msg_type", Constants.FEED_BUS_POSITION);
+
+                    pipeline.msg_handler().handle_msg(msg);
                 }
-            else
+            else if (zone_partitions != null)
                 {
-                    // Here is where we pass the current feed data through the configured zones
-                    for (String zone_id: zones.keySet())
+                    // the partitions process PARTITION_FILES batches at a time
+                    partition_batches.add(batch);
+                    if (partition_batches.size() == PARTITION_FILES)
                         {
-                            zones.get(zone_id).handle_feed(msg);
+                            flush();
                         }
                 }
+            else
+                {
+                    // Here is where we pass the current feed data through the configured zones
+                    zone_set.handle_batch(batch);
+                }
+        }
 
-          //eb.publish(FEEDPLAYER_ADDRESS, msg);
-          //logger.log(Constants.LOG_DEBUG, "BatcherWorker: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
-        } catch (Exception e)
+        public void flush() throws Exception
         {
-            System.err.println(MODULE_NAME+"."+MODULE_ID+": exception processing gtfs file "+file_path.toString());
+            if (partition_batches.size() > 0)
+                {
+                    zone_partitions.handle_batches(partition_batches);
+                    partition_batches.clear();
+                }
         }
-        
-    } // end process_gtfs_file()
-  
+    } // end class ComputeStage
+
     // pick out the Long timestamp embedded in the file name
     // e.g. <bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin -> 1457334014
     Long get_ts(String fs)
@@ -409,6 +566,12 @@ public class BatcherWorker extends AbstractTFCVerticle {
 
         FINISH_TS = config().getLong(MODULE_NAME+".finish_ts");
 
+        THREADS = config().getInteger(MODULE_NAME+".threads", 1);
+
+        FLUSH_COUNT = config().getInteger(MODULE_NAME+".flush_count", 1000);
+
+        MAX_OPEN = config().getInteger(MODULE_NAME+".max_open", FilerWriterPool.DEFAULT_MAX_OPEN);
+
         ZONE_NAMES = new ArrayList<String>();
         
         JsonArray zone_list = config().getJsonArray(MODULE_NAME+".zones");
@@ -0,0 +1,206 @@
+package uk.ac.cam.tfc_server.batcher;
+
+// ZonePartitions.java
+//
+// Runs the zones of a BatcherWorker on a pool of threads, by partitioning the vehicles.
+//
+// Each vehicle_id is assigned to one partition (by hash), and each partition has its own ZoneSet
+// (i.e. its own copy of every zone), so each partition sees every position record of its vehicles
+// in feed order. All the zone state is per-vehicle, so the zone messages are exactly those of a
+// single ZoneSet seeing every record.
+//
+// A list of consecutive feed batches is processed by all the partitions in parallel, with each zone
+// message recorded against the (batch, record) that caused it. The messages of the partitions are
+// then merged in (batch, record) order and passed to the downstream IMsgHandler on the calling thread,
+// so the output is in the same order as a sequential run.
+//
+// Partitioning by day would not preserve the zone state of vehicles crossing midnight, hence by vehicle.
+//
+
+import io.vertx.core.json.JsonObject;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+import uk.ac.cam.tfc_server.util.IMsgHandler;
+import uk.ac.cam.tfc_server.zone.ZoneSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class ZonePartitions {
+
+    private Partition[] partitions;
+
+    private ExecutorService pool; // threads to run the partitions
+
+    private IMsgHandler msg_handler; // downstream handler for the merged zone messages
+
+    public ZonePartitions(int partition_count, ExecutorService pool, IMsgHandler msg_handler)
+    {
+        this.pool = pool;
+        this.msg_handler = msg_handler;
+
+        partitions = new Partition[partition_count];
+        for (int p=0; p<partition_count; p++)
+            {
+                partitions[p] = new Partition(p);
+            }
+    }
+
+    public int size()
+    {
+        return partitions.length;
+    }
+
+    // return the ZoneSet of partition p, to which the zones for that partition should be added
+    public ZoneSet zone_set(int p)
+    {
+        return partitions[p].zone_set;
+    }
+
+    // return the IMsgHandler to be given to the ZoneComputes of partition p
+    public IMsgHandler msg_handler(int p)
+    {
+        return partitions[p];
+    }
+
+    // return the partition for a vehicle_id
+    public int partition(String vehicle_id)
+    {
+        if (vehicle_id == null)
+            {
+                return 0;
+            }
+        return (vehicle_id.hashCode() & 0x7fffffff) % partitions.length;
+    }
+
+    // Process a list of consecutive batches through all the partitions, then pass the
+    // resulting zone messages to msg_handler in feed order
+    public void handle_batches(List<PositionBatch> batches) throws Exception
+    {
+        ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        for (Partition partition : partitions)
+            {
+                partition.batches = batches;
+                results.add(pool.submit(partition));
+            }
+
+        // wait for all partitions, rethrowing any exception
+        for (Future<Void> result : results)
+            {
+                result.get();
+            }
+
+        merge();
+    }
+
+    // k-way merge of the partition messages by key, i.e. (batch, record) order.
+    // A record belongs to a single partition, so the keys of different partitions never tie.
+    private void merge()
+    {
+        int[] next = new int[partitions.length];
+
+        while (true)
+            {
+                int min_p = -1;
+                long min_key = Long.MAX_VALUE;
+                for (int p=0; p<partitions.length; p++)
+                    {
+                        Partition partition = partitions[p];
+                        if (next[p] < partition.msg_count && partition.keys[next[p]] < min_key)
+                            {
+                                min_key = partition.keys[next[p]];
+                                min_p = p;
+                            }
+                    }
+
+                if (min_p < 0)
+                    {
+                        break;
+                    }
+
+                // pass on all the messages for this record, in the order the zones produced them
+                Partition partition = partitions[min_p];
+                while (next[min_p] < partition.msg_count && partition.keys[next[min_p]] == min_key)
+                    {
+                        msg_handler.handle_msg(partition.msgs.get(next[min_p]++));
+                    }
+            }
+
+        for (Partition partition : partitions)
+            {
+                partition.clear();
+            }
+    }
+
+    //*************************************************************************************
+    // Class Partition
+    //*************************************************************************************
+
+    // A ZoneSet processing the vehicles of one partition, and collecting the zone messages
+    // with the (batch, record) key of the position record that caused each message
+    class Partition implements Callable<Void>, IMsgHandler {
+
+        int index; // this partition number
+
+        ZoneSet zone_set;
+
+        List<PositionBatch> batches; // the batches currently being processed
+
+        long key; // (batch index << 32) | record index of current position record
+
+        ArrayList<JsonObject> msgs; // zone messages from the current batches
+        long[] keys; // key of each message in msgs
+        int msg_count;
+
+        Partition(int index)
+        {
+            this.index = index;
+            zone_set = new ZoneSet();
+            msgs = new ArrayList<JsonObject>();
+            keys = new long[1024];
+            msg_count = 0;
+        }
+
+        // process the records of this partition's vehicles in all the batches
+        public Void call()
+        {
+            for (int b=0; b<batches.size(); b++)
+                {
+                    PositionBatch batch = batches.get(b);
+                    for (int i=0; i<batch.size; i++)
+                        {
+                            if (partition(batch.vehicle_id[i]) == index)
+                                {
+                                    key = ((long) b << 32) | i;
+                                    zone_set.handle_position(batch, i);
+                                }
+                        }
+                }
+            return null;
+        }
+
+        // called by the ZoneComputes of this partition
+        public void handle_msg(JsonObject msg)
+        {
+            if (msg_count == keys.length)
+                {
+                    long[] new_keys = new long[keys.length * 2];
+                    System.arraycopy(keys, 0, new_keys, 0, msg_count);
+                    keys = new_keys;
+                }
+            keys[msg_count++] = key;
+            msgs.add(msg);
+        }
+
+        void clear()
+        {
+            batches = null;
+            msgs.clear();
+            msg_count = 0;
+        }
+    } // end class Partition
+
+} // end class ZonePartitions
@@ -1,6 +1,9 @@
 package uk.ac.cam.tfc_server.core;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import uk.ac.cam.tfc_server.gtfs.PositionBatchCodec;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
 
@@ -12,6 +15,15 @@ public abstract class AbstractTFCVerticle extends AbstractVerticle {
     protected String EB_SYSTEM_STATUS; // eventbus status reporting address
     protected String EB_MANAGER; // eventbus status reporting address
 
+    @Override
+    public void init(Vertx vertx, Context context)
+    {
+        super.init(vertx, context);
+
+        // register the EventBus codecs for the message types shared between TFC modules
+        PositionBatchCodec.register(vertx.eventBus());
+    }
+
     /**
      * Load initialization global constants from config()
      * <p>
@@ -0,0 +1,190 @@
+package uk.ac.cam.tfc_server.dataserver;
+
+// DataCache.java
+//
+// Part of DataServer package, an in-memory cache of the data read from files by the page and API
+// handlers (the transits of a zone day for ZoneAPI and DataPlot, the file listing of a raw day for
+// DataRaw), so reloading the same page does not re-read and re-parse the same files.
+//
+// The cache is bounded by size: each entry is put with its (approximate) size in bytes, and the
+// least recently used entries are evicted when the total exceeds the configured maximum
+// ("dataserver.cache_mb", 0 to disable the cache).
+//
+// Each entry records the modification time and size of the file (or directory) it was read from.
+// The data of past days does not change, so those entries are always used as they are, but an
+// entry of today is used only while its file's modification time and size are unchanged.
+//
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.FileProps;
+import io.vertx.core.json.JsonObject;
+
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class DataCache {
+
+    private final long max_bytes;
+
+    // entries in least recently used order
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private long bytes = 0;
+
+    // counters, for the DataServer status message
+    private long hit_count = 0;
+    private long miss_count = 0;
+    private long eviction_count = 0;
+    private long invalidation_count = 0;
+
+    public DataCache(long max_bytes)
+    {
+        this.max_bytes = max_bytes;
+    }
+
+    // the largest entry worth caching, larger values are not put in the cache
+    public long max_entry()
+    {
+        return max_bytes / 4;
+    }
+
+    // true if yyyy/MM/dd is a day before today, i.e. its data files are complete
+    public static boolean closed_day(String yyyy, String MM, String dd)
+    {
+        try
+            {
+                return LocalDate.of(Integer.parseInt(yyyy), Integer.parseInt(MM), Integer.parseInt(dd))
+                    .isBefore(LocalDate.now());
+            }
+        catch (Exception e)
+            {
+                return false;
+            }
+    }
+
+    // call handler with the value cached for key, or null if there is none (or it is out of date)
+    public void get(Vertx vertx, String key, Handler<Object> handler)
+    {
+        Entry entry = lookup(key);
+        if (entry == null)
+            {
+                handler.handle(null);
+                return;
+            }
+        if (entry.closed)
+            {
+                hit();
+                handler.handle(entry.value);
+                return;
+            }
+        // an entry of today is valid only while its file is unchanged
+        vertx.fileSystem().props(entry.path, res -> {
+                if (res.succeeded() &&
+                    res.result().lastModifiedTime() == entry.mtime &&
+                    res.result().size() == entry.size)
+                {
+                    hit();
+                    handler.handle(entry.value);
+                }
+                else
+                {
+                    invalidate(key, entry);
+                    handler.handle(null);
+                }
+            });
+    }
+
+    // cache value (of about weight bytes) for key, read from the file path with properties props
+    // (as read BEFORE the file was, so a change while it was being read is seen)
+    public synchronized void put(String key, Object value, long weight, String path, FileProps props, boolean closed)
+    {
+        if (max_bytes <= 0 || weight > max_entry())
+            {
+                return;
+            }
+
+        Entry entry = new Entry(value, weight, path, props.lastModifiedTime(), props.size(), closed);
+
+        Entry previous = entries.put(key, entry);
+        if (previous != null)
+            {
+                bytes -= previous.weight;
+            }
+        bytes += weight;
+
+        // evict the least recently used entries
+        for (Iterator<Entry> it = entries.values().iterator(); bytes > max_bytes && it.hasNext(); )
+            {
+                Entry eldest = it.next();
+                it.remove();
+                bytes -= eldest.weight;
+                eviction_count++;
+            }
+    }
+
+    // counters of the cache, for the DataServer status message
+    public synchronized JsonObject stats()
+    {
+        JsonObject stats = new JsonObject();
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("max_bytes", max_bytes);
+        stats.put("hits", hit_count);
+        stats.put("misses", miss_count);
+        stats.put("evictions", eviction_count);
+        stats.put("invalidations", invalidation_count);
+        return stats;
+    }
+
+    private synchronized Entry lookup(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            {
+                miss_count++;
+            }
+        return entry;
+    }
+
+    private synchronized void hit()
+    {
+        hit_count++;
+    }
+
+    private synchronized void invalidate(String key, Entry entry)
+    {
+        miss_count++;
+        // only remove the entry if it hasn't been replaced in the meantime
+        if (entries.remove(key, entry))
+            {
+                bytes -= entry.weight;
+                invalidation_count++;
+            }
+    }
+
+    //*************************************************************************************
+    // Class Entry
+    //*************************************************************************************
+
+    static class Entry {
+        final Object value;
+        final long weight;
+        final String path;   // file (or directory) the value was read from
+        final long mtime;    // its modification time and size when it was read
+        final long size;
+        final boolean closed; // true if the data is of a past day, so will not change
+
+        Entry(Object value, long weight, String path, long mtime, long size, boolean closed)
+        {
+            this.value = value;
+            this.weight = weight;
+            this.path = path;
+            this.mtime = mtime;
+            this.size = size;
+            this.closed = closed;
+        }
+    } // end class Entry
+
+} // end class DataCache
@@ -4,6 +4,11 @@ package uk.ac.cam.tfc_server.dataserver;
 //
 // Part of DataServer package, serves an XY time/value plot page
 //
+// The zone transits are read from the compressed TransitColumns file of the day (<zone_id>_YYYY-MM-DD.col)
+// if there is one, otherwise from the newline-delimited JSON file (<zone_id>_YYYY-MM-DD.txt).
+// The page is rendered with a marker in place of the data, and sent as a chunked response with the
+// transits streamed from the file in place of the marker (see TransitStream).
+//
 
 import java.util.ArrayList;
 
@@ -29,6 +34,9 @@ import uk.ac.cam.tfc_server.util.Constants;
 
 public class DataPlot {
 
+    // rendered into the page in place of the plot data, which is then streamed in its place
+    private static final String PLOT_DATA_MARKER = "@@RITA_PLOT_DATA@@";
+
     private DataServer parent;
     
     public DataPlot(Vertx vertx, DataServer caller, Router router)
@@ -87,59 +95,44 @@ public class DataPlot {
             // build full filepath for data to be retrieved
             String filename = parent.DATA_PATH+"zone/"+yyyy+"/"+MM+"/"+dd+"/"+zone_id+"_"+yyyy+"-"+MM+"-"+dd+".txt";
 
-            // read the file containing the data
-            vertx.fileSystem().readFile(filename, fileres -> {
-
-                    if (fileres.succeeded()) {
-
-                        // successful file read, so populate page data and return page
-                        parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
-                                          ": file read ok for "+filename);
-
-                        // Convert file contents to valid JSON
-                        // File starts as JSON objects separated by newlines
-
-                        String plot_data = fileres.result().toString();
-
-                        // replace newlines with commas
-                        plot_data = plot_data.replace("\n",",");
-
-                        //remove trailing comma
-                        plot_data = plot_data.substring(0,plot_data.length()-1);
-
-                        // wrap with [] and we have a JSON array containing JSON objects...
-                        plot_data = "["+plot_data+"]";
-
-                        ctx.put("config_plot_data", plot_data);
-
-                        parent.template_engine.render(ctx, "templates/dataserver_plot_zone.hbs", res -> {
-                                if (res.succeeded())
-                                {
-                                    ctx.response().end(res.result());
-                                }
-                                else
-                                {
-                                    ctx.fail(res.cause());
-                                }
-                            });
-                    } else {
-                        // unsuccessful file read, so return page with '' data
-                        parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
-                                          ": file read failed for "+filename);
-                        // render the template WITHOUT the data, so page can tell user of error
-                        parent.template_engine.render(ctx, "templates/dataserver_plot_zone.hbs", res -> {
-                                if (res.succeeded())
-                                {
-                                    ctx.response().end(res.result());
-                                }
-                                else
-                                {
-                                    ctx.fail(res.cause());
-                                }
-                            });
+            ctx.put("config_plot_data", PLOT_DATA_MARKER);
+
+            parent.template_engine.render(ctx, "templates/dataserver_plot_zone.hbs", res -> {
+                    if (res.failed())
+                    {
+                        ctx.fail(res.cause());
+                        return;
                     }
-            });
+
+                    String page = res.result().toString();
+                    int data_pos = page.indexOf(PLOT_DATA_MARKER);
+
+                    TransitStream.send(vertx, parent.cache, ctx.response(), filename, DataCache.closed_day(yyyy, MM, dd),
+                                       page.substring(0, data_pos) + "[",
+                                       "]" + page.substring(data_pos + PLOT_DATA_MARKER.length()),
+                                       v -> serve_plot_no_data(ctx, filename));
+                });
         }
     }
-        
+
+    // render the page WITHOUT the data, so page can tell user of error
+    void serve_plot_no_data(RoutingContext ctx, String filename)
+    {
+        parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                          ": file read failed for "+filename);
+
+        ctx.remove("config_plot_data");
+
+        parent.template_engine.render(ctx, "templates/dataserver_plot_zone.hbs", res -> {
+                if (res.succeeded())
+                {
+                    ctx.response().end(res.result());
+                }
+                else
+                {
+                    ctx.fail(res.cause());
+                }
+            });
+    }
+
 }
@@ -4,19 +4,33 @@ package uk.ac.cam.tfc_server.dataserver;
 //
 // Part of DataServer package, allows download of raw data files
 //
+// The listing of a raw day (from its index or directory) is kept in the DataCache.
+//
+// Files are served with an ETag and Cache-Control (files of past days being immutable), and the files of past
+// days are sent gzip compressed to clients accepting that (see DataResponse).
+//
 
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileProps;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
+import uk.ac.cam.tfc_server.util.BinArchive;
+import uk.ac.cam.tfc_server.util.BinIndex;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
 
-import java.nio.file.Path;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 public class DataRaw {
 
@@ -78,7 +92,8 @@ public class DataRaw {
 
             ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID +
                     ": raw file " + rawname + "/" + filename);
-            serve_filepath(vertx, ctx, ds.DATA_PATH + rawname + "/" + filename);
+            serve_filepath(vertx, ctx, ds.DATA_PATH + rawname + "/" + filename, false,
+                           v -> ctx.response().setStatusCode(404).end());
         });
 
     }
@@ -105,46 +120,163 @@ public class DataRaw {
             // build full filepath for data to be retrieved
             String raw_path = ds.DATA_PATH + rawname + "/" + yyyy + "/" + MM + "/" + dd;
 
-            // read list of filenames from directory
-            vertx.fileSystem().readDir(raw_path, res -> {
-                if (res.succeeded()) {
-                    // get res.result() list of files and display in raw_day.hbs
-
-                    ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID +
-                            ": raw day read successfully");
-                    // sort the files from the directory into timestamp order
-                    Collections.sort(res.result());
-
-                    String files_json = "[";
+            // optional time window, e.g. ?start_ts=1465603200&finish_ts=1465606800
+            long start_ts = get_ts_param(ctx, "start_ts", 0L);
+            long finish_ts = get_ts_param(ctx, "finish_ts", Long.MAX_VALUE);
+
+            // the listing of the day is cached (see DataCache), either as the entries of the day's index
+            // or as the sorted filenames in the day directory
+            boolean closed = DataCache.closed_day(yyyy, MM, dd);
+            ds.cache.get(vertx, raw_path, value -> {
+                if (value != null) {
+                    render_raw_day(ctx, raw_path, window_filenames(value, start_ts, finish_ts));
+                    return;
+                }
+                read_raw_day(vertx, ds.DATA_PATH + rawname, yyyy + "/" + MM + "/" + dd, closed, res -> {
+                    if (res.succeeded()) {
+                        render_raw_day(ctx, raw_path, window_filenames(res.result(), start_ts, finish_ts));
+                    } else {
+                        render_raw_day(ctx, raw_path, null);
+                    }
+                });
+            });
+        }
+    }
 
-                    for (int i = 0; i < res.result().size(); i++) {
-                        if (i != 0) {
-                            files_json += ",";
+    // read the listing of the day raw_path = data_bin/filepath (YYYY/MM/DD), i.e. the entries of the day's index if it has one
+    // (see BinIndex.entries), otherwise the sorted list of filenames
+    // in the directory, and put it in the cache
+    // (the listing of today is not cached, as feed files are still being added to it)
+    private void read_raw_day(Vertx vertx, String data_bin, String filepath, boolean closed,
+                              Handler<AsyncResult<Object>> handler) {
+        String raw_path = data_bin + "/" + filepath;
+        String index_path = raw_path + BinIndex.SUFFIX;
+        vertx.fileSystem().props(index_path, index_res -> {
+            if (index_res.succeeded()) {
+                vertx.<Object>executeBlocking(fut -> {
+                    try {
+                        List<BinIndex.Entry> entries = BinIndex.entries(data_bin, filepath, Long.MIN_VALUE, Long.MAX_VALUE);
+                        if (closed) {
+                            long weight = 0;
+                            for (BinIndex.Entry entry : entries) {
+                                weight += 64 + 2 * entry.filename.length();
+                            }
+                            ds.cache.put(raw_path, entries, weight, index_path, index_res.result(), closed);
                         }
-                        Path p = Paths.get(res.result().get(i));
-                        String filename = p.getFileName().toString();
-                        files_json += "\"" + filename + "\"";
+                        fut.complete(entries);
+                    } catch (Exception e) {
+                        fut.fail(e);
                     }
+                }, res -> {
+                    if (res.failed()) {
+                        ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID +
+                                ": DataRaw index read error " + index_path);
+                    }
+                    handler.handle(res);
+                });
+                return;
+            }
 
-                    files_json += "]";
-
-                    ctx.put("config_files", files_json);
-
-                    ds.logger.log(Constants.LOG_INFO, ds.MODULE_NAME + "." + ds.MODULE_ID +
-                            ": DataRaw rendering " + raw_path);
-                } else {
+            // read list of filenames from directory
+            vertx.fileSystem().props(raw_path, dir_res -> {
+                if (dir_res.failed()) {
                     ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID +
                             ": DataRaw directory read error " + raw_path);
+                    handler.handle(Future.failedFuture(dir_res.cause()));
+                    return;
                 }
-                ds.template_engine.render(ctx, "templates/dataserver_raw_day.hbs", t_res -> {
-                    if (t_res.succeeded()) {
-                        ctx.response().end(t_res.result());
+                vertx.fileSystem().readDir(raw_path, res -> {
+                    if (res.succeeded()) {
+                        ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID +
+                                ": raw day read successfully");
+                        // sort the files from the directory into timestamp order
+                        Collections.sort(res.result());
+
+                        List<String> filenames = new ArrayList<String>();
+                        long weight = 0;
+                        for (String file : res.result()) {
+                            String filename = Paths.get(file).getFileName().toString();
+                            filenames.add(filename);
+                            weight += 48 + 2 * filename.length();
+                        }
+                        ds.cache.put(raw_path, filenames, weight, raw_path, dir_res.result(), closed);
+                        handler.handle(Future.succeededFuture(filenames));
                     } else {
-                        Log.log_err("DataRaw render error");
-                        ctx.fail(t_res.cause());
+                        ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID +
+                                ": DataRaw directory read error " + raw_path);
+                        handler.handle(Future.failedFuture(res.cause()));
                     }
                 });
             });
+        });
+    }
+
+    // the filenames of the day listing (index entries or directory filenames) within start_ts..finish_ts
+    @SuppressWarnings("unchecked")
+    private List<String> window_filenames(Object listing, long start_ts, long finish_ts) {
+        List<String> filenames = new ArrayList<String>();
+        for (Object item : (List<Object>) listing) {
+            if (item instanceof BinIndex.Entry) {
+                BinIndex.Entry entry = (BinIndex.Entry) item;
+                if (entry.ts >= start_ts && entry.ts <= finish_ts) {
+                    filenames.add(entry.filename);
+                }
+            } else if (in_window((String) item, start_ts, finish_ts)) {
+                filenames.add((String) item);
+            }
+        }
+        return filenames;
+    }
+
+    // render templates/dataserver_raw_day.hbs with the list of filenames (or null if not available)
+    private void render_raw_day(RoutingContext ctx, String raw_path, List<String> filenames) {
+        if (filenames != null) {
+            StringBuilder files_json = new StringBuilder("[");
+
+            for (int i = 0; i < filenames.size(); i++) {
+                if (i != 0) {
+                    files_json.append(",");
+                }
+                files_json.append("\"").append(filenames.get(i)).append("\"");
+            }
+
+            files_json.append("]");
+
+            ctx.put("config_files", files_json.toString());
+
+            ds.logger.log(Constants.LOG_INFO, ds.MODULE_NAME + "." + ds.MODULE_ID +
+                    ": DataRaw rendering " + raw_path);
+        }
+        ds.template_engine.render(ctx, "templates/dataserver_raw_day.hbs", t_res -> {
+            if (t_res.succeeded()) {
+                ctx.response().end(t_res.result());
+            } else {
+                Log.log_err("DataRaw render error");
+                ctx.fail(t_res.cause());
+            }
+        });
+    }
+
+    // return the value of query parameter name as a long, or default_ts
+    private long get_ts_param(RoutingContext ctx, String name, long default_ts) {
+        String value = ctx.request().getParam(name);
+        if (value == null) {
+            return default_ts;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return default_ts;
+        }
+    }
+
+    // true if the <UTC-TS>_... filename is within start_ts..finish_ts (files not so named are always listed)
+    private boolean in_window(String filename, long start_ts, long finish_ts) {
+        try {
+            long ts = Long.parseLong(filename.substring(0, filename.indexOf('_')));
+            return ts >= start_ts && ts <= finish_ts;
+        } catch (Exception e) {
+            return true;
         }
     }
 
@@ -157,25 +289,96 @@ public class DataRaw {
             ctx.response().setStatusCode(400).end();
         } else {
             // build full filepath for data to be retrieved
-            String filepath = ds.DATA_PATH + rawname + "/" + yyyy + "/" + MM + "/" + dd + "/" + filename;
-            serve_filepath(vertx, ctx, filepath);
+            String day_path = ds.DATA_PATH + rawname + "/" + yyyy + "/" + MM + "/" + dd;
+            String filepath = day_path + "/" + filename;
+            boolean closed = DataCache.closed_day(yyyy, MM, dd);
+            // if not found the file may be a record in the day archive, found via the day index
+            serve_filepath(vertx, ctx, filepath, closed, v -> serve_archived(vertx, ctx, day_path, filename, closed));
         }
     }
 
-    public void serve_filepath(Vertx vertx, RoutingContext ctx, String filepath) {
-        // read the file containing the data
-        vertx.fileSystem().readFile(filepath, fileres -> {
-            if (fileres.succeeded()) {
+    // serve the feed file filename from the day archive day_path.pack, as listed in the index day_path.idx
+    public void serve_archived(Vertx vertx, RoutingContext ctx, String day_path, String filename, boolean closed) {
+        String archive_path = day_path + BinArchive.SUFFIX;
+        vertx.fileSystem().props(archive_path, props_res -> {
+            if (props_res.failed()) {
                 ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID + ": " +
-                        "DataRaw file " + filepath + " read successfully");
-                ctx.response().putHeader("content-type", "application/octet-stream");
-                // successful file read, so return page
-                ctx.response().end(fileres.result());
-            } else {
+                        "DataRaw file " + day_path + "/" + filename + " read failed");
+                ctx.response().setStatusCode(404).end();
+                return;
+            }
+            // the records of the archive are never changed, so the ETag of the archive is valid for each of them
+            FileProps props = props_res.result();
+            if (DataResponse.not_modified(ctx, DataResponse.etag(props, false), props.lastModifiedTime(), closed)) {
+                return;
+            }
+            vertx.<Buffer>executeBlocking(fut -> {
+                try {
+                    BinIndex.Entry entry = BinIndex.find(day_path + BinIndex.SUFFIX, filename);
+                    if (entry == null || !entry.archived()) {
+                        fut.fail("not found");
+                        return;
+                    }
+                    BinArchive.Entry archive_entry = new BinArchive.Reader(archive_path).entry_at(entry.offset);
+                    if (archive_entry == null) {
+                        fut.fail("not found");
+                        return;
+                    }
+                    byte[] data = new byte[archive_entry.data.remaining()];
+                    archive_entry.data.get(data);
+                    fut.complete(Buffer.buffer(data));
+                } catch (Exception e) {
+                    fut.fail(e);
+                }
+            }, res -> {
+                if (res.succeeded()) {
+                    ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID + ": " +
+                            "DataRaw archived file " + day_path + "/" + filename + " read successfully");
+                    ctx.response().putHeader("content-type", "application/octet-stream");
+                    ctx.response().end(res.result());
+                } else {
+                    ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID + ": " +
+                            "DataRaw file " + day_path + "/" + filename + " read failed");
+                    // return no-found error
+                    ctx.response().headers().remove("ETag").remove("Last-Modified").remove("Cache-Control");
+                    ctx.response().setStatusCode(404).end();
+                }
+            });
+        });
+    }
+
+    // serve the file filepath, or call not_found_handler if there is no such file.
+    // closed is true if the file is of a past day, so will not change.
+    public void serve_filepath(Vertx vertx, RoutingContext ctx, String filepath, boolean closed,
+                               Handler<Void> not_found_handler) {
+        vertx.fileSystem().props(filepath, props_res -> {
+            if (props_res.failed() || !props_res.result().isRegularFile()) {
                 ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID + ": " +
                         "DataRaw file " + filepath + " read failed");
-                // return no-found error
-                ctx.response().setStatusCode(404).end();
+                not_found_handler.handle(null);
+                return;
+            }
+            FileProps props = props_res.result();
+
+            boolean gzip = DataResponse.use_gzip(ctx, ds.GZIP_PATH, closed, props.size());
+
+            if (DataResponse.not_modified(ctx, DataResponse.etag(props, gzip), props.lastModifiedTime(), closed)) {
+                return;
+            }
+
+            ds.logger.log(Constants.LOG_DEBUG, ds.MODULE_NAME + "." + ds.MODULE_ID + ": " +
+                    "DataRaw serving file " + filepath + (gzip ? " (gzip)" : ""));
+            ctx.response().putHeader("content-type", "application/octet-stream");
+
+            if (gzip) {
+                DataResponse.send_gzip(vertx, ctx, ds.gzip_path(filepath), props,
+                                       out -> Files.copy(Paths.get(filepath), out),
+                                       v -> {
+                                           ctx.response().putHeader("ETag", DataResponse.etag(props, false));
+                                           ctx.response().sendFile(filepath);
+                                       });
+            } else {
+                ctx.response().sendFile(filepath);
             }
         });
     }
@@ -0,0 +1,224 @@
+package uk.ac.cam.tfc_server.dataserver;
+
+// DataResponse.java
+//
+// Part of DataServer package, HTTP caching support for the responses of data files (DataRaw, ZoneAPI):
+//
+//   conditional GET - the response carries an ETag (from the size and modification time of the file)
+//                     and Last-Modified, and a request with a matching If-None-Match (or If-Modified-Since)
+//                     gets a 304 Not Modified with no body.
+//   Cache-Control   - the files of past days do not change, so their responses may be cached by the client
+//                     for a year, while responses of today must be revalidated ("no-cache").
+//   gzip            - a client accepting gzip is sent a gzip-compressed variant of the data of a past day,
+//                     compressed once and kept on disk under "dataserver.gzip_path" (if configured), and
+//                     sent from there (with sendFile) for subsequent requests.
+//
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.FileProps;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import uk.ac.cam.tfc_server.util.Log;
+
+public class DataResponse {
+
+    public static final long MAX_AGE = 31536000; // seconds (a year) a past day response may be cached
+
+    public static final long GZIP_MIN_SIZE = 512; // smaller files are not worth compressing
+
+    // writes the (uncompressed) content of a response, called on a worker thread
+    public interface ContentWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    // the ETag of a response from the file with props (of its gzip variant if gzip)
+    public static String etag(FileProps props, boolean gzip)
+    {
+        return "\""+Long.toHexString(props.size())+"-"+Long.toHexString(props.lastModifiedTime())+
+               (gzip ? "-gz" : "")+"\"";
+    }
+
+    // true if the gzip variant of a file of size bytes is to be sent, i.e. the file is of a past day, with
+    // gzip_path configured, and the client accepts gzip (the response then varies by Accept-Encoding)
+    public static boolean use_gzip(RoutingContext ctx, String gzip_path, boolean closed, long size)
+    {
+        if (gzip_path == null || !closed || size < GZIP_MIN_SIZE)
+            {
+                return false;
+            }
+        ctx.response().putHeader("Vary", "Accept-Encoding");
+        return accepts_gzip(ctx.request());
+    }
+
+    // true if the request's Accept-Encoding includes gzip (with a q value > 0)
+    public static boolean accepts_gzip(HttpServerRequest request)
+    {
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null)
+            {
+                return false;
+            }
+        for (String coding : accept.split(","))
+            {
+                String[] parts = coding.trim().split(";");
+                String name = parts[0].trim();
+                if (!name.equalsIgnoreCase("gzip") && !name.equals("*"))
+                    {
+                        continue;
+                    }
+                for (int i=1; i<parts.length; i++)
+                    {
+                        String param = parts[i].trim();
+                        if (param.startsWith("q="))
+                            {
+                                try
+                                    {
+                                        return Double.parseDouble(param.substring(2)) > 0;
+                                    }
+                                catch (NumberFormatException e)
+                                    {
+                                        return false;
+                                    }
+                            }
+                    }
+                return true;
+            }
+        return false;
+    }
+
+    // Put the caching headers of the response (ETag, Last-Modified, Cache-Control), and if the request is
+    // conditional and the client's copy is still current, end the response as 304 Not Modified.
+    // Returns true if the response has been ended.
+    public static boolean not_modified(RoutingContext ctx, String etag, long last_modified, boolean closed)
+    {
+        HttpServerResponse response = ctx.response();
+
+        response.putHeader("ETag", etag);
+        response.putHeader("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                               ZonedDateTime.ofInstant(Instant.ofEpochMilli(last_modified), ZoneOffset.UTC)));
+        response.putHeader("Cache-Control", closed ? "public, max-age="+MAX_AGE+", immutable" : "no-cache");
+
+        if (matches(ctx.request(), etag, last_modified))
+            {
+                response.setStatusCode(304).end();
+                return true;
+            }
+        return false;
+    }
+
+    // true if the request's If-None-Match includes etag, or (without If-None-Match) its
+    // If-Modified-Since is not before last_modified
+    private static boolean matches(HttpServerRequest request, String etag, long last_modified)
+    {
+        String if_none_match = request.getHeader("If-None-Match");
+        if (if_none_match != null)
+            {
+                for (String tag : if_none_match.split(","))
+                    {
+                        tag = tag.trim();
+                        if (tag.startsWith("W/"))
+                            {
+                                tag = tag.substring(2);
+                            }
+                        if (tag.equals("*") || tag.equals(etag))
+                            {
+                                return true;
+                            }
+                    }
+                return false;
+            }
+
+        String if_modified_since = request.getHeader("If-Modified-Since");
+        if (if_modified_since != null)
+            {
+                try
+                    {
+                        long since = ZonedDateTime.parse(if_modified_since, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                        return last_modified / 1000 <= since;
+                    }
+                catch (Exception e)
+                    {
+                        return false;
+                    }
+            }
+        return false;
+    }
+
+    // Send the gzip variant gz_path of a file (with props), creating it (on a worker thread) with the
+    // content written by writer if it doesn't exist or is older than the file. If it cannot be created
+    // fail_handler is called instead, with the response not yet started.
+    public static void send_gzip(Vertx vertx, RoutingContext ctx, String gz_path, FileProps props,
+                                 ContentWriter writer, Handler<Void> fail_handler)
+    {
+        vertx.fileSystem().props(gz_path, gz_res -> {
+                if (gz_res.succeeded() && gz_res.result().lastModifiedTime() >= props.lastModifiedTime())
+                {
+                    send_gzip_file(ctx, gz_path);
+                    return;
+                }
+
+                vertx.<Void>executeBlocking(fut -> {
+                        try {
+                            write_gzip(gz_path, writer);
+                            fut.complete();
+                        } catch (Exception e) {
+                            fut.fail(e);
+                        }
+                    }, false, res -> {
+                        if (res.failed())
+                        {
+                            Log.log_err("DataResponse: failed to write "+gz_path+" "+res.cause());
+                            fail_handler.handle(null);
+                            return;
+                        }
+                        send_gzip_file(ctx, gz_path);
+                    });
+            });
+    }
+
+    private static void send_gzip_file(RoutingContext ctx, String gz_path)
+    {
+        ctx.response().putHeader("Content-Encoding", "gzip");
+        ctx.response().sendFile(gz_path);
+    }
+
+    // BLOCKING: write the gzip compressed content to gz_path, via a temporary file renamed into place
+    // so a concurrent request never sees a partial file
+    private static void write_gzip(String gz_path, ContentWriter writer) throws IOException
+    {
+        Path path = Paths.get(gz_path);
+        Files.createDirectories(path.getParent());
+
+        Path tmp_path = Paths.get(gz_path+"."+UUID.randomUUID()+".tmp");
+        try
+            {
+                try (OutputStream out = new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp_path), 65536), 65536))
+                    {
+                        writer.write(out);
+                    }
+                Files.move(tmp_path, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        finally
+            {
+                Files.deleteIfExists(tmp_path);
+            }
+    }
+
+} // end class DataResponse
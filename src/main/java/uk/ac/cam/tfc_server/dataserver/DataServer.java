@@ -73,6 +73,10 @@ public class DataServer extends AbstractVerticle {
     private int    LOG_LEVEL; // from config(), defaults to Constants.LOG_INFO
     
     public String DATA_PATH; // from config() base filesystem path to data
+
+    private int    CACHE_MB; // from config(), size of the DataCache, default 64, 0 => no cache
+
+    public String GZIP_PATH; // from config() base filesystem path for gzip variants of past day files, null => no gzip
     
     // Globals
     public String BASE_URI; // used as template parameter for web pages, built from config()
@@ -84,6 +88,8 @@ public class DataServer extends AbstractVerticle {
     public  Log logger;
     public  HandlebarsTemplateEngine template_engine;
 
+    public  DataCache cache; // data read from files by ZoneAPI, DataPlot, DataRaw
+
     // Vertx event bus
     private EventBus eb = null; // at least for system_status messages, not for the browser
 
@@ -108,6 +114,8 @@ public class DataServer extends AbstractVerticle {
 
     eb = vertx.eventBus();
 
+    cache = new DataCache(CACHE_MB * 1024L * 1024L);
+
     // send periodic "system_status" messages
     init_system_status();
     
@@ -185,7 +193,8 @@ public class DataServer extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
-                   "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
+                   "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) + "," +
+                   "\"cache\": "+cache.stats().toString() +
                  "}" );
       });
     }
@@ -260,6 +269,12 @@ public class DataServer extends AbstractVerticle {
                 return false;
             }
 
+        // size of the in-memory cache of data read from files, in MB
+        CACHE_MB = config().getInteger(MODULE_NAME+".cache_mb", 64);
+
+        // where the gzip compressed variants of the files of past days are kept (see DataResponse)
+        GZIP_PATH = config().getString(MODULE_NAME+".gzip_path");
+
         // where the built-in webserver will find static files
         GOOGLE_MAP_API_KEY = config().getString(MODULE_NAME+".google_map_api_key");
         if (GOOGLE_MAP_API_KEY==null)
@@ -272,5 +287,11 @@ public class DataServer extends AbstractVerticle {
         return true;
     }
 
+    // the path of the gzip variant of data file filepath (under DATA_PATH), e.g. for DataResponse.send_gzip()
+    public String gzip_path(String filepath)
+    {
+        return GZIP_PATH + filepath.substring(DATA_PATH.length()) + ".gz";
+    }
+
 } // end class DataServer
 
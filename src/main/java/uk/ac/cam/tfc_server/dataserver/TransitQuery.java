@@ -0,0 +1,498 @@
+package uk.ac.cam.tfc_server.dataserver;
+
+// TransitQuery.java
+//
+// Part of DataServer package, the zone transit range queries of ZoneAPI, e.g.
+//   /api/dataserver/zone/range/madingley_road_in?start_date=2016-10-01&end_date=2016-10-30
+//   /api/dataserver/zone/aggregate/madingley_road_in?start_date=2016-10-01&end_date=2016-10-30&interval=900
+//
+// Query parameters:
+//   start_date, end_date  YYYY-MM-DD, the (inclusive) days to be read, at most MAX_DAYS
+//   hour_start, hour_end  optional, only transits with hour_start <= (local) hour of day < hour_end
+//   route_id              optional, only transits of that route
+//   msg_type              optional, only messages of that type (the aggregates always use zone_completion)
+//   interval              aggregate only, interval in seconds (default 3600) the durations are grouped by,
+//                         by local time of day, i.e. aligned to local midnight even on a clock change day
+//   time_of_day           aggregate only, "true" to group the intervals of all the days by time of day
+//                         (e.g. the 08:00-09:00 interval of every day together)
+//
+// 'range' returns the matching transits as the day API does, i.e. { ..., "request_data": [ transits ] }.
+// 'aggregate' returns { ..., "request_data": [ { "ts" (or "time_of_day"), "count", "median", "p85" }, ... ] }
+// with the count, median and 85th percentile of the zone_completion durations in each interval.
+//
+// The day files (the TransitColumns .col file of the day if there is one, otherwise the .txt file) are read
+// and filtered in parallel on worker threads, the day results being merged on the event loop. An aggregate
+// query reads at most MAX_PARALLEL_DAYS days at once, and a range query reads at most MAX_PARALLEL_DAYS days
+// ahead of the day being written, and stops reading while the response write queue is full, so a long
+// query neither floods the worker pool (shared with every other request) nor is held in memory.
+//
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.TransitColumns;
+
+public class TransitQuery {
+
+    public static final int MAX_DAYS = 366; // max days in a range query
+    public static final int MAX_PARALLEL_DAYS = 4; // max days of a query being read (or waiting to be written)
+
+    private static final DateTimeFormatter FORMAT_PATH = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+    private static final DateTimeFormatter FORMAT_NAME = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private String data_path;
+    private String zone_id;
+
+    private LocalDate start_date;
+    private LocalDate end_date;
+    private int hour_start = 0;
+    private int hour_end = 24;
+    private String route_id;
+    private String msg_type;
+    private long interval = 3600;
+    private boolean time_of_day = false;
+
+    private TransitQuery(String data_path, String zone_id)
+    {
+        this.data_path = data_path;
+        this.zone_id = zone_id;
+    }
+
+    // return the query given by the request parameters, or null (having sent a 400 response) if they are invalid
+    public static TransitQuery create(RoutingContext ctx, String data_path, String zone_id)
+    {
+        HttpServerRequest request = ctx.request();
+
+        TransitQuery query = new TransitQuery(data_path, zone_id);
+        try
+            {
+                query.start_date = LocalDate.parse(request.getParam("start_date"));
+                query.end_date = LocalDate.parse(request.getParam("end_date"));
+
+                if (request.getParam("hour_start") != null)
+                    {
+                        query.hour_start = Integer.parseInt(request.getParam("hour_start"));
+                    }
+                if (request.getParam("hour_end") != null)
+                    {
+                        query.hour_end = Integer.parseInt(request.getParam("hour_end"));
+                    }
+                if (request.getParam("interval") != null)
+                    {
+                        query.interval = Long.parseLong(request.getParam("interval"));
+                    }
+                query.time_of_day = "true".equals(request.getParam("time_of_day"));
+                query.route_id = request.getParam("route_id");
+                query.msg_type = request.getParam("msg_type");
+            }
+        catch (Exception e)
+            {
+                ctx.response().setStatusCode(400).end("bad query parameters");
+                return null;
+            }
+
+        long days = query.end_date.toEpochDay() - query.start_date.toEpochDay() + 1;
+        if (days < 1 || days > MAX_DAYS || query.interval < 1 ||
+            query.hour_start < 0 || query.hour_end > 24 || query.hour_start >= query.hour_end)
+            {
+                ctx.response().setStatusCode(400).end("bad query parameters");
+                return null;
+            }
+
+        return query;
+    }
+
+    // the (.txt) transit file of zone_id for date
+    public static String transit_filename(String data_path, String zone_id, LocalDate date)
+    {
+        return data_path+"zone/"+date.format(FORMAT_PATH)+"/"+zone_id+"_"+date.format(FORMAT_NAME)+".txt";
+    }
+
+    // the days of the query, in order
+    private List<LocalDate> days()
+    {
+        ArrayList<LocalDate> days = new ArrayList<LocalDate>();
+        for (LocalDate date = start_date; !date.isAfter(end_date); date = date.plusDays(1))
+            {
+                days.add(date);
+            }
+        return days;
+    }
+
+    // BLOCKING: the transits of date matching the query, empty if there is no file for the day
+    private List<TransitColumns.Transit> read_day(LocalDate date, boolean durations_only) throws Exception
+    {
+        String filename = transit_filename(data_path, zone_id, date);
+        String column_filename = TransitColumns.column_path(filename);
+
+        List<TransitColumns.Transit> transits;
+        if (Files.exists(Paths.get(column_filename)))
+            {
+                transits = TransitColumns.read(column_filename);
+            }
+        else if (Files.exists(Paths.get(filename)))
+            {
+                transits = new ArrayList<TransitColumns.Transit>();
+                for (String line : Files.readAllLines(Paths.get(filename)))
+                    {
+                        if (line.length() > 0)
+                            {
+                                transits.add(TransitColumns.Transit.from_json(new JsonObject(line)));
+                            }
+                    }
+            }
+        else
+            {
+                return new ArrayList<TransitColumns.Transit>();
+            }
+
+        ArrayList<TransitColumns.Transit> matched = new ArrayList<TransitColumns.Transit>();
+        for (TransitColumns.Transit transit : transits)
+            {
+                if (durations_only ? !transit.has_duration || !Constants.ZONE_COMPLETION.equals(transit.msg_type)
+                                   : msg_type != null && !msg_type.equals(transit.msg_type))
+                    {
+                        continue;
+                    }
+                if (route_id != null && !route_id.equals(transit.route_id))
+                    {
+                        continue;
+                    }
+                if (hour_start > 0 || hour_end < 24)
+                    {
+                        int hour = Instant.ofEpochSecond(transit.ts).atZone(zone).getHour();
+                        if (hour < hour_start || hour >= hour_end)
+                            {
+                                continue;
+                            }
+                    }
+                matched.add(transit);
+            }
+        return matched;
+    }
+
+    // ******************************************************************************
+    // range - the matching transits
+    // ******************************************************************************
+
+    public void send_range(Vertx vertx, RoutingContext ctx, String module_name, String module_id)
+    {
+        HttpServerResponse response = ctx.response();
+
+        // the api JSON message, with the transits of each day streamed into request_data in order
+        JsonObject jo = new JsonObject();
+        jo.put("module_name", module_name);
+        jo.put("module_id", module_id);
+        jo.put("request_data", new JsonArray());
+        String msg = jo.toString();
+        int data_pos = msg.lastIndexOf("[]") + 1;
+
+        response.putHeader("content-type", "text/plain");
+        response.setChunked(true);
+        response.write(msg.substring(0, data_pos));
+
+        new RangeWriter(vertx, response, days(), msg.substring(data_pos)).read_days();
+    }
+
+    // Writes the transits of the days of a range query to the response in order, reading at most
+    // MAX_PARALLEL_DAYS ahead of the day being written (so the worker pool is not flooded, and only
+    // those days are held in memory), and pausing while the response write queue is full.
+    class RangeWriter {
+
+        private final Vertx vertx;
+        private final HttpServerResponse response;
+        private final List<LocalDate> days;
+        private final String tail;
+
+        private final Buffer[] results; // the days read but not yet written
+        private int next_read = 0;      // next day to be read
+        private int next_write = 0;     // next day to be written
+        private boolean first = true;   // no transit written yet
+        private boolean paused = false; // waiting for the response write queue to drain
+        private boolean failed = false; // a read failed or the client has gone
+
+        RangeWriter(Vertx vertx, HttpServerResponse response, List<LocalDate> days, String tail)
+        {
+            this.vertx = vertx;
+            this.response = response;
+            this.days = days;
+            this.tail = tail;
+            results = new Buffer[days.size()];
+            response.closeHandler(v -> failed = true);
+        }
+
+        // start reading the days within the window
+        void read_days()
+        {
+            while (next_read < days.size() && next_read - next_write < MAX_PARALLEL_DAYS)
+                {
+                    start_read(next_read++);
+                }
+        }
+
+        private void start_read(int day)
+        {
+            vertx.<Buffer>executeBlocking(fut -> {
+                    try {
+                        Buffer out = Buffer.buffer();
+                        for (TransitColumns.Transit transit : read_day(days.get(day), false))
+                            {
+                                out.appendByte((byte) ',');
+                                out.appendString(transit.to_json().toString());
+                            }
+                        fut.complete(out);
+                    } catch (Exception e) {
+                        fut.fail(e);
+                    }
+                }, false, res -> {
+                    if (failed)
+                    {
+                        return;
+                    }
+                    if (res.failed())
+                    {
+                        Log.log_err("TransitQuery: error reading "+zone_id+" "+days.get(day)+" "+res.cause());
+                        failed = true;
+                        response.close();
+                        return;
+                    }
+                    results[day] = res.result();
+                    if (!paused)
+                    {
+                        write_days();
+                    }
+                });
+        }
+
+        // write the days read so far, in order, then read more unless the response is full
+        private void write_days()
+        {
+            while (next_write < results.length && results[next_write] != null)
+                {
+                    Buffer out = results[next_write];
+                    results[next_write] = null;
+                    next_write++;
+                    if (out.length() > 0)
+                        {
+                            // each transit is preceded by a comma, except the first of the array
+                            response.write(first ? out.getBuffer(1, out.length()) : out);
+                            first = false;
+                        }
+                    if (response.writeQueueFull())
+                        {
+                            paused = true;
+                            response.drainHandler(v -> {
+                                    paused = false;
+                                    if (!failed)
+                                    {
+                                        write_days();
+                                    }
+                                });
+                            return;
+                        }
+                }
+            if (next_write == results.length)
+                {
+                    response.end(tail);
+                    return;
+                }
+            read_days();
+        }
+    } // end class RangeWriter
+
+    // ******************************************************************************
+    // aggregate - count, median and p85 duration per interval
+    // ******************************************************************************
+
+    public void send_aggregate(Vertx vertx, RoutingContext ctx, String module_name, String module_id)
+    {
+        new Aggregator(vertx, ctx.response(), days(), module_name, module_id).read_days();
+    }
+
+    // Reads the days of an aggregate query, at most MAX_PARALLEL_DAYS at once (starting the next day as
+    // each completes, so the worker pool is not flooded), merging each day's intervals on the event loop,
+    // then sends the statistics of the intervals.
+    class Aggregator {
+
+        private final Vertx vertx;
+        private final HttpServerResponse response;
+        private final List<LocalDate> days;
+        private final String module_name;
+        private final String module_id;
+
+        // durations of each interval, keyed by interval start (ts, or seconds since midnight)
+        private final TreeMap<Long, DurationList> intervals = new TreeMap<Long, DurationList>();
+
+        private int next_read = 0;      // next day to be read
+        private int in_flight = 0;      // days being read
+        private boolean failed = false; // a read failed or the client has gone
+
+        Aggregator(Vertx vertx, HttpServerResponse response, List<LocalDate> days, String module_name, String module_id)
+        {
+            this.vertx = vertx;
+            this.response = response;
+            this.days = days;
+            this.module_name = module_name;
+            this.module_id = module_id;
+            response.closeHandler(v -> failed = true);
+        }
+
+        // start reading days up to MAX_PARALLEL_DAYS in flight, or send the result when all are merged
+        void read_days()
+        {
+            while (next_read < days.size() && in_flight < MAX_PARALLEL_DAYS)
+                {
+                    in_flight++;
+                    start_read(days.get(next_read++));
+                }
+            if (in_flight == 0)
+                {
+                    send();
+                }
+        }
+
+        private void start_read(LocalDate date)
+        {
+            vertx.<TreeMap<Long, DurationList>>executeBlocking(fut -> {
+                    try {
+                        TreeMap<Long, DurationList> day_intervals = new TreeMap<Long, DurationList>();
+                        for (TransitColumns.Transit transit : read_day(date, true))
+                            {
+                                // the local time of day, so the intervals of a day with a clock change
+                                // still start at the same (local) times as on any other day
+                                long offset = Instant.ofEpochSecond(transit.ts).atZone(zone).toLocalTime().toSecondOfDay()
+                                              / interval * interval;
+                                long key = time_of_day ? offset
+                                                       : date.atStartOfDay().plusSeconds(offset).atZone(zone).toEpochSecond();
+                                DurationList durations = day_intervals.get(key);
+                                if (durations == null)
+                                    {
+                                        durations = new DurationList();
+                                        day_intervals.put(key, durations);
+                                    }
+                                durations.add(transit.duration);
+                            }
+                        fut.complete(day_intervals);
+                    } catch (Exception e) {
+                        fut.fail(e);
+                    }
+                }, false, res -> {
+                    in_flight--;
+                    if (failed)
+                    {
+                        return;
+                    }
+                    if (res.failed())
+                    {
+                        Log.log_err("TransitQuery: error reading "+zone_id+" "+date+" "+res.cause());
+                        failed = true;
+                        response.setStatusCode(500).end();
+                        return;
+                    }
+                    merge(res.result());
+                    read_days();
+                });
+        }
+
+        // merge the intervals of a day into the intervals of the query
+        private void merge(TreeMap<Long, DurationList> day_intervals)
+        {
+            for (Long key : day_intervals.keySet())
+                {
+                    DurationList durations = intervals.get(key);
+                    if (durations == null)
+                        {
+                            intervals.put(key, day_intervals.get(key));
+                        }
+                    else
+                        {
+                            durations.add_all(day_intervals.get(key));
+                        }
+                }
+        }
+
+        // compute the statistics of each interval and send the response
+        private void send()
+        {
+            JsonArray request_data = new JsonArray();
+            for (Long key : intervals.keySet())
+                {
+                    long[] durations = intervals.get(key).sorted();
+                    JsonObject stats = new JsonObject();
+                    stats.put(time_of_day ? "time_of_day" : "ts", key);
+                    stats.put("count", durations.length);
+                    stats.put("median", percentile(durations, 0.5));
+                    stats.put("p85", percentile(durations, 0.85));
+                    request_data.add(stats);
+                }
+
+            JsonObject jo = new JsonObject();
+            jo.put("module_name", module_name);
+            jo.put("module_id", module_id);
+            jo.put("request_data", request_data);
+
+            response.putHeader("content-type", "text/plain");
+            response.end(jo.toString());
+        }
+    } // end class Aggregator
+
+    // nearest-rank percentile p (0..1) of sorted values
+    static long percentile(long[] sorted, double p)
+    {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    // a growable list of durations
+    static class DurationList {
+
+        private long[] values = new long[16];
+        private int size = 0;
+
+        void add(long value)
+        {
+            if (size == values.length)
+                {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+            values[size++] = value;
+        }
+
+        void add_all(DurationList other)
+        {
+            for (int i=0; i<other.size; i++)
+                {
+                    add(other.values[i]);
+                }
+        }
+
+        long[] sorted()
+        {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    } // end class DurationList
+
+} // end class TransitQuery
@@ -0,0 +1,385 @@
+package uk.ac.cam.tfc_server.dataserver;
+
+// TransitStream.java
+//
+// Part of DataServer package, streams the zone transits of a day file to an http response as the
+// elements of a JSON array, i.e.
+//   <head>{..transit..},{..transit..},...<tail>
+// with chunked transfer encoding, so the file is never held in memory as a whole (ZoneAPI, DataPlot).
+//
+// A newline-delimited JSON .txt file is read with an AsyncFile, each chunk being transformed as it is
+// read (newlines become commas, blank lines are dropped), and a TransitColumns .col file (used in
+// preference if the day has one) is decoded a block at a time on a worker thread.
+// In both cases reading is paused while the response write queue is full (backpressure), so memory
+// stays flat however large the file.
+//
+// The transits streamed from a file are also collected into the DataCache (unless larger than its
+// max_entry()), so the next request for the same day is written from memory.
+//
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.FileProps;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.TransitColumns;
+
+public class TransitStream {
+
+    private final Vertx vertx;
+    private final DataCache cache;
+    private final HttpServerResponse response;
+    private final String cache_key; // the .txt filename
+    private final boolean closed;  // true if the file is of a past day
+    private final String head;
+    private final String tail;
+
+    private boolean first = true; // no transit written yet
+
+    private Buffer cached = null; // the transits written so far, for the cache (null if not being cached)
+    private String cached_path;   // the file being read
+    private FileProps cached_props;
+
+    // stream the transits of the day file 'filename' (.txt, or its .col if there is one) to response,
+    // between head and tail, and end the response. If neither file can be opened nothing is written
+    // and not_found_handler is called instead. closed is true if the day is in the past.
+    public static void send(Vertx vertx, DataCache cache, HttpServerResponse response, String filename, boolean closed,
+                            String head, String tail, Handler<Void> not_found_handler)
+    {
+        TransitStream stream = new TransitStream(vertx, cache, response, filename, closed, head, tail);
+
+        cache.get(vertx, filename, value -> {
+                if (value != null)
+                {
+                    stream.start();
+                    response.write((Buffer) value);
+                    stream.finish();
+                    return;
+                }
+
+                String column_filename = TransitColumns.column_path(filename);
+
+                vertx.fileSystem().props(column_filename, col_res -> {
+                        if (col_res.succeeded())
+                        {
+                            stream.send_columns(column_filename, col_res.result(), not_found_handler);
+                            return;
+                        }
+                        vertx.fileSystem().props(filename, txt_res -> {
+                                if (txt_res.failed())
+                                {
+                                    not_found_handler.handle(null);
+                                    return;
+                                }
+                                stream.send_text(filename, txt_res.result(), not_found_handler);
+                            });
+                    });
+            });
+    }
+
+    private TransitStream(Vertx vertx, DataCache cache, HttpServerResponse response, String filename, boolean closed,
+                          String head, String tail)
+    {
+        this.vertx = vertx;
+        this.cache = cache;
+        this.response = response;
+        this.cache_key = filename;
+        this.closed = closed;
+        this.head = head;
+        this.tail = tail;
+    }
+
+    private void start()
+    {
+        response.setChunked(true);
+        response.write(head);
+    }
+
+    private void finish()
+    {
+        response.end(tail);
+    }
+
+    // collect the transits written from file path (with props as read before the file) for the cache
+    private void start_cache(String path, FileProps props)
+    {
+        cached = Buffer.buffer();
+        cached_path = path;
+        cached_props = props;
+    }
+
+    private void write(Buffer out)
+    {
+        if (cached != null)
+        {
+            if (cached.length() + out.length() > cache.max_entry())
+            {
+                cached = null; // too big to be cached
+            }
+            else
+            {
+                cached.appendBuffer(out);
+            }
+        }
+        response.write(out);
+    }
+
+    // end the response having written all the transits, caching them if they were collected
+    private void finish_cached()
+    {
+        if (cached != null)
+        {
+            cache.put(cache_key, cached, cached.length(), cached_path, cached_props, closed);
+        }
+        finish();
+    }
+
+    // ******************************************************************************
+    // newline-delimited JSON file
+    // ******************************************************************************
+
+    private void send_text(String filename, FileProps props, Handler<Void> not_found_handler)
+    {
+        vertx.fileSystem().open(filename, new OpenOptions().setRead(true).setWrite(false).setCreate(false), res -> {
+                if (res.failed())
+                {
+                    not_found_handler.handle(null);
+                    return;
+                }
+
+                AsyncFile file = res.result();
+
+                start();
+
+                if (props.size() <= cache.max_entry())
+                {
+                    start_cache(filename, props);
+                }
+
+                LineTransformer transformer = new LineTransformer();
+
+                file.handler(chunk -> {
+                        Buffer out = transformer.transform(chunk);
+                        if (out.length() > 0)
+                        {
+                            write(out);
+                        }
+                        if (response.writeQueueFull())
+                        {
+                            file.pause();
+                            response.drainHandler(v -> file.resume());
+                        }
+                    });
+
+                file.exceptionHandler(e -> {
+                        Log.log_err("TransitStream: error reading "+filename+" "+e);
+                        file.close();
+                        response.close();
+                    });
+
+                file.endHandler(v -> {
+                        file.close();
+                        finish_cached();
+                    });
+            });
+    }
+
+    // Transforms the chunks of a newline-delimited JSON file into the elements of a JSON array,
+    // i.e. each newline between two (non-blank) lines becomes a comma.
+    class LineTransformer {
+
+        private boolean in_line = false; // part way through a non-blank line
+
+        Buffer transform(Buffer chunk)
+        {
+            Buffer out = Buffer.buffer(chunk.length() + 16);
+            int length = chunk.length();
+            int start = 0;
+            while (start < length)
+                {
+                    // find the end of the current line within the chunk
+                    int end = start;
+                    while (end < length && chunk.getByte(end) != '\n')
+                        {
+                            end++;
+                        }
+                    if (end > start)
+                        {
+                            if (!in_line)
+                                {
+                                    if (!first)
+                                        {
+                                            out.appendByte((byte) ',');
+                                        }
+                                    first = false;
+                                    in_line = true;
+                                }
+                            out.appendBuffer(chunk, start, end - start);
+                        }
+                    if (end < length)
+                        {
+                            // newline
+                            in_line = false;
+                        }
+                    start = end + 1;
+                }
+            return out;
+        }
+    } // end class LineTransformer
+
+    // ******************************************************************************
+    // TransitColumns file
+    // ******************************************************************************
+
+    private void send_columns(String filename, FileProps props, Handler<Void> not_found_handler)
+    {
+        vertx.<TransitColumns.Reader>executeBlocking(fut -> {
+                try {
+                    fut.complete(new TransitColumns.Reader(filename, Long.MIN_VALUE, Long.MAX_VALUE));
+                } catch (Exception e) {
+                    fut.fail(e);
+                }
+            }, false, res -> {
+                if (res.failed())
+                {
+                    not_found_handler.handle(null);
+                    return;
+                }
+                start();
+                start_cache(filename, props);
+                send_next_block(res.result(), filename);
+            });
+    }
+
+    // decode the next block on a worker thread, write it, and continue once the response can take more
+    private void send_next_block(TransitColumns.Reader reader, String filename)
+    {
+        vertx.<Buffer>executeBlocking(fut -> {
+                try {
+                    List<TransitColumns.Transit> block = reader.next_block();
+                    if (block == null)
+                    {
+                        fut.complete(null);
+                        return;
+                    }
+                    Buffer out = Buffer.buffer(block.size() * 160);
+                    for (TransitColumns.Transit transit : block)
+                        {
+                            if (!first)
+                                {
+                                    out.appendByte((byte) ',');
+                                }
+                            first = false;
+                            out.appendString(transit.to_json().toString());
+                        }
+                    fut.complete(out);
+                } catch (Exception e) {
+                    fut.fail(e);
+                }
+            }, false, res -> {
+                if (res.failed())
+                {
+                    Log.log_err("TransitStream: error reading "+filename+" "+res.cause());
+                    close_reader(reader);
+                    response.close();
+                    return;
+                }
+                if (res.result() == null)
+                {
+                    close_reader(reader);
+                    finish_cached();
+                    return;
+                }
+                write(res.result());
+                if (response.writeQueueFull())
+                {
+                    response.drainHandler(v -> send_next_block(reader, filename));
+                }
+                else
+                {
+                    send_next_block(reader, filename);
+                }
+            });
+    }
+
+    // ******************************************************************************
+    // BLOCKING: write the transits of day file path (.txt or .col), between head and tail, to out,
+    // the same as send() streams them to the response (e.g. for DataResponse.send_gzip())
+    // ******************************************************************************
+
+    public static void write_blocking(String path, String head, String tail, OutputStream out) throws IOException
+    {
+        out.write(head.getBytes(StandardCharsets.UTF_8));
+        boolean first = true;
+        if (path.endsWith(TransitColumns.SUFFIX))
+            {
+                try (TransitColumns.Reader reader = new TransitColumns.Reader(path, Long.MIN_VALUE, Long.MAX_VALUE))
+                    {
+                        List<TransitColumns.Transit> block;
+                        while ((block = reader.next_block()) != null)
+                            {
+                                for (TransitColumns.Transit transit : block)
+                                    {
+                                        if (!first)
+                                            {
+                                                out.write(',');
+                                            }
+                                        first = false;
+                                        out.write(transit.to_json().toString().getBytes(StandardCharsets.UTF_8));
+                                    }
+                            }
+                    }
+            }
+        else
+            {
+                // as LineTransformer, each newline between non-blank lines becomes a comma
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(path)), 65536))
+                    {
+                        boolean in_line = false;
+                        int b;
+                        while ((b = in.read()) >= 0)
+                            {
+                                if (b == '\n')
+                                    {
+                                        in_line = false;
+                                        continue;
+                                    }
+                                if (!in_line)
+                                    {
+                                        if (!first)
+                                            {
+                                                out.write(',');
+                                            }
+                                        first = false;
+                                        in_line = true;
+                                    }
+                                out.write(b);
+                            }
+                    }
+            }
+        out.write(tail.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void close_reader(TransitColumns.Reader reader)
+    {
+        try {
+            reader.close();
+        } catch (Exception e) {
+            // just ignore it
+        }
+    }
+
+} // end class TransitStream
@@ -5,6 +5,17 @@ package uk.ac.cam.tfc_server.dataserver;
 // serves zone data via http / json (/api/zone/...)
 // E.g.
 //   /api/dataserver/zone/transits/madingley_road_in/2016/10/01
+//   /api/dataserver/zone/range/madingley_road_in?start_date=2016-10-01&end_date=2016-10-30&hour_start=7&hour_end=10
+//   /api/dataserver/zone/aggregate/madingley_road_in?start_date=2016-10-01&end_date=2016-10-30&interval=900
+//
+// Transits are served from the compressed TransitColumns file of the day (<zone_id>_YYYY-MM-DD.col)
+// if there is one, otherwise from the newline-delimited JSON file (<zone_id>_YYYY-MM-DD.txt),
+// streamed as a chunked response (see TransitStream).
+//
+// Responses carry an ETag and Cache-Control (past days being immutable), and a past day is sent gzip
+// compressed to clients accepting that (see DataResponse).
+//
+// The range and aggregate APIs read the days of a date range in parallel (see TransitQuery).
 //
 
 import java.util.ArrayList;
@@ -17,6 +28,7 @@ import java.util.*;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
+import io.vertx.core.file.FileProps;
 import io.vertx.core.file.FileSystem;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerResponse;
@@ -26,6 +38,7 @@ import io.vertx.ext.web.RoutingContext;
 
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.TransitColumns;
 
 public class ZoneAPI {
 
@@ -49,6 +62,32 @@ public class ZoneAPI {
                 serve_transits(vertx, ctx, zone_id, yyyy, MM, dd);
             });
         
+        // ZONE RANGE API e.g. /api/dataserver/zone/range/madingley_road_in?start_date=2016-10-01&end_date=2016-10-30
+
+        router.route(HttpMethod.GET, "/api/"+parent.MODULE_NAME+"/zone/range/:zoneid").handler( ctx -> {
+                String zone_id =  ctx.request().getParam("zoneid");
+                parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                           ": API zone/range/"+zone_id+" "+ctx.request().query());
+                TransitQuery query = TransitQuery.create(ctx, parent.DATA_PATH, zone_id);
+                if (query != null)
+                {
+                    query.send_range(vertx, ctx, parent.MODULE_NAME, parent.MODULE_ID);
+                }
+            });
+
+        // ZONE AGGREGATE API e.g. /api/dataserver/zone/aggregate/madingley_road_in?start_date=2016-10-01&end_date=2016-10-30&interval=900
+
+        router.route(HttpMethod.GET, "/api/"+parent.MODULE_NAME+"/zone/aggregate/:zoneid").handler( ctx -> {
+                String zone_id =  ctx.request().getParam("zoneid");
+                parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                           ": API zone/aggregate/"+zone_id+" "+ctx.request().query());
+                TransitQuery query = TransitQuery.create(ctx, parent.DATA_PATH, zone_id);
+                if (query != null)
+                {
+                    query.send_aggregate(vertx, ctx, parent.MODULE_NAME, parent.MODULE_ID);
+                }
+            });
+
         // ZONE CONFIG API e.g. /api/dataserver/zone/config/madingley_road_in
         
         router.route(HttpMethod.GET, "/api/"+parent.MODULE_NAME+"/zone/config/:zoneid").handler( ctx -> {
@@ -76,11 +115,75 @@ public class ZoneAPI {
             // build full filepath for data to be retrieved
             String filename = parent.DATA_PATH+"zone/"+yyyy+"/"+MM+"/"+dd+"/"+zone_id+"_"+yyyy+"-"+MM+"-"+dd+".txt";
 
-            // read file which is actually a line-per-JsonObject, convert to JsonArray, and serve it
-            serve_transit_file(vertx, ctx, filename);
+            // the api JSON message, with the transits streamed into request_data
+            JsonObject jo = new JsonObject();
+            jo.put("module_name", parent.MODULE_NAME);
+            jo.put("module_id", parent.MODULE_ID);
+            jo.put("request_data", new JsonArray());
+            String msg = jo.toString();
+            int data_pos = msg.lastIndexOf("[]") + 1;
+
+            String head = msg.substring(0, data_pos);
+            String tail = msg.substring(data_pos);
+
+            boolean closed = DataCache.closed_day(yyyy, MM, dd);
+
+            // the file the transits will be read from, i.e. the columnar file if there is one
+            String column_filename = TransitColumns.column_path(filename);
+            vertx.fileSystem().props(column_filename, col_res -> {
+                    if (col_res.succeeded())
+                    {
+                        send_transits(vertx, ctx, filename, column_filename, col_res.result(), closed, head, tail);
+                        return;
+                    }
+                    vertx.fileSystem().props(filename, txt_res -> {
+                            if (txt_res.failed())
+                            {
+                                ctx.response().setStatusCode(404).end();
+                                return;
+                            }
+                            send_transits(vertx, ctx, filename, filename, txt_res.result(), closed, head, tail);
+                        });
+                });
         }
     }
 
+    // send the transits of the day file filename, read from source_filename (with props), between head and tail,
+    // as a 304 Not Modified if the client has them already, or from the gzip variant if the client accepts gzip
+    void send_transits(Vertx vertx, RoutingContext ctx, String filename, String source_filename, FileProps props,
+                       boolean closed, String head, String tail)
+    {
+        boolean gzip = DataResponse.use_gzip(ctx, parent.GZIP_PATH, closed, props.size());
+
+        if (DataResponse.not_modified(ctx, DataResponse.etag(props, gzip), props.lastModifiedTime(), closed))
+        {
+            return;
+        }
+
+        ctx.response().putHeader("content-type", "text/plain");
+
+        if (gzip)
+        {
+            DataResponse.send_gzip(vertx, ctx, parent.gzip_path(filename.replace(".txt", ".json")), props,
+                                   out -> TransitStream.write_blocking(source_filename, head, tail, out),
+                                   v -> {
+                                       ctx.response().putHeader("ETag", DataResponse.etag(props, false));
+                                       stream_transits(vertx, ctx, filename, closed, head, tail);
+                                   });
+        }
+        else
+        {
+            stream_transits(vertx, ctx, filename, closed, head, tail);
+        }
+    }
+
+    // stream file which is actually a line-per-JsonObject (or its columnar version) as a JsonArray
+    void stream_transits(Vertx vertx, RoutingContext ctx, String filename, boolean closed, String head, String tail)
+    {
+        TransitStream.send(vertx, parent.cache, ctx.response(), filename, closed, head, tail,
+                           v -> ctx.response().setStatusCode(404).end());
+    }
+
     // Serve the zone/config json data
     void serve_config(Vertx vertx, RoutingContext ctx,
                       String zone_id)
@@ -102,47 +205,6 @@ public class ZoneAPI {
         }
     }
 
-    void serve_transit_file(Vertx vertx, RoutingContext ctx, String filename)
-    {
-        // read the file containing the data
-        vertx.fileSystem().readFile(filename, fileres -> {
-
-                if (fileres.succeeded()) {
-
-                    // successful file read, so populate page data and return page
-
-                    // Convert file contents to valid JSON
-                    // File starts as JSON objects separated by newlines
-
-                    String transit_data = fileres.result().toString();
-
-                    // replace newlines with commas
-                    transit_data = transit_data.replace("\n",",");
-
-                    //remove trailing comma
-                    transit_data = transit_data.substring(0,transit_data.length()-1);
-
-                    // wrap with [] and we have a JSON array containing JSON objects...
-                    transit_data = "["+transit_data+"]";
-
-
-                    JsonArray transit_json = new JsonArray(transit_data);
-
-                    HttpServerResponse response = ctx.response();
-                    response.putHeader("content-type", "text/plain");
-
-                    // build api JSON message including latest status values
-                    JsonObject jo = new JsonObject();
-                    jo.put("module_name", parent.MODULE_NAME);
-                    jo.put("module_id", parent.MODULE_ID);
-                    jo.put("request_data", transit_json);
-                    response.end(jo.toString());
-                } else {
-                    ctx.response().setStatusCode(404).end();
-                }
-        });
-    }
-
     // serve file, assumed to contain a valid JsonObject
     void serve_file(Vertx vertx, RoutingContext ctx, String filename)
     {
@@ -34,6 +34,7 @@ import java.time.format.*;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.core.AbstractTFCVerticle;
+import uk.ac.cam.tfc_server.gtfs.PositionBatchCodec;
 import uk.ac.cam.tfc_server.util.Log;
 
 public class FeedCSV extends AbstractTFCVerticle {
@@ -73,7 +74,7 @@ public class FeedCSV extends AbstractTFCVerticle {
     eb.consumer(FEEDHANDLER_ADDRESS, message -> {
       System.out.println("FeedCSV got message from " + FEEDHANDLER_ADDRESS);
       //debug
-      JsonObject feed_message = new JsonObject(message.body().toString());
+      JsonObject feed_message = PositionBatchCodec.json_body(message.body());
       JsonArray entities = feed_message.getJsonArray("entities");
       System.out.println("FeedCSV feed_vehicle message #records: "+String.valueOf(entities.size()));
 
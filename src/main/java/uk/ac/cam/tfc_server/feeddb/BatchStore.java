@@ -0,0 +1,29 @@
+package uk.ac.cam.tfc_server.feeddb;
+
+// BatchStore.java
+//
+// Part of FeedDB package, a table the FeedDBWriter writes batches of position records to,
+// i.e. a Cassandra table (CassandraBatchStore, BucketedBatchStore), or a stand-in for testing FeedDB without
+// a cluster (StandInBatchStore, see FeedDBWriterTest).
+//
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+
+public interface BatchStore {
+
+    // name of the table, for logging
+    String name();
+
+    // the partition key of the table row for record, records with the same key being written in the same batch,
+    // or null if the record is not to be written to this table
+    Object partition_key(JsonObject record);
+
+    // write records (all with the same partition key) asynchronously as a single batch,
+    // calling handler (on any thread) when the write has completed or failed
+    void write_batch(List<JsonObject> records, Handler<AsyncResult<Void>> handler);
+
+}
@@ -0,0 +1,103 @@
+package uk.ac.cam.tfc_server.feeddb;
+
+// BucketedBatchStore.java
+//
+// Part of FeedDB package, writes batches of position records to a Cassandra table partitioned by a key
+// column and a time bucket, so a partition holds a bounded period of data and a query of a time range
+// reads a bounded number of partitions:
+//
+//   positions_by_vehicle  PRIMARY KEY ((key, day), timestamp)               - key = vehicle_id, day = timestamp / 86400
+//   positions_by_route    PRIMARY KEY ((key, hour), timestamp, vehicle_id)  - key = route_id, hour = timestamp / 3600
+//
+// with the other columns as in the busdata table.
+//
+// The tables are created (if they don't exist) when the store is created, and are read by CassandraPositionStore.
+// Records without a value for the key column (e.g. no route_id) are not written to the table.
+//
+// The batches are written as by CassandraBatchStore, which this extends with the key and bucket columns.
+//
+
+import com.datastax.driver.core.Session;
+import io.vertx.core.json.JsonObject;
+
+public class BucketedBatchStore extends CassandraBatchStore {
+
+    public static final String VEHICLE_TABLE = "positions_by_vehicle";
+    public static final String ROUTE_TABLE = "positions_by_route";
+
+    public static final long DAY_SECONDS = 86400;
+    public static final long HOUR_SECONDS = 3600;
+
+    // the columns of the position records, after the key and bucket columns
+    private static final String COLUMNS = "timestamp, vehicle_id, label, route_id, trip_id, latitude, longitude, bearing, "+
+                                          "current_stop_sequence, stop_id";
+
+    private static final String COLUMN_TYPES = "timestamp bigint, vehicle_id text, label text, route_id text, trip_id text, "+
+                                               "latitude float, longitude float, bearing float, "+
+                                               "current_stop_sequence bigint, stop_id text";
+
+    private final String table;
+    private final String key_column;
+    private final long bucket_seconds;
+
+    // the (vehicle_id, day) table
+    public static BucketedBatchStore by_vehicle(Session session, String keyspace)
+    {
+        return new BucketedBatchStore(session, keyspace, VEHICLE_TABLE, "vehicle_id", "day", DAY_SECONDS, "timestamp");
+    }
+
+    // the (route_id, hour) table, with vehicle_id in the clustering key as a route has many vehicles at a time
+    public static BucketedBatchStore by_route(Session session, String keyspace)
+    {
+        return new BucketedBatchStore(session, keyspace, ROUTE_TABLE, "route_id", "hour", HOUR_SECONDS, "timestamp, vehicle_id");
+    }
+
+    private BucketedBatchStore(Session session, String keyspace, String table,
+                               String key_column, String bucket_column, long bucket_seconds, String clustering)
+    {
+        super(session);
+        this.table = table;
+        this.key_column = key_column;
+        this.bucket_seconds = bucket_seconds;
+
+        session.execute("CREATE TABLE IF NOT EXISTS "+keyspace+"."+table+" ("+
+                        "key text, "+bucket_column+" int, "+COLUMN_TYPES+", "+
+                        "PRIMARY KEY ((key, "+bucket_column+"), "+clustering+"))");
+
+        insert = session.prepare("INSERT INTO "+keyspace+"."+table+" (key, "+bucket_column+", "+COLUMNS+") "+
+                                 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    // the time bucket of timestamp (seconds) for a table of bucket_seconds buckets
+    public static int bucket(long timestamp, long bucket_seconds)
+    {
+        return (int) Math.floorDiv(timestamp, bucket_seconds);
+    }
+
+    public String name()
+    {
+        return table;
+    }
+
+    public Object partition_key(JsonObject record)
+    {
+        String key = record.getString(key_column);
+        if (key == null || key.isEmpty())
+            {
+                return null;
+            }
+        return key+"/"+bucket(record.getLong("timestamp"), bucket_seconds);
+    }
+
+    // the key and bucket, then the position columns as in the busdata table
+    protected Object[] values(JsonObject record)
+    {
+        Object[] columns = super.values(record);
+        Object[] values = new Object[columns.length + 2];
+        values[0] = record.getString(key_column);
+        values[1] = bucket(record.getLong("timestamp"), bucket_seconds);
+        System.arraycopy(columns, 0, values, 2, columns.length);
+        return values;
+    }
+
+}
@@ -0,0 +1,91 @@
+package uk.ac.cam.tfc_server.feeddb;
+
+// CassandraBatchStore.java
+//
+// Part of FeedDB package, writes batches of position records to the Cassandra busdata table
+// (as created by Achilles from FeedDB.BusData) with an UNLOGGED batch of a prepared INSERT, executed
+// asynchronously by the driver.
+//
+// Other tables (BucketedBatchStore) extend this class, preparing their own insert and overriding values(),
+// so they share the batch write.
+//
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+
+public class CassandraBatchStore implements BatchStore {
+
+    protected final Session session;
+
+    protected PreparedStatement insert; // of the values() of a record
+
+    public CassandraBatchStore(Session session, String keyspace)
+    {
+        this(session);
+
+        insert = session.prepare("INSERT INTO "+keyspace+".busdata "+
+                                 "(timestamp, vehicle_id, label, route_id, trip_id, latitude, longitude, bearing, "+
+                                 "current_stop_sequence, stop_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    // for a subclass writing to another table, which prepares its own insert
+    protected CassandraBatchStore(Session session)
+    {
+        this.session = session;
+    }
+
+    public String name()
+    {
+        return "busdata";
+    }
+
+    public Object partition_key(JsonObject record)
+    {
+        return record.getLong("timestamp");
+    }
+
+    // the values of record to be bound to the insert, i.e. the position columns of the busdata table
+    protected Object[] values(JsonObject record)
+    {
+        return new Object[] { record.getLong("timestamp"),
+                              record.getString("vehicle_id", ""),
+                              record.getString("label", ""),
+                              record.getString("route_id", ""),
+                              record.getString("trip_id", ""),
+                              record.getFloat("latitude"),
+                              record.getFloat("longitude"),
+                              record.getFloat("bearing", 0.0f),
+                              record.getLong("current_stop_sequence", 0L),
+                              record.getString("stop_id", "") };
+    }
+
+    public void write_batch(List<JsonObject> records, Handler<AsyncResult<Void>> handler)
+    {
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        for (JsonObject record : records)
+            {
+                batch.add(insert.bind(values(record)));
+            }
+
+        ResultSetFuture result = session.executeAsync(batch);
+
+        // called on a driver thread when the batch is written (or fails)
+        result.addListener(() -> {
+                try {
+                    result.getUninterruptibly();
+                    handler.handle(Future.succeededFuture());
+                } catch (Exception e) {
+                    handler.handle(Future.failedFuture(e));
+                }
+            }, Runnable::run);
+    }
+
+}
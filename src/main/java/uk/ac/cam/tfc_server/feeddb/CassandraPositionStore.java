@@ -0,0 +1,160 @@
+package uk.ac.cam.tfc_server.feeddb;
+
+// CassandraPositionStore.java
+//
+// Part of FeedDB package, queries the time-bucketed position tables written by FeedDB (see BucketedBatchStore),
+// i.e. the positions of a vehicle (from positions_by_vehicle) or of a route (from positions_by_route) in a time range.
+//
+// A query reads only the partitions of the buckets overlapping the time range (at most MAX_PARTITIONS), all read
+// in parallel with the async driver API (each paged by FETCH_SIZE rows), and the results are returned in
+// timestamp order, on the vertx context of the caller.
+//
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import uk.ac.cam.tfc_server.util.IPositionStore;
+
+public class CassandraPositionStore implements IPositionStore {
+
+    public static final int MAX_PARTITIONS = 200; // max buckets read by a query (e.g. 8 days of a route)
+
+    public static final int FETCH_SIZE = 5000; // rows per page
+
+    private final Vertx vertx;
+    private final Session session;
+
+    private final PreparedStatement select_vehicle;
+    private final PreparedStatement select_route;
+
+    // the tables must exist, i.e. be created by BucketedBatchStore
+    public CassandraPositionStore(Vertx vertx, Session session, String keyspace)
+    {
+        this.vertx = vertx;
+        this.session = session;
+
+        select_vehicle = session.prepare("SELECT * FROM "+keyspace+"."+BucketedBatchStore.VEHICLE_TABLE+
+                                         " WHERE key = ? AND day = ? AND timestamp >= ? AND timestamp < ?");
+        select_route = session.prepare("SELECT * FROM "+keyspace+"."+BucketedBatchStore.ROUTE_TABLE+
+                                       " WHERE key = ? AND hour = ? AND timestamp >= ? AND timestamp < ?");
+    }
+
+    public void vehicle_positions(String vehicle_id, long start_ts, long end_ts, Handler<AsyncResult<JsonArray>> handler)
+    {
+        query(select_vehicle, vehicle_id, start_ts, end_ts, BucketedBatchStore.DAY_SECONDS, handler);
+    }
+
+    public void route_positions(String route_id, long start_ts, long end_ts, Handler<AsyncResult<JsonArray>> handler)
+    {
+        query(select_route, route_id, start_ts, end_ts, BucketedBatchStore.HOUR_SECONDS, handler);
+    }
+
+    // read the rows of key with start_ts <= timestamp < end_ts from each bucket of the range in parallel,
+    // and call handler with all of them (in bucket order) when all the buckets have been read
+    private void query(PreparedStatement select, String key, long start_ts, long end_ts, long bucket_seconds,
+                       Handler<AsyncResult<JsonArray>> handler)
+    {
+        int first_bucket = BucketedBatchStore.bucket(start_ts, bucket_seconds);
+        int bucket_count = BucketedBatchStore.bucket(end_ts - 1, bucket_seconds) - first_bucket + 1;
+
+        if (end_ts <= start_ts)
+            {
+                handler.handle(Future.succeededFuture(new JsonArray()));
+                return;
+            }
+        if (bucket_count > MAX_PARTITIONS)
+            {
+                handler.handle(Future.failedFuture("query of "+bucket_count+" partitions, max "+MAX_PARTITIONS));
+                return;
+            }
+
+        Context context = vertx.getOrCreateContext();
+
+        JsonArray[] results = new JsonArray[bucket_count];
+        int[] pending = { bucket_count };
+        boolean[] failed = { false };
+
+        for (int i=0; i<bucket_count; i++)
+            {
+                results[i] = new JsonArray();
+                Statement statement = select.bind(key, first_bucket + i, start_ts, end_ts).setFetchSize(FETCH_SIZE);
+                read_rows(session.executeAsync(statement), results[i], res -> context.runOnContext(v -> {
+                            if (failed[0])
+                            {
+                                return;
+                            }
+                            if (res.failed())
+                            {
+                                failed[0] = true;
+                                handler.handle(Future.failedFuture(res.cause()));
+                                return;
+                            }
+                            if (--pending[0] == 0)
+                            {
+                                JsonArray positions = new JsonArray();
+                                for (JsonArray rows : results)
+                                {
+                                    positions.addAll(rows);
+                                }
+                                handler.handle(Future.succeededFuture(positions));
+                            }
+                        }));
+            }
+    }
+
+    // add the rows of result to rows, fetching the following pages asynchronously,
+    // then call handler (on a driver thread)
+    private static void read_rows(ListenableFuture<ResultSet> result, JsonArray rows, Handler<AsyncResult<Void>> handler)
+    {
+        result.addListener(() -> {
+                ResultSet rs;
+                try {
+                    rs = Uninterruptibles.getUninterruptibly(result);
+                } catch (Exception e) {
+                    handler.handle(Future.failedFuture(e));
+                    return;
+                }
+                for (int n = rs.getAvailableWithoutFetching(); n > 0; n--)
+                {
+                    rows.add(position(rs.one()));
+                }
+                if (rs.isFullyFetched())
+                {
+                    handler.handle(Future.succeededFuture());
+                }
+                else
+                {
+                    read_rows(rs.fetchMoreResults(), rows, handler);
+                }
+            }, Runnable::run);
+    }
+
+    // the position record (as in a feed message) of a table row
+    private static JsonObject position(Row row)
+    {
+        JsonObject position = new JsonObject();
+        position.put("timestamp", row.getLong("timestamp"));
+        position.put("vehicle_id", row.getString("vehicle_id"));
+        position.put("label", row.getString("label"));
+        position.put("route_id", row.getString("route_id"));
+        position.put("trip_id", row.getString("trip_id"));
+        position.put("latitude", row.getFloat("latitude"));
+        position.put("longitude", row.getFloat("longitude"));
+        position.put("bearing", row.getFloat("bearing"));
+        position.put("current_stop_sequence", row.getLong("current_stop_sequence"));
+        position.put("stop_id", row.getString("stop_id"));
+        return position;
+    }
+
+}
@@ -1,31 +1,68 @@
 package uk.ac.cam.tfc_server.feeddb;
 
+// FeedDB.java
+//
+// Subscribes to the feed of a FeedHandler and writes the position records to Cassandra.
+//
+// Each record is written to the busdata table (keyed by timestamp) and to the time-bucketed tables
+// positions_by_vehicle (keyed by vehicle_id and day) and positions_by_route (keyed by route_id and hour),
+// see BucketedBatchStore. The bucketed tables are queried via http if <module_name>.http.port is set, e.g.
+//   /api/feeddb/vehicle/13028?start_ts=1465628400&end_ts=1465714800
+//   /api/feeddb/route/CAM-U?start_ts=1465628400&end_ts=1465632000
+// (see PositionAPI and CassandraPositionStore).
+//
+// The records are written asynchronously by a FeedDBWriter, as unlogged batches grouped by partition,
+// with a bounded number of batches in flight. Config (all optional):
+//   <module_name>.cassandra.hosts    contact points, default ["localhost"] (e.g. a local stand-in Cassandra)
+//   <module_name>.cassandra.keyspace default "tfc"
+//   <module_name>.http.port          port of the query API, default none
+//   <module_name>.batch_size, .max_in_flight, .max_queued, .max_retries, .retry_ms - see FeedDBWriter
+// The writer counters (rows, rows_per_sec, insert latency etc.) are included as "feeddb" in the status heartbeat.
+//
+
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
 import info.archinnov.achilles.annotations.Column;
 import info.archinnov.achilles.annotations.CompileTimeConfig;
 import info.archinnov.achilles.annotations.PartitionKey;
 import info.archinnov.achilles.annotations.Table;
 import info.archinnov.achilles.generated.ManagerFactory;
 import info.archinnov.achilles.generated.ManagerFactoryBuilder;
-import info.archinnov.achilles.generated.manager.BusData_Manager;
 import info.archinnov.achilles.type.CassandraVersion;
 import io.vertx.core.Future;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
 import uk.ac.cam.tfc_server.core.AbstractTFCVerticle;
+import uk.ac.cam.tfc_server.gtfs.PositionBatchCodec;
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.PositionAPI;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class FeedDB extends AbstractTFCVerticle {
     private String FEEDHANDLER_ADDRESS; // config MODULE_NAME.feedhandler.address
 
+    private List<String> CASSANDRA_HOSTS; // config MODULE_NAME.cassandra.hosts
+    private String CASSANDRA_KEYSPACE; // config MODULE_NAME.cassandra.keyspace
+
+    private Integer HTTP_PORT; // config MODULE_NAME.http.port, port of the query API (if any)
+
+    private int BATCH_SIZE; // config MODULE_NAME.batch_size, max records per batch
+    private int MAX_IN_FLIGHT; // config MODULE_NAME.max_in_flight, max batches being written at once
+    private int MAX_QUEUED; // config MODULE_NAME.max_queued, max records waiting before feeds are dropped
+    private int MAX_RETRIES; // config MODULE_NAME.max_retries, retries of a failed batch
+    private long RETRY_MS; // config MODULE_NAME.retry_ms, delay before first retry (doubled for each retry)
+
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 15;
     private final int SYSTEM_STATUS_RED_SECONDS = 25;
 
     private EventBus eb = null;
 
-    private BusData_Manager manager;
+    private FeedDBWriter writer;
 
     @Table(table="busdata")
     public class BusData
@@ -151,13 +188,27 @@ public class FeedDB extends AbstractTFCVerticle {
             return;
         }
 
-        Cluster cluster = Cluster.builder().addContactPoints("localhost").build();
+        Cluster cluster = Cluster.builder().addContactPoints(CASSANDRA_HOSTS.toArray(new String[0])).build();
+
+        // Achilles creates the schema of the BusData entity if needed
         ManagerFactory managerFactory = ManagerFactoryBuilder.builder(cluster)
-                .withDefaultKeyspaceName("tfc").doForceSchemaCreation(true).build();
+                .withDefaultKeyspaceName(CASSANDRA_KEYSPACE).doForceSchemaCreation(true).build();
+
+        Session session = cluster.connect();
 
-        manager = managerFactory.forBusData();
+        List<BatchStore> stores = new ArrayList<BatchStore>();
+        stores.add(new CassandraBatchStore(session, CASSANDRA_KEYSPACE));
+        stores.add(BucketedBatchStore.by_vehicle(session, CASSANDRA_KEYSPACE));
+        stores.add(BucketedBatchStore.by_route(session, CASSANDRA_KEYSPACE));
 
+        writer = new FeedDBWriter(vertx, stores, BATCH_SIZE, MAX_IN_FLIGHT, MAX_QUEUED, MAX_RETRIES, RETRY_MS);
 
+        // serve queries of the bucketed tables
+        if (HTTP_PORT != null) {
+            Router router = Router.router(vertx);
+            new PositionAPI(router, MODULE_NAME, MODULE_ID, new CassandraPositionStore(vertx, session, CASSANDRA_KEYSPACE));
+            vertx.createHttpServer().requestHandler(router::accept).listen(HTTP_PORT);
+        }
 
         System.out.println("FeedDB: " + MODULE_ID + " started, listening to "+FEEDHANDLER_ADDRESS);
 
@@ -166,7 +217,7 @@ public class FeedDB extends AbstractTFCVerticle {
         eb.consumer(FEEDHANDLER_ADDRESS, message -> {
             System.out.println("FeedDB got message from " + FEEDHANDLER_ADDRESS);
             //debug
-            JsonObject feed_message = new JsonObject(message.body().toString());
+            JsonObject feed_message = PositionBatchCodec.json_body(message.body());
             JsonArray entities = feed_message.getJsonArray("entities");
             System.out.println("FeedDB feed_vehicle message #records: "+String.valueOf(entities.size()));
             handle_feed(feed_message);
@@ -179,7 +230,8 @@ public class FeedDB extends AbstractTFCVerticle {
                             "\"module_id\": \""+MODULE_ID+"\"," +
                             "\"status\": \"UP\"," +
                             "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
-                            "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
+                            "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) + "," +
+                            "\"feeddb\": "+writer.stats().toString() +
                             "}" );
         });
     }
@@ -196,27 +248,29 @@ public class FeedDB extends AbstractTFCVerticle {
             return false;
         }
 
+        CASSANDRA_HOSTS = new ArrayList<String>();
+        JsonArray hosts = config().getJsonArray(MODULE_NAME+".cassandra.hosts", new JsonArray().add("localhost"));
+        for (int i = 0; i < hosts.size(); i++) {
+            CASSANDRA_HOSTS.add(hosts.getString(i));
+        }
+
+        CASSANDRA_KEYSPACE = config().getString(MODULE_NAME+".cassandra.keyspace", "tfc");
+
+        HTTP_PORT = config().getInteger(MODULE_NAME+".http.port");
+
+        BATCH_SIZE = config().getInteger(MODULE_NAME+".batch_size", FeedDBWriter.DEFAULT_BATCH_SIZE);
+        MAX_IN_FLIGHT = config().getInteger(MODULE_NAME+".max_in_flight", FeedDBWriter.DEFAULT_MAX_IN_FLIGHT);
+        MAX_QUEUED = config().getInteger(MODULE_NAME+".max_queued", FeedDBWriter.DEFAULT_MAX_QUEUED);
+        MAX_RETRIES = config().getInteger(MODULE_NAME+".max_retries", FeedDBWriter.DEFAULT_MAX_RETRIES);
+        RETRY_MS = config().getLong(MODULE_NAME+".retry_ms", FeedDBWriter.DEFAULT_RETRY_MS);
+
         return true;
     }
 
+    // write the records of the feed, asynchronously, via the FeedDBWriter
     private void handle_feed(JsonObject feed_message) {
         JsonArray entities = feed_message.getJsonArray("entities");
-        for (int i = 0; i < entities.size(); i++)
-        {
-            JsonObject json_record = entities.getJsonObject(i);
-            BusData busdata = new BusData();
-            busdata.setTimestamp(json_record.getLong("timestamp"));
-            busdata.setVehicle_id(json_record.getString("vehicle_id",""));
-            busdata.setLabel(json_record.getString("label",""));
-            busdata.setRoute_id(json_record.getString("route_id",""));
-            busdata.setTrip_id(json_record.getString("trip_id",""));
-            busdata.setLatitude(json_record.getFloat("latitude"));
-            busdata.setLongitude(json_record.getFloat("longitude"));
-            busdata.setBearing(json_record.getFloat("bearing",0.0f));
-            busdata.setCurrent_stop_sequence(json_record.getLong("current_stop_sequence",0L));
-            busdata.setStop_id(json_record.getString("stop_id",""));
-            manager.crud().insert(busdata).execute();
-        }
+        writer.write_feed(entities);
     }
 
 }
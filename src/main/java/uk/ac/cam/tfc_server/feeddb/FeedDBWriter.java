@@ -0,0 +1,250 @@
+package uk.ac.cam.tfc_server.feeddb;
+
+// FeedDBWriter.java
+//
+// Part of FeedDB package, writes the position records of each feed to the BatchStore tables asynchronously,
+// so the event loop is never blocked waiting for the database.
+//
+// The records of a feed are grouped by the partition key of each table and written as batches of at most
+// batch_size records, each batch touching a single partition (a record with a null partition key for a
+// table is not written to it). At most max_in_flight batches are being written
+// at any time, the rest waiting in a queue, and a failed batch is retried (after retry_ms, doubling on each
+// attempt) up to max_retries times.
+//
+// If the database falls behind so that max_queued records are waiting, further feeds are dropped (and counted)
+// until the queue has drained, rather than the queue growing without limit.
+//
+// All the methods are called on the event loop of the verticle that created the FeedDBWriter.
+//
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import uk.ac.cam.tfc_server.util.Log;
+
+public class FeedDBWriter {
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final int DEFAULT_MAX_QUEUED = 20000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_MS = 1000;
+
+    private final Vertx vertx;
+    private final Context context;
+    private final List<BatchStore> stores;
+
+    private final int batch_size;
+    private final int max_in_flight;
+    private final int max_queued;
+    private final int max_retries;
+    private final long retry_ms;
+
+    private final ArrayDeque<Chunk> queue = new ArrayDeque<Chunk>(); // batches waiting to be written
+    private int queued_rows = 0; // records waiting, being written or retried
+    private int in_flight = 0;   // batches being written
+
+    // counters, for stats()
+    private long feed_count = 0;
+    private long dropped_feed_count = 0;
+    private long row_count = 0;
+    private long failed_row_count = 0;
+    private long retry_count = 0;
+
+    // counters since the last stats()
+    private long period_start;
+    private long period_rows = 0;
+    private long period_feeds = 0;
+    private long period_latency_sum = 0;
+    private long period_latency_max = 0;
+
+    public FeedDBWriter(Vertx vertx, List<BatchStore> stores,
+                        int batch_size, int max_in_flight, int max_queued, int max_retries, long retry_ms)
+    {
+        this.vertx = vertx;
+        this.context = vertx.getOrCreateContext();
+        this.stores = stores;
+        this.batch_size = Math.max(1, batch_size);
+        this.max_in_flight = Math.max(1, max_in_flight);
+        this.max_queued = max_queued;
+        this.max_retries = max_retries;
+        this.retry_ms = retry_ms;
+
+        period_start = System.currentTimeMillis();
+    }
+
+    // write the records of a feed, returning false if the feed is dropped because the database has fallen behind
+    public boolean write_feed(JsonArray entities)
+    {
+        if (queued_rows >= max_queued)
+            {
+                dropped_feed_count++;
+                Log.log_err("FeedDBWriter: "+queued_rows+" records queued, dropping feed of "+entities.size());
+                return false;
+            }
+
+        Feed feed = new Feed();
+
+        for (BatchStore store : stores)
+            {
+                // group the records by partition
+                LinkedHashMap<Object, List<JsonObject>> partitions = new LinkedHashMap<Object, List<JsonObject>>();
+                for (int i = 0; i < entities.size(); i++)
+                    {
+                        JsonObject record = entities.getJsonObject(i);
+                        Object key = store.partition_key(record);
+                        if (key == null)
+                            {
+                                continue; // not written to this store
+                            }
+                        List<JsonObject> records = partitions.get(key);
+                        if (records == null)
+                            {
+                                records = new ArrayList<JsonObject>();
+                                partitions.put(key, records);
+                            }
+                        records.add(record);
+                    }
+
+                // and queue each partition as batches of at most batch_size records
+                for (List<JsonObject> records : partitions.values())
+                    {
+                        for (int from = 0; from < records.size(); from += batch_size)
+                            {
+                                List<JsonObject> batch = records.subList(from, Math.min(records.size(), from + batch_size));
+                                queue.add(new Chunk(feed, store, batch));
+                                queued_rows += batch.size();
+                                feed.pending++;
+                            }
+                    }
+            }
+
+        feed_count++;
+
+        if (feed.pending == 0)
+            {
+                feed_done(feed);
+            }
+
+        pump();
+
+        return true;
+    }
+
+    // start writing queued batches, up to max_in_flight
+    private void pump()
+    {
+        while (in_flight < max_in_flight && !queue.isEmpty())
+            {
+                Chunk chunk = queue.poll();
+                in_flight++;
+                chunk.attempts++;
+                chunk.store.write_batch(chunk.records, res -> context.runOnContext(v -> written(chunk, res)));
+            }
+    }
+
+    // a batch write has completed (or failed)
+    private void written(Chunk chunk, AsyncResult<Void> res)
+    {
+        in_flight--;
+
+        if (res.failed() && chunk.attempts <= max_retries)
+            {
+                retry_count++;
+                long delay = retry_ms << (chunk.attempts - 1);
+                Log.log_err("FeedDBWriter: "+chunk.store.name()+" batch of "+chunk.records.size()+
+                            " failed ("+res.cause()+"), retry in "+delay+"ms");
+                vertx.setTimer(delay, id -> {
+                        queue.addFirst(chunk);
+                        pump();
+                    });
+            }
+        else
+            {
+                if (res.failed())
+                    {
+                        failed_row_count += chunk.records.size();
+                        Log.log_err("FeedDBWriter: "+chunk.store.name()+" batch of "+chunk.records.size()+
+                                    " failed after "+chunk.attempts+" attempts, "+res.cause());
+                    }
+                else
+                    {
+                        row_count += chunk.records.size();
+                        period_rows += chunk.records.size();
+                    }
+                queued_rows -= chunk.records.size();
+                if (--chunk.feed.pending == 0)
+                    {
+                        feed_done(chunk.feed);
+                    }
+            }
+
+        pump();
+    }
+
+    // all the batches of a feed have been written
+    private void feed_done(Feed feed)
+    {
+        long latency = System.currentTimeMillis() - feed.start_ms;
+        period_feeds++;
+        period_latency_sum += latency;
+        period_latency_max = Math.max(period_latency_max, latency);
+    }
+
+    // the counters of the writer, with the rows/sec and feed insert latency since the last call,
+    // e.g. for the status heartbeat
+    public JsonObject stats()
+    {
+        long now = System.currentTimeMillis();
+
+        JsonObject stats = new JsonObject();
+        stats.put("feeds", feed_count);
+        stats.put("dropped_feeds", dropped_feed_count);
+        stats.put("rows", row_count);
+        stats.put("failed_rows", failed_row_count);
+        stats.put("retries", retry_count);
+        stats.put("in_flight", in_flight);
+        stats.put("queued_rows", queued_rows);
+        stats.put("rows_per_sec", now > period_start ? period_rows * 1000 / (now - period_start) : 0);
+        stats.put("latency_ms_mean", period_feeds > 0 ? period_latency_sum / period_feeds : 0);
+        stats.put("latency_ms_max", period_latency_max);
+
+        period_start = now;
+        period_rows = 0;
+        period_feeds = 0;
+        period_latency_sum = 0;
+        period_latency_max = 0;
+
+        return stats;
+    }
+
+    // a feed being written
+    private static class Feed {
+        final long start_ms = System.currentTimeMillis();
+        int pending = 0; // batches not yet written
+    }
+
+    // a batch of records of the same partition, to be written to store
+    private static class Chunk {
+        final Feed feed;
+        final BatchStore store;
+        final List<JsonObject> records;
+        int attempts = 0;
+
+        Chunk(Feed feed, BatchStore store, List<JsonObject> records)
+        {
+            this.feed = feed;
+            this.store = store;
+            this.records = records;
+        }
+    }
+
+}
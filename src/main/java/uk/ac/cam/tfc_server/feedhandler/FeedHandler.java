@@ -17,10 +17,22 @@ package uk.ac.cam.tfc_server.feedhandler;
 // FeedHandler will WRITE the raw binary post data into:
 //   TFC_DATA_MONITOR/<filename>
 //   TFC_DATA_BIN/YYYY/MM/DD/<filename>
+//     (or, with "feedhandler.bin_archive": true, appended to TFC_DATA_BIN/YYYY/MM/DD.pack, see BinArchive)
+//     and indexed by timestamp in TFC_DATA_BIN/YYYY/MM/DD.idx (see BinIndex)
 //   TFC_DATA_CACHE/YYYY/MM-DD/<filename>
 // where <filename> = <UTC TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
 // and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
 //
+// The files are written by a FeedWriter on a worker thread, one feed at a time, with the data written once
+// and the other files hard links to it, and the TFC_DATA_MONITOR file renamed into place when complete.
+//
+// The POST is acknowledged once the data has been written, and forced to disk unless "feedhandler.fsync"
+// is false, and only then is the feed queued to be decoded and published on a separate worker thread (in
+// the order received). So a feed refused with 500, which the source will send again, is never published.
+// If "feedhandler.max_queued" feeds (default 100) are already waiting to be written or published, the
+// POST is refused with 503 and a Retry-After of "feedhandler.retry_after" seconds (default 5), so the
+// source sends it again later.
+//
 // Config values are read from provided vertx config() json file, e.g.
 /*
 {
@@ -46,18 +58,18 @@ package uk.ac.cam.tfc_server.feedhandler;
         }
 }
 */
-// FeedHandler will publish the feed data as a JSON string on eventbus.
+// FeedHandler will publish the feed data on eventbus as a PositionBatch, or as a JSON string with "feedhandler.publish_batch": false.
 //
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
 
 import io.vertx.core.Future;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.HttpMethod;
-import io.vertx.core.file.FileSystem;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonObject;
 
@@ -68,6 +80,10 @@ import java.time.format.*;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.core.AbstractTFCVerticle;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+import uk.ac.cam.tfc_server.util.BinArchive;
+import uk.ac.cam.tfc_server.util.BinIndex;
+import uk.ac.cam.tfc_server.util.FeedWriter;
 import uk.ac.cam.tfc_server.util.GTFS;
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
@@ -88,6 +104,18 @@ public class FeedHandler extends AbstractTFCVerticle {
 
     private String FILE_SUFFIX;             // MODULE_NAME.file_suffix, default ".bin"
 
+    private boolean PUBLISH_BATCH;          // MODULE_NAME.publish_batch, default true (false to publish JSON)
+
+    private boolean BIN_ARCHIVE;            // MODULE_NAME.bin_archive, default false (individual .bin files)
+
+    private boolean BIN_INDEX;              // MODULE_NAME.bin_index, default true (maintain TFC_DATA_BIN/YYYY/MM/DD.idx)
+
+    private int MAX_QUEUED;                 // MODULE_NAME.max_queued, feeds waiting before POSTs are refused, default 100
+
+    private int RETRY_AFTER;                // MODULE_NAME.retry_after, seconds in the Retry-After of a refused POST, default 5
+
+    private boolean FSYNC;                  // MODULE_NAME.fsync, default true (force each feed to disk before the POST is acknowledged)
+
     public int LOG_LEVEL; // optional in config(), defaults to Constants.LOG_INFO
 
     // local constants
@@ -101,6 +129,20 @@ public class FeedHandler extends AbstractTFCVerticle {
 
     private Log logger;
 
+    private BinArchive.DailyWriter bin_archive = null; // if BIN_ARCHIVE
+
+    private BinIndex.DailyWriter bin_index = null; // if BIN_INDEX
+
+    private FeedWriter feed_writer; // writes the files of each feed
+
+    private WorkerExecutor decoder; // decodes and publishes each feed, in order
+
+    // feed queue counters
+    private int decode_queued = 0;   // feeds accepted and not yet published
+    private long accepted_count = 0; // feeds accepted
+    private long shed_count = 0;     // feeds refused with 503 as too many were waiting
+    private long failed_count = 0;   // feeds that could not be written or decoded
+
     private String BASE_URI; // defined the http POST base for this FeedHandler
 
     @Override
@@ -122,6 +164,19 @@ public class FeedHandler extends AbstractTFCVerticle {
         // set up base URI that will be used for feed post, e.g. feedhandler/vix
         BASE_URI = MODULE_NAME + "/" + MODULE_ID;
 
+        if (BIN_ARCHIVE) {
+            bin_archive = new BinArchive.DailyWriter(TFC_DATA_BIN);
+        }
+
+        if (BIN_INDEX) {
+            bin_index = new BinIndex.DailyWriter(TFC_DATA_BIN);
+        }
+
+        feed_writer = new FeedWriter(vertx, TFC_DATA_BIN, TFC_DATA_CACHE, TFC_DATA_MONITOR, FILE_SUFFIX, bin_archive, bin_index, FSYNC);
+
+        // a single worker thread of its own, so decoding never delays the FeedWriter
+        decoder = vertx.createSharedWorkerExecutor(MODULE_NAME + "." + MODULE_ID + ".decoder", 1);
+
         // create link to EventBus
         eb = vertx.eventBus();
 
@@ -155,21 +210,27 @@ public class FeedHandler extends AbstractTFCVerticle {
 
         router.route(HttpMethod.POST, "/" + BASE_URI).handler(ctx -> {
             ctx.request().bodyHandler(body_data -> {
-                try {
-                    // read the head value "X-Auth-Token" from the POST
-                    String post_token = ctx.request().getHeader("X-Auth-Token");
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                            ": X-Auth-Token=" + post_token);
-                    // if the token matches the config(), or config() http.token is null
-                    // then parse this assumed gtfs-realtime POST data
-                    if (HTTP_TOKEN == null || HTTP_TOKEN.equals(post_token)) {
-                        process_gtfs(body_data);
-                    }
-                } catch (Exception ex) {
-                    Log.log_err(MODULE_NAME + "." + MODULE_ID + ": process_gtfs Exception");
-                    Log.log_err(ex.getMessage());
+                HttpServerResponse response = ctx.request().response();
+                // read the head value "X-Auth-Token" from the POST
+                String post_token = ctx.request().getHeader("X-Auth-Token");
+                logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
+                        ": X-Auth-Token=" + post_token);
+                // if the token matches the config(), or config() http.token is null
+                // then accept this assumed gtfs-realtime POST data
+                if (HTTP_TOKEN != null && !HTTP_TOKEN.equals(post_token)) {
+                    response.end("");
+                    return;
+                }
+                // refuse the feed if too many are waiting to be written or published
+                if (decode_queued >= MAX_QUEUED || feed_writer.queued() >= MAX_QUEUED) {
+                    shed_count++;
+                    logger.log(Constants.LOG_WARN, MODULE_NAME + "." + MODULE_ID +
+                            ": feed refused, " + feed_writer.queued() + " waiting to be written, " +
+                            decode_queued + " waiting to be published");
+                    response.setStatusCode(503).putHeader("Retry-After", String.valueOf(RETRY_AFTER)).end("");
+                    return;
                 }
-                ctx.request().response().end("");
+                accept_gtfs(body_data, response);
             });
 
         });
@@ -178,7 +239,15 @@ public class FeedHandler extends AbstractTFCVerticle {
         // connect router to http_server
         // ********************************
 
-        http_server.requestHandler(router::accept).listen(HTTP_PORT);
+        // the deployment completes (so stop() will be called on undeploy) once the server is listening
+        http_server.requestHandler(router::accept).listen(HTTP_PORT, listen_result -> {
+            if (listen_result.succeeded()) {
+                fut.complete();
+            } else {
+                Log.log_err(MODULE_NAME + "." + MODULE_ID + ": cannot listen on port " + HTTP_PORT + " " + listen_result.cause());
+                fut.fail(listen_result.cause());
+            }
+        });
 
         // send periodic "system_status" messages
         vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> {
@@ -187,7 +256,9 @@ public class FeedHandler extends AbstractTFCVerticle {
                             "\"module_id\": \"" + MODULE_ID + "\"," +
                             "\"status\": \"UP\"," +
                             "\"status_amber_seconds\": " + String.valueOf(SYSTEM_STATUS_AMBER_SECONDS) + "," +
-                            "\"status_red_seconds\": " + String.valueOf(SYSTEM_STATUS_RED_SECONDS) +
+                            "\"status_red_seconds\": " + String.valueOf(SYSTEM_STATUS_RED_SECONDS) + "," +
+                            "\"feed_writer\": " + feed_writer.stats().toString() + "," +
+                            "\"feed_queue\": " + queue_stats().toString() +
                             "}");
         });
 
@@ -204,8 +275,9 @@ public class FeedHandler extends AbstractTFCVerticle {
         System.err.println(local_datetime_string() + " " + msg);
     }
 
-    // process the POST gtfs binary data
-    private void process_gtfs(Buffer buf) throws Exception {
+    // accept the POST gtfs binary data, responding when it has been written (see FeedWriter),
+    // and then queue it to be decoded and published
+    private void accept_gtfs(Buffer buf, HttpServerResponse response) {
 
         LocalDateTime local_time = LocalDateTime.now();
 
@@ -218,109 +290,102 @@ public class FeedHandler extends AbstractTFCVerticle {
         String filename = utc_ts + "_" + local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
         // sub-dir structure to store the file
         String filepath = year + "/" + month + "/" + day;
-        // First just save the binary file to $TFC_DATA_MONITOR
-
-        // Vert.x non-blocking file write...
-        FileSystem fs = vertx.fileSystem();
-
-        // Write file to $TFC_DATA_BIN
-        //
-        // if full directory path exists, then write file
-        // otherwise create full path first
-        final String bin_path = TFC_DATA_BIN + "/" + filepath;
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                ": Writing " + bin_path + "/" + filename + FILE_SUFFIX);
-        fs.exists(bin_path, result -> {
-            if (result.succeeded() && result.result()) {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                        ": process_gtfs: path " + bin_path + " exists");
-                write_file(fs, buf, bin_path + "/" + filename + FILE_SUFFIX);
-            } else {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                        ": Creating directory " + bin_path);
-                fs.mkdirs(bin_path, mkdirs_result -> {
-                    if (mkdirs_result.succeeded()) {
-                        write_file(fs, buf, bin_path + "/" + filename + FILE_SUFFIX);
-                    } else {
-                        Log.log_err("FeedHandler." + MODULE_ID + ": error creating tfc_data_bin path " + bin_path);
-                    }
-                });
-            }
-        });
 
-        // Write file to $TFC_DATA_CACHE
-        //
-        final String cache_path = TFC_DATA_CACHE + "/" + filepath;
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                ": Writing " + cache_path + "/" + filename + FILE_SUFFIX);
-        // if full directory path exists, then write file
-        // otherwise create full path first
-        fs.exists(cache_path, result -> {
-            if (result.succeeded() && result.result()) {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                        ": process_gtfs: path " + cache_path + " exists");
-                write_file(fs, buf, cache_path + "/" + filename + FILE_SUFFIX);
+        accepted_count++;
+
+        // write the binary data to $TFC_DATA_BIN, $TFC_DATA_CACHE and $TFC_DATA_MONITOR
+        // and acknowledge the POST, or ask the source to send it again if it could not be written
+        // (the writes complete in the order received, so the feeds are published in that order)
+        feed_writer.write(buf, filepath, Long.parseLong(utc_ts), filename, write_result -> {
+            if (write_result.succeeded()) {
+                response.end("");
+                decode_gtfs(buf, filename, filepath);
             } else {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                        ": Creating directory " + cache_path);
-                fs.mkdirs(cache_path, mkdirs_result -> {
-                    if (mkdirs_result.succeeded()) {
-                        write_file(fs, buf, cache_path + "/" + filename + FILE_SUFFIX);
-                    } else {
-                        Log.log_err("FeedHandler." + MODULE_ID + ": error creating tfc_data_cache path " + cache_path);
-                    }
-                });
+                failed_count++;
+                response.setStatusCode(500).end("");
             }
         });
+    }
 
-        // Write file to $TFC_DATA_MONITOR
-        //
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                ": Writing " + TFC_DATA_MONITOR + "/" + filename + FILE_SUFFIX);
-        fs.readDir(TFC_DATA_MONITOR, ".*\\" + FILE_SUFFIX, monitor_result -> {
-            if (monitor_result.succeeded()) {
-                // directory exists, delete previous files of same suffix
-                for (String f : monitor_result.result()) {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID + "Deleting " + f);
-                    fs.delete(f, delete_result -> {
-                        if (!delete_result.succeeded()) {
-                            Log.log_err("FeedHandler." + MODULE_ID + ": error tfc_data_monitor delete: " + f);
-                        }
-                    });
-                }
-                write_file(fs, buf, TFC_DATA_MONITOR + "/" + filename + FILE_SUFFIX);
-            } else {
-                Log.log_err("FeedHandler." + MODULE_ID + ": error reading tfc_data_monitor path: " + TFC_DATA_MONITOR);
-                Log.log_err(monitor_result.cause().getMessage());
+    // decode the feed on the decoder worker, in the order queued, and publish it from here
+    private void decode_gtfs(Buffer buf, String filename, String filepath) {
+        decode_queued++;
+        decoder.<Object>executeBlocking(fut -> {
+            try {
+                fut.complete(process_gtfs(buf, filename, filepath));
+            } catch (Exception ex) {
+                fut.fail(ex);
             }
+        }, true, result -> {
+            decode_queued--;
+            if (result.failed()) {
+                failed_count++;
+                Log.log_err(MODULE_NAME + "." + MODULE_ID + ": process_gtfs Exception");
+                Log.log_err(result.cause().getMessage());
+                return;
+            }
+            eb.publish(FEEDHANDLER_ADDRESS, result.result());
+
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
+                    ": FeedHandler published (feed_vehicle, pos_records)");
         });
+    }
 
-        // Here is where we process the individual position records
-        JsonObject msg = GTFS.buf_to_json(buf, filename, filepath);
+    // BLOCKING: decode the gtfs binary data into the message to be published
+    private Object process_gtfs(Buffer buf, String filename, String filepath) throws Exception {
 
-        msg.put("module_name", MODULE_NAME);
-        msg.put("module_id", MODULE_ID);
-        msg.put("msg_type", Constants.FEED_BUS_POSITION);
+        // Here is where we process the individual position records
+        PositionBatch batch = GTFS.buf_to_batch(buf, filename, filepath);
 
-        eb.publish(FEEDHANDLER_ADDRESS, msg);
+        batch.module_name = MODULE_NAME;
+        batch.module_id = MODULE_ID;
+        batch.msg_type = Constants.FEED_BUS_POSITION;
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                ": FeedHandler published (feed_vehicle, pos_records)");
+        // publish the batch itself (see PositionBatchCodec), or as JSON e.g. for an eventbus bridge to a browser
+        if (PUBLISH_BATCH) {
+            return batch;
+        }
+        return batch.to_json();
 
     } // end process_gtfs()
 
-    private void write_file(FileSystem fs, Buffer buf, String file_path) {
-        fs.writeFile(file_path,
-                buf,
-                result -> {
-                    if (result.succeeded()) {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME + "." + MODULE_ID +
-                                ": File " + file_path + " written");
-                    } else {
-                        Log.log_err("FeedHandler." + MODULE_ID + ": write_file error ..." + result.cause());
-                    }
-                });
-    } // end write_file
+    // feed queue counters for the status heartbeat
+    private JsonObject queue_stats() {
+        JsonObject stats = new JsonObject();
+        stats.put("queued", decode_queued);
+        stats.put("max_queued", MAX_QUEUED);
+        stats.put("accepted", accepted_count);
+        stats.put("shed", shed_count);
+        stats.put("failed", failed_count);
+        return stats;
+    }
+
+    // stop accepting feeds, and seal the current day archive once the feeds already accepted have been written
+    @Override
+    public void stop(Future<Void> fut) throws Exception {
+        if (http_server != null) {
+            http_server.close();
+        }
+        if (feed_writer == null) {
+            fut.complete();
+            return;
+        }
+        feed_writer.drain(res -> {
+            try {
+                if (bin_archive != null) {
+                    bin_archive.close();
+                }
+                if (bin_index != null) {
+                    bin_index.close();
+                }
+                fut.complete();
+            } catch (Exception e) {
+                fut.fail(e);
+            } finally {
+                decoder.close();
+            }
+        });
+    }
 
     // Load initialization global constants defining this FeedHandler from config()
     protected boolean get_config() {
@@ -379,6 +444,24 @@ public class FeedHandler extends AbstractTFCVerticle {
             FILE_SUFFIX = ".bin";
         }
 
+        // publish feed messages as PositionBatch rather than JSON, unless the feed is bridged to a browser
+        PUBLISH_BATCH = config().getBoolean(MODULE_NAME + ".publish_batch", true);
+
+        // append the feed files to a packed archive per day, rather than writing individual files
+        BIN_ARCHIVE = config().getBoolean(MODULE_NAME + ".bin_archive", false);
+
+        // maintain a timestamp index of the TFC_DATA_BIN files of each day, see BinIndex
+        BIN_INDEX = config().getBoolean(MODULE_NAME + ".bin_index", true);
+
+        // feeds waiting to be written or published before further POSTs are refused
+        MAX_QUEUED = config().getInteger(MODULE_NAME + ".max_queued", 100);
+
+        // seconds the source is asked to wait before sending a refused POST again
+        RETRY_AFTER = config().getInteger(MODULE_NAME + ".retry_after", 5);
+
+        // force each feed to disk before the POST is acknowledged
+        FSYNC = config().getBoolean(MODULE_NAME + ".fsync", true);
+
         return true;
     }
 
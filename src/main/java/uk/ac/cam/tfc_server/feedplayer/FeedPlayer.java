@@ -11,7 +11,7 @@ package uk.ac.cam.tfc_server.feedplayer;
 //
 // Reads GTFS-format binary files from the filesystem, broadcasts messages to eventbus
 //
-// FeedHandler will publish the feed data as a JSON string on eventbus "feedplayer.address"
+// FeedHandler will publish the feed data on eventbus "feedplayer.address" as a PositionBatch (or JSON, see publish_batch)
 // For the spec of the eventbus messages see README.md in the feedplayer directory
 //
 // *************************************************************************************************
@@ -22,10 +22,14 @@ import io.vertx.core.Future;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonObject;
 import uk.ac.cam.tfc_server.core.AbstractTFCVerticle;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+import uk.ac.cam.tfc_server.util.BinArchive;
+import uk.ac.cam.tfc_server.util.BinIndex;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.GTFS;
 import uk.ac.cam.tfc_server.util.Log;
 
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
@@ -45,7 +49,9 @@ public class FeedPlayer extends AbstractTFCVerticle {
     // Config vars
     private int    LOG_LEVEL;
 
-    private String FEEDPLAYER_ADDRESS; // eventbus address for JSON feed position updates
+    private String FEEDPLAYER_ADDRESS; // eventbus address for feed position updates
+
+    private boolean PUBLISH_BATCH; // publish feed messages as PositionBatch rather than JSON
 
     private String TFC_DATA_BIN; // root of bin files
     private Long   START_TS;   // UTC timestamp for first position record file to publish
@@ -129,6 +135,32 @@ public class FeedPlayer extends AbstractTFCVerticle {
                 return;
             }
         
+        // if there is an index for this day (see BinIndex) then play the files listed in that
+        String index_path = bin_path + BinIndex.SUFFIX;
+        vertx.fileSystem().exists(index_path, index_res -> {
+                if (index_res.succeeded() && index_res.result())
+                    {
+                        process_gtfs_index(start_ts, finish_ts, index_path, yyyymmdd);
+                        return;
+                    }
+
+                // if there is a packed archive for this day (see BinArchive) then play from that
+                String archive_path = bin_path + BinArchive.SUFFIX;
+                vertx.fileSystem().exists(archive_path, archive_res -> {
+                        if (archive_res.succeeded() && archive_res.result())
+                            {
+                                process_gtfs_archive(start_ts, finish_ts, archive_path, yyyymmdd);
+                                return;
+                            }
+
+                        process_gtfs_listing(start_ts, finish_ts, bin_path);
+                    });
+            });
+      } // end process_gtfs_dir()
+
+    // play the files of the day directory bin_path between start_ts and finish_ts
+    void process_gtfs_listing(long start_ts, Long finish_ts, String bin_path)
+    {
         // read list of days filenames from directory
         vertx.fileSystem().readDir(bin_path, res -> {
                 if (res.succeeded())
@@ -165,7 +197,7 @@ public class FeedPlayer extends AbstractTFCVerticle {
                         System.err.println(res.cause());
                     }
             });
-      } // end process_gtfs_dir()
+    }
 
         
     // Iterate through the list of files
@@ -177,56 +209,199 @@ public class FeedPlayer extends AbstractTFCVerticle {
         // test if we've reached end of files for current day
         if (i >= files.size())
             {
+                // at end of files in current directory, so move on to next day
+                next_gtfs_dir(get_date(files.get(0)), finish_ts);
+                return;
+            }
+        if (get_ts(files.get(i)) > finish_ts)
+            {
+                logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" ending, file replay reached finish time "+finish_ts);
+                return;
+            }
+        // process current file
+        
+        process_gtfs_file(files.get(i));
+
+        // process remaining files
+        vertx.setTimer(RATE, id -> {
                 try
-                  {
-                    // at end of files in current directory, so move on to next day
-                    String yyyymmdd = get_date(files.get(0));
-                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": " + yyyymmdd + " file list completed");
+                    {
+                        process_gtfs_files(files, i + 1, finish_ts);
+                    }
+                catch (Exception e)
+                    {
+                        System.err.println("FeedPlayer: "+MODULE_ID+" exception in process_gtfs_files()");
+                    }
+            });
+    }
+    
+    // move on to the day after yyyymmdd
+    void next_gtfs_dir(String yyyymmdd, Long finish_ts)
+    {
+        try
+          {
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": " + yyyymmdd + " file list completed");
 
-                    DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
 
-                    LocalDate current_date =  LocalDate.parse(yyyymmdd, dtf);
+            LocalDate current_date =  LocalDate.parse(yyyymmdd, dtf);
 
-                    LocalDate next_date = current_date.plusDays(1); 
+            LocalDate next_date = current_date.plusDays(1); 
 
-                    String next_yyyymmdd = next_date.format(dtf);
+            String next_yyyymmdd = next_date.format(dtf);
 
-                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": moving on to "+next_yyyymmdd);
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": moving on to "+next_yyyymmdd);
+
+            // Recursive call to process_gtfs_dir, with next day as data directory
+            // Note we are passing first arg 'start_ts' as zero as it is not relevant except
+            // on the original call to process_gtfs_dir()
+            process_gtfs_dir(0, finish_ts, TFC_DATA_BIN+"/"+next_yyyymmdd);
+          }
+        catch (Exception e)
+          {
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": exception in process_gtfs_files changing dir");
+            e.printStackTrace();
+          }
+    }
 
-                    // Recursive call to process_gtfs_dir, with next day as data directory
-                    // Note we are passing first arg 'start_ts' as zero as it is not relevant except
-                    // on the original call to process_gtfs_dir()
-                    process_gtfs_dir(0, finish_ts, TFC_DATA_BIN+"/"+next_yyyymmdd);
-                  }
+    // play the feed files of a day archive (see BinArchive) from start_ts
+    void process_gtfs_archive(long start_ts, Long finish_ts, String archive_path, String yyyymmdd)
+    {
+        // mapping the archive and seeking start_ts may touch the disk, so not on the event loop
+        vertx.<BinArchive.Reader>executeBlocking(fut -> {
+                try
+                    {
+                        BinArchive.Reader reader = new BinArchive.Reader(archive_path);
+                        reader.seek(start_ts);
+                        fut.complete(reader);
+                    }
                 catch (Exception e)
-                  {
-                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": exception in process_gtfs_files changing dir");
-                    e.printStackTrace();
-                  }
+                    {
+                        fut.fail(e);
+                    }
+            }, res -> {
+                if (res.succeeded())
+                    {
+                        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                                   ": starting with "+archive_path+" at "+start_ts);
+                        process_gtfs_entries(res.result(), yyyymmdd, finish_ts);
+                    }
+                else
+                    {
+                        System.err.println("FeedPlayer: "+MODULE_ID+" error reading "+archive_path+" "+res.cause());
+                    }
+            });
+    }
+
+    // As process_gtfs_files, for the feed files from an archive Reader
+    void process_gtfs_entries(BinArchive.Reader reader, String yyyymmdd, Long finish_ts)
+    {
+        BinArchive.Entry entry = reader.next();
+
+        // test if we've reached end of files for current day
+        if (entry == null)
+            {
+                next_gtfs_dir(yyyymmdd, finish_ts);
                 return;
             }
-        if (get_ts(files.get(i)) > finish_ts)
+        if (entry.ts > finish_ts)
             {
                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" ending, file replay reached finish time "+finish_ts);
                 return;
             }
+
         // process current file
-        
-        process_gtfs_file(files.get(i));
+        publish_gtfs(entry.data, entry.filename, yyyymmdd);
 
         // process remaining files
-        vertx.setTimer(RATE, id -> {
+        vertx.setTimer(RATE, id -> { process_gtfs_entries(reader, yyyymmdd, finish_ts); });
+    }
+
+    // play the feed files listed in a day index (see BinIndex) between start_ts and finish_ts
+    void process_gtfs_index(long start_ts, Long finish_ts, String index_path, String yyyymmdd)
+    {
+        // reading the index (and mapping the archive) may touch the disk, so not on the event loop
+        vertx.<IndexPlayback>executeBlocking(fut -> {
                 try
                     {
-                        process_gtfs_files(files, i + 1, finish_ts);
+                        IndexPlayback playback = new IndexPlayback();
+                        // the index entries (see BinIndex.entries)
+                        playback.entries = BinIndex.entries(TFC_DATA_BIN, yyyymmdd, start_ts, finish_ts);
+                        for (BinIndex.Entry entry : playback.entries)
+                            {
+                                if (entry.archived())
+                                    {
+                                        playback.archive = new BinArchive.Reader(TFC_DATA_BIN+"/"+yyyymmdd+BinArchive.SUFFIX);
+                                        break;
+                                    }
+                            }
+                        fut.complete(playback);
                     }
                 catch (Exception e)
                     {
-                        System.err.println("FeedPlayer: "+MODULE_ID+" exception in process_gtfs_files()");
+                        fut.fail(e);
+                    }
+            }, res -> {
+                if (res.succeeded())
+                    {
+                        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                                   ": starting with "+index_path+" at "+start_ts);
+                        process_index_entries(res.result(), 0, yyyymmdd, finish_ts);
+                    }
+                else
+                    {
+                        System.err.println("FeedPlayer: "+MODULE_ID+" error reading "+index_path+" "+res.cause());
                     }
             });
     }
-    
+
+    // As process_gtfs_files, for the feed files listed in a day index
+    // (the entries are already limited to finish_ts, so at the end move on to the next day,
+    // which will end the playback if it is past finish_ts)
+    void process_index_entries(IndexPlayback playback, int i, String yyyymmdd, Long finish_ts)
+    {
+        if (i >= playback.entries.size())
+            {
+                next_gtfs_dir(yyyymmdd, finish_ts);
+                return;
+            }
+
+        // process current file
+        BinIndex.Entry entry = playback.entries.get(i);
+        if (entry.archived())
+            {
+                BinArchive.Entry archive_entry = playback.archive.entry_at(entry.offset);
+                if (archive_entry != null)
+                    {
+                        publish_gtfs(archive_entry.data, archive_entry.filename, yyyymmdd);
+                    }
+                else
+                    {
+                        System.err.println("FeedPlayer: "+MODULE_ID+" missing archive record "+entry.filename);
+                    }
+            }
+        else
+            {
+                try
+                    {
+                        process_gtfs_file(TFC_DATA_BIN+"/"+yyyymmdd+"/"+entry.filename);
+                    }
+                catch (Exception e)
+                    {
+                        System.err.println("FeedPlayer: "+MODULE_ID+" exception in process_gtfs_file()");
+                    }
+            }
+
+        // process remaining files
+        vertx.setTimer(RATE, id -> { process_index_entries(playback, i + 1, yyyymmdd, finish_ts); });
+    }
+
+    // the feed files of a day index to be played, and the day archive if any are archived
+    class IndexPlayback {
+        List<BinIndex.Entry> entries;
+        BinArchive.Reader archive;
+    }
+
     // publish single file as message
     void process_gtfs_file(String filepath) throws Exception
     {
@@ -234,25 +409,7 @@ public class FeedPlayer extends AbstractTFCVerticle {
         vertx.fileSystem().readFile(filepath, res -> {
                 if (res.succeeded())
                 {
-                    try
-                    {
-                        String basename = get_basename(filepath);
-                        String yyyymmdd = get_date(filepath);
-                        
-                        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" publishing "+yyyymmdd+"/"+basename);
-                        
-                      JsonObject msg = GTFS.buf_to_json(res.result(), basename, yyyymmdd);
-
-                      msg.put("module_name", MODULE_NAME);
-                      msg.put("module_id", MODULE_ID);
-                      msg.put("msg_type", Constants.FEED_BUS_POSITION);
-        
-                      eb.publish(FEEDPLAYER_ADDRESS, msg);
-                      //System.out.println("FeedPlayer: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
-                    } catch (Exception e)
-                    {
-                        System.err.println("FeedPlayer: exception in GTFS.buf_to_json()");
-                    }
+                    publish_gtfs(res.result().getByteBuf().nioBuffer(), get_basename(filepath), get_date(filepath));
                 } else
                 {
                     System.err.println("FeedPlayer: " + res.cause());
@@ -260,6 +417,35 @@ public class FeedPlayer extends AbstractTFCVerticle {
             });
         
     } // end process_gtfs_file()
+
+    // publish the contents of a gtfs file as a message
+    // (buf is parsed in place, e.g. from the mapped archive, without a copy of the whole file)
+    void publish_gtfs(ByteBuffer buf, String basename, String yyyymmdd)
+    {
+        try
+        {
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" publishing "+yyyymmdd+"/"+basename);
+
+          PositionBatch batch = GTFS.buf_to_batch(buf, basename, yyyymmdd);
+
+          batch.module_name = MODULE_NAME;
+          batch.module_id = MODULE_ID;
+          batch.msg_type = Constants.FEED_BUS_POSITION;
+
+          if (PUBLISH_BATCH)
+              {
+                  eb.publish(FEEDPLAYER_ADDRESS, batch);
+              }
+          else
+              {
+                  eb.publish(FEEDPLAYER_ADDRESS, batch.to_json());
+              }
+          //System.out.println("FeedPlayer: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
+        } catch (Exception e)
+        {
+            System.err.println("FeedPlayer: exception in GTFS.buf_to_json()");
+        }
+    } // end publish_gtfs()
   
     // pick out the Long timestamp embedded in the file name
     // e.g. <bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin -> 1457334014
@@ -319,6 +505,9 @@ public class FeedPlayer extends AbstractTFCVerticle {
                 return false;
             }
 
+        // default is PositionBatch, with JSON (false) needed for e.g. a SockJS eventbus bridge to the browser
+        PUBLISH_BATCH = config().getBoolean(MODULE_NAME+".publish_batch", true);
+
         TFC_DATA_BIN = config().getString(MODULE_NAME+".files");
         if (TFC_DATA_BIN==null)
             {
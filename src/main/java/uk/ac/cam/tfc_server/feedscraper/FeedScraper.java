@@ -16,10 +16,14 @@ package uk.ac.cam.tfc_server.feedscraper;
 // FeedScraper will WRITE the raw binary post data into:
 //   TFC_DATA_MONITOR/<filename>
 //   TFC_DATA_BIN/YYYY/MM/DD/<filename>
+//     (or, with feed config "bin_archive": true, appended to TFC_DATA_BIN/YYYY/MM/DD.pack, see BinArchive)
+//   and indexed in the day index TFC_DATA_BIN/YYYY/MM/DD.idx (see BinIndex), unless feed config "bin_index": false
 //
 // where <filename> = <UTC TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
 // and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
 //
+// The files are written by a FeedWriter per feed, on a worker thread in the order received.
+//
 // Config values are read from provided vertx config() json file, e.g.
 /*
 {
@@ -56,7 +60,6 @@ import io.vertx.core.Handler;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpClientResponse;
-import io.vertx.core.file.FileSystem;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
@@ -68,6 +71,9 @@ import java.util.*;
 import java.util.ArrayList;
 
 // other tfc_server classes
+import uk.ac.cam.tfc_server.util.BinArchive;
+import uk.ac.cam.tfc_server.util.BinIndex;
+import uk.ac.cam.tfc_server.util.FeedWriter;
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
 
@@ -132,9 +138,11 @@ public class FeedScraper extends AbstractVerticle {
                      ": starting FeedScraper for "+config.host+config.uri);
 
           // set up periodic 'GET' requests for data (.setPeriodic requires milliseconds)
-          vertx.setPeriodic( config.period * 1000, id -> { get_feed(config);  });
+          config.timer_id = vertx.setPeriodic( config.period * 1000, id -> { get_feed(config);  });
         }
 
+    fut.complete();
+
   } // end start()
 
     // send UP status to the EventBus
@@ -193,68 +201,9 @@ public class FeedScraper extends AbstractVerticle {
     String filename = utc_ts+"_"+local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
     // sub-dir structure to store the file
     String filepath = year+"/"+month+"/"+day;
-    // First just save the binary file to $TFC_DATA_MONITOR
-
-    // Vert.x non-blocking file write...
-    FileSystem fs = vertx.fileSystem();
-
-    // Write file to DATA_BIN
-    //
-    // if full directory path exists, then write file
-    // otherwise create full path first
-    final String bin_path = config.data_bin+"/"+filepath;
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+bin_path+"/"+filename + config.file_suffix);
-    fs.exists(bin_path, result -> {
-            if (result.succeeded() && result.result())
-                {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": process_feed: path "+bin_path+" exists");
-                    write_file(fs, buf, bin_path+"/"+filename+ config.file_suffix);
-                }
-            else
-                {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Creating directory "+bin_path);
-                    fs.mkdirs(bin_path, mkdirs_result -> {
-                            if (mkdirs_result.succeeded())
-                                {
-                                    write_file(fs, buf, bin_path+"/"+filename+ config.file_suffix);
-                                }
-                            else
-                                {
-                                    Log.log_err("FeedScraper."+MODULE_ID+": error creating tfc_data_bin path "+bin_path);
-                                }
-                        });
-                }
-        });
 
-    // Write file to DATA_MONITOR
-    //
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+config.data_monitor+"/"+filename+ config.file_suffix);
-    fs.readDir(config.data_monitor, ".*\\"+config.file_suffix, monitor_result -> {
-                            if (monitor_result.succeeded())
-                                {
-                                    // directory exists, delete previous files of same suffix
-                                    for (String f: monitor_result.result())
-                                        {
-                                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"Deleting "+f);
-                                            fs.delete(f, delete_result -> {
-                                                    if (!delete_result.succeeded())
-                                                        {
-                                                          Log.log_err("FeedScraper."+MODULE_ID+": error tfc_data_monitor delete: "+f);
-                                                        }
-                                                });
-                                        }
-                                    write_file(fs, buf, config.data_monitor+"/"+filename+ config.file_suffix);
-                                }
-                            else
-                                {
-                                    Log.log_err("FeedScraper."+MODULE_ID+": error reading tfc_data_monitor path: "+config.data_monitor);
-                                    Log.log_err(monitor_result.cause().getMessage());
-                                }
-    });
+    // queue the data to be written to DATA_BIN and DATA_MONITOR (see FeedWriter)
+    config.writer.write(buf, filepath, Long.parseLong(utc_ts), filename);
 
     // Here is where we process the individual position records
     //JsonObject msg = GTFS.buf_to_json(buf, filename, filepath);
@@ -270,19 +219,46 @@ public class FeedScraper extends AbstractVerticle {
     
   } // end process_gtfs()
 
-  private void write_file(FileSystem fs, Buffer buf, String file_path)
+  // stop polling, and when the data already queued has been written, seal the current day archives and indexes
+  @Override
+  public void stop(Future<Void> fut) throws Exception
   {
-    fs.writeFile(file_path, 
-                 buf, 
-                 result -> {
-      if (result.succeeded()) {
-          logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                     ": File "+file_path+" written");
-      } else {
-        Log.log_err(MODULE_NAME+"."+MODULE_ID+": write_file error ..." + result.cause());
-      }
-    });
-  } // end write_file
+    for (FeedConfig config : START_FEEDS)
+        {
+            vertx.cancelTimer(config.timer_id);
+        }
+    stop_feed(0, fut);
+  }
+
+  // drain the writer of feed i then close its archive and index, then stop the following feeds
+  private void stop_feed(int i, Future<Void> fut)
+  {
+    if (i == START_FEEDS.size())
+        {
+            fut.complete();
+            return;
+        }
+    FeedConfig config = START_FEEDS.get(i);
+    // a write still queued would re-open the day archive after it was closed, so drain first
+    config.writer.drain(res -> {
+            try
+                {
+                    if (config.bin_archive != null)
+                        {
+                            config.bin_archive.close();
+                        }
+                    if (config.bin_index != null)
+                        {
+                            config.bin_index.close();
+                        }
+                }
+            catch (Exception e)
+                {
+                    Log.log_err("FeedScraper: "+MODULE_ID+" error closing "+config.data_bin+" "+e);
+                }
+            stop_feed(i + 1, fut);
+        });
+  }
 
     // Load initialization global constants defining this FeedScraper from config()
     private boolean get_config()
@@ -364,6 +340,14 @@ public class FeedScraper extends AbstractVerticle {
         public String data_monitor = null;
         public String file_suffix = null;
 
+        public BinArchive.DailyWriter bin_archive = null; // if config "bin_archive": true
+
+        public BinIndex.DailyWriter bin_index = null; // unless config "bin_index": false
+
+        public FeedWriter writer; // writes the data of each poll
+
+        public long timer_id; // the periodic timer polling this feed
+
         public HttpClient http_client;
 
         public boolean valid;
@@ -391,7 +375,21 @@ public class FeedScraper extends AbstractVerticle {
             data_monitor = config.getString("data_monitor");
         
             // filename suffix for file, default '.bin'
-            file_suffix = config.getString("file_suffix");
+            file_suffix = config.getString("file_suffix", ".bin");
+
+            // append the data to a packed archive per day, rather than writing individual files
+            if (config.getBoolean("bin_archive", false))
+                {
+                    bin_archive = new BinArchive.DailyWriter(data_bin);
+                }
+
+            // index the files of each day by timestamp, as FeedHandler does
+            if (config.getBoolean("bin_index", true))
+                {
+                    bin_index = new BinIndex.DailyWriter(data_bin);
+                }
+
+            writer = new FeedWriter(vertx, data_bin, null, data_monitor, file_suffix, bin_archive, bin_index);
 
             http_client = vertx.createHttpClient( new HttpClientOptions()
                                                        .setSsl(ssl)
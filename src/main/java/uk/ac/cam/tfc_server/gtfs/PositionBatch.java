@@ -0,0 +1,227 @@
+package uk.ac.cam.tfc_server.gtfs;
+
+// PositionBatch.java
+//
+// An array-backed batch of position records, i.e. the vehicle positions from one GTFS-realtime
+// FeedMessage, decoded directly from the protobuf (see GTFS.buf_to_batch()).
+//
+// Each position record is a row i = 0..size-1, with the fields of PositionRecord held in
+// primitive column arrays, so consumers on the hot path (e.g. ZoneSet) can read them without
+// any JsonObject being built or fields being looked up by string key.
+//
+// A PositionBatch can still be turned into the usual feed JSON with to_json(), e.g. for the
+// EventBus or the filers, and that JSON is identical to that produced by GTFS.buf_to_json().
+//
+// For optional fields, has_xxx[i] is false (or the String is null) if the field was not in the feed.
+//
+// A PositionBatch can also be published on the EventBus as the message body (see PositionBatchCodec).
+// Once published it is shared (not copied) between local consumers, so must not be modified.
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class PositionBatch
+{
+    public String filename;
+    public String filepath;
+
+    // set by the module publishing this batch as a feed message, otherwise null
+    public String module_name;
+    public String module_id;
+    public String msg_type;
+
+    public Long   timestamp; // feed header timestamp, or null
+    public long   received_timestamp; // when feed was received, same for all records
+
+    public int    size; // number of position records
+
+    // timestamp,id,label,route_id,trip_id,latitude,longitude,bearing,current_stop_sequence,stop_id
+    public String[]  vehicle_id;
+    public String[]  label;
+    public String[]  route_id;
+    public String[]  trip_id;
+    public boolean[] has_position; // true if the record has latitude, longitude
+    public float[]   latitude;
+    public float[]   longitude;
+    public boolean[] has_bearing;
+    public float[]   bearing;
+    public boolean[] has_timestamp; // true if the vehicle position has its own timestamp
+    public long[]    position_timestamp;
+    public boolean[] has_current_stop_sequence;
+    public int[]     current_stop_sequence;
+    public String[]  stop_id;
+
+    public PositionBatch(String filename, String filepath, int capacity)
+    {
+        this.filename = filename;
+        this.filepath = filepath;
+
+        timestamp = null;
+        received_timestamp = System.currentTimeMillis() / 1000L;
+
+        size = 0;
+
+        vehicle_id = new String[capacity];
+        label = new String[capacity];
+        route_id = new String[capacity];
+        trip_id = new String[capacity];
+        has_position = new boolean[capacity];
+        latitude = new float[capacity];
+        longitude = new float[capacity];
+        has_bearing = new boolean[capacity];
+        bearing = new float[capacity];
+        has_timestamp = new boolean[capacity];
+        position_timestamp = new long[capacity];
+        has_current_stop_sequence = new boolean[capacity];
+        current_stop_sequence = new int[capacity];
+        stop_id = new String[capacity];
+    }
+
+    // reset row i to an empty record, e.g. before decoding into it, so nothing is left from
+    // a record that failed partway through decoding
+    public void clear_row(int i)
+    {
+        vehicle_id[i] = null;
+        label[i] = null;
+        route_id[i] = null;
+        trip_id[i] = null;
+        has_position[i] = false;
+        latitude[i] = 0;
+        longitude[i] = 0;
+        has_bearing[i] = false;
+        bearing[i] = 0;
+        has_timestamp[i] = false;
+        position_timestamp[i] = 0;
+        has_current_stop_sequence[i] = false;
+        current_stop_sequence[i] = 0;
+        stop_id[i] = null;
+    }
+
+    // return the feed as the JsonObject { "filename", "filepath", "timestamp", "entities": [ ... ] }
+    public JsonObject to_json()
+    {
+        JsonObject feed_json_object = new JsonObject();
+
+        feed_json_object.put("filename",filename);
+        feed_json_object.put("filepath",filepath);
+
+        if (timestamp != null)
+            {
+                feed_json_object.put("timestamp", timestamp);
+            }
+
+        JsonArray ja = new JsonArray();
+        for (int i=0; i<size; i++)
+            {
+                ja.add(record_json(i));
+            }
+
+        feed_json_object.put("entities", ja);
+
+        if (module_name != null)
+            {
+                feed_json_object.put("module_name", module_name);
+            }
+        if (module_id != null)
+            {
+                feed_json_object.put("module_id", module_id);
+            }
+        if (msg_type != null)
+            {
+                feed_json_object.put("msg_type", msg_type);
+            }
+
+        return feed_json_object;
+    }
+
+    // A PositionBatch message body prints as the feed JSON, so consumers using
+    // message.body().toString() (e.g. Rita, Console) see the same message either way
+    @Override
+    public String toString()
+    {
+        return to_json().toString();
+    }
+
+    // return position record i as a JsonObject
+    // (fields are added in the same order as in the original GTFS JSON decoding)
+    public JsonObject record_json(int i)
+    {
+        JsonObject jo = new JsonObject();
+
+        jo.put("received_timestamp",received_timestamp);
+
+        if (vehicle_id[i] != null)
+            {
+                jo.put("vehicle_id",vehicle_id[i]);
+            }
+        if (label[i] != null)
+            {
+                jo.put("label",label[i]);
+            }
+        if (has_position[i])
+            {
+                jo.put("latitude", latitude[i]);
+                jo.put("longitude", longitude[i]);
+                if (has_bearing[i])
+                    {
+                        jo.put("bearing",bearing[i]);
+                    }
+                jo.put("timestamp", position_timestamp[i]);
+            }
+        if (trip_id[i] != null)
+            {
+                jo.put("trip_id",trip_id[i]);
+            }
+        if (route_id[i] != null)
+            {
+                jo.put("route_id",route_id[i]);
+            }
+        if (has_current_stop_sequence[i])
+            {
+                jo.put("current_stop_sequence",current_stop_sequence[i]);
+            }
+        if (stop_id[i] != null)
+            {
+                jo.put("stop_id",stop_id[i]);
+            }
+        if (has_timestamp[i])
+            {
+                jo.put("timestamp",position_timestamp[i]);
+            }
+
+        return jo;
+    }
+
+    // return position record i as a PositionRecord
+    public PositionRecord position_record(int i)
+    {
+        PositionRecord p = new PositionRecord();
+
+        p.received_timestamp = received_timestamp;
+        p.vehicle_id = vehicle_id[i];
+        p.label = label[i];
+        p.route_id = route_id[i];
+        p.trip_id = trip_id[i];
+        if (has_position[i])
+            {
+                p.latitude = latitude[i];
+                p.longitude = longitude[i];
+                if (has_bearing[i])
+                    {
+                        p.bearing = bearing[i];
+                    }
+            }
+        if (has_position[i] || has_timestamp[i])
+            {
+                p.timestamp = position_timestamp[i];
+            }
+        if (has_current_stop_sequence[i])
+            {
+                p.current_stop_sequence = (long) current_stop_sequence[i];
+            }
+        p.stop_id = stop_id[i];
+
+        return p;
+    }
+
+} // end PositionBatch
@@ -0,0 +1,254 @@
+package uk.ac.cam.tfc_server.gtfs;
+
+// PositionBatchCodec.java
+//
+// Vert.x EventBus MessageCodec allowing a PositionBatch to be published as a feed message body.
+//
+// Local delivery passes the same PositionBatch object to every consumer (no copy, no JSON),
+// so a published batch must be treated as read-only.
+// Clustered delivery uses the compact binary format below rather than JSON text:
+//
+//   int   length of the encoded batch (bytes following this int)
+//   string filename, filepath, module_name, module_id, msg_type
+//   byte  1 if header timestamp present, followed by long timestamp
+//   long  received_timestamp
+//   int   size
+//   for each position record:
+//     byte   flags (FLAG_POSITION | FLAG_BEARING | FLAG_TIMESTAMP | FLAG_STOP_SEQUENCE)
+//     string vehicle_id, label, route_id, trip_id, stop_id
+//     float  latitude, longitude (if FLAG_POSITION), float bearing (if FLAG_BEARING)
+//     long   timestamp (if FLAG_POSITION or FLAG_TIMESTAMP)
+//     int    current_stop_sequence (if FLAG_STOP_SEQUENCE)
+//
+// where a string is an int byte length (-1 for null) followed by the UTF-8 bytes.
+//
+// The codec is registered as the default codec for PositionBatch by every AbstractTFCVerticle,
+// so a PositionBatch can be published with no DeliveryOptions.
+// Consumers that may receive either a PositionBatch or JSON can use json_body(message.body()).
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+
+public class PositionBatchCodec implements MessageCodec<PositionBatch, PositionBatch>
+{
+    public static final String NAME = "tfc_position_batch";
+
+    private static final byte FLAG_POSITION = 1;
+    private static final byte FLAG_BEARING = 2;
+    private static final byte FLAG_TIMESTAMP = 4;
+    private static final byte FLAG_STOP_SEQUENCE = 8;
+
+    // Register this codec as the default codec for PositionBatch on this EventBus.
+    // Many verticles share the same EventBus, so if the codec is already registered this does nothing.
+    public static void register(EventBus eb)
+    {
+        try
+            {
+                eb.registerDefaultCodec(PositionBatch.class, new PositionBatchCodec());
+            }
+        catch (IllegalStateException e)
+            {
+                // already registered
+            }
+    }
+
+    // Return a feed message body as a JsonObject, whether it was published as a
+    // PositionBatch, a JsonObject or a JSON String
+    public static JsonObject json_body(Object body)
+    {
+        if (body instanceof PositionBatch)
+            {
+                return ((PositionBatch) body).to_json();
+            }
+        if (body instanceof JsonObject)
+            {
+                return (JsonObject) body;
+            }
+        return new JsonObject(body.toString());
+    }
+
+    @Override
+    public String name()
+    {
+        return NAME;
+    }
+
+    @Override
+    public byte systemCodecID()
+    {
+        return -1; // user codec
+    }
+
+    // local delivery: all consumers share the published (read-only) batch
+    @Override
+    public PositionBatch transform(PositionBatch batch)
+    {
+        return batch;
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, PositionBatch batch)
+    {
+        int length_pos = buffer.length();
+        buffer.appendInt(0); // length, filled in below
+
+        append_string(buffer, batch.filename);
+        append_string(buffer, batch.filepath);
+        append_string(buffer, batch.module_name);
+        append_string(buffer, batch.module_id);
+        append_string(buffer, batch.msg_type);
+
+        if (batch.timestamp != null)
+            {
+                buffer.appendByte((byte) 1);
+                buffer.appendLong(batch.timestamp);
+            }
+        else
+            {
+                buffer.appendByte((byte) 0);
+            }
+
+        buffer.appendLong(batch.received_timestamp);
+        buffer.appendInt(batch.size);
+
+        for (int i=0; i<batch.size; i++)
+            {
+                byte flags = 0;
+                if (batch.has_position[i]) flags |= FLAG_POSITION;
+                if (batch.has_bearing[i]) flags |= FLAG_BEARING;
+                if (batch.has_timestamp[i]) flags |= FLAG_TIMESTAMP;
+                if (batch.has_current_stop_sequence[i]) flags |= FLAG_STOP_SEQUENCE;
+                buffer.appendByte(flags);
+
+                append_string(buffer, batch.vehicle_id[i]);
+                append_string(buffer, batch.label[i]);
+                append_string(buffer, batch.route_id[i]);
+                append_string(buffer, batch.trip_id[i]);
+                append_string(buffer, batch.stop_id[i]);
+
+                if (batch.has_position[i])
+                    {
+                        buffer.appendFloat(batch.latitude[i]);
+                        buffer.appendFloat(batch.longitude[i]);
+                    }
+                if (batch.has_bearing[i])
+                    {
+                        buffer.appendFloat(batch.bearing[i]);
+                    }
+                if (batch.has_position[i] || batch.has_timestamp[i])
+                    {
+                        buffer.appendLong(batch.position_timestamp[i]);
+                    }
+                if (batch.has_current_stop_sequence[i])
+                    {
+                        buffer.appendInt(batch.current_stop_sequence[i]);
+                    }
+            }
+
+        buffer.setInt(length_pos, buffer.length() - length_pos - 4);
+    }
+
+    @Override
+    public PositionBatch decodeFromWire(int pos, Buffer buffer)
+    {
+        int[] p = { pos + 4 }; // skip length
+
+        String filename = read_string(buffer, p);
+        String filepath = read_string(buffer, p);
+        String module_name = read_string(buffer, p);
+        String module_id = read_string(buffer, p);
+        String msg_type = read_string(buffer, p);
+
+        Long timestamp = null;
+        if (buffer.getByte(p[0]++) == 1)
+            {
+                timestamp = buffer.getLong(p[0]);
+                p[0] += 8;
+            }
+
+        long received_timestamp = buffer.getLong(p[0]);
+        p[0] += 8;
+
+        int size = buffer.getInt(p[0]);
+        p[0] += 4;
+
+        PositionBatch batch = new PositionBatch(filename, filepath, size);
+        batch.module_name = module_name;
+        batch.module_id = module_id;
+        batch.msg_type = msg_type;
+        batch.timestamp = timestamp;
+        batch.received_timestamp = received_timestamp;
+
+        for (int i=0; i<size; i++)
+            {
+                byte flags = buffer.getByte(p[0]++);
+                batch.has_position[i] = (flags & FLAG_POSITION) != 0;
+                batch.has_bearing[i] = (flags & FLAG_BEARING) != 0;
+                batch.has_timestamp[i] = (flags & FLAG_TIMESTAMP) != 0;
+                batch.has_current_stop_sequence[i] = (flags & FLAG_STOP_SEQUENCE) != 0;
+
+                batch.vehicle_id[i] = read_string(buffer, p);
+                batch.label[i] = read_string(buffer, p);
+                batch.route_id[i] = read_string(buffer, p);
+                batch.trip_id[i] = read_string(buffer, p);
+                batch.stop_id[i] = read_string(buffer, p);
+
+                if (batch.has_position[i])
+                    {
+                        batch.latitude[i] = buffer.getFloat(p[0]);
+                        batch.longitude[i] = buffer.getFloat(p[0] + 4);
+                        p[0] += 8;
+                    }
+                if (batch.has_bearing[i])
+                    {
+                        batch.bearing[i] = buffer.getFloat(p[0]);
+                        p[0] += 4;
+                    }
+                if (batch.has_position[i] || batch.has_timestamp[i])
+                    {
+                        batch.position_timestamp[i] = buffer.getLong(p[0]);
+                        p[0] += 8;
+                    }
+                if (batch.has_current_stop_sequence[i])
+                    {
+                        batch.current_stop_sequence[i] = buffer.getInt(p[0]);
+                        p[0] += 4;
+                    }
+            }
+
+        batch.size = size;
+
+        return batch;
+    }
+
+    private static void append_string(Buffer buffer, String s)
+    {
+        if (s == null)
+            {
+                buffer.appendInt(-1);
+                return;
+            }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.appendInt(bytes.length);
+        buffer.appendBytes(bytes);
+    }
+
+    // read a string at position p[0] in buffer, and advance p[0] past it
+    private static String read_string(Buffer buffer, int[] p)
+    {
+        int length = buffer.getInt(p[0]);
+        p[0] += 4;
+        if (length < 0)
+            {
+                return null;
+            }
+        String s = new String(buffer.getBytes(p[0], p[0] + length), StandardCharsets.UTF_8);
+        p[0] += length;
+        return s;
+    }
+
+} // end PositionBatchCodec
@@ -12,6 +12,8 @@ package uk.ac.cam.tfc_server.msgfiler;
 // FilerConfig provides the configuration parameters for FilerUtils
 //
 // These will define a particular filer i.e. which messages to store where.
+//
+// The store_path and store_name patterns are compiled into FilerTemplates when the config is loaded.
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
@@ -29,6 +31,9 @@ public class FilerConfig {
     public String store_name;         // filename to store message
     public String store_mode;         // append | write
 
+    public FilerTemplate store_path_template; // compiled store_path
+    public FilerTemplate store_name_template; // compiled store_name
+
     public FilerConfig(JsonObject config)
     {
         module_name = config.getString("module_name");
@@ -49,6 +54,10 @@ public class FilerConfig {
         store_name = config.getString("store_name");
         store_mode = config.getString("store_mode");
 
+        // (a filer with no store_path or store_name loads, but cannot store messages)
+        store_path_template = store_path == null ? null : new FilerTemplate(store_path);
+        store_name_template = store_name == null ? null : new FilerTemplate(store_name);
+
         System.out.println(module_name+"."+module_id+": FilerConfig loaded:");
         System.out.println(module_name+"."+module_id+": "+source_address+","+source_filter.toString()+","+
                            store_path+","+store_name+","+store_mode);
@@ -0,0 +1,221 @@
+package uk.ac.cam.tfc_server.msgfiler;
+
+// FilerTemplate.java
+//
+// FilerTemplate is a FilerConfig store_path or store_name pattern, compiled once when the
+// FilerConfig is loaded, so filling in the pattern for each message is a walk along a list of
+// segments rather than a re-scan of the pattern string.
+//
+// Patterns:
+//     {{<field_name>}}, populated via msg.getString(field_name)
+//     {{<field_name>|int}}, populated via msg.getLong(field_name)
+//     {{<field_name>|yyyy}}, get msg.getLong(field_name), parse it as a Unix timestamp, return year as "yyyy"
+//     {{<field_name>|MM}}, get msg.getLong(field_name), parse it as a Unix timestamp, return month as "MM"
+//     {{<field_name>|dd}}, get msg.getLong(field_name), parse it as a Unix timestamp, return day of month as "dd"
+// e.g. "foo/bah/{{module_id}}" might become "foo/bah/zone_manager"
+//
+// The yyyy / MM / dd values of the most recent day are cached, so consecutive messages from the same
+// (local time) day do not each convert their timestamp into a date.
+//
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+
+import io.vertx.core.json.JsonObject;
+
+public class FilerTemplate {
+
+    private static final String PATTERN_START = "{{";
+    private static final String PATTERN_END = "}}";
+    private static final String PATTERN_FUN = "|";
+
+    private static final DateTimeFormatter FORMAT_YYYY = DateTimeFormatter.ofPattern("yyyy");
+    private static final DateTimeFormatter FORMAT_MM = DateTimeFormatter.ofPattern("MM");
+    private static final DateTimeFormatter FORMAT_DD = DateTimeFormatter.ofPattern("dd");
+
+    // segment types
+    private static final int LITERAL = 0; // text copied as is
+    private static final int STRING = 1;  // {{field}}
+    private static final int INT = 2;     // {{field|int}}
+    private static final int YEAR = 3;    // {{field|yyyy}}
+    private static final int MONTH = 4;   // {{field|MM}}
+    private static final int DAY = 5;     // {{field|dd}}
+
+    // a reusable StringBuilder for each thread building strings
+    private static final ThreadLocal<StringBuilder> builder = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private final String pattern;
+
+    private final int[] types;
+    private final String[] values; // literal text, or the field name
+
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private volatile CalendarDay calendar_day; // the most recent day looked up
+
+    public FilerTemplate(String pattern)
+    {
+        this.pattern = pattern;
+
+        ArrayList<Integer> type_list = new ArrayList<Integer>();
+        ArrayList<String> value_list = new ArrayList<String>();
+
+        int index = 0;
+        while (index < pattern.length())
+            {
+                // get the indices of the start/end of the next {{..}}
+                int pos_start = pattern.indexOf(PATTERN_START, index);
+                int pos_end = pattern.indexOf(PATTERN_END, pos_start);
+                // if pattern not found, then the remainder is literal
+                if (pos_start < 0 || pos_end < 0)
+                    {
+                        add_literal(type_list, value_list, pattern.substring(index));
+                        break;
+                    }
+                add_literal(type_list, value_list, pattern.substring(index, pos_start));
+
+                // subst_pattern is the bit between the {{..}} e.g. "ts|yyyy"
+                String subst_pattern = pattern.substring(pos_start + PATTERN_START.length(), pos_end);
+
+                int fun_pos = subst_pattern.indexOf(PATTERN_FUN);
+                if (fun_pos < 0)
+                    {
+                        type_list.add(STRING);
+                        value_list.add(subst_pattern);
+                    }
+                else
+                    {
+                        String field_name = subst_pattern.substring(0, fun_pos);
+                        int type = function_type(subst_pattern);
+                        if (type == LITERAL)
+                            {
+                                // unrecognised function, the pattern itself is used
+                                add_literal(type_list, value_list, subst_pattern);
+                            }
+                        else
+                            {
+                                type_list.add(type);
+                                value_list.add(field_name);
+                            }
+                    }
+
+                // move index along to just after the pattern
+                index = pos_end + PATTERN_END.length();
+            }
+
+        types = new int[type_list.size()];
+        for (int i=0; i<types.length; i++)
+            {
+                types[i] = type_list.get(i);
+            }
+        values = value_list.toArray(new String[value_list.size()]);
+    }
+
+    private static int function_type(String subst_pattern)
+    {
+        if (subst_pattern.endsWith(PATTERN_FUN+"int"))  return INT;
+        if (subst_pattern.endsWith(PATTERN_FUN+"yyyy")) return YEAR;
+        if (subst_pattern.endsWith(PATTERN_FUN+"MM"))   return MONTH;
+        if (subst_pattern.endsWith(PATTERN_FUN+"dd"))   return DAY;
+        return LITERAL;
+    }
+
+    private static void add_literal(ArrayList<Integer> type_list, ArrayList<String> value_list, String text)
+    {
+        if (text.length() > 0)
+            {
+                type_list.add(LITERAL);
+                value_list.add(text);
+            }
+    }
+
+    // the original pattern string
+    public String pattern()
+    {
+        return pattern;
+    }
+
+    // return the pattern populated with values from msg
+    public String build(JsonObject msg)
+    {
+        StringBuilder sb = builder.get();
+        sb.setLength(0);
+        append_to(sb, msg);
+        return sb.toString();
+    }
+
+    // append the pattern populated with values from msg to sb
+    public void append_to(StringBuilder sb, JsonObject msg)
+    {
+        for (int i=0; i<types.length; i++)
+            {
+                switch (types[i])
+                    {
+                    case LITERAL:
+                        sb.append(values[i]);
+                        break;
+
+                    case STRING:
+                        sb.append(msg.getString(values[i]));
+                        break;
+
+                    case INT:
+                        sb.append(msg.getLong(values[i], 0L).longValue());
+                        break;
+
+                    case YEAR:
+                        sb.append(calendar_day(msg.getLong(values[i], 0L)).yyyy);
+                        break;
+
+                    case MONTH:
+                        sb.append(calendar_day(msg.getLong(values[i], 0L)).MM);
+                        break;
+
+                    case DAY:
+                        sb.append(calendar_day(msg.getLong(values[i], 0L)).dd);
+                        break;
+                    }
+            }
+    }
+
+    // return the (cached) CalendarDay containing Unix timestamp ts
+    private CalendarDay calendar_day(long ts)
+    {
+        CalendarDay day = calendar_day;
+        if (day == null || ts < day.start_ts || ts >= day.end_ts)
+            {
+                day = new CalendarDay(ts, zone);
+                calendar_day = day;
+            }
+        return day;
+    }
+
+    //*************************************************************************************
+    // Class CalendarDay
+    //*************************************************************************************
+    //
+    // The local date strings of the day [start_ts..end_ts)
+    //
+    private static class CalendarDay {
+
+        final long start_ts;
+        final long end_ts;
+        final String yyyy;
+        final String MM;
+        final String dd;
+
+        CalendarDay(long ts, ZoneId zone)
+        {
+            LocalDate date = Instant.ofEpochSecond(ts).atZone(zone).toLocalDate();
+            start_ts = date.atStartOfDay(zone).toEpochSecond();
+            end_ts = date.plusDays(1).atStartOfDay(zone).toEpochSecond();
+            yyyy = date.format(FORMAT_YYYY);
+            MM = date.format(FORMAT_MM);
+            dd = date.format(FORMAT_DD);
+        }
+    } // end class CalendarDay
+
+} // end class FilerTemplate
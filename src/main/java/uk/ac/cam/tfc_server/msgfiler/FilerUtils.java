@@ -20,14 +20,16 @@ package uk.ac.cam.tfc_server.msgfiler;
 //      e.g. "/home/ijl20/tfc_server_data/data_zone/{{ts|yyyy}}/{{ts|MM}}/{{ts|dd}}"
 //   "store_name" : a parameterized string giving the filename for storing the message
 //      e.g. "{{module_id}}.txt"
-//   "store_mode" : "write" | "append", defining whether the given file should be written or appended
+//   "store_mode" : "write" | "append" | "columnar", defining whether the given file should be written or appended,
+//      "columnar" appending zone transit messages to a compressed TransitColumns file rather than as JSON text
+//
+// Appended messages go through a FilerWriterPool, which keeps the files open and writes the
+// messages in groups, and caches the directories known to exist.
 //
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
 
-import java.time.*;
-import java.time.format.*;
 import java.io.*;
 
 import io.vertx.core.Vertx;
@@ -43,11 +45,19 @@ public class FilerUtils {
     private FilerConfig filer_config;
 
     private Vertx vertx;
+
+    private FilerWriterPool writer_pool; // open append files, and directories known to exist
     
     public FilerUtils (Vertx v, FilerConfig fc)
+    {
+        this(v, fc, new FilerWriterPool());
+    }
+
+    public FilerUtils (Vertx v, FilerConfig fc, FilerWriterPool pool)
     {
         filer_config = fc;
         vertx = v;
+        writer_pool = pool;
     }
 
     // **********************************
@@ -68,13 +78,19 @@ public class FilerUtils {
         // map the message values into the {{..}} placeholders in path and name
         String filepath;
         String filename;
-        filepath = build_string(filer_config.store_path, msg);
-        filename = build_string(filer_config.store_name, msg);
+        filepath = filer_config.store_path_template.build(msg);
+        filename = filer_config.store_name_template.build(msg);
 
         //System.out.println("MsgFiler."+filer_config.module_id+": "+filer_config.store_mode+ " " +filepath+"/"+filename);
 
-        String msg_str = msg.toString();
-        
+        // appends go to the writer pool, which creates the directory if needed
+        // and skips the check when the directory is already known to exist
+        if (!filer_config.store_mode.equals(Constants.FILE_WRITE) || writer_pool.known_dir(filepath))
+            {
+                write_file(msg, filepath, filename, filer_config.store_mode);
+                return;
+            }
+
         FileSystem fs = vertx.fileSystem();
         
         // if full directory path exists, then write file
@@ -84,7 +100,8 @@ public class FilerUtils {
             if (result.succeeded() && result.result())
                 {
                     //System.out.println("MsgFiler."+filer_config.module_id+": path "+filepath+" exists");
-                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode);
+                    writer_pool.add_dir(filepath);
+                    write_file(msg, filepath, filename, filer_config.store_mode);
                 }
             else
                 {
@@ -92,7 +109,8 @@ public class FilerUtils {
                     fs.mkdirs(filepath, mkdirs_result -> {
                             if (mkdirs_result.succeeded())
                                 {
-                                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode);
+                                    writer_pool.add_dir(filepath);
+                                    write_file(msg, filepath, filename, filer_config.store_mode);
                                 }
                             else
                                 {
@@ -121,168 +139,47 @@ public class FilerUtils {
 
         // map the message values into the {{..}} placeholders in path and name
 
-        String filepath = build_string(filer_config.store_path, msg);
-        String filename = build_string(filer_config.store_name, msg);
+        String filepath = filer_config.store_path_template.build(msg);
+        String filename = filer_config.store_name_template.build(msg);
 
         //System.out.println("MsgFiler."+filer_config.module_id+": "+filer_config.store_mode+ " " +filepath+"/"+filename);
 
-        String msg_str = msg.toString();
-        
-        FileSystem fs = vertx.fileSystem();
+        // if full directory path is not known to exist, then create it first
         
-        // if full directory path exists, then write file
-        // otherwise create full path first
-        
-        if (fs.existsBlocking(filepath))
-        {
-            //System.out.println("MsgFiler."+filer_config.module_id+": path "+filepath+" exists");
-            write_fileBlocking(msg_str, filepath+"/"+filename, filer_config.store_mode);
+        try {
+            writer_pool.ensure_dir(filepath);
         }
-        else
-        {
-            try {
-                System.out.println("MsgFiler."+filer_config.module_id+": creating directory "+filepath);
-                fs.mkdirsBlocking(filepath);
-                write_fileBlocking(msg_str, filepath+"/"+filename, filer_config.store_mode);
-            }
-            catch (Exception e) {
-                Log.log_err("MsgFiler."+filer_config.module_id+": error creating path "+filepath);
-            }
+        catch (Exception e) {
+            Log.log_err("MsgFiler."+filer_config.module_id+": error creating path "+filepath);
+            return;
         }
 
-    } // end store_msg()
-
-    // ************************************************************************************
-    // build_string(String pattern, JsonObject msg)
-    // ************************************************************************************
-    // take a pattern and a message, and return the pattern populated with message values
-    // e.g. "foo/bah/{{module_id}}" might become "foo/bah/zone_manager"
-    // Patterns:
-    //     {{<field_name>}}, populated via msg.getString(field_name)
-    //     {{<field_name>|int}}, populated via msg.getLong(field_name)
-    //     {{<field_name>|yyyy}}, get msg.getLong(field_name), parse it as a Unix timestamp, return year as "yyyy"
-    //     {{<field_name>|MM}}, get msg.getLong(field_name), parse it as a Unix timestamp, return month as "MM"
-    //     {{<field_name>|dd}}, get msg.getLong(field_name), parse it as a Unix timestamp, return day of month as "dd"
-    private String build_string(String pattern, JsonObject msg)
-    {
-        final String PATTERN_START = "{{";
-        final String PATTERN_END = "}}";
-        
-        int index = 0;
-        String result = ""; // will hold the accumulated fully matched string
-        
-        while (index < pattern.length())
-            {
-                // get the indices of the start/end of the next {{..}}
-                int pos_start = pattern.indexOf(PATTERN_START, index);
-                int pos_end = pattern.indexOf(PATTERN_END, pos_start);
-                // if pattern not found, then return string so far plus remainder
-                if (pos_start < 0 || pos_end < 0)
-                    {
-                        result = result + pattern.substring(index);
-                        return result;
-                    }
-                // we have a match for "{{..}}"
-                // so accumulate the result up to the start of the "{{"
-                // and find the value we have to replace "{{..}}" with
-                result = result + pattern.substring(index, pos_start);
-                // subst_pattern is the bit between the {{..}} e.g. "ts|yyyy"
-                String subst_pattern = pattern.substring(pos_start + PATTERN_START.length(), pos_end);
-
-                // filled_pattern is the value that should replace the {{..}} pattern e.g. "2016"
-                String filled_pattern = fill_pattern(subst_pattern, msg);
-
-                // add filled pattern to result so far
-                result = result + filled_pattern;
-                
-                // move index along to just after the pattern
-                index = pos_end + PATTERN_END.length();
-            }
-        return result;
-    }
-
-    // given a pattern and a msg, return the appropriate String
-    // e.g. "ts|yyyy" -> "2016"
-    // or "module_id" -> "zone"
-    private String fill_pattern(String pattern, JsonObject msg)
-    {
-        final String PATTERN_FUN = "|";
-
-        String field_name;
-
-        // see if the pattern includes a function seperator, like "ts|yyyy"
-        int fun_pos = pattern.indexOf(PATTERN_FUN);
-        if (fun_pos < 0)
-            {
-                // simple case, no function separator, so just return msg field value
-                return msg.getString(pattern);
-            }
-        else
-            {
-                field_name = pattern.substring(0, fun_pos);
-            }
-
-        // ok, we have a function to apply, so test each case
-
-        if (pattern.endsWith(PATTERN_FUN+"int"))
-            {
-                Long field_value =  msg.getLong(field_name, 0L);
-                return field_value.toString();
-            }
-        
-        if (pattern.endsWith(PATTERN_FUN+"yyyy"))
-            {
-                Long field_value =  msg.getLong(field_name, 0L);
-
-                Instant instant = Instant.ofEpochSecond(field_value);
-                
-                LocalDateTime local_time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
-
-                String year = local_time.format(DateTimeFormatter.ofPattern("yyyy"));
-                
-                return year;
-            }
-        
-        if (pattern.endsWith(PATTERN_FUN+"MM"))
-            {
-                Long field_value =  msg.getLong(field_name, 0L);
-                Instant instant = Instant.ofEpochSecond(field_value);
-                
-                LocalDateTime local_time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
-
-                String month = local_time.format(DateTimeFormatter.ofPattern("MM"));
-                
-                return month;
-            }
-        
-        if (pattern.endsWith(PATTERN_FUN+"dd"))
-            {
-                Long field_value =  msg.getLong(field_name, 0L);
-                Instant instant = Instant.ofEpochSecond(field_value);
-                
-                LocalDateTime local_time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
-
-                String day = local_time.format(DateTimeFormatter.ofPattern("dd"));
-                
-                return day;
-            }
+        write_fileBlocking(msg, filepath, filename, filer_config.store_mode);
 
-        return pattern;
-    }
+    } // end store_msg()
 
     // *****************************************************************
     // write_file()
     // either overwrite (ASYNC) or append(SYNC) according to config_mode
-    private void write_file(String msg, String file_path, String config_mode)
+    private void write_file(JsonObject msg, String filepath, String filename, String config_mode)
     {
         if (config_mode.equals(Constants.FILE_WRITE))
             {
-                overwrite_file(msg, file_path);
+                overwrite_file(msg.toString(), filepath+"/"+filename);
+            }
+        else if (config_mode.equals(Constants.FILE_COLUMNAR))
+            {
+                vertx.executeBlocking(fut -> {
+                        append_transit(msg, filepath, filename);
+                        fut.complete();
+                    }, res -> { }
+                    );
             }
         else // append - this is a SYNCHRONOUS operation...
             {
+                String msg_str = msg.toString();
                 vertx.executeBlocking(fut -> {
-                        append_file(msg, file_path);
+                        append_file(msg_str, filepath, filename);
                         fut.complete();
                     }, res -> { }
                     );
@@ -292,15 +189,19 @@ public class FilerUtils {
     // *****************************************************************
     // write_fileBlocking()
     // either overwrite or append in SYNCHRONOUS mode
-    private void write_fileBlocking(String msg, String file_path, String config_mode)
+    private void write_fileBlocking(JsonObject msg, String filepath, String filename, String config_mode)
     {
         if (config_mode.equals(Constants.FILE_WRITE))
             {
-                overwrite_fileBlocking(msg, file_path);
+                overwrite_fileBlocking(msg.toString(), filepath+"/"+filename);
+            }
+        else if (config_mode.equals(Constants.FILE_COLUMNAR))
+            {
+                append_transit(msg, filepath, filename);
             }
         else // append - this is a SYNCHRONOUS operation...
             {
-                append_file(msg, file_path); // is always SYNCHRONOUS anyway
+                append_file(msg.toString(), filepath, filename); // is always SYNCHRONOUS anyway
             }
     }        
         
@@ -340,29 +241,31 @@ public class FilerUtils {
 
     // *********************************************************************
     // append_file()
-    // BLOCKING code that will open and append 'msg'+'\n' to file 'filepath'
-    public void append_file(String msg, String file_path)
+    // BLOCKING code that will append 'msg'+'\n' to file 'filepath/filename'
+    // via the writer pool, i.e. the file is kept open and the write may be grouped with later messages
+    public void append_file(String msg, String filepath, String filename)
     {
-        //System.out.println("MsgFiler."+filer_config.module_id+": append_file "+ file_path);
-
-        BufferedWriter bw = null;
+        //System.out.println("MsgFiler."+filer_config.module_id+": append_file "+ filepath+"/"+filename);
 
         try {
-            // note FileWriter second arg 'true' => APPEND MODE
-            bw = new BufferedWriter(new FileWriter(file_path, true));
-            bw.write(msg);
-            bw.newLine();
-            bw.flush();
+            writer_pool.append(filepath, filename, msg);
         } catch (IOException ioe) {
-            Log.log_err("MsgFiler."+filer_config.module_id+": append_file failed for "+file_path);
-        } finally {                       // always close the file
-            if (bw != null) try {
-                    bw.close();
-                } catch (IOException ioe2) {
-                    // just ignore it
-                }
-        } // end try/catch/finally
+            Log.log_err("MsgFiler."+filer_config.module_id+": append_file failed for "+filepath+"/"+filename);
+        }
 
     } // end append_file
 
+    // *********************************************************************
+    // append_transit()
+    // BLOCKING code that will append zone transit 'msg' to TransitColumns file 'filepath/filename'
+    // via the writer pool
+    public void append_transit(JsonObject msg, String filepath, String filename)
+    {
+        try {
+            writer_pool.append_transit(filepath, filename, msg);
+        } catch (IOException ioe) {
+            Log.log_err("MsgFiler."+filer_config.module_id+": append_transit failed for "+filepath+"/"+filename);
+        }
+    } // end append_transit
+
 } // end class FilerUtils
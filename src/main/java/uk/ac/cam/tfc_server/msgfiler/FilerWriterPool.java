@@ -0,0 +1,585 @@
+package uk.ac.cam.tfc_server.msgfiler;
+
+// FilerWriterPool.java
+//
+// FilerWriterPool holds the open append files of the FilerUtils of a MsgFiler or BatcherWorker,
+// so a message appended to a file is not an open / write / flush / close of that file.
+//
+// The files are kept open in a pool keyed by the resolved file path, and the messages appended to
+// each file are buffered in memory and written as a 'group commit':
+//   flush_count : the buffered messages of a file are written when there are this many, (1 => every message)
+//   flush_ms    : or when the oldest buffered message is this old (checked on each append and on tick())
+//   fsync_ms    : the written files are forced to disk (fsync) at this interval, (0 => only on close)
+//   max_open    : at most this many files are kept open, the least recently used being closed
+//   idle_ms     : a file not appended to for this long is closed (on tick())
+// Only complete lines are written to the file, so a reader never sees a partial message.
+//
+// Files stored with "store_mode": "columnar" (see append_transit()) are written the same way, but as
+// compressed TransitColumns blocks rather than lines of JSON. So that a block is not just the few
+// messages of one group, the last block of the file is kept open: each group is only appended to a
+// side log <file>.tail as lines of JSON (which TransitColumns.Reader also reads). The open block is
+// encoded into the file when it holds TransitColumns.BLOCK_SIZE messages, when it is sealed and the
+// side log reset, and when the pool closes the file (e.g. idle or least recently used), when the side
+// log is kept. The side log starts with the file position of the open block ("#<position>"), so the
+// file reopened by the pool (after a close or a crash) rebuilds the open block from the side log and
+// carries on filling it, re-encoding it only if the encoded copy does not match the side log.
+//
+// The pool also remembers the directories known to exist, so the directory of a message need
+// only be checked / created once, rather than for every message.
+//
+// All the methods are BLOCKING, so should be called from a worker thread (e.g. vertx.executeBlocking),
+// with tick() called periodically and close() when the verticle stops, so buffered messages are written.
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.TransitColumns;
+
+public class FilerWriterPool {
+
+    public static final int DEFAULT_FLUSH_COUNT = 100;
+    public static final long DEFAULT_FLUSH_MS = 1000;
+    public static final long DEFAULT_FSYNC_MS = 10000;
+    public static final int DEFAULT_MAX_OPEN = 64;
+    public static final long DEFAULT_IDLE_MS = 60000;
+
+    private final int flush_count;
+    private final long flush_ms;
+    private final long fsync_ms;
+    private final int max_open;
+    private final long idle_ms;
+
+    // open files, in least recently used order
+    private LinkedHashMap<String, AppendFile> files;
+
+    // directories known to exist
+    private Set<String> known_dirs = ConcurrentHashMap.newKeySet();
+
+    private long last_fsync;
+
+    // counters, for stats()
+    private long msg_count = 0;
+    private long write_count = 0;
+    private long fsync_count = 0;
+    private long open_count = 0;
+
+    // a pool that writes every message as it is appended (but keeps the files open)
+    public FilerWriterPool()
+    {
+        this(1, 0, 0, DEFAULT_MAX_OPEN, DEFAULT_IDLE_MS);
+    }
+
+    public FilerWriterPool(int flush_count, long flush_ms, long fsync_ms, int max_open, long idle_ms)
+    {
+        this.flush_count = Math.max(1, flush_count);
+        this.flush_ms = flush_ms;
+        this.fsync_ms = fsync_ms;
+        this.max_open = Math.max(1, max_open);
+        this.idle_ms = idle_ms;
+
+        last_fsync = System.currentTimeMillis();
+
+        files = new LinkedHashMap<String, AppendFile>(16, 0.75f, true);
+    }
+
+    // **********************************************************
+    // Directory cache
+    // **********************************************************
+
+    // true if directory dir_path is known to exist
+    public boolean known_dir(String dir_path)
+    {
+        return known_dirs.contains(dir_path);
+    }
+
+    // record that directory dir_path exists (e.g. after an async fs.exists or fs.mkdirs)
+    public void add_dir(String dir_path)
+    {
+        known_dirs.add(dir_path);
+    }
+
+    // BLOCKING: create directory dir_path if not already known to exist
+    public void ensure_dir(String dir_path) throws IOException
+    {
+        if (!known_dirs.contains(dir_path))
+            {
+                Path dir = Paths.get(dir_path);
+                if (!Files.isDirectory(dir))
+                    {
+                        System.out.println("FilerWriterPool: creating directory "+dir_path);
+                        Files.createDirectories(dir);
+                    }
+                known_dirs.add(dir_path);
+            }
+    }
+
+    // **********************************************************
+    // append()
+    // BLOCKING: append msg+'\n' to file dir_path/filename
+    // **********************************************************
+    public synchronized void append(String dir_path, String filename, String msg) throws IOException
+    {
+        AppendFile file = get_file(dir_path, filename, false);
+
+        long now = System.currentTimeMillis();
+
+        file.add(msg, now);
+
+        appended(file, now);
+    }
+
+    // **********************************************************
+    // append_transit()
+    // BLOCKING: append zone transit msg to TransitColumns file dir_path/filename
+    // **********************************************************
+    public synchronized void append_transit(String dir_path, String filename, JsonObject msg) throws IOException
+    {
+        AppendFile file = get_file(dir_path, filename, true);
+
+        long now = System.currentTimeMillis();
+
+        file.add_transit(msg, now);
+
+        appended(file, now);
+    }
+
+    private AppendFile get_file(String dir_path, String filename, boolean columnar) throws IOException
+    {
+        String file_path = dir_path+"/"+filename;
+
+        AppendFile file = files.get(file_path);
+        if (file == null)
+            {
+                file = open(dir_path, file_path, columnar);
+            }
+        return file;
+    }
+
+    // write the file if flush_count or flush_ms has been reached, and fsync if due
+    private void appended(AppendFile file, long now) throws IOException
+    {
+        msg_count++;
+
+        if (file.pending_count >= flush_count || now - file.pending_since >= flush_ms)
+            {
+                file.write();
+            }
+
+        if (fsync_ms > 0 && now - last_fsync >= fsync_ms)
+            {
+                fsync(now);
+            }
+    }
+
+    private AppendFile open(String dir_path, String file_path, boolean columnar) throws IOException
+    {
+        ensure_dir(dir_path);
+
+        // close the least recently used file if the pool is full
+        if (files.size() >= max_open)
+            {
+                Iterator<AppendFile> it = files.values().iterator();
+                AppendFile eldest = it.next();
+                it.remove();
+                close_file(eldest);
+            }
+
+        AppendFile file;
+        try
+            {
+                file = new AppendFile(file_path, columnar);
+            }
+        catch (IOException e)
+            {
+                // the directory may have been removed since it was cached
+                known_dirs.remove(dir_path);
+                ensure_dir(dir_path);
+                file = new AppendFile(file_path, columnar);
+            }
+        files.put(file_path, file);
+        open_count++;
+        return file;
+    }
+
+    // **********************************************************
+    // tick()
+    // BLOCKING: called periodically to write buffered messages older than flush_ms,
+    // fsync if due, and close the files idle for longer than idle_ms
+    // **********************************************************
+    public synchronized void tick()
+    {
+        long now = System.currentTimeMillis();
+
+        ArrayList<AppendFile> idle = new ArrayList<AppendFile>();
+
+        for (Iterator<AppendFile> it = files.values().iterator(); it.hasNext(); )
+            {
+                AppendFile file = it.next();
+                if (idle_ms > 0 && now - file.last_append >= idle_ms)
+                    {
+                        it.remove();
+                        idle.add(file);
+                    }
+                else if (file.pending_count > 0 && now - file.pending_since >= flush_ms)
+                    {
+                        write_file(file);
+                    }
+            }
+
+        for (AppendFile file : idle)
+            {
+                close_file(file);
+            }
+
+        if (fsync_ms > 0 && now - last_fsync >= fsync_ms)
+            {
+                fsync(now);
+            }
+    }
+
+    // BLOCKING: write all the buffered messages (without fsync)
+    public synchronized void flush()
+    {
+        for (AppendFile file : files.values())
+            {
+                write_file(file);
+            }
+    }
+
+    // BLOCKING: write all the buffered messages, fsync and close all the files
+    public synchronized void close()
+    {
+        for (AppendFile file : files.values())
+            {
+                close_file(file);
+            }
+        files.clear();
+    }
+
+    // counters of the pool, e.g. for logging at the end of a batch run
+    public synchronized String stats()
+    {
+        return "messages="+msg_count+" writes="+write_count+" fsyncs="+fsync_count+
+               " opens="+open_count+" open="+files.size()+" dirs="+known_dirs.size();
+    }
+
+    private void fsync(long now)
+    {
+        last_fsync = now;
+        for (AppendFile file : files.values())
+            {
+                if (file.unsynced)
+                    {
+                        write_file(file);
+                        try
+                            {
+                                file.force();
+                                fsync_count++;
+                            }
+                        catch (IOException e)
+                            {
+                                Log.log_err("FilerWriterPool: fsync failed for "+file.file_path);
+                            }
+                    }
+            }
+    }
+
+    private void write_file(AppendFile file)
+    {
+        try
+            {
+                file.write();
+            }
+        catch (IOException e)
+            {
+                Log.log_err("FilerWriterPool: write failed for "+file.file_path);
+            }
+    }
+
+    private void close_file(AppendFile file)
+    {
+        try
+            {
+                file.write();
+                // encode the open block (keeping its side log), so the file holds all its messages
+                file.checkpoint();
+                if (file.unsynced)
+                    {
+                        file.force();
+                        fsync_count++;
+                    }
+            }
+        catch (IOException e)
+            {
+                Log.log_err("FilerWriterPool: write failed for "+file.file_path);
+            }
+        finally
+            {
+                file.close();
+            }
+    }
+
+    //*************************************************************************************
+    // Class AppendFile
+    //*************************************************************************************
+    //
+    // An open file in the pool, with the messages buffered for it
+    //
+    class AppendFile {
+
+        String file_path;
+
+        FileChannel channel;
+
+        StringBuilder pending = new StringBuilder(); // buffered messages, each terminated by '\n'
+        TransitColumns.Block block;                  // the messages of the open block of a columnar file
+
+        Path tail_path;            // side log of the open block of a columnar file
+        FileChannel tail;
+        long block_start;          // position of the open block in the columnar file
+        int block_written = 0;     // messages of the open block encoded in the file
+        int pending_count = 0;
+        long pending_since;        // time of the oldest buffered message
+        long last_append;
+        boolean unsynced = false;  // written since the last fsync
+
+        AppendFile(String file_path, boolean columnar) throws IOException
+        {
+            this.file_path = file_path;
+            if (columnar)
+                {
+                    channel = FileChannel.open(Paths.get(file_path),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+                    block = new TransitColumns.Block();
+                    // drop any partial block at the end (e.g. a crash part-way through a write)
+                    long valid_length = TransitColumns.valid_length(channel);
+                    if (valid_length < channel.size())
+                        {
+                            Log.log_err("FilerWriterPool: truncating partial block in "+file_path);
+                            channel.truncate(valid_length);
+                        }
+                    block_start = valid_length;
+                    tail_path = Paths.get(file_path+TransitColumns.TAIL_SUFFIX);
+                    tail = FileChannel.open(tail_path,
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE);
+                    long tail_length = recover_tail(valid_length);
+                    if (tail_length < 0)
+                        {
+                            // no (usable) side log, so start one for a new open block at the end of the file
+                            tail.truncate(0);
+                            write_fully(tail, "#"+block_start+"\n");
+                        }
+                    else
+                        {
+                            // drop any partial line at the end, and append after the recovered messages
+                            tail.truncate(tail_length);
+                            tail.position(tail_length);
+                            if (TransitColumns.final_block_count(channel, block_start, channel.size()) == block.count())
+                                {
+                                    block_written = block.count();
+                                }
+                            else
+                                {
+                                    // the encoded copy does not hold all the messages (e.g. after a crash)
+                                    checkpoint();
+                                    channel.force(false);
+                                }
+                            if (block.count() >= TransitColumns.BLOCK_SIZE)
+                                {
+                                    // a crash while the full block was being sealed
+                                    seal();
+                                }
+                        }
+                }
+            else
+                {
+                    channel = FileChannel.open(Paths.get(file_path),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.APPEND);
+                }
+        }
+
+        void add(String msg, long now)
+        {
+            if (pending_count == 0)
+                {
+                    pending_since = now;
+                }
+            pending.append(msg).append('\n');
+            pending_count++;
+            last_append = now;
+        }
+
+        void add_transit(JsonObject msg, long now)
+        {
+            if (pending_count == 0)
+                {
+                    pending_since = now;
+                }
+            block.add(msg);
+            pending.append(msg.encode()).append('\n');
+            pending_count++;
+            last_append = now;
+        }
+
+        // write the buffered messages in a single write (to the side log of a columnar file,
+        // whose open block is encoded into the file only when it is full)
+        void write() throws IOException
+        {
+            if (pending_count == 0)
+                {
+                    return;
+                }
+            write_fully(block == null ? channel : tail, pending.toString());
+            pending.setLength(0);
+            pending_count = 0;
+            if (block != null && block.count() >= TransitColumns.BLOCK_SIZE)
+                {
+                    seal();
+                }
+            unsynced = true;
+            write_count++;
+        }
+
+        // encode the open block of a columnar file at block_start, if it has messages not yet encoded
+        void checkpoint() throws IOException
+        {
+            if (block == null || block.count() == block_written)
+                {
+                    return;
+                }
+            ByteBuffer buf = block.encode();
+            long position = block_start;
+            while (buf.hasRemaining())
+                {
+                    position += channel.write(buf, position);
+                }
+            channel.truncate(position);
+            block_written = block.count();
+        }
+
+        // encode the full open block and start a new one after it, forcing the file to disk before the
+        // side log of the sealed block is reset
+        void seal() throws IOException
+        {
+            checkpoint();
+            channel.force(false);
+            block_start = channel.size();
+            block.clear();
+            block_written = 0;
+            tail.truncate(0);
+            tail.position(0);
+            write_fully(tail, "#"+block_start+"\n");
+        }
+
+        // BLOCKING: add to the open block the messages of the side log left by an earlier writer of the file
+        // (closed, or after a crash), if it is the side log of the block at the end of the file (of valid_length),
+        // returning the length of its complete lines, or -1 if there is no side log of the open block
+        long recover_tail(long valid_length) throws IOException
+        {
+            if (tail.size() == 0)
+                {
+                    return -1;
+                }
+            byte[] log = Files.readAllBytes(tail_path);
+            String text = new String(log, StandardCharsets.UTF_8);
+            int header_end = text.indexOf('\n');
+            long start = -1;
+            if (text.startsWith("#") && header_end > 0)
+                {
+                    try
+                        {
+                            start = Long.parseLong(text.substring(1, header_end));
+                        }
+                    catch (NumberFormatException e)
+                        {
+                            // treated as a bad side log, below
+                        }
+                }
+            if (start < 0 || start > valid_length)
+                {
+                    Log.log_err("FilerWriterPool: discarding side log "+tail_path+" not matching "+file_path);
+                    return -1;
+                }
+            // only complete lines were written, but a crash can leave the last one partial
+            int lines_end = text.lastIndexOf('\n') + 1;
+            String lines = text.substring(header_end + 1, lines_end);
+            int length = log.length;
+            while (log[length - 1] != '\n')
+                {
+                    length--;
+                }
+            if (lines.length() > 0)
+                {
+                    for (String line : lines.split("\n"))
+                        {
+                            block.add(new JsonObject(line));
+                        }
+                }
+            block_start = start;
+            if (valid_length > start && TransitColumns.final_block_count(channel, start, valid_length) < 0)
+                {
+                    // not the encoded copy of the open block, which is rewritten from the side log
+                    channel.truncate(start);
+                }
+            return length;
+        }
+
+        void force() throws IOException
+        {
+            if (tail != null)
+                {
+                    tail.force(false);
+                }
+            channel.force(false);
+            unsynced = false;
+        }
+
+        void close()
+        {
+            try
+                {
+                    if (tail != null)
+                        {
+                            tail.close();
+                        }
+                    channel.close();
+                }
+            catch (IOException e)
+                {
+                    // just ignore it
+                }
+        }
+    } // end class AppendFile
+
+    private static void write_fully(FileChannel channel, String s) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining())
+            {
+                channel.write(buf);
+            }
+    }
+
+} // end class FilerWriterPool
@@ -29,6 +29,10 @@ package uk.ac.cam.tfc_server.msgfiler;
 //      e.g. "{{module_id}}.txt"
 //   "store_mode" : "write" | "append", defining whether the given file should be written or appended
 //
+// The appended files of all the filers are kept open in a FilerWriterPool, configured by
+//   "msgfiler.flush_count", "msgfiler.flush_ms", "msgfiler.fsync_ms", "msgfiler.max_open", "msgfiler.idle_ms"
+// (see FilerWriterPool)
+//
 // Publishes periodic status UP messages to address given in config as "eb.system_status"
 //
 // *************************************************************************************************
@@ -40,6 +44,7 @@ import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import uk.ac.cam.tfc_server.core.AbstractTFCVerticle;
+import uk.ac.cam.tfc_server.gtfs.PositionBatchCodec;
 import uk.ac.cam.tfc_server.util.Log;
 
 import java.util.ArrayList;
@@ -49,12 +54,20 @@ import java.util.ArrayList;
 public class MsgFiler extends AbstractTFCVerticle {
     // from config()
     private ArrayList<FilerConfig> START_FILERS; // config msgfilers.filers parameters
+
+    private int FLUSH_COUNT;  // write appended messages when this many are buffered for a file
+    private long FLUSH_MS;    // or when the oldest is this old
+    private long FSYNC_MS;    // fsync the appended files at this interval
+    private int MAX_OPEN;     // max number of append files kept open
+    private long IDLE_MS;     // close append files idle for this long
     
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 15;
     private final int SYSTEM_STATUS_RED_SECONDS = 25;
 
     private EventBus eb = null;
+
+    private FilerWriterPool writer_pool; // open append files shared by the filers
     
   @Override
   public void start(Future<Void> fut) throws Exception {
@@ -71,6 +84,16 @@ public class MsgFiler extends AbstractTFCVerticle {
 
     eb = vertx.eventBus();
 
+    writer_pool = new FilerWriterPool(FLUSH_COUNT, FLUSH_MS, FSYNC_MS, MAX_OPEN, IDLE_MS);
+
+    // periodically write the buffered messages, fsync, and close idle files
+    vertx.setPeriodic(Math.max(100, Math.min(FLUSH_MS, 1000)), id -> {
+        vertx.executeBlocking(tick_fut -> {
+                writer_pool.tick();
+                tick_fut.complete();
+            }, res -> { });
+    });
+
     // iterate through all the filers to be started
     for (int i=0; i<START_FILERS.size(); i++)
         {
@@ -90,6 +113,16 @@ public class MsgFiler extends AbstractTFCVerticle {
 
   } // end start()
 
+    // write any buffered messages and close the append files
+    @Override
+    public void stop() throws Exception
+    {
+        if (writer_pool != null)
+            {
+                writer_pool.close();
+            }
+    }
+
     // ************************************************************
     // start_filer()
     // start a Filer by registering a consumer to the given address
@@ -107,14 +140,14 @@ public class MsgFiler extends AbstractTFCVerticle {
             }
         System.out.println("MsgFiler."+MODULE_ID+": starting filer "+filer_config.source_address+ filer_filter);
 
-        FilerUtils filer_utils = new FilerUtils(vertx, filer_config);
+        FilerUtils filer_utils = new FilerUtils(vertx, filer_config, writer_pool);
         
         // register to filer_config.source_address,
         // test messages with filer_config.source_filter
         // and call store_msg if current message passes filter
         eb.consumer(filer_config.source_address, message -> {
             //System.out.println("MsgFiler."+MODULE_ID+": got message from " + filer_config.source_address);
-            JsonObject msg = new JsonObject(message.body().toString());
+            JsonObject msg = PositionBatchCodec.json_body(message.body());
             
             //System.out.println(msg.toString());
 
@@ -136,6 +169,12 @@ public class MsgFiler extends AbstractTFCVerticle {
         boolean results = super.get_config();
         if (!results) return false;
 
+        FLUSH_COUNT = config().getInteger(MODULE_NAME+".flush_count", FilerWriterPool.DEFAULT_FLUSH_COUNT);
+        FLUSH_MS = config().getLong(MODULE_NAME+".flush_ms", FilerWriterPool.DEFAULT_FLUSH_MS);
+        FSYNC_MS = config().getLong(MODULE_NAME+".fsync_ms", FilerWriterPool.DEFAULT_FSYNC_MS);
+        MAX_OPEN = config().getInteger(MODULE_NAME+".max_open", FilerWriterPool.DEFAULT_MAX_OPEN);
+        IDLE_MS = config().getLong(MODULE_NAME+".idle_ms", FilerWriterPool.DEFAULT_IDLE_MS);
+
         // iterate through the msgfiler.filers config values
         START_FILERS = new ArrayList<FilerConfig>();
         JsonArray config_filer_list = config().getJsonArray(MODULE_NAME+".filers");
@@ -0,0 +1,193 @@
+package uk.ac.cam.tfc_server.positiondb;
+
+// PositionDB.java
+//
+// Forms part of the 'tfc_server' next-generation Realtime Intelligent Traffic Analysis system
+//
+// Subscribes to the feed of a FeedHandler or FeedPlayer (config "positiondb.feedhandler.address")
+// and stores the position records in an embedded log-structured store (see PositionLog) in the
+// directory "positiondb.data_path", as a Cassandra-free alternative to FeedDB for smaller deployments and tests.
+//
+// The stored positions are queried via http (if "positiondb.http.port" is set) with the same API as FeedDB, e.g.
+//   /api/positiondb/vehicle/13028?start_ts=1465628400&end_ts=1465714800
+//   /api/positiondb/route/CAM-U?start_ts=1465628400&end_ts=1465632000
+//
+// Optional config:
+//   positiondb.flush_records     records held in memory before being written as a segment, default 250000
+//   positiondb.compact_segments  segments written before they are compacted into day segments, default 4
+//   positiondb.retention_days    days of positions kept (before the latest), default 0 i.e. forever
+//
+// Publishes periodic status UP messages to address given in config as "eb.system_status",
+// including the PositionLog counters as "positiondb".
+//
+
+import io.vertx.core.Future;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.core.AbstractTFCVerticle;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+import uk.ac.cam.tfc_server.gtfs.PositionBatchCodec;
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.PositionAPI;
+
+public class PositionDB extends AbstractTFCVerticle {
+
+    private String FEEDHANDLER_ADDRESS; // config MODULE_NAME.feedhandler.address
+    private String DATA_PATH;           // config MODULE_NAME.data_path
+    private Integer HTTP_PORT;          // config MODULE_NAME.http.port, port of the query API (if any)
+
+    private int FLUSH_RECORDS;          // config MODULE_NAME.flush_records
+    private int COMPACT_SEGMENTS;       // config MODULE_NAME.compact_segments
+    private int RETENTION_DAYS;         // config MODULE_NAME.retention_days
+
+    private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
+    private final int SYSTEM_STATUS_AMBER_SECONDS = 15;
+    private final int SYSTEM_STATUS_RED_SECONDS = 25;
+
+    private EventBus eb = null;
+
+    private PositionLog store;
+
+    @Override
+    public void start(Future<Void> fut) throws Exception
+    {
+        // load PositionDB initialization values from config()
+        if (!get_config())
+            {
+                Log.log_err("PositionDB: "+ MODULE_ID + " failed to load initial config()");
+                vertx.close();
+                return;
+            }
+
+        store = new PositionLog(vertx, DATA_PATH, FLUSH_RECORDS, COMPACT_SEGMENTS, RETENTION_DAYS);
+
+        // open the store (replaying any records not yet written to a segment) before subscribing to the feed
+        vertx.<Void>executeBlocking(open_fut -> {
+                try {
+                    store.open();
+                    open_fut.complete();
+                } catch (Exception e) {
+                    open_fut.fail(e);
+                }
+            }, res -> {
+                if (res.failed())
+                {
+                    Log.log_err("PositionDB."+MODULE_ID+": failed to open "+DATA_PATH+" "+res.cause());
+                    fut.fail(res.cause());
+                    return;
+                }
+                start_feed();
+                fut.complete();
+            });
+    }
+
+    private void start_feed()
+    {
+        System.out.println("PositionDB: " + MODULE_ID + " started, listening to "+FEEDHANDLER_ADDRESS);
+
+        eb = vertx.eventBus();
+
+        eb.consumer(FEEDHANDLER_ADDRESS, message -> {
+                Object body = message.body();
+
+                // feed may be published as a PositionBatch or as JSON, and is added on a worker thread,
+                // in order of arrival
+                vertx.<Integer>executeBlocking(add_fut -> {
+                        try {
+                            if (body instanceof PositionBatch)
+                            {
+                                add_fut.complete(store.add_batch((PositionBatch) body));
+                            }
+                            else
+                            {
+                                JsonArray entities = PositionBatchCodec.json_body(body).getJsonArray("entities");
+                                add_fut.complete(store.add_entities(entities));
+                            }
+                        } catch (Exception e) {
+                            add_fut.fail(e);
+                        }
+                    }, true, res -> {
+                        if (res.failed())
+                        {
+                            Log.log_err("PositionDB."+MODULE_ID+": failed to store feed "+res.cause());
+                        }
+                    });
+            });
+
+        // serve queries of the stored positions
+        if (HTTP_PORT != null)
+            {
+                Router router = Router.router(vertx);
+                new PositionAPI(router, MODULE_NAME, MODULE_ID, store);
+                vertx.createHttpServer().requestHandler(router::accept).listen(HTTP_PORT);
+            }
+
+        // send periodic "system_status" messages
+        // (the store counters are read on a worker, as the store may be busy with a compaction)
+        vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> {
+                vertx.<JsonObject>executeBlocking(stats_fut -> stats_fut.complete(store.stats()), false, res -> {
+                        eb.publish(EB_SYSTEM_STATUS,
+                                   "{ \"module_name\": \""+MODULE_NAME+"\"," +
+                                   "\"module_id\": \""+MODULE_ID+"\"," +
+                                   "\"status\": \"UP\"," +
+                                   "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
+                                   "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) + "," +
+                                   "\"positiondb\": "+res.result().toString() +
+                                   "}" );
+                    });
+            });
+    }
+
+    // write the records in memory to a segment
+    @Override
+    public void stop(Future<Void> fut) throws Exception
+    {
+        if (store == null)
+            {
+                fut.complete();
+                return;
+            }
+        vertx.<Void>executeBlocking(close_fut -> {
+                try {
+                    store.close();
+                    close_fut.complete();
+                } catch (Exception e) {
+                    close_fut.fail(e);
+                }
+            }, fut.completer());
+    }
+
+    // Load initialization global constants defining this PositionDB from config()
+    protected boolean get_config()
+    {
+        boolean results = super.get_config();
+        if (!results) return false;
+
+        FEEDHANDLER_ADDRESS = config().getString(MODULE_NAME+".feedhandler.address");
+        if (FEEDHANDLER_ADDRESS == null)
+            {
+                Log.log_err("PositionDB."+MODULE_ID+": "+MODULE_NAME+".feedhandler.address config() not set");
+                return false;
+            }
+
+        DATA_PATH = config().getString(MODULE_NAME+".data_path");
+        if (DATA_PATH == null)
+            {
+                Log.log_err("PositionDB."+MODULE_ID+": "+MODULE_NAME+".data_path config() not set");
+                return false;
+            }
+
+        HTTP_PORT = config().getInteger(MODULE_NAME+".http.port");
+
+        FLUSH_RECORDS = config().getInteger(MODULE_NAME+".flush_records", PositionLog.DEFAULT_FLUSH_RECORDS);
+        COMPACT_SEGMENTS = config().getInteger(MODULE_NAME+".compact_segments", PositionLog.DEFAULT_COMPACT_SEGMENTS);
+        RETENTION_DAYS = config().getInteger(MODULE_NAME+".retention_days", 0);
+
+        return true;
+    }
+
+} // end class PositionDB
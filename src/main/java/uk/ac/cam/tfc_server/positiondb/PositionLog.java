@@ -0,0 +1,593 @@
+package uk.ac.cam.tfc_server.positiondb;
+
+// PositionLog.java
+//
+// Part of PositionDB package, an embedded log-structured store of position records (i.e. the "entities" of
+// FeedHandler / FeedPlayer feed messages) in a directory of the local filesystem, queried by vehicle or
+// route and time range as the Cassandra tables of FeedDB are (implementing the same IPositionStore).
+//
+//   write-ahead log - each record added is appended to the current <seq>.wal file (flushed to the OS after
+//                     each feed), and to the in-memory 'memtable' (a Records buffer, indexed by vehicle and route)
+//   segments        - when the memtable holds flush_records records it is written as an immutable level 0
+//                     segment file <seq>.seg (see Segment) sorted by vehicle and timestamp, with its vehicle,
+//                     route and time-range indexes, and once that is on disk the log file is deleted
+//   compaction      - when there are compact_segments level 0 segments, they are merged with the level 1
+//                     segments of the same days into one level 1 segment per day (UTC), dropping duplicate
+//                     records (the same vehicle_id and timestamp, the newest being kept)
+//   retention       - if retention_days > 0, the segments older than retention_days before the latest record
+//                     timestamp are deleted (time is taken from the records, so a replayed day is kept)
+//
+// A query reads the memtable and each segment overlapping its time range, and merges the results into
+// timestamp order (dropping duplicates, as a crash between writing a segment and deleting its inputs
+// may leave the same record in two segments). On open() any log files not yet flushed are replayed.
+//
+// The methods other than the IPositionStore queries are BLOCKING (file i/o) so are called on a worker thread,
+// and are synchronized so the store can be used by concurrent workers.
+//
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+import uk.ac.cam.tfc_server.util.IPositionStore;
+import uk.ac.cam.tfc_server.util.Log;
+
+public class PositionLog implements IPositionStore {
+
+    public static final int DEFAULT_FLUSH_RECORDS = 250000;
+    public static final int DEFAULT_COMPACT_SEGMENTS = 4;
+
+    static final long DAY_SECONDS = 86400;
+
+    static final String WAL_SUFFIX = ".wal";
+
+    private final Vertx vertx;
+    private final Path dir;
+    private final int flush_records;
+    private final int compact_segments;
+    private final int retention_days;
+
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    // the memtable, i.e. the records not yet in a segment, with the record numbers of each vehicle and route
+    private Records memtable;
+    private HashMap<Integer, IntList> memtable_vehicles;
+    private HashMap<Integer, IntList> memtable_routes;
+    private long memtable_seq; // the sequence number of the memtable's log (and segment when flushed)
+
+    private DataOutputStream wal_out;
+
+    private long next_seq = 1;
+    private long latest_ts = 0; // latest timestamp of any record
+
+    // counters, for stats()
+    private long record_count = 0;
+    private long skipped_count = 0;
+    private long flush_count = 0;
+    private long compaction_count = 0;
+    private long expired_count = 0;
+
+    // a record found by a query, from the segment (or memtable) seq
+    static class Hit {
+        final long ts;
+        final String vehicle_id;
+        final long seq;
+        final JsonObject json;
+
+        Hit(long ts, String vehicle_id, long seq, JsonObject json)
+        {
+            this.ts = ts;
+            this.vehicle_id = vehicle_id;
+            this.seq = seq;
+            this.json = json;
+        }
+    }
+
+    public PositionLog(Vertx vertx, String path, int flush_records, int compact_segments, int retention_days)
+    {
+        this.vertx = vertx;
+        this.dir = Paths.get(path);
+        this.flush_records = Math.max(1, flush_records);
+        this.compact_segments = Math.max(2, compact_segments);
+        this.retention_days = retention_days;
+    }
+
+    // BLOCKING: open the store, loading the segments and replaying (and flushing) any log files
+    public synchronized void open() throws IOException
+    {
+        Files.createDirectories(dir);
+
+        ArrayList<Path> wal_paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+            {
+                for (Path file : files)
+                    {
+                        String name = file.getFileName().toString();
+                        if (name.endsWith(".tmp"))
+                            {
+                                Files.delete(file); // incomplete segment
+                            }
+                        else if (name.endsWith(Segment.SUFFIX))
+                            {
+                                Segment segment = Segment.open(file);
+                                segments.add(segment);
+                                next_seq = Math.max(next_seq, segment.seq + 1);
+                                latest_ts = Math.max(latest_ts, segment.max_ts);
+                            }
+                        else if (name.endsWith(WAL_SUFFIX))
+                            {
+                                wal_paths.add(file);
+                                next_seq = Math.max(next_seq, file_seq(file) + 1);
+                            }
+                    }
+            }
+        segments.sort(Comparator.comparingLong(s -> s.seq));
+        wal_paths.sort(Comparator.comparingLong(PositionLog::file_seq));
+
+        new_memtable();
+
+        // replay the logs of records not flushed to a segment, into a new log and segment
+        for (Path wal_path : wal_paths)
+            {
+                int count = replay(wal_path);
+                if (count > 0)
+                    {
+                        Log.log_err("PositionLog: replayed "+count+" records from "+wal_path);
+                    }
+            }
+        flush();
+        for (Path wal_path : wal_paths)
+            {
+                Files.deleteIfExists(wal_path);
+            }
+
+        maintain();
+    }
+
+    // BLOCKING: flush the memtable to a segment and close the log
+    public synchronized void close() throws IOException
+    {
+        flush();
+        wal_out.close();
+        Files.deleteIfExists(wal_path(memtable_seq));
+    }
+
+    private static long file_seq(Path file)
+    {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    private Path wal_path(long seq)
+    {
+        return dir.resolve(seq+WAL_SUFFIX);
+    }
+
+    // start an empty memtable, with its log file
+    private void new_memtable() throws IOException
+    {
+        memtable = new Records(Math.min(flush_records, 65536));
+        memtable_vehicles = new HashMap<Integer, IntList>();
+        memtable_routes = new HashMap<Integer, IntList>();
+        memtable_seq = next_seq++;
+        wal_out = new DataOutputStream(new BufferedOutputStream(
+                      Files.newOutputStream(wal_path(memtable_seq), StandardOpenOption.CREATE, StandardOpenOption.APPEND), 65536));
+    }
+
+    // ******************************************************************************
+    // Adding records
+
+    // BLOCKING: add the position records of a feed message, returning the number added
+    // (records with no vehicle_id or position are skipped)
+    public synchronized int add_batch(PositionBatch batch) throws IOException
+    {
+        int count = 0;
+        for (int i=0; i<batch.size; i++)
+            {
+                if (batch.vehicle_id[i] == null || !batch.has_position[i])
+                    {
+                        skipped_count++;
+                        continue;
+                    }
+                add(batch.position_timestamp[i], batch.vehicle_id[i], batch.label[i], batch.route_id[i], batch.trip_id[i],
+                    batch.latitude[i], batch.longitude[i], batch.has_bearing[i] ? batch.bearing[i] : Float.NaN,
+                    batch.has_current_stop_sequence[i] ? batch.current_stop_sequence[i] : Records.NO_VALUE,
+                    batch.stop_id[i], true);
+                count++;
+            }
+        commit();
+        return count;
+    }
+
+    // BLOCKING: add the position records of the "entities" of a feed message, returning the number added
+    public synchronized int add_entities(JsonArray entities) throws IOException
+    {
+        int count = 0;
+        for (int i=0; i<entities.size(); i++)
+            {
+                JsonObject e = entities.getJsonObject(i);
+                Long ts = e.getLong("timestamp");
+                Float lat = e.getFloat("latitude");
+                Float lng = e.getFloat("longitude");
+                if (e.getString("vehicle_id") == null || ts == null || lat == null || lng == null)
+                    {
+                        skipped_count++;
+                        continue;
+                    }
+                add(ts, e.getString("vehicle_id"), e.getString("label"), e.getString("route_id"), e.getString("trip_id"),
+                    lat, lng, e.getFloat("bearing", Float.NaN), e.getInteger("current_stop_sequence", Records.NO_VALUE),
+                    e.getString("stop_id"), true);
+                count++;
+            }
+        commit();
+        return count;
+    }
+
+    private void add(long ts, String vehicle_id, String label, String route_id, String trip_id,
+                     float lat, float lng, float bearing, int stop_sequence, String stop_id, boolean log) throws IOException
+    {
+        if (log)
+            {
+                wal_out.writeLong(ts);
+                wal_out.writeFloat(lat);
+                wal_out.writeFloat(lng);
+                wal_out.writeFloat(bearing);
+                wal_out.writeInt(stop_sequence);
+                wal_out.writeByte((label == null ? 0 : 1) | (route_id == null ? 0 : 2) |
+                                  (trip_id == null ? 0 : 4) | (stop_id == null ? 0 : 8));
+                wal_out.writeUTF(vehicle_id);
+                if (label != null) wal_out.writeUTF(label);
+                if (route_id != null) wal_out.writeUTF(route_id);
+                if (trip_id != null) wal_out.writeUTF(trip_id);
+                if (stop_id != null) wal_out.writeUTF(stop_id);
+            }
+
+        int i = memtable.add(ts, vehicle_id, label, route_id, trip_id, lat, lng, bearing, stop_sequence, stop_id);
+        index(memtable_vehicles, memtable.vehicle_id[i], i);
+        if (memtable.route_id[i] >= 0)
+            {
+                index(memtable_routes, memtable.route_id[i], i);
+            }
+
+        latest_ts = Math.max(latest_ts, ts);
+        record_count++;
+    }
+
+    private static void index(HashMap<Integer, IntList> index, int key, int i)
+    {
+        IntList list = index.get(key);
+        if (list == null)
+            {
+                list = new IntList();
+                index.put(key, list);
+            }
+        list.add(i);
+    }
+
+    // end of a feed: flush the log to the OS, and the memtable to a segment if it is full
+    private void commit() throws IOException
+    {
+        wal_out.flush();
+        if (memtable.size >= flush_records)
+            {
+                flush();
+                maintain();
+            }
+    }
+
+    // add the records of the log file at path to the memtable (and its log),
+    // ignoring a partial record at the end (i.e. from a crash)
+    private int replay(Path path) throws IOException
+    {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 65536)))
+            {
+                while (true)
+                    {
+                        long ts = in.readLong();
+                        float lat = in.readFloat();
+                        float lng = in.readFloat();
+                        float bearing = in.readFloat();
+                        int stop_sequence = in.readInt();
+                        int flags = in.readByte();
+                        String vehicle_id = in.readUTF();
+                        String label = (flags & 1) != 0 ? in.readUTF() : null;
+                        String route_id = (flags & 2) != 0 ? in.readUTF() : null;
+                        String trip_id = (flags & 4) != 0 ? in.readUTF() : null;
+                        String stop_id = (flags & 8) != 0 ? in.readUTF() : null;
+                        add(ts, vehicle_id, label, route_id, trip_id, lat, lng, bearing, stop_sequence, stop_id, false);
+                        count++;
+                    }
+            }
+        catch (EOFException e)
+            {
+                // end of log
+            }
+        return count;
+    }
+
+    // ******************************************************************************
+    // Flush, compaction and retention
+
+    // BLOCKING: write the memtable as a level 0 segment, and start a new memtable and log
+    public synchronized void flush() throws IOException
+    {
+        if (memtable.size == 0)
+            {
+                return;
+            }
+
+        int[] all = new int[memtable.size];
+        for (int i=0; i<all.length; i++)
+            {
+                all[i] = i;
+            }
+        segments.add(Segment.write(dir, memtable_seq, 0, memtable, memtable.vehicle_order(all)));
+        flush_count++;
+
+        wal_out.close();
+        Files.deleteIfExists(wal_path(memtable_seq));
+
+        new_memtable();
+    }
+
+    // compact the level 0 segments if there are compact_segments of them, and delete expired segments
+    private void maintain() throws IOException
+    {
+        int level_0 = 0;
+        for (Segment segment : segments)
+            {
+                if (segment.level == 0)
+                    {
+                        level_0++;
+                    }
+            }
+        if (level_0 >= compact_segments)
+            {
+                compact();
+            }
+        expire();
+    }
+
+    // the timestamp before which records are expired, or Long.MIN_VALUE
+    private long retention_cutoff()
+    {
+        return retention_days > 0 ? latest_ts - retention_days * DAY_SECONDS : Long.MIN_VALUE;
+    }
+
+    // BLOCKING: merge the level 0 segments, and the level 1 segments of the same days, into a level 1 segment per day
+    public synchronized void compact() throws IOException
+    {
+        // the level 0 segments, and the days they cover
+        ArrayList<Segment> inputs = new ArrayList<Segment>();
+        TreeSet<Long> days = new TreeSet<Long>();
+        for (Segment segment : segments)
+            {
+                if (segment.level == 0 && segment.size > 0)
+                    {
+                        for (long day = Math.floorDiv(segment.min_ts, DAY_SECONDS); day <= Math.floorDiv(segment.max_ts, DAY_SECONDS); day++)
+                            {
+                                days.add(day);
+                            }
+                    }
+            }
+        // the level 1 segments of those days come first, as they hold older records than the level 0 segments
+        for (Segment segment : segments)
+            {
+                if (segment.level == 1 && days.contains(Math.floorDiv(segment.min_ts, DAY_SECONDS)))
+                    {
+                        inputs.add(segment);
+                    }
+            }
+        for (Segment segment : segments)
+            {
+                if (segment.level == 0)
+                    {
+                        inputs.add(segment);
+                    }
+            }
+        if (inputs.isEmpty())
+            {
+                return;
+            }
+
+        // read the records, in segment order so the newest of duplicate records is last
+        int size = 0;
+        for (Segment segment : inputs)
+            {
+                size += segment.size;
+            }
+        Records merged = new Records(size);
+        long cutoff = retention_cutoff();
+        for (Segment segment : inputs)
+            {
+                segment.read_all(merged, cutoff);
+            }
+
+        // group the record numbers by day
+        TreeMap<Long, IntList> by_day = new TreeMap<Long, IntList>();
+        for (int i=0; i<merged.size; i++)
+            {
+                long day = Math.floorDiv(merged.timestamp[i], DAY_SECONDS);
+                IntList list = by_day.get(day);
+                if (list == null)
+                    {
+                        list = new IntList();
+                        by_day.put(day, list);
+                    }
+                list.add(i);
+            }
+
+        // write the new segments (each forced to disk by Segment.write), then delete the inputs
+        for (IntList day_records : by_day.values())
+            {
+                segments.add(Segment.write(dir, next_seq++, 1, merged, merged.vehicle_order(day_records.to_array())));
+            }
+        for (Segment segment : inputs)
+            {
+                segments.remove(segment);
+                segment.delete();
+            }
+        compaction_count++;
+    }
+
+    // BLOCKING: delete the segments entirely before the retention period
+    public synchronized void expire() throws IOException
+    {
+        long cutoff = retention_cutoff();
+        for (Segment segment : new ArrayList<Segment>(segments))
+            {
+                if (segment.max_ts < cutoff)
+                    {
+                        segments.remove(segment);
+                        segment.delete();
+                        expired_count++;
+                    }
+            }
+    }
+
+    // ******************************************************************************
+    // Queries
+
+    // the IPositionStore queries, run on a worker thread
+
+    public void vehicle_positions(String vehicle_id, long start_ts, long end_ts, Handler<AsyncResult<JsonArray>> handler)
+    {
+        vertx.<JsonArray>executeBlocking(fut -> fut.complete(query_vehicle(vehicle_id, start_ts, end_ts)), false, handler);
+    }
+
+    public void route_positions(String route_id, long start_ts, long end_ts, Handler<AsyncResult<JsonArray>> handler)
+    {
+        vertx.<JsonArray>executeBlocking(fut -> fut.complete(query_route(route_id, start_ts, end_ts)), false, handler);
+    }
+
+    // BLOCKING: the records of vehicle_id with start_ts <= timestamp < end_ts, in timestamp order
+    public synchronized JsonArray query_vehicle(String vehicle_id, long start_ts, long end_ts)
+    {
+        ArrayList<Hit> hits = new ArrayList<Hit>();
+        for (Segment segment : segments)
+            {
+                segment.vehicle_positions(vehicle_id, start_ts, end_ts, hits);
+            }
+        memtable_hits(memtable_vehicles.get(memtable.find_string(vehicle_id)), start_ts, end_ts, hits);
+        return merge(hits);
+    }
+
+    // BLOCKING: the records of route_id with start_ts <= timestamp < end_ts, in timestamp order
+    public synchronized JsonArray query_route(String route_id, long start_ts, long end_ts)
+    {
+        ArrayList<Hit> hits = new ArrayList<Hit>();
+        for (Segment segment : segments)
+            {
+                segment.route_positions(route_id, start_ts, end_ts, hits);
+            }
+        memtable_hits(memtable_routes.get(memtable.find_string(route_id)), start_ts, end_ts, hits);
+        return merge(hits);
+    }
+
+    private void memtable_hits(IntList records, long start_ts, long end_ts, List<Hit> hits)
+    {
+        if (records == null)
+            {
+                return;
+            }
+        for (int k=0; k<records.size; k++)
+            {
+                int i = records.values[k];
+                long ts = memtable.timestamp[i];
+                if (ts >= start_ts && ts < end_ts)
+                    {
+                        hits.add(new Hit(ts, memtable.string(memtable.vehicle_id[i]), Long.MAX_VALUE, memtable.to_json(i)));
+                    }
+            }
+    }
+
+    // the hits in timestamp order, with only the newest of those with the same timestamp and vehicle_id
+    private static JsonArray merge(ArrayList<Hit> hits)
+    {
+        hits.sort(Comparator.<Hit>comparingLong(h -> h.ts)
+                  .thenComparing(h -> h.vehicle_id)
+                  .thenComparingLong(h -> h.seq));
+        JsonArray positions = new JsonArray();
+        for (int k=0; k<hits.size(); k++)
+            {
+                Hit hit = hits.get(k);
+                if (k + 1 < hits.size() && hits.get(k + 1).ts == hit.ts && hits.get(k + 1).vehicle_id.equals(hit.vehicle_id))
+                    {
+                        continue; // a newer copy follows
+                    }
+                positions.add(hit.json);
+            }
+        return positions;
+    }
+
+    // ******************************************************************************
+
+    // the counters of the store, e.g. for the status heartbeat
+    public synchronized JsonObject stats()
+    {
+        long segment_records = 0;
+        long bytes = 0;
+        for (Segment segment : segments)
+            {
+                segment_records += segment.size;
+                bytes += segment.bytes;
+            }
+
+        JsonObject stats = new JsonObject();
+        stats.put("records_added", record_count);
+        stats.put("records_skipped", skipped_count);
+        stats.put("memtable_records", memtable.size);
+        stats.put("segments", segments.size());
+        stats.put("segment_records", segment_records);
+        stats.put("segment_bytes", bytes);
+        stats.put("latest_ts", latest_ts);
+        stats.put("flushes", flush_count);
+        stats.put("compactions", compaction_count);
+        stats.put("expired_segments", expired_count);
+        return stats;
+    }
+
+    // a growable int array
+    static class IntList {
+        int[] values = new int[8];
+        int size = 0;
+
+        void add(int value)
+        {
+            if (size == values.length)
+                {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+            values[size++] = value;
+        }
+
+        int[] to_array()
+        {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+} // end class PositionLog
@@ -0,0 +1,283 @@
+package uk.ac.cam.tfc_server.positiondb;
+
+// Records.java
+//
+// Part of PositionDB package, a growable column-array buffer of position records, used for the records
+// not yet flushed to a Segment (the PositionLog 'memtable') and for the records being merged by a compaction.
+//
+// The strings (vehicle_id etc.) are interned in a dictionary, with each record holding the string ids,
+// and an absent string is id -1, an absent bearing is NaN and an absent current_stop_sequence is NO_VALUE.
+//
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+class Records {
+
+    static final int NO_VALUE = Integer.MIN_VALUE;
+
+    int size = 0;
+
+    long[]  timestamp;
+    float[] latitude;
+    float[] longitude;
+    float[] bearing;
+    int[]   current_stop_sequence;
+    int[]   vehicle_id;
+    int[]   label;
+    int[]   route_id;
+    int[]   trip_id;
+    int[]   stop_id;
+
+    final ArrayList<String> strings = new ArrayList<String>();
+    private final HashMap<String, Integer> string_ids = new HashMap<String, Integer>();
+
+    Records(int capacity)
+    {
+        capacity = Math.max(16, capacity);
+        timestamp = new long[capacity];
+        latitude = new float[capacity];
+        longitude = new float[capacity];
+        bearing = new float[capacity];
+        current_stop_sequence = new int[capacity];
+        vehicle_id = new int[capacity];
+        label = new int[capacity];
+        route_id = new int[capacity];
+        trip_id = new int[capacity];
+        stop_id = new int[capacity];
+    }
+
+    // the id of s in the string dictionary (added if new), or -1 for null
+    int string_id(String s)
+    {
+        if (s == null)
+            {
+                return -1;
+            }
+        Integer id = string_ids.get(s);
+        if (id == null)
+            {
+                id = strings.size();
+                strings.add(s);
+                string_ids.put(s, id);
+            }
+        return id;
+    }
+
+    // the id of s, or -1 if s is null or not in the dictionary
+    int find_string(String s)
+    {
+        Integer id = s == null ? null : string_ids.get(s);
+        return id == null ? -1 : id;
+    }
+
+    String string(int id)
+    {
+        return id < 0 ? null : strings.get(id);
+    }
+
+    // add a record, returning its index
+    int add(long ts, String vehicle, String lbl, String route, String trip, float lat, float lng, float brg,
+            int stop_sequence, String stop)
+    {
+        if (size == timestamp.length)
+            {
+                grow();
+            }
+        int i = size++;
+        timestamp[i] = ts;
+        latitude[i] = lat;
+        longitude[i] = lng;
+        bearing[i] = brg;
+        current_stop_sequence[i] = stop_sequence;
+        vehicle_id[i] = string_id(vehicle);
+        label[i] = string_id(lbl);
+        route_id[i] = string_id(route);
+        trip_id[i] = string_id(trip);
+        stop_id[i] = string_id(stop);
+        return i;
+    }
+
+    private void grow()
+    {
+        int capacity = timestamp.length * 2;
+        timestamp = Arrays.copyOf(timestamp, capacity);
+        latitude = Arrays.copyOf(latitude, capacity);
+        longitude = Arrays.copyOf(longitude, capacity);
+        bearing = Arrays.copyOf(bearing, capacity);
+        current_stop_sequence = Arrays.copyOf(current_stop_sequence, capacity);
+        vehicle_id = Arrays.copyOf(vehicle_id, capacity);
+        label = Arrays.copyOf(label, capacity);
+        route_id = Arrays.copyOf(route_id, capacity);
+        trip_id = Arrays.copyOf(trip_id, capacity);
+        stop_id = Arrays.copyOf(stop_id, capacity);
+    }
+
+    // record i as a JsonObject, with the fields of a feed message position record
+    JsonObject to_json(int i)
+    {
+        return to_json(timestamp[i], string(vehicle_id[i]), string(label[i]), string(route_id[i]), string(trip_id[i]),
+                       latitude[i], longitude[i], bearing[i], current_stop_sequence[i], string(stop_id[i]));
+    }
+
+    static JsonObject to_json(long ts, String vehicle, String lbl, String route, String trip, float lat, float lng,
+                              float brg, int stop_sequence, String stop)
+    {
+        JsonObject jo = new JsonObject();
+        jo.put("timestamp", ts);
+        jo.put("vehicle_id", vehicle);
+        if (lbl != null)
+            {
+                jo.put("label", lbl);
+            }
+        if (route != null)
+            {
+                jo.put("route_id", route);
+            }
+        if (trip != null)
+            {
+                jo.put("trip_id", trip);
+            }
+        jo.put("latitude", lat);
+        jo.put("longitude", lng);
+        if (!Float.isNaN(brg))
+            {
+                jo.put("bearing", brg);
+            }
+        if (stop_sequence != NO_VALUE)
+            {
+                jo.put("current_stop_sequence", stop_sequence);
+            }
+        if (stop != null)
+            {
+                jo.put("stop_id", stop);
+            }
+        return jo;
+    }
+
+    // for each string id, its rank in the sorted strings
+    int[] string_ranks()
+    {
+        Integer[] ids = new Integer[strings.size()];
+        for (int i=0; i<ids.length; i++)
+            {
+                ids[i] = i;
+            }
+        Arrays.sort(ids, (a, b) -> strings.get(a).compareTo(strings.get(b)));
+        int[] ranks = new int[ids.length];
+        for (int r=0; r<ids.length; r++)
+            {
+                ranks[ids[r]] = r;
+            }
+        return ranks;
+    }
+
+    // the records in idx sorted by (vehicle_id, timestamp), keeping only the last (i.e. the latest added)
+    // of the records with the same vehicle_id and timestamp
+    int[] vehicle_order(int[] idx)
+    {
+        if (idx.length == 0)
+            {
+                return idx;
+            }
+        int[] ranks = string_ranks();
+        long min_ts = Long.MAX_VALUE;
+        for (int i : idx)
+            {
+                min_ts = Math.min(min_ts, timestamp[i]);
+            }
+        long[] keys = new long[idx.length];
+        int[] order = idx.clone();
+        for (int k=0; k<order.length; k++)
+            {
+                keys[k] = sort_key(ranks[vehicle_id[order[k]]], timestamp[order[k]] - min_ts);
+            }
+        sort(keys, order);
+
+        // drop duplicates, keeping the last of each run of equal keys
+        int n = 0;
+        for (int k=0; k<order.length; k++)
+            {
+                if (k + 1 < order.length && keys[k + 1] == keys[k])
+                    {
+                        continue;
+                    }
+                order[n++] = order[k];
+            }
+        return Arrays.copyOf(order, n);
+    }
+
+    // the sort key of (rank, offset), with rank < 2^23 and 0 <= offset < 2^40 (i.e. seconds)
+    static long sort_key(int rank, long offset)
+    {
+        return ((long) rank << 40) | offset;
+    }
+
+    // stable sort of idx by keys (both reordered)
+    static void sort(long[] keys, int[] idx)
+    {
+        long[] key_tmp = new long[keys.length];
+        int[] idx_tmp = new int[idx.length];
+        merge_sort(keys, idx, key_tmp, idx_tmp, 0, keys.length);
+    }
+
+    private static void merge_sort(long[] keys, int[] idx, long[] key_tmp, int[] idx_tmp, int from, int to)
+    {
+        if (to - from < 16)
+            {
+                // insertion sort
+                for (int i=from+1; i<to; i++)
+                    {
+                        long key = keys[i];
+                        int id = idx[i];
+                        int j = i - 1;
+                        while (j >= from && keys[j] > key)
+                            {
+                                keys[j + 1] = keys[j];
+                                idx[j + 1] = idx[j];
+                                j--;
+                            }
+                        keys[j + 1] = key;
+                        idx[j + 1] = id;
+                    }
+                return;
+            }
+        int mid = (from + to) >>> 1;
+        merge_sort(keys, idx, key_tmp, idx_tmp, from, mid);
+        merge_sort(keys, idx, key_tmp, idx_tmp, mid, to);
+        if (keys[mid - 1] <= keys[mid])
+            {
+                return; // already in order
+            }
+        System.arraycopy(keys, from, key_tmp, from, to - from);
+        System.arraycopy(idx, from, idx_tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to)
+            {
+                if (key_tmp[j] < key_tmp[i])
+                    {
+                        keys[k] = key_tmp[j];
+                        idx[k++] = idx_tmp[j++];
+                    }
+                else
+                    {
+                        keys[k] = key_tmp[i];
+                        idx[k++] = idx_tmp[i++];
+                    }
+            }
+        while (i < mid)
+            {
+                keys[k] = key_tmp[i];
+                idx[k++] = idx_tmp[i++];
+            }
+        while (j < to)
+            {
+                keys[k] = key_tmp[j];
+                idx[k++] = idx_tmp[j++];
+            }
+    }
+
+} // end class Records
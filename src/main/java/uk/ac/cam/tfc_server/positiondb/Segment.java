@@ -0,0 +1,426 @@
+package uk.ac.cam.tfc_server.positiondb;
+
+// Segment.java
+//
+// Part of PositionDB package, an immutable on-disk segment of the PositionLog, i.e. the file <seq>.seg holding
+// position records sorted by vehicle_id then timestamp (with no two records of the same vehicle_id and timestamp),
+// and the indexes used to query them:
+//
+//   time range    - the min and max timestamp of the segment, so a query skips segments outside its time range
+//   vehicle index - vehicle_id -> the (contiguous, timestamp-ordered) run of the vehicle's records
+//   route index   - route_id -> the numbers of the route's records in timestamp order
+//
+// A query binary-searches the timestamp-ordered records of the vehicle (or route) for the start of its time range.
+//
+// File format (big-endian, as written by DataOutputStream):
+//   header   int MAGIC, int VERSION, int level, long seq, int size, long min_ts, long max_ts
+//   strings  int count, then for each: int length, UTF-8 bytes
+//   vehicles int count, then for each: int string, int first record, int record count
+//   routes   int count, then for each: int string, int record count, int record numbers...
+//   records  size x RECORD_SIZE bytes: long timestamp, float latitude, float longitude, float bearing,
+//            int current_stop_sequence, int vehicle_id, int label, int route_id, int trip_id, int stop_id
+// where the strings are ids in the segment string table (-1 for none).
+//
+// The records are read from the file memory-mapped, the indexes being loaded into the heap when the segment is opened.
+//
+// A segment is written as <seq>.seg.tmp, forced to disk, then renamed to <seq>.seg and the directory forced, so
+// once write() returns the segment survives a power loss and the log or segments it replaces can be deleted.
+//
+
+import io.vertx.core.json.JsonObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+class Segment {
+
+    static final int MAGIC = 0x50534547; // "PSEG"
+    static final int VERSION = 1;
+
+    static final int RECORD_SIZE = 44;
+
+    static final String SUFFIX = ".seg";
+
+    final Path path;
+    final int level; // 0 = flushed from the memtable, 1 = compacted (holding a single day)
+    final long seq;  // sequence number, a later segment (or memtable) holding newer records
+    final int size;
+    final long min_ts;
+    final long max_ts;
+    final long bytes;
+
+    private final String[] strings;
+    private final HashMap<String, int[]> vehicle_index = new HashMap<String, int[]>(); // { first, count }
+    private final HashMap<String, int[]> route_index = new HashMap<String, int[]>();   // record numbers
+
+    private final ByteBuffer records;
+    private final int records_offset;
+
+    // BLOCKING: write the records of r in order (as from Records.vehicle_order()) to the segment file seq in dir,
+    // via a temporary file renamed into place, and return the opened segment
+    static Segment write(Path dir, long seq, int level, Records r, int[] order) throws IOException
+    {
+        // the strings used by the records, renumbered in the segment string table
+        int[] local_id = new int[r.strings.size()];
+        Arrays.fill(local_id, -1);
+        String[] local_strings = new String[r.strings.size()];
+        int string_count = 0;
+
+        long min_ts = Long.MAX_VALUE;
+        long max_ts = Long.MIN_VALUE;
+        for (int i : order)
+            {
+                min_ts = Math.min(min_ts, r.timestamp[i]);
+                max_ts = Math.max(max_ts, r.timestamp[i]);
+                for (int id : new int[] { r.vehicle_id[i], r.label[i], r.route_id[i], r.trip_id[i], r.stop_id[i] })
+                    {
+                        if (id >= 0 && local_id[id] < 0)
+                            {
+                                local_id[id] = string_count;
+                                local_strings[string_count++] = r.string(id);
+                            }
+                    }
+            }
+        if (order.length == 0)
+            {
+                min_ts = 0;
+                max_ts = 0;
+            }
+
+        // the route index, i.e. the record numbers grouped by route and sorted by timestamp
+        int route_records = 0;
+        for (int i : order)
+            {
+                if (r.route_id[i] >= 0)
+                    {
+                        route_records++;
+                    }
+            }
+        long[] route_keys = new long[route_records];
+        int[] route_positions = new int[route_records];
+        int n = 0;
+        for (int k=0; k<order.length; k++)
+            {
+                int i = order[k];
+                if (r.route_id[i] >= 0)
+                    {
+                        route_keys[n] = Records.sort_key(local_id[r.route_id[i]], r.timestamp[i] - min_ts);
+                        route_positions[n++] = k;
+                    }
+            }
+        Records.sort(route_keys, route_positions);
+
+        Path tmp_path = dir.resolve(seq+SUFFIX+".tmp");
+        try (FileChannel channel = FileChannel.open(tmp_path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 65536)))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(level);
+                out.writeLong(seq);
+                out.writeInt(order.length);
+                out.writeLong(min_ts);
+                out.writeLong(max_ts);
+
+                out.writeInt(string_count);
+                for (int s=0; s<string_count; s++)
+                    {
+                        byte[] bytes = local_strings[s].getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+
+                // vehicle index, from the runs of records of the same vehicle
+                int vehicle_count = 0;
+                for (int k=0; k<order.length; k++)
+                    {
+                        if (k == 0 || r.vehicle_id[order[k]] != r.vehicle_id[order[k - 1]])
+                            {
+                                vehicle_count++;
+                            }
+                    }
+                out.writeInt(vehicle_count);
+                for (int first=0; first<order.length; )
+                    {
+                        int end = first + 1;
+                        while (end < order.length && r.vehicle_id[order[end]] == r.vehicle_id[order[first]])
+                            {
+                                end++;
+                            }
+                        out.writeInt(local_id[r.vehicle_id[order[first]]]);
+                        out.writeInt(first);
+                        out.writeInt(end - first);
+                        first = end;
+                    }
+
+                // route index
+                int route_count = 0;
+                for (int k=0; k<route_records; k++)
+                    {
+                        if (k == 0 || (route_keys[k] >>> 40) != (route_keys[k - 1] >>> 40))
+                            {
+                                route_count++;
+                            }
+                    }
+                out.writeInt(route_count);
+                for (int first=0; first<route_records; )
+                    {
+                        int end = first + 1;
+                        while (end < route_records && (route_keys[end] >>> 40) == (route_keys[first] >>> 40))
+                            {
+                                end++;
+                            }
+                        out.writeInt((int) (route_keys[first] >>> 40));
+                        out.writeInt(end - first);
+                        for (int k=first; k<end; k++)
+                            {
+                                out.writeInt(route_positions[k]);
+                            }
+                        first = end;
+                    }
+
+                for (int i : order)
+                    {
+                        out.writeLong(r.timestamp[i]);
+                        out.writeFloat(r.latitude[i]);
+                        out.writeFloat(r.longitude[i]);
+                        out.writeFloat(r.bearing[i]);
+                        out.writeInt(r.current_stop_sequence[i]);
+                        out.writeInt(local(local_id, r.vehicle_id[i]));
+                        out.writeInt(local(local_id, r.label[i]));
+                        out.writeInt(local(local_id, r.route_id[i]));
+                        out.writeInt(local(local_id, r.trip_id[i]));
+                        out.writeInt(local(local_id, r.stop_id[i]));
+                    }
+
+                // the segment must be on disk before it is renamed, as its inputs are then deleted
+                out.flush();
+                channel.force(true);
+            }
+
+        Path path = dir.resolve(seq+SUFFIX);
+        Files.move(tmp_path, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        force_dir(dir);
+
+        return open(path);
+    }
+
+    // force the directory entries of dir (e.g. a rename) to disk
+    private static void force_dir(Path dir) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ))
+            {
+                channel.force(true);
+            }
+        catch (IOException e)
+            {
+                // a directory cannot be forced on this platform
+            }
+    }
+
+    private static int local(int[] local_id, int id)
+    {
+        return id < 0 ? -1 : local_id[id];
+    }
+
+    // BLOCKING: open the segment file at path
+    static Segment open(Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new Segment(path, buf, channel.size());
+            }
+    }
+
+    private Segment(Path path, ByteBuffer buf, long bytes) throws IOException
+    {
+        this.path = path;
+        this.bytes = bytes;
+
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+            {
+                throw new IOException("not a segment file "+path);
+            }
+        level = buf.getInt();
+        seq = buf.getLong();
+        size = buf.getInt();
+        min_ts = buf.getLong();
+        max_ts = buf.getLong();
+
+        strings = new String[buf.getInt()];
+        for (int s=0; s<strings.length; s++)
+            {
+                byte[] bytes_utf8 = new byte[buf.getInt()];
+                buf.get(bytes_utf8);
+                strings[s] = new String(bytes_utf8, StandardCharsets.UTF_8);
+            }
+
+        int vehicle_count = buf.getInt();
+        for (int v=0; v<vehicle_count; v++)
+            {
+                String vehicle_id = strings[buf.getInt()];
+                int first = buf.getInt();
+                int count = buf.getInt();
+                vehicle_index.put(vehicle_id, new int[] { first, count });
+            }
+
+        int route_count = buf.getInt();
+        for (int v=0; v<route_count; v++)
+            {
+                String route_id = strings[buf.getInt()];
+                int[] positions = new int[buf.getInt()];
+                for (int k=0; k<positions.length; k++)
+                    {
+                        positions[k] = buf.getInt();
+                    }
+                route_index.put(route_id, positions);
+            }
+
+        records_offset = buf.position();
+        if ((long) records_offset + (long) size * RECORD_SIZE != bytes)
+            {
+                throw new IOException("truncated segment file "+path);
+            }
+        records = buf;
+    }
+
+    // true if the segment may hold records with start_ts <= timestamp < end_ts
+    boolean overlaps(long start_ts, long end_ts)
+    {
+        return size > 0 && min_ts < end_ts && max_ts >= start_ts;
+    }
+
+    long timestamp(int k)
+    {
+        return records.getLong(records_offset + k * RECORD_SIZE);
+    }
+
+    private String string(int id)
+    {
+        return id < 0 ? null : strings[id];
+    }
+
+    String vehicle_id(int k)
+    {
+        return string(records.getInt(records_offset + k * RECORD_SIZE + 24));
+    }
+
+    // add the records of vehicle_id with start_ts <= timestamp < end_ts to hits
+    void vehicle_positions(String vehicle_id, long start_ts, long end_ts, List<PositionLog.Hit> hits)
+    {
+        int[] run = vehicle_index.get(vehicle_id);
+        if (run == null || !overlaps(start_ts, end_ts))
+            {
+                return;
+            }
+        // binary search for the first record of the run with timestamp >= start_ts
+        int lo = run[0];
+        int hi = run[0] + run[1];
+        while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (timestamp(mid) < start_ts)
+                    {
+                        lo = mid + 1;
+                    }
+                else
+                    {
+                        hi = mid;
+                    }
+            }
+        for (int k=lo; k<run[0] + run[1] && timestamp(k) < end_ts; k++)
+            {
+                hits.add(new PositionLog.Hit(timestamp(k), vehicle_id, seq, to_json_record(k)));
+            }
+    }
+
+    // add the records of route_id with start_ts <= timestamp < end_ts to hits
+    void route_positions(String route_id, long start_ts, long end_ts, List<PositionLog.Hit> hits)
+    {
+        int[] positions = route_index.get(route_id);
+        if (positions == null || !overlaps(start_ts, end_ts))
+            {
+                return;
+            }
+        int lo = 0;
+        int hi = positions.length;
+        while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (timestamp(positions[mid]) < start_ts)
+                    {
+                        lo = mid + 1;
+                    }
+                else
+                    {
+                        hi = mid;
+                    }
+            }
+        for (int p=lo; p<positions.length && timestamp(positions[p]) < end_ts; p++)
+            {
+                int k = positions[p];
+                hits.add(new PositionLog.Hit(timestamp(k), vehicle_id(k), seq, to_json_record(k)));
+            }
+    }
+
+    // add all the records with timestamp >= min_ts to r (for a compaction)
+    void read_all(Records r, long min_ts)
+    {
+        for (int k=0; k<size; k++)
+            {
+                int offset = records_offset + k * RECORD_SIZE;
+                long ts = records.getLong(offset);
+                if (ts < min_ts)
+                    {
+                        continue;
+                    }
+                r.add(ts,
+                      string(records.getInt(offset + 24)),
+                      string(records.getInt(offset + 28)),
+                      string(records.getInt(offset + 32)),
+                      string(records.getInt(offset + 36)),
+                      records.getFloat(offset + 8),
+                      records.getFloat(offset + 12),
+                      records.getFloat(offset + 16),
+                      records.getInt(offset + 20),
+                      string(records.getInt(offset + 40)));
+            }
+    }
+
+    private JsonObject to_json_record(int k)
+    {
+        int offset = records_offset + k * RECORD_SIZE;
+        return Records.to_json(records.getLong(offset),
+                               string(records.getInt(offset + 24)),
+                               string(records.getInt(offset + 28)),
+                               string(records.getInt(offset + 32)),
+                               string(records.getInt(offset + 36)),
+                               records.getFloat(offset + 8),
+                               records.getFloat(offset + 12),
+                               records.getFloat(offset + 16),
+                               records.getInt(offset + 20),
+                               string(records.getInt(offset + 40)));
+    }
+
+    // BLOCKING: delete the segment file
+    void delete() throws IOException
+    {
+        Files.deleteIfExists(path);
+    }
+
+} // end class Segment
@@ -339,6 +339,8 @@ public class Rita extends AbstractTFCVerticle {
         conf.put("eb.system_status", EB_SYSTEM_STATUS);
         conf.put("eb.manager", EB_MANAGER);
         conf.put(FEEDPLAYER_NAME+".address", FEEDPLAYER_ADDRESS);
+        // the feed is bridged to the browser, which only handles JSON
+        conf.put(FEEDPLAYER_NAME+".publish_batch", false);
 
         feedplayer_options.setConfig(conf);
         
@@ -0,0 +1,585 @@
+package uk.ac.cam.tfc_server.util;
+
+// BinArchive.java
+//
+// Packed daily archive of the binary feed files, i.e. a single file per day
+//   TFC_DATA_BIN/YYYY/MM/DD.pack
+// rather than the (~2880 per day) individual files
+//   TFC_DATA_BIN/YYYY/MM/DD/<filename>.bin
+//
+// The archive is an append-only sequence of length-prefixed records, one per feed file:
+//   int    RECORD_MAGIC
+//   long   ts           UTC timestamp of the feed file (i.e. the timestamp prefix of the filename)
+//   int    length of filename, then the filename as UTF-8, e.g. "1465603230_2016-06-11-01-00-30"
+//   int    length of data, then the data (exactly the bytes that would have been in the .bin file)
+//
+// When the day is complete the archive is 'sealed' by appending a timestamp index block:
+//   int    INDEX_MAGIC
+//   int    count
+//   count * (long ts, long offset of record)
+//   int    length of the whole index block in bytes
+//   int    INDEX_END_MAGIC
+// so a Reader can seek straight to a time. Only an index block at the very end of the archive is
+// used, and a sequential scan skips index blocks, so an archive can still be appended to after it
+// has been sealed (e.g. FeedHandler restarted on the same day). Sealing again indexes all the records.
+//
+// A truncated final record (e.g. a crash part-way through a write) ends the scan, and is
+// overwritten by the next Writer to open the archive.
+//
+// The Reader memory-maps the archive, so a day of feed data is read as one sequential scan.
+//
+// Existing TFC_DATA_BIN/YYYY/MM/DD directories of .bin files can be converted with
+//   java -cp tfc_server.jar uk.ac.cam.tfc_server.util.BinArchive <tfc_data_bin> [YYYY/MM/DD ...]
+// which writes YYYY/MM/DD.pack (and its BinIndex YYYY/MM/DD.idx) for the given days (or all days),
+// leaving the .bin files in place.
+//
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class BinArchive
+{
+    public static final String SUFFIX = ".pack";
+
+    private static final int RECORD_MAGIC = 0x54464352;    // "TFCR"
+    private static final int INDEX_MAGIC = 0x54464349;     // "TFCI"
+    private static final int INDEX_END_MAGIC = 0x54464345; // "TFCE"
+
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4; // magic, ts, filename length
+    private static final int INDEX_ENTRY_SIZE = 8 + 8;       // ts, offset
+    private static final int INDEX_TRAILER_SIZE = 4 + 4;     // block length, INDEX_END_MAGIC
+
+    // return the archive path for the day filepath, e.g. ("/data_bin", "2016/06/11") -> "/data_bin/2016/06/11.pack"
+    public static String archive_path(String data_bin, String filepath)
+    {
+        return data_bin + "/" + filepath + SUFFIX;
+    }
+
+    //*************************************************************************************
+    // Class Entry
+    //*************************************************************************************
+
+    // A feed file read from an archive
+    public static class Entry
+    {
+        public long ts;
+        public String filename;
+        public ByteBuffer data; // read-only view of the feed file bytes within the mapped archive
+    }
+
+    //*************************************************************************************
+    // Class Reader
+    //*************************************************************************************
+
+    // Sequential reader of an archive, memory-mapped
+    public static class Reader
+    {
+        private ByteBuffer buf; // the mapped archive
+
+        private int end; // end of the last complete record or index block
+
+        private long[] index_ts; // from the index block at the end of the archive, or null if not sealed
+        private long[] index_offset;
+
+        public Reader(String path) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+                {
+                    if (channel.size() > Integer.MAX_VALUE)
+                        {
+                            throw new IOException("BinArchive: archive too large to map "+path);
+                        }
+                    // the mapping remains valid after the channel is closed
+                    buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+
+            read_index();
+
+            if (index_ts == null)
+                {
+                    end = scan_end(buf, 0);
+                }
+
+            buf.position(0);
+        }
+
+        // true if the archive ends with an index, i.e. seek() does not need to scan
+        public boolean sealed()
+        {
+            return index_ts != null;
+        }
+
+        // position the reader at the first record with ts >= start_ts
+        public void seek(long start_ts)
+        {
+            if (index_ts != null)
+                {
+                    // binary search for the first index entry with ts >= start_ts
+                    int lo = 0;
+                    int hi = index_ts.length;
+                    while (lo < hi)
+                        {
+                            int mid = (lo + hi) >>> 1;
+                            if (index_ts[mid] < start_ts)
+                                {
+                                    lo = mid + 1;
+                                }
+                            else
+                                {
+                                    hi = mid;
+                                }
+                        }
+                    buf.position(lo < index_ts.length ? (int) index_offset[lo] : end);
+                    return;
+                }
+
+            buf.position(0);
+            while (buf.position() < end)
+                {
+                    int pos = buf.position();
+                    if (buf.getInt(pos) == RECORD_MAGIC && buf.getLong(pos + 4) >= start_ts)
+                        {
+                            return;
+                        }
+                    buf.position(block_end(buf, pos));
+                }
+        }
+
+        // return the current position of the reader, i.e. the offset of the record next() will return
+        public long offset()
+        {
+            while (buf.position() < end && buf.getInt(buf.position()) != RECORD_MAGIC)
+                {
+                    buf.position(block_end(buf, buf.position())); // skip an earlier index block
+                }
+            return buf.position();
+        }
+
+        // return the next feed file in the archive, or null at the end
+        public Entry next()
+        {
+            while (buf.position() < end)
+                {
+                    int pos = buf.position();
+                    int next_pos = block_end(buf, pos);
+                    buf.position(next_pos);
+
+                    if (buf.getInt(pos) != RECORD_MAGIC)
+                        {
+                            continue; // skip an earlier index block
+                        }
+
+                    return read_entry(pos);
+                }
+            return null;
+        }
+
+        // return the feed file whose record starts at offset (e.g. from a BinIndex), or null
+        public Entry entry_at(long offset)
+        {
+            if (offset < 0 || offset + RECORD_HEADER_SIZE > end || buf.getInt((int) offset) != RECORD_MAGIC)
+                {
+                    return null;
+                }
+            return read_entry((int) offset);
+        }
+
+        private Entry read_entry(int pos)
+        {
+            Entry entry = new Entry();
+            entry.ts = buf.getLong(pos + 4);
+
+            int name_length = buf.getInt(pos + 12);
+            byte[] name = new byte[name_length];
+            ByteBuffer b = buf.duplicate();
+            b.position(pos + RECORD_HEADER_SIZE);
+            b.get(name);
+            entry.filename = new String(name, StandardCharsets.UTF_8);
+
+            int data_length = b.getInt();
+            b.limit(b.position() + data_length);
+            entry.data = b.slice().asReadOnlyBuffer();
+
+            return entry;
+        }
+
+        // load the index block, if the archive ends with one
+        private void read_index()
+        {
+            int size = buf.limit();
+            if (size < INDEX_TRAILER_SIZE || buf.getInt(size - 4) != INDEX_END_MAGIC)
+                {
+                    return;
+                }
+
+            int start = size - buf.getInt(size - INDEX_TRAILER_SIZE);
+            if (start < 0 || buf.getInt(start) != INDEX_MAGIC)
+                {
+                    return;
+                }
+
+            int count = buf.getInt(start + 4);
+            index_ts = new long[count];
+            index_offset = new long[count];
+            for (int i=0; i<count; i++)
+                {
+                    int p = start + 8 + i * INDEX_ENTRY_SIZE;
+                    index_ts[i] = buf.getLong(p);
+                    index_offset[i] = buf.getLong(p + 8);
+                }
+            end = size;
+        }
+    } // end class Reader
+
+    //*************************************************************************************
+    // Class Writer
+    //*************************************************************************************
+
+    // Appends feed files to an archive, creating it (and its directory) if necessary
+    // Not thread-safe: each archive should have a single Writer
+    public static class Writer implements Closeable
+    {
+        private String path;
+
+        private FileChannel channel;
+
+        private long position; // end of the last complete record
+
+        private ArrayList<long[]> index; // { ts, offset } of every record
+
+        public Writer(String path) throws IOException
+        {
+            this.path = path;
+
+            File parent = new File(path).getParentFile();
+            if (parent != null)
+                {
+                    parent.mkdirs();
+                }
+
+            channel = FileChannel.open(Paths.get(path),
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE);
+
+            index = new ArrayList<long[]>();
+
+            // index the existing records, and drop any truncated record at the end
+            position = 0;
+            if (channel.size() > 0)
+                {
+                    ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    position = scan_end(buf, 0);
+                    for (int pos = 0; pos < position; pos = block_end(buf, pos))
+                        {
+                            if (buf.getInt(pos) == RECORD_MAGIC)
+                                {
+                                    index.add(new long[] { buf.getLong(pos + 4), pos });
+                                }
+                        }
+                    channel.truncate(position);
+                }
+        }
+
+        public String path()
+        {
+            return path;
+        }
+
+        // append a feed file to the archive, returning the offset of its record
+        public long append(long ts, String filename, ByteBuffer data) throws IOException
+        {
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + name.length + 4);
+            header.putInt(RECORD_MAGIC);
+            header.putLong(ts);
+            header.putInt(name.length);
+            header.put(name);
+            header.putInt(data.remaining());
+            header.flip();
+
+            write(new ByteBuffer[] { header, data.duplicate() });
+
+            long offset = position;
+            index.add(new long[] { ts, offset });
+            position = channel.position();
+            return offset;
+        }
+
+        // append the timestamp index of all the records, after which the archive can still be appended to
+        public void seal() throws IOException
+        {
+            int block_length = 8 + index.size() * INDEX_ENTRY_SIZE + INDEX_TRAILER_SIZE;
+
+            ByteBuffer block = ByteBuffer.allocate(block_length);
+            block.putInt(INDEX_MAGIC);
+            block.putInt(index.size());
+            for (long[] entry : index)
+                {
+                    block.putLong(entry[0]);
+                    block.putLong(entry[1]);
+                }
+            block.putInt(block_length);
+            block.putInt(INDEX_END_MAGIC);
+            block.flip();
+
+            write(new ByteBuffer[] { block });
+
+            position = channel.position();
+        }
+
+        // flush the archive to the disk
+        public void force() throws IOException
+        {
+            channel.force(false);
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+
+        private void write(ByteBuffer[] buffers) throws IOException
+        {
+            channel.position(position);
+            long remaining = 0;
+            for (ByteBuffer b : buffers)
+                {
+                    remaining += b.remaining();
+                }
+            while (remaining > 0)
+                {
+                    remaining -= channel.write(buffers);
+                }
+        }
+    } // end class Writer
+
+    //*************************************************************************************
+    // Class DailyWriter
+    //*************************************************************************************
+
+    // Appends feed files to the archive of the day they belong to, sealing the archive of the
+    // previous day when the day changes. Used by FeedHandler and FeedScraper.
+    // Blocking, so should be called from a worker thread (e.g. vertx.executeBlocking, ordered).
+    public static class DailyWriter implements Closeable
+    {
+        private String data_bin;
+
+        private String filepath; // YYYY/MM/DD of the current archive, or null
+        private Writer writer;
+
+        public DailyWriter(String data_bin)
+        {
+            this.data_bin = data_bin;
+        }
+
+        // append a feed file for day filepath (YYYY/MM/DD), returning the offset of its record
+        public synchronized long append(String filepath, long ts, String filename, ByteBuffer data) throws IOException
+        {
+            if (writer == null || !filepath.equals(this.filepath))
+                {
+                    close();
+                    writer = new Writer(archive_path(data_bin, filepath));
+                    this.filepath = filepath;
+                }
+            return writer.append(ts, filename, data);
+        }
+
+        // force the current archive to disk
+        public synchronized void force() throws IOException
+        {
+            if (writer != null)
+                {
+                    writer.force();
+                }
+        }
+
+        // seal and close the current archive
+        public synchronized void close() throws IOException
+        {
+            if (writer != null)
+                {
+                    try
+                        {
+                            writer.seal();
+                            writer.force();
+                        }
+                    finally
+                        {
+                            writer.close();
+                            writer = null;
+                        }
+                }
+        }
+    } // end class DailyWriter
+
+    // return the end of the record or index block starting at pos
+    private static int block_end(ByteBuffer buf, int pos)
+    {
+        if (buf.getInt(pos) == RECORD_MAGIC)
+            {
+                int data_pos = pos + RECORD_HEADER_SIZE + buf.getInt(pos + 12);
+                return data_pos + 4 + buf.getInt(data_pos);
+            }
+        // INDEX_MAGIC
+        return pos + 8 + buf.getInt(pos + 4) * INDEX_ENTRY_SIZE + INDEX_TRAILER_SIZE;
+    }
+
+    // return the end of the last complete record or index block, scanning from pos
+    private static int scan_end(ByteBuffer buf, int pos)
+    {
+        int size = buf.limit();
+        while (pos + 8 <= size)
+            {
+                int magic = buf.getInt(pos);
+                long next;
+                if (magic == RECORD_MAGIC && pos + RECORD_HEADER_SIZE <= size)
+                    {
+                        long data_pos = (long) pos + RECORD_HEADER_SIZE + buf.getInt(pos + 12);
+                        if (data_pos + 4 > size)
+                            {
+                                break;
+                            }
+                        next = data_pos + 4 + buf.getInt((int) data_pos);
+                    }
+                else if (magic == INDEX_MAGIC)
+                    {
+                        next = (long) pos + 8 + (long) buf.getInt(pos + 4) * INDEX_ENTRY_SIZE + INDEX_TRAILER_SIZE;
+                    }
+                else
+                    {
+                        break;
+                    }
+                if (next > size || next <= pos)
+                    {
+                        break;
+                    }
+                pos = (int) next;
+            }
+        return pos;
+    }
+
+    //*************************************************************************************
+    // Converter from TFC_DATA_BIN/YYYY/MM/DD/*.bin to TFC_DATA_BIN/YYYY/MM/DD.pack
+    //*************************************************************************************
+
+    // convert the day directory data_bin/filepath into a sealed archive, returning the number of files
+    // (a day with no directory, e.g. already archived and the files removed, is skipped, returning -1)
+    public static int convert_day(String data_bin, String filepath) throws IOException
+    {
+        Path day_dir = Paths.get(data_bin, filepath);
+
+        if (!Files.isDirectory(day_dir))
+            {
+                System.err.println("BinArchive: no directory "+day_dir+", skipping");
+                return -1;
+            }
+
+        List<Path> files;
+        try (Stream<Path> s = Files.list(day_dir))
+            {
+                files = s.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+        Collections.sort(files);
+
+        // write to a temporary file, so a reader never sees a partial archive
+        String path = archive_path(data_bin, filepath);
+        String tmp_path = path + ".tmp";
+        Files.deleteIfExists(Paths.get(tmp_path));
+
+        int count = 0;
+        try (Writer writer = new Writer(tmp_path))
+            {
+                for (Path file : files)
+                    {
+                        // filenames are <UTC-TS>_YYYY-MM-DD-hh-mm-ss.bin
+                        String name = file.getFileName().toString();
+                        int ts_end = name.indexOf('_');
+                        int dot = name.lastIndexOf('.');
+                        long ts;
+                        try
+                            {
+                                ts = Long.parseLong(name.substring(0, ts_end));
+                            }
+                        catch (Exception e)
+                            {
+                                System.err.println("BinArchive: skipping "+file);
+                                continue;
+                            }
+
+                        writer.append(ts, dot > 0 ? name.substring(0, dot) : name, ByteBuffer.wrap(Files.readAllBytes(file)));
+                        count++;
+                    }
+                writer.seal();
+                writer.force();
+            }
+
+        Files.move(Paths.get(tmp_path), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // the day index now refers to the archive records
+        BinIndex.build(data_bin, filepath, Long.MAX_VALUE);
+
+        return count;
+    }
+
+    // BinArchive <tfc_data_bin> [YYYY/MM/DD ...]
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+            {
+                System.err.println("usage: BinArchive <tfc_data_bin> [YYYY/MM/DD ...]");
+                System.exit(1);
+            }
+
+        String data_bin = args[0];
+
+        // by default, every day that still has a directory of feed files
+        List<String> days = args.length > 1 ? Arrays.asList(args).subList(1, args.length) :
+                                              days(data_bin).stream()
+                                                            .filter(d -> Files.isDirectory(Paths.get(data_bin, d)))
+                                                            .collect(Collectors.toList());
+
+        for (String filepath : days)
+            {
+                int count = convert_day(data_bin, filepath);
+                if (count < 0)
+                    {
+                        continue;
+                    }
+                System.out.println("BinArchive: "+archive_path(data_bin, filepath)+" "+count+" files");
+            }
+    }
+
+    // return the YYYY/MM/DD of every day under data_bin with a directory of feed files or an archive
+    public static List<String> days(String data_bin) throws IOException
+    {
+        Path root = Paths.get(data_bin);
+        try (Stream<Path> s = Files.walk(root, 3))
+            {
+                return s.map(p -> root.relativize(p).toString().replace(File.separatorChar, '/'))
+                        .map(p -> p.endsWith(SUFFIX) ? p.substring(0, p.length() - SUFFIX.length()) : p)
+                        .filter(p -> p.matches("\\d{4}/\\d{2}/\\d{2}"))
+                        .distinct()
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+    }
+
+} // end BinArchive
@@ -0,0 +1,596 @@
+package uk.ac.cam.tfc_server.util;
+
+// BinIndex.java
+//
+// Timestamp index of the feed files of one day in TFC_DATA_BIN, i.e.
+//   TFC_DATA_BIN/YYYY/MM/DD.idx
+// so batch jobs (BatcherWorker, FeedPlayer, DataRaw) can go straight to the files in a time window
+// without listing the (~2880 entry) YYYY/MM/DD directory and parsing every filename.
+//
+// The index is a sequence of fixed-size entries, in timestamp order:
+//   long   ts        UTC timestamp of the feed file
+//   long   offset    offset of the record in the day archive YYYY/MM/DD.pack (see BinArchive),
+//                    or -1 for an individual file YYYY/MM/DD/<filename>
+//   byte   length of filename, then the filename as UTF-8, zero-padded to ENTRY_SIZE
+// where filename is as stored, i.e. including the suffix (e.g. ".bin") for an individual file, or
+// the archive record filename (without suffix).
+//
+// The fixed entry size means a time can be found by binary search of the index file itself, and
+// every FeedWriter (FeedHandler, FeedScraper) simply appends an entry for each feed file as it writes
+// it (see DailyWriter). A partial entry at the end (e.g. a crash part-way through a write) is ignored
+// by readers and overwritten by the next writer.
+//
+// The index of a day is reconciled once, when the day is over: the DailyWriter moving on to the next day
+// (or closed after the day, or finding the index of the day before left open) rebuilds it from the stored
+// files, adding any file written without an entry (e.g. a crash between the file write and the index
+// append), and 'seals' it with a final entry
+//   long   SEALED_TS, long   modification time (ms) of the day directory (-1 if none), empty filename
+// so readers taking the files of a day from entries() trust the index without listing the directory,
+// unless the directory of a sealed day has since changed (e.g. files copied into it), when any files
+// missing from the index are added from a listing. Appending to a sealed index first drops the seal.
+//
+// BinArchive conversion rebuilds (and for a past day, seals) the index of the day, and indexes for existing
+// days can be built with
+//   java -cp tfc_server.jar uk.ac.cam.tfc_server.util.BinIndex <tfc_data_bin> [YYYY/MM/DD ...]
+//
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class BinIndex
+{
+    public static final String SUFFIX = ".idx";
+
+    public static final int ENTRY_SIZE = 64;
+
+    private static final int MAX_FILENAME_LENGTH = ENTRY_SIZE - 8 - 8 - 1;
+
+    public static final long SEALED_TS = Long.MAX_VALUE; // ts of the final entry of a sealed index
+
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+
+    // return the index path for the day filepath, e.g. ("/data_bin", "2016/06/11") -> "/data_bin/2016/06/11.idx"
+    public static String index_path(String data_bin, String filepath)
+    {
+        return data_bin + "/" + filepath + SUFFIX;
+    }
+
+    //*************************************************************************************
+    // Class Entry
+    //*************************************************************************************
+
+    public static class Entry
+    {
+        public long ts;
+        public long offset; // offset of the record in the day archive, or -1
+        public String filename;
+
+        public Entry(long ts, long offset, String filename)
+        {
+            this.ts = ts;
+            this.offset = offset;
+            this.filename = filename;
+        }
+
+        // true if this feed file is a record in the day archive rather than an individual file
+        public boolean archived()
+        {
+            return offset >= 0;
+        }
+
+        // the filename without any suffix, e.g. "1465603230_2016-06-11-01-00-30"
+        public String basename()
+        {
+            int dot = filename.lastIndexOf('.');
+            return dot > 0 ? filename.substring(0, dot) : filename;
+        }
+    }
+
+    //*************************************************************************************
+    // Reading
+    //*************************************************************************************
+
+    // return the entries of index file path with start_ts <= ts <= finish_ts
+    // found by binary search, so only the entries in the window are read
+    public static List<Entry> read(String path, long start_ts, long finish_ts) throws IOException
+    {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+            {
+                long count = channel.size() / ENTRY_SIZE;
+
+                ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+
+                // binary search for the first entry with ts >= start_ts
+                long lo = 0;
+                long hi = count;
+                while (lo < hi)
+                    {
+                        long mid = (lo + hi) >>> 1;
+                        if (read_ts(channel, buf, mid) < start_ts)
+                            {
+                                lo = mid + 1;
+                            }
+                        else
+                            {
+                                hi = mid;
+                            }
+                    }
+
+                // then read sequentially to finish_ts
+                ByteBuffer block = ByteBuffer.allocate(ENTRY_SIZE * 256);
+                long i = lo;
+                while (i < count)
+                    {
+                        block.clear();
+                        block.limit((int) Math.min(block.capacity(), (count - i) * ENTRY_SIZE));
+                        read_fully(channel, block, i * ENTRY_SIZE);
+                        block.flip();
+                        while (block.remaining() >= ENTRY_SIZE)
+                            {
+                                Entry entry = decode(block);
+                                if (entry.ts > finish_ts || entry.ts == SEALED_TS)
+                                    {
+                                        return entries;
+                                    }
+                                entries.add(entry);
+                                i++;
+                            }
+                    }
+            }
+
+        return entries;
+    }
+
+    // return the feed files of day filepath (YYYY/MM/DD) with start_ts <= ts <= finish_ts, in timestamp order,
+    // each individual file listed once (two feeds in the same second are written as one file).
+    // These are the entries of the day index, as every writer indexes the files it writes, except for a sealed
+    // day whose directory has changed since it was sealed, when any files in the directory missing from the
+    // index are added (as they are for a day with no index).
+    public static List<Entry> entries(String data_bin, String filepath, long start_ts, long finish_ts) throws IOException
+    {
+        // the individual files by filename, and the archive records by offset
+        LinkedHashMap<String, Entry> found = new LinkedHashMap<String, Entry>();
+        HashSet<String> archived = new HashSet<String>(); // filenames of the archive records
+
+        String path = index_path(data_bin, filepath);
+        boolean indexed = Files.isRegularFile(Paths.get(path));
+        if (indexed)
+            {
+                for (Entry entry : read(path, start_ts, finish_ts))
+                    {
+                        String key = entry.archived() ? "@" + entry.offset : entry.filename;
+                        if (found.containsKey(key))
+                            {
+                                continue;
+                            }
+                        found.put(key, entry);
+                        if (entry.archived())
+                            {
+                                archived.add(entry.filename);
+                            }
+                    }
+            }
+
+        Path day_dir = Paths.get(data_bin, filepath);
+        if (!indexed || changed_since_sealed(path, day_dir))
+            {
+                for (Entry entry : list_day(day_dir, start_ts, finish_ts))
+                    {
+                        if (!found.containsKey(entry.filename) && !archived.contains(entry.basename()))
+                            {
+                                found.put(entry.filename, entry);
+                            }
+                    }
+            }
+
+        ArrayList<Entry> entries = new ArrayList<Entry>(found.values());
+        Collections.sort(entries, (a, b) -> a.ts != b.ts ? Long.compare(a.ts, b.ts) : a.filename.compareTo(b.filename));
+        return entries;
+    }
+
+    // the feed files in day directory day_dir with start_ts <= ts <= finish_ts, in no particular order
+    private static List<Entry> list_day(Path day_dir, long start_ts, long finish_ts) throws IOException
+    {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        if (!Files.isDirectory(day_dir))
+            {
+                return entries;
+            }
+        List<String> names;
+        try (Stream<Path> s = Files.list(day_dir))
+            {
+                names = s.map(p -> p.getFileName().toString()).collect(Collectors.toList());
+            }
+        for (String name : names)
+            {
+                long ts;
+                try
+                    {
+                        ts = Long.parseLong(name.substring(0, name.indexOf('_')));
+                    }
+                catch (Exception e)
+                    {
+                        continue; // not a feed file (e.g. a .tmp file)
+                    }
+                if (ts >= start_ts && ts <= finish_ts)
+                    {
+                        entries.add(new Entry(ts, -1, name));
+                    }
+            }
+        return entries;
+    }
+
+    // true if day filepath (YYYY/MM/DD) is before today, so no more feed files will be written to it
+    public static boolean closed_day(String filepath)
+    {
+        return filepath.compareTo(LocalDate.now().format(DAY_FORMAT)) < 0;
+    }
+
+    // the modification time of the day directory recorded when index file path was sealed,
+    // or null if it is not sealed
+    public static Long sealed_mtime(String path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+            {
+                long count = channel.size() / ENTRY_SIZE;
+                if (count == 0)
+                    {
+                        return null;
+                    }
+                ByteBuffer buf = ByteBuffer.allocate(16);
+                read_fully(channel, buf, (count - 1) * ENTRY_SIZE);
+                return buf.getLong(0) == SEALED_TS ? buf.getLong(8) : null;
+            }
+    }
+
+    // true if index file path is sealed and day_dir has changed since (so it may hold files not in the index)
+    private static boolean changed_since_sealed(String path, Path day_dir) throws IOException
+    {
+        Long mtime = sealed_mtime(path);
+        return mtime != null && mtime != dir_mtime(day_dir);
+    }
+
+    // the modification time (ms) of directory day_dir, or -1 if there is no such directory
+    private static long dir_mtime(Path day_dir) throws IOException
+    {
+        return Files.isDirectory(day_dir) ? Files.getLastModifiedTime(day_dir).toMillis() : -1;
+    }
+
+    // return the entry for filename (as listed in the index), or null
+    public static Entry find(String path, String filename) throws IOException
+    {
+        // filenames are <UTC-TS>_YYYY-MM-DD-hh-mm-ss, so only the entries with that ts need be read
+        long ts;
+        try
+            {
+                ts = Long.parseLong(filename.substring(0, filename.indexOf('_')));
+            }
+        catch (Exception e)
+            {
+                return null;
+            }
+
+        for (Entry entry : read(path, ts, ts))
+            {
+                if (entry.filename.equals(filename))
+                    {
+                        return entry;
+                    }
+            }
+        return null;
+    }
+
+    private static long read_ts(FileChannel channel, ByteBuffer buf, long i) throws IOException
+    {
+        buf.clear();
+        buf.limit(8);
+        read_fully(channel, buf, i * ENTRY_SIZE);
+        return buf.getLong(0);
+    }
+
+    private static void read_fully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+    {
+        while (buf.hasRemaining())
+            {
+                int n = channel.read(buf, position);
+                if (n < 0)
+                    {
+                        throw new IOException("BinIndex: unexpected end of index");
+                    }
+                position += n;
+            }
+    }
+
+    private static Entry decode(ByteBuffer block)
+    {
+        int start = block.position();
+        long ts = block.getLong();
+        long offset = block.getLong();
+        int length = block.get() & 0xff;
+        byte[] name = new byte[length];
+        block.get(name);
+        block.position(start + ENTRY_SIZE);
+        return new Entry(ts, offset, new String(name, StandardCharsets.UTF_8));
+    }
+
+    //*************************************************************************************
+    // Class Writer
+    //*************************************************************************************
+
+    // Appends entries to an index file, creating it (and its directory) if necessary
+    public static class Writer implements Closeable
+    {
+        private FileChannel channel;
+
+        private ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+
+        public Writer(String path) throws IOException
+        {
+            File parent = new File(path).getParentFile();
+            if (parent != null)
+                {
+                    parent.mkdirs();
+                }
+
+            channel = FileChannel.open(Paths.get(path),
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE);
+
+            // drop any partial entry at the end, and the seal, as entries are to be added after it
+            long size = channel.size() / ENTRY_SIZE * ENTRY_SIZE;
+            if (size > 0)
+                {
+                    ByteBuffer ts = ByteBuffer.allocate(8);
+                    read_fully(channel, ts, size - ENTRY_SIZE);
+                    if (ts.getLong(0) == SEALED_TS)
+                        {
+                            size -= ENTRY_SIZE;
+                        }
+                }
+            channel.truncate(size);
+            channel.position(size);
+        }
+
+        public void append(long ts, long offset, String filename) throws IOException
+        {
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+            if (name.length > MAX_FILENAME_LENGTH)
+                {
+                    throw new IOException("BinIndex: filename too long for index "+filename);
+                }
+
+            buf.clear();
+            buf.putLong(ts);
+            buf.putLong(offset);
+            buf.put((byte) name.length);
+            buf.put(name);
+            buf.position(ENTRY_SIZE); // zero padding
+            buf.flip();
+
+            while (buf.hasRemaining())
+                {
+                    channel.write(buf);
+                }
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    } // end class Writer
+
+    //*************************************************************************************
+    // Class DailyWriter
+    //*************************************************************************************
+
+    // Appends entries to the index of the day they belong to, as used by FeedWriter.
+    // If the day has no index yet, it is first built from any feed files already stored for the
+    // day (e.g. written before FeedHandler was restarted), so the index is always complete.
+    // When the day is over, i.e. on moving on to the next day (or on close() after the day, or on
+    // opening a day whose day before was left unsealed), its index is reconciled with the stored files
+    // and sealed (see seal()), once.
+    // Blocking, so should be called from a worker thread (e.g. vertx.executeBlocking, ordered).
+    public static class DailyWriter implements Closeable
+    {
+        private String data_bin;
+
+        private String filepath; // YYYY/MM/DD of the current index, or null
+        private Writer writer;
+
+        public DailyWriter(String data_bin)
+        {
+            this.data_bin = data_bin;
+        }
+
+        public synchronized void append(String filepath, long ts, long offset, String filename) throws IOException
+        {
+            if (writer == null || !filepath.equals(this.filepath))
+                {
+                    // the day this writer was on, or the day before this one (e.g. after a restart)
+                    String previous = writer != null ? this.filepath : day_before(filepath);
+                    close();
+                    if (previous != null && !previous.equals(filepath))
+                        {
+                            seal_day(previous);
+                        }
+                    if (!Files.exists(Paths.get(index_path(data_bin, filepath))))
+                        {
+                            build(data_bin, filepath, ts);
+                        }
+                    writer = new Writer(index_path(data_bin, filepath));
+                    this.filepath = filepath;
+                }
+            writer.append(ts, offset, filename);
+        }
+
+        // close the current index, sealing it if its day is over
+        public synchronized void close() throws IOException
+        {
+            if (writer != null)
+                {
+                    writer.close();
+                    writer = null;
+                    seal_day(filepath);
+                }
+        }
+
+        // seal the index of day filepath, if the day is over and it has an index not yet sealed
+        private void seal_day(String filepath) throws IOException
+        {
+            String path = index_path(data_bin, filepath);
+            if (closed_day(filepath) && Files.isRegularFile(Paths.get(path)) && sealed_mtime(path) == null)
+                {
+                    int count = seal(data_bin, filepath);
+                    System.err.println("BinIndex: sealed "+path+" "+count+" files");
+                }
+        }
+    } // end class DailyWriter
+
+    // the day before day filepath (YYYY/MM/DD), or null if filepath is not a day
+    private static String day_before(String filepath)
+    {
+        try
+            {
+                return LocalDate.parse(filepath, DAY_FORMAT).minusDays(1).format(DAY_FORMAT);
+            }
+        catch (Exception e)
+            {
+                return null;
+            }
+    }
+
+    //*************************************************************************************
+    // Building an index from the stored files
+    //*************************************************************************************
+
+    // rebuild the index of day filepath, which is over, from all its stored files, and seal it,
+    // returning the number of entries
+    public static int seal(String data_bin, String filepath) throws IOException
+    {
+        return build(data_bin, filepath, Long.MAX_VALUE);
+    }
+
+    // (re)build the index of day filepath from its archive records and individual files with ts < before_ts,
+    // returning the number of entries. The index of a past day built from all its files is sealed.
+    public static int build(String data_bin, String filepath, long before_ts) throws IOException
+    {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        // taken before the files are listed, so a file added while they are listed changes it
+        Path day_dir = Paths.get(data_bin, filepath);
+        long mtime = dir_mtime(day_dir);
+
+        HashSet<String> archived = new HashSet<String>(); // filenames of the archive records
+
+        String archive_path = BinArchive.archive_path(data_bin, filepath);
+        if (Files.isRegularFile(Paths.get(archive_path)))
+            {
+                BinArchive.Reader reader = new BinArchive.Reader(archive_path);
+                for (long offset = reader.offset(); ; offset = reader.offset())
+                    {
+                        BinArchive.Entry entry = reader.next();
+                        if (entry == null)
+                            {
+                                break;
+                            }
+                        if (entry.ts < before_ts)
+                            {
+                                entries.add(new Entry(entry.ts, offset, entry.filename));
+                                archived.add(entry.filename);
+                            }
+                    }
+            }
+
+        if (Files.isDirectory(day_dir))
+            {
+                List<Path> files;
+                try (Stream<Path> s = Files.list(day_dir))
+                    {
+                        files = s.filter(Files::isRegularFile).collect(Collectors.toList());
+                    }
+                for (Path file : files)
+                    {
+                        String name = file.getFileName().toString();
+                        try
+                            {
+                                long ts = Long.parseLong(name.substring(0, name.indexOf('_')));
+                                int dot = name.lastIndexOf('.');
+                                // a file already converted into the archive is indexed as the archive record
+                                if (ts < before_ts && !archived.contains(dot > 0 ? name.substring(0, dot) : name))
+                                    {
+                                        entries.add(new Entry(ts, -1, name));
+                                    }
+                            }
+                        catch (Exception e)
+                            {
+                                System.err.println("BinIndex: skipping "+file);
+                            }
+                    }
+            }
+
+        // timestamp order
+        Collections.sort(entries, (a, b) -> a.ts != b.ts ? Long.compare(a.ts, b.ts) : a.filename.compareTo(b.filename));
+
+        // write to a temporary file, so a reader never sees a partial index
+        String path = index_path(data_bin, filepath);
+        String tmp_path = path + ".tmp";
+        Files.deleteIfExists(Paths.get(tmp_path));
+        try (Writer writer = new Writer(tmp_path))
+            {
+                for (Entry entry : entries)
+                    {
+                        writer.append(entry.ts, entry.offset, entry.filename);
+                    }
+                if (before_ts == Long.MAX_VALUE && closed_day(filepath))
+                    {
+                        writer.append(SEALED_TS, mtime, "");
+                    }
+            }
+        Files.move(Paths.get(tmp_path), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return entries.size();
+    }
+
+    // BinIndex <tfc_data_bin> [YYYY/MM/DD ...]
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+            {
+                System.err.println("usage: BinIndex <tfc_data_bin> [YYYY/MM/DD ...]");
+                System.exit(1);
+            }
+
+        String data_bin = args[0];
+
+        List<String> days = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : BinArchive.days(data_bin);
+
+        for (String filepath : days)
+            {
+                int count = build(data_bin, filepath, Long.MAX_VALUE);
+                System.out.println("BinIndex: "+index_path(data_bin, filepath)+" "+count+" files");
+            }
+    }
+
+} // end BinIndex
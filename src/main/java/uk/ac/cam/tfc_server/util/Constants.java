@@ -16,6 +16,7 @@ public class Constants {
     public static final String ZONE_EXIT = "zone_exit"; // vehicle exitted zone not via finish line
     public static final String ZONE_UPDATE = "zone_update"; // zone_update msg (all completions so far today)
     public static final String ZONE_INFO = "zone_info"; // zone_info msg (zone details, such as boundary polygon)
+    public static final String ZONE_STATS = "zone_stats"; // zone_stats msg (rolling completion duration statistics)
 
     // Manager msg_type values
     public static final String ZONE_SUBSCRIBE = "zone_subscribe"; // request zone to subscribe to feed
@@ -33,6 +34,7 @@ public class Constants {
     // MsgFiler constants - also used in MsgFiler config()
     public static final String FILE_WRITE = "write"; // will overwrite the file
     public static final String FILE_APPEND = "append"; // will append to the file
+    public static final String FILE_COLUMNAR = "columnar"; // will append to a TransitColumns file
 
     // Log levels used by util/Log.java, may replace with log4j at some point...
     public static final int    LOG_DEBUG = 1;
@@ -49,6 +51,7 @@ public class Constants {
                   "ZONE_COMPLETION: '"+ZONE_COMPLETION+"',\n" +
                   "ZONE_UPDATE: '"+ZONE_UPDATE+"',\n" +
                   "ZONE_INFO: '"+ZONE_INFO+"',\n" +
+                  "ZONE_STATS: '"+ZONE_STATS+"',\n" +
                   "SOCKET_ZONE_CONNECT: '"+SOCKET_ZONE_CONNECT+"',\n" +
                   "SOCKET_ZONE_MAP_CONNECT: '"+SOCKET_ZONE_MAP_CONNECT+"',\n" +
                   "SOCKET_FEED_CONNECT: '"+SOCKET_FEED_CONNECT+"'\n" +
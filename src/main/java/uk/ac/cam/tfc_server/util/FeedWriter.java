@@ -0,0 +1,390 @@
+package uk.ac.cam.tfc_server.util;
+
+// FeedWriter.java
+//
+// The persistence stage of FeedHandler and FeedScraper, storing each feed exactly as received in
+//   data_bin/YYYY/MM/DD/<filename><suffix>   (or appended to the day archive YYYY/MM/DD.pack, see BinArchive)
+//                                            and indexed in the day index YYYY/MM/DD.idx (see BinIndex)
+//   data_cache/YYYY/MM/DD/<filename><suffix> (if data_cache is given)
+//   data_monitor/<filename><suffix>          (if data_monitor is given) replacing any prior file of that suffix
+//
+// write() only queues the feed: all the file operations of a feed are done by one blocking task on a worker
+// thread, one feed at a time in the order received, so the receiving handler never waits for the disk
+// (though it can be given a handler to be called when the feed has been written). With sync, the data_bin
+// file (and its directory) or archive is forced to disk before the feed counts as written, so a feed
+// acknowledged from that handler survives a crash. drain() calls a handler once the feeds queued so far
+// have been written, e.g. before the bin_archive and bin_index are closed.
+//
+//   - directories known to exist are remembered, so a feed normally needs no exists / mkdirs calls
+//   - the data is written once, with the cache and monitor files being hard links to the first file written
+//     (and only written again if the link fails, e.g. the directories are on different filesystems)
+//   - each place is written independently, so a failure writing one (e.g. data_bin being full) does not stop
+//     the others: the cache and monitor files are then written in full rather than linked to the failed file.
+//     The feed has failed if its data_bin write failed, and is counted as 'partial' if only a cache or monitor
+//     write failed
+//   - the monitor file is created as <filename><suffix>.tmp and renamed into place, so a process watching the
+//     directory (e.g. with inotifywait) never sees a partial file, then the previous monitor file is deleted
+//     (the directory is only listed for the first feed, to remove files left by an earlier run)
+//
+// stats() returns the counters and the percentiles of the write latency (from write() to written) since the
+// last call, e.g. for the status heartbeat.
+//
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class FeedWriter
+{
+    public static final int MAX_LATENCY_SAMPLES = 10000; // latencies kept per stats() period
+
+    private final Vertx vertx;
+    private final String data_bin;
+    private final String data_cache;   // or null
+    private final String data_monitor; // or null
+    private final String file_suffix;
+    private final BinArchive.DailyWriter bin_archive; // or null, for individual files
+    private final BinIndex.DailyWriter bin_index;     // or null, for no index
+    private final boolean sync;                       // force the data_bin data to disk for each feed
+
+    // state of the worker task
+    private final HashSet<Path> dirs = new HashSet<Path>(); // directories known to exist
+    private boolean link_failed = false;  // hard links not possible, so files are written
+    private Path monitor_file = null;     // current monitor file, or null before the first feed
+    private Path indexed_file = null;     // the last individual file added to the index
+
+    // counters, updated on the event loop
+    private long feed_count = 0;
+    private long failed_count = 0;
+    private long partial_count = 0; // feeds written to data_bin, but with a failed cache or monitor write
+    private int queued = 0;
+    private long[] latency_us = new long[MAX_LATENCY_SAMPLES];
+    private int latency_count = 0;
+
+    public FeedWriter(Vertx vertx, String data_bin, String data_cache, String data_monitor, String file_suffix,
+                      BinArchive.DailyWriter bin_archive, BinIndex.DailyWriter bin_index)
+    {
+        this(vertx, data_bin, data_cache, data_monitor, file_suffix, bin_archive, bin_index, false);
+    }
+
+    public FeedWriter(Vertx vertx, String data_bin, String data_cache, String data_monitor, String file_suffix,
+                      BinArchive.DailyWriter bin_archive, BinIndex.DailyWriter bin_index, boolean sync)
+    {
+        this.vertx = vertx;
+        this.data_bin = data_bin;
+        this.data_cache = data_cache;
+        this.data_monitor = data_monitor;
+        this.file_suffix = file_suffix;
+        this.bin_archive = bin_archive;
+        this.bin_index = bin_index;
+        this.sync = sync;
+    }
+
+    // queue the feed data buf, received at utc_ts, to be written as filepath (YYYY/MM/DD) / filename (without suffix)
+    public void write(Buffer buf, String filepath, long utc_ts, String filename)
+    {
+        write(buf, filepath, utc_ts, filename, null);
+    }
+
+    // as write() above, calling done (if not null) on the event loop when the feed has been written, or has failed
+    public void write(Buffer buf, String filepath, long utc_ts, String filename, Handler<AsyncResult<Void>> done)
+    {
+        long queued_ns = System.nanoTime();
+        queued++;
+
+        vertx.<Integer>executeBlocking(fut -> {
+                try
+                    {
+                        fut.complete(write_feed(buf, filepath, utc_ts, filename));
+                    }
+                catch (Exception e)
+                    {
+                        fut.fail(e);
+                    }
+            }, true, result -> {
+                queued--;
+                if (latency_count < latency_us.length)
+                    {
+                        latency_us[latency_count++] = (System.nanoTime() - queued_ns) / 1000;
+                    }
+                if (result.succeeded())
+                    {
+                        feed_count++;
+                        if (result.result() > 0)
+                            {
+                                partial_count++;
+                            }
+                    }
+                else
+                    {
+                        failed_count++;
+                        Log.log_err("FeedWriter: error writing "+filepath+"/"+filename+file_suffix+" "+result.cause());
+                    }
+                if (done != null)
+                    {
+                        done.handle(result.succeeded() ? Future.succeededFuture() : Future.failedFuture(result.cause()));
+                    }
+            });
+    }
+
+    // BLOCKING: write the feed to each place, returning the number of cache and monitor writes that failed,
+    // or throwing the exception of the data_bin write if that failed (having still tried the others)
+    private int write_feed(Buffer buf, String filepath, long utc_ts, String filename) throws IOException
+    {
+        String name = filename + file_suffix;
+        byte[] data = buf.getBytes();
+
+        Path written = null; // a file holding the data, for the others to be linked to
+
+        IOException bin_error = null;
+        int failed_copies = 0;
+
+        try
+            {
+                if (bin_archive != null)
+                    {
+                        long offset = bin_archive.append(filepath, utc_ts, filename, buf.getByteBuf().nioBuffer());
+                        if (sync)
+                            {
+                                bin_archive.force();
+                            }
+                        if (bin_index != null)
+                            {
+                                bin_index.append(filepath, utc_ts, offset, filename);
+                            }
+                    }
+                else
+                    {
+                        Path bin_file = Paths.get(data_bin, filepath, name);
+                        write_file(bin_file, data);
+                        if (sync)
+                            {
+                                force(bin_file);
+                            }
+                        written = bin_file;
+                        // a second feed in the same second replaces the file, which is already indexed
+                        if (bin_index != null && !bin_file.equals(indexed_file))
+                            {
+                                bin_index.append(filepath, utc_ts, -1, name);
+                                indexed_file = bin_file;
+                            }
+                    }
+            }
+        catch (IOException e)
+            {
+                bin_error = e;
+            }
+
+        if (data_cache != null)
+            {
+                Path cache_file = Paths.get(data_cache, filepath, name);
+                try
+                    {
+                        link_or_write(written, cache_file, data);
+                        if (written == null)
+                            {
+                                written = cache_file;
+                            }
+                    }
+                catch (IOException e)
+                    {
+                        failed_copies++;
+                        Log.log_err("FeedWriter: error writing "+cache_file+" "+e);
+                    }
+            }
+
+        if (data_monitor != null)
+            {
+                try
+                    {
+                        write_monitor(written, name, data);
+                    }
+                catch (IOException e)
+                    {
+                        failed_copies++;
+                        Log.log_err("FeedWriter: error writing monitor file "+name+" "+e);
+                    }
+            }
+
+        if (bin_error != null)
+            {
+                throw bin_error;
+            }
+        return failed_copies;
+    }
+
+    // replace the monitor file with name, linked to written (if not null) or holding data
+    private void write_monitor(Path written, String name, byte[] data) throws IOException
+    {
+        Path new_monitor_file = Paths.get(data_monitor, name);
+        Path tmp_file = Paths.get(data_monitor, name + ".tmp");
+        link_or_write(written, tmp_file, data);
+        Files.move(tmp_file, new_monitor_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the rename does nothing if both are already links to the same file (two feeds in the same second)
+        Files.deleteIfExists(tmp_file);
+
+        if (monitor_file == null)
+            {
+                delete_monitor_files(new_monitor_file);
+            }
+        else if (!monitor_file.equals(new_monitor_file))
+            {
+                Files.deleteIfExists(monitor_file);
+            }
+        monitor_file = new_monitor_file;
+    }
+
+    // create dir if it is not known to exist
+    private void ensure_dir(Path dir) throws IOException
+    {
+        if (!dirs.contains(dir))
+            {
+                Files.createDirectories(dir);
+                dirs.add(dir);
+            }
+    }
+
+    // write data to file, creating its directory if needed
+    private void write_file(Path file, byte[] data) throws IOException
+    {
+        ensure_dir(file.getParent());
+        try
+            {
+                Files.write(file, data);
+            }
+        catch (NoSuchFileException e)
+            {
+                // the directory has been removed since it was created
+                dirs.remove(file.getParent());
+                ensure_dir(file.getParent());
+                Files.write(file, data);
+            }
+    }
+
+    // force file, and the directory entry of the file, to disk
+    private void force(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+            {
+                channel.force(true);
+            }
+        try (FileChannel channel = FileChannel.open(file.getParent(), StandardOpenOption.READ))
+            {
+                channel.force(true);
+            }
+        catch (IOException e)
+            {
+                // a directory cannot be forced on this platform
+            }
+    }
+
+    // make file a hard link to source (if not null), or else write data to it
+    private void link_or_write(Path source, Path file, byte[] data) throws IOException
+    {
+        if (source == null || link_failed)
+            {
+                write_file(file, data);
+                return;
+            }
+        ensure_dir(file.getParent());
+        try
+            {
+                try
+                    {
+                        Files.createLink(file, source);
+                    }
+                catch (FileAlreadyExistsException e)
+                    {
+                        Files.delete(file);
+                        Files.createLink(file, source);
+                    }
+                catch (NoSuchFileException e)
+                    {
+                        dirs.remove(file.getParent());
+                        ensure_dir(file.getParent());
+                        Files.createLink(file, source);
+                    }
+            }
+        catch (IOException | UnsupportedOperationException e)
+            {
+                Log.log_err("FeedWriter: cannot link "+file+" to "+source+" ("+e+"), writing files instead");
+                link_failed = true;
+                write_file(file, data);
+            }
+    }
+
+    // delete the files in data_monitor with file_suffix, other than keep
+    private void delete_monitor_files(Path keep) throws IOException
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(data_monitor), "*"+file_suffix))
+            {
+                for (Path file : files)
+                    {
+                        if (!file.equals(keep))
+                            {
+                                Files.deleteIfExists(file);
+                            }
+                    }
+            }
+    }
+
+    // call done on the event loop when the feeds queued so far have been written (or have failed)
+    public void drain(Handler<AsyncResult<Void>> done)
+    {
+        vertx.<Void>executeBlocking(fut -> fut.complete(), true, done);
+    }
+
+    // the number of feeds waiting to be written
+    public int queued()
+    {
+        return queued;
+    }
+
+    // the counters, and the write latency percentiles (ms) since the last call
+    public JsonObject stats()
+    {
+        long[] latencies = Arrays.copyOf(latency_us, latency_count);
+        Arrays.sort(latencies);
+        latency_count = 0;
+
+        JsonObject stats = new JsonObject();
+        stats.put("feeds", feed_count);
+        stats.put("failed", failed_count);
+        stats.put("partial", partial_count);
+        stats.put("queued", queued);
+        stats.put("writes", latencies.length);
+        stats.put("latency_ms_p50", percentile_ms(latencies, 0.5));
+        stats.put("latency_ms_p95", percentile_ms(latencies, 0.95));
+        stats.put("latency_ms_p99", percentile_ms(latencies, 0.99));
+        stats.put("latency_ms_max", percentile_ms(latencies, 1.0));
+        return stats;
+    }
+
+    // nearest-rank percentile p of the sorted latencies (us), in ms to 0.1ms, or 0 if none
+    private static double percentile_ms(long[] sorted, double p)
+    {
+        if (sorted.length == 0)
+            {
+                return 0;
+            }
+        int rank = (int) Math.max(1, Math.ceil(p * sorted.length));
+        return Math.round(sorted[rank - 1] / 100.0) / 10.0;
+    }
+
+} // end class FeedWriter
@@ -4,6 +4,7 @@ import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
@@ -12,30 +13,52 @@ import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
 import com.google.transit.realtime.GtfsRealtime.Position;
 
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 public class GTFS {
 
+  // Decode a GTFS-realtime protobuf file into the feed JsonObject { ..., "entities": [ <position record>, ... ] }
   public static JsonObject buf_to_json(Buffer buf, String filename, String filepath) throws Exception
   {
-      FeedMessage feed = FeedMessage.parseFrom(buf.getBytes());
-      return feed_to_json_object(feed, filename, filepath);
+      return buf_to_batch(buf, filename, filepath).to_json();
   }
 
-  private static JsonObject feed_to_json_object(FeedMessage feed, String filename, String filepath)
+  // Decode a GTFS-realtime protobuf file directly into a PositionBatch, without building any JSON
+  public static PositionBatch buf_to_batch(Buffer buf, String filename, String filepath) throws Exception
   {
-    JsonObject feed_json_object = new JsonObject(); // object to hold entire message
+      return buf_to_batch(buf.getByteBuf().nioBuffer(), filename, filepath);
+  }
 
-    feed_json_object.put("filename",filename);
-    feed_json_object.put("filepath",filepath);
-    
-    JsonArray ja = new JsonArray(); // array to hold GTFS 'entities' i.e. position records
+  // As above, for the protobuf data between position() and limit() of a ByteBuffer, e.g. a memory-mapped
+  // file or BinArchive entry. The data is parsed in place, i.e. not first copied into a byte[] of
+  // the whole file (CodedInputStream.newInstance(ByteBuffer) would copy a direct buffer).
+  public static PositionBatch buf_to_batch(ByteBuffer buf, String filename, String filepath) throws Exception
+  {
+      CodedInputStream input;
+      if (buf.hasArray())
+          {
+              input = CodedInputStream.newInstance(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+          }
+      else
+          {
+              input = CodedInputStream.newInstance(new ByteBufferInputStream(buf.duplicate()));
+          }
+      FeedMessage feed = FeedMessage.parseFrom(input);
+      return feed_to_batch(feed, filename, filepath);
+  }
 
-    Long received_timestamp = System.currentTimeMillis() / 1000L; // note when feed was received
+  public static PositionBatch feed_to_batch(FeedMessage feed, String filename, String filepath)
+  {
+    PositionBatch batch = new PositionBatch(filename, filepath, feed.getEntityCount());
 
     // add (sent) timestamp as feed.timestamp (i.e. we are not using a 'header' sub-object
     FeedHeader header = feed.getHeader();
     if (header.hasTimestamp())
         {
-            feed_json_object.put("timestamp", header.getTimestamp());
+            batch.timestamp = header.getTimestamp();
         }
             
     for (FeedEntity entity : feed.getEntityList())
@@ -45,73 +68,105 @@ public class GTFS {
             if (entity.hasVehicle())
                 {
                     VehiclePosition vehicle_pos = entity.getVehicle();
-                    //PositionRecord pos_record = new PositionRecord();
-                    JsonObject jo = new JsonObject();
 
-                    jo.put("received_timestamp",received_timestamp);
-                    
+                    int i = batch.size;
+
+                    // row i may hold part of an earlier entity that failed to decode
+                    batch.clear_row(i);
+
                     if (vehicle_pos.hasVehicle())
                         {
                             VehicleDescriptor vehicle_desc = vehicle_pos.getVehicle();
                             if (vehicle_desc.hasId())
                                 {
-                                    jo.put("vehicle_id",vehicle_desc.getId());
+                                    batch.vehicle_id[i] = vehicle_desc.getId();
                                 }
                             if (vehicle_desc.hasLabel())
                                 {
-                                    jo.put("label",vehicle_desc.getLabel());
+                                    batch.label[i] = vehicle_desc.getLabel();
                                 }
                         }
                     if (vehicle_pos.hasPosition())
                         {
                             Position vpos = vehicle_pos.getPosition();
-                            jo.put("latitude", vpos.getLatitude());
-                            jo.put("longitude", vpos.getLongitude());
+                            batch.has_position[i] = true;
+                            batch.latitude[i] = vpos.getLatitude();
+                            batch.longitude[i] = vpos.getLongitude();
                             if (vpos.hasBearing())
                                 {
-                                    jo.put("bearing",vpos.getBearing());
+                                    batch.has_bearing[i] = true;
+                                    batch.bearing[i] = vpos.getBearing();
                                 }
-                            jo.put("timestamp", vehicle_pos.getTimestamp());
                         }
                     if (vehicle_pos.hasTrip())
                         {
                             TripDescriptor trip = vehicle_pos.getTrip();
                             if (trip.hasTripId())
                                 {
-                                    jo.put("trip_id",trip.getTripId());
+                                    batch.trip_id[i] = trip.getTripId();
                                 }
                             if (trip.hasRouteId())
                                 {
-                                    jo.put("route_id",trip.getRouteId());
+                                    batch.route_id[i] = trip.getRouteId();
                                 }
                         }
                     if (vehicle_pos.hasCurrentStopSequence())
                         {
-                            jo.put("current_stop_sequence",vehicle_pos.getCurrentStopSequence());
+                            batch.has_current_stop_sequence[i] = true;
+                            batch.current_stop_sequence[i] = vehicle_pos.getCurrentStopSequence();
                         }
                     if (vehicle_pos.hasStopId())
                         {
-                            jo.put("stop_id",vehicle_pos.getStopId());
+                            batch.stop_id[i] = vehicle_pos.getStopId();
                         }
-                    if (vehicle_pos.hasTimestamp())
-                        {
-                            jo.put("timestamp",vehicle_pos.getTimestamp());
-                        }
-
-                    ja.add(jo);
+                    batch.has_timestamp[i] = vehicle_pos.hasTimestamp();
+                    batch.position_timestamp[i] = vehicle_pos.getTimestamp();
 
+                    batch.size++;
                 }
                 } // end try
             catch (Exception e)
                 {
-                    System.err.println("FeedPlayer exception parsing position record");
+                    System.err.println("GTFS exception parsing position record");
                 }
         }
 
-    // finally... add JsonArray of feed 'FeedEntities' to feed_json_object
-    feed_json_object.put("entities", ja);
-    
-    return feed_json_object;
-  } // end feed_to_json_array()
+    return batch;
+  } // end feed_to_batch()
+
+  // InputStream reading a (e.g. memory-mapped) ByteBuffer, so CodedInputStream reads it in small chunks
+  private static class ByteBufferInputStream extends InputStream
+  {
+      private ByteBuffer buf;
+
+      ByteBufferInputStream(ByteBuffer buf)
+      {
+          this.buf = buf;
+      }
+
+      @Override
+      public int read()
+      {
+          return buf.hasRemaining() ? buf.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] bytes, int off, int len)
+      {
+          if (!buf.hasRemaining())
+              {
+                  return -1;
+              }
+          len = Math.min(len, buf.remaining());
+          buf.get(bytes, off, len);
+          return len;
+      }
+
+      @Override
+      public int available()
+      {
+          return buf.remaining();
+      }
+  } // end class ByteBufferInputStream
 
 } // end GTFS
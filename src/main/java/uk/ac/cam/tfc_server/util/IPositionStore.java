@@ -0,0 +1,25 @@
+package uk.ac.cam.tfc_server.util;
+
+// IPositionStore.java
+//
+// Defines IPositionStore interface, the query surface of a store of vehicle position records
+// (as in the "entities" of a FeedHandler feed message), served over http by PositionAPI.
+//
+// Implemented by the Cassandra tables written by FeedDB (feeddb.CassandraPositionStore), which are
+// partitioned by (vehicle_id, day) and (route_id, hour) so a query reads a bounded number of partitions.
+// Also implemented by positiondb.PositionLog, an embedded log-structured store in a local directory, whose
+// segments are indexed by vehicle, route and time range, for a PositionDB without a Cassandra cluster.
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+
+public interface IPositionStore {
+
+    // the position records of vehicle_id with start_ts <= timestamp < end_ts, in timestamp order
+    public void vehicle_positions(String vehicle_id, long start_ts, long end_ts, Handler<AsyncResult<JsonArray>> handler);
+
+    // the position records of route_id with start_ts <= timestamp < end_ts, in timestamp order
+    public void route_positions(String route_id, long start_ts, long end_ts, Handler<AsyncResult<JsonArray>> handler);
+
+}
@@ -0,0 +1,100 @@
+package uk.ac.cam.tfc_server.util;
+
+// PositionAPI.java
+//
+// serves the position records of an IPositionStore via http / json, e.g.
+//   /api/feeddb/vehicle/13028?start_ts=1465628400&end_ts=1465714800
+//   /api/feeddb/route/CAM-U?start_ts=1465628400&end_ts=1465632000
+// returning { "module_name", "module_id", "request_data": [ position records in timestamp order ] }
+//
+// The time range (start_ts <= timestamp < end_ts, seconds) of a request is limited to MAX_VEHICLE_SECONDS
+// for a vehicle and MAX_ROUTE_SECONDS for a route, so each request reads a bounded amount of data.
+//
+
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+public class PositionAPI {
+
+    public static final long MAX_VEHICLE_SECONDS = 31 * 24 * 3600; // a month of one vehicle
+    public static final long MAX_ROUTE_SECONDS = 7 * 24 * 3600;    // a week of one route
+
+    private final String module_name;
+    private final String module_id;
+    private final IPositionStore store;
+
+    public PositionAPI(Router router, String module_name, String module_id, IPositionStore store)
+    {
+        this.module_name = module_name;
+        this.module_id = module_id;
+        this.store = store;
+
+        // VEHICLE API e.g. /api/feeddb/vehicle/13028?start_ts=1465628400&end_ts=1465714800
+
+        router.route(HttpMethod.GET, "/api/"+module_name+"/vehicle/:vehicle_id").handler( ctx -> {
+                String vehicle_id = ctx.request().getParam("vehicle_id");
+                long[] range = time_range(ctx, MAX_VEHICLE_SECONDS);
+                if (range != null)
+                {
+                    store.vehicle_positions(vehicle_id, range[0], range[1], res -> send_positions(ctx, res.succeeded(),
+                                                                                                   res.result(), res.cause()));
+                }
+            });
+
+        // ROUTE API e.g. /api/feeddb/route/CAM-U?start_ts=1465628400&end_ts=1465632000
+
+        router.route(HttpMethod.GET, "/api/"+module_name+"/route/:route_id").handler( ctx -> {
+                String route_id = ctx.request().getParam("route_id");
+                long[] range = time_range(ctx, MAX_ROUTE_SECONDS);
+                if (range != null)
+                {
+                    store.route_positions(route_id, range[0], range[1], res -> send_positions(ctx, res.succeeded(),
+                                                                                               res.result(), res.cause()));
+                }
+            });
+    }
+
+    // the { start_ts, end_ts } of the request, or null (with a 400 response sent) if they are missing
+    // or the range is empty or longer than max_seconds
+    private static long[] time_range(RoutingContext ctx, long max_seconds)
+    {
+        HttpServerRequest request = ctx.request();
+        try
+            {
+                long start_ts = Long.parseLong(request.getParam("start_ts"));
+                long end_ts = Long.parseLong(request.getParam("end_ts"));
+                if (end_ts > start_ts && end_ts - start_ts <= max_seconds)
+                    {
+                        return new long[] { start_ts, end_ts };
+                    }
+            }
+        catch (Exception e)
+            {
+            }
+        ctx.response().setStatusCode(400).end("bad query parameters");
+        return null;
+    }
+
+    private void send_positions(RoutingContext ctx, boolean succeeded, JsonArray positions, Throwable cause)
+    {
+        if (!succeeded)
+            {
+                Log.log_err("PositionAPI."+module_id+": query "+ctx.request().uri()+" failed "+cause);
+                ctx.response().setStatusCode(500).end();
+                return;
+            }
+
+        JsonObject jo = new JsonObject();
+        jo.put("module_name", module_name);
+        jo.put("module_id", module_id);
+        jo.put("request_data", positions);
+
+        ctx.response().putHeader("content-type", "text/plain");
+        ctx.response().end(jo.toString());
+    }
+
+} // end class PositionAPI
@@ -0,0 +1,836 @@
+package uk.ac.cam.tfc_server.util;
+
+// TransitColumns.java
+//
+// Columnar, block-compressed storage of zone transit messages (zone_completion, zone_entry, zone_exit ...),
+// as written by a MsgFiler / BatcherWorker filer with "store_mode": "columnar", e.g.
+//   data_zone/YYYY/MM/DD/<zone_id>_YYYY-MM-DD.col
+// instead of the newline-delimited JSON of "store_mode": "append", at a small fraction of the size.
+//
+// The file is an append-only sequence of self-contained blocks:
+//   int    BLOCK_MAGIC
+//   int    count        number of messages in the block
+//   long   min_ts, max_ts
+//   int    length of the uncompressed columns
+//   int    length of the compressed columns
+//   int    CRC32 of the compressed columns
+//   then the Deflate compressed columns:
+//     5 dictionaries (module_name, module_id, msg_type, vehicle_id, route_id), each
+//       varint size, then the strings (writeUTF), index 0 being null
+//     the columns, each 'count' values:
+//       module_name, module_id, msg_type, vehicle_id, route_id  varint dictionary index
+//       flags       byte, FLAG_DURATION | FLAG_TS_DELTA, i.e. whether the message has that field
+//       ts          zigzag varint delta from the previous ts (the first from min_ts)
+//       duration    zigzag varint (0 if absent)
+//       ts_delta    zigzag varint (0 if absent)
+//
+// The min_ts / max_ts in each block header let a Reader skip blocks outside a time window without
+// inflating them. A truncated or corrupt final block (e.g. a crash part-way through a write) ends
+// the scan, and is dropped by the next writer to open the file (see valid_length()).
+//
+// A live writer (FilerWriterPool) keeps the final block open until it holds BLOCK_SIZE messages, so
+// the blocks are large (and the dictionaries shared) however often the writer flushes. The messages
+// of the open block are appended as JSON lines to a side log <file>.col.tail, which starts with the
+// file position of the open block ("#<position>"). The open block is encoded into the file only when
+// it is sealed or the writer closes the file, so the file may hold an encoded copy of the first messages
+// of the open block, and a Reader returns the messages of the side log beyond that copy after the blocks
+// of the file. A reader can also find the final block part-way through being rewritten, which ends the
+// scan of the blocks, the side log then being read in full.
+//
+// Only the fields above are stored, which are all the fields of the zone messages, so each message
+// is returned (by Transit.to_json()) exactly as it was filed.
+//
+// Existing newline-delimited JSON transit files can be converted with
+//   java -cp tfc_server.jar uk.ac.cam.tfc_server.util.TransitColumns <file.txt> ...
+// which writes <file>.col alongside each, leaving the .txt in place.
+//
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class TransitColumns
+{
+    public static final String SUFFIX = ".col";
+
+    public static final String TAIL_SUFFIX = ".tail"; // side log of the open block, e.g. <file>.col.tail
+
+    public static final int BLOCK_SIZE = 4096; // messages per block written by a writer
+
+    private static final int BLOCK_MAGIC = 0x54464354; // "TFCT"
+
+    private static final int BLOCK_HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    private static final int FLAG_DURATION = 1;
+    private static final int FLAG_TS_DELTA = 2;
+
+    // the column path for a transit file path, e.g. "zone/2016/06/11/east_road_in_2016-06-11.txt" ->
+    // "zone/2016/06/11/east_road_in_2016-06-11.col"
+    public static String column_path(String path)
+    {
+        int dot = path.lastIndexOf('.');
+        int slash = path.lastIndexOf('/');
+        return (dot > slash ? path.substring(0, dot) : path) + SUFFIX;
+    }
+
+    //*************************************************************************************
+    // Class Transit
+    //*************************************************************************************
+
+    // A zone transit message read from a file
+    public static class Transit
+    {
+        public String module_name;
+        public String module_id;
+        public String msg_type;
+        public String vehicle_id;
+        public String route_id;
+        public long ts;
+        public boolean has_duration;
+        public long duration;
+        public boolean has_ts_delta;
+        public long ts_delta;
+
+        // the Transit of a zone message, e.g. read from a newline-delimited JSON file
+        public static Transit from_json(JsonObject msg)
+        {
+            Transit transit = new Transit();
+            transit.module_name = msg.getString("module_name");
+            transit.module_id = msg.getString("module_id");
+            transit.msg_type = msg.getString("msg_type");
+            transit.vehicle_id = msg.getString("vehicle_id");
+            transit.route_id = msg.getString("route_id");
+            transit.ts = msg.getLong("ts", 0L);
+            Long duration = msg.getLong("duration");
+            transit.has_duration = duration != null;
+            transit.duration = duration == null ? 0 : duration;
+            Long ts_delta = msg.getLong("ts_delta");
+            transit.has_ts_delta = ts_delta != null;
+            transit.ts_delta = ts_delta == null ? 0 : ts_delta;
+            return transit;
+        }
+
+        // the message as originally filed
+        public JsonObject to_json()
+        {
+            JsonObject msg = new JsonObject();
+            msg.put("module_name", module_name);
+            msg.put("module_id", module_id);
+            msg.put("msg_type", msg_type);
+            msg.put("vehicle_id", vehicle_id);
+            msg.put("route_id", route_id);
+            msg.put("ts", ts);
+            if (has_duration)
+                {
+                    msg.put("duration", duration);
+                }
+            if (has_ts_delta)
+                {
+                    msg.put("ts_delta", ts_delta);
+                }
+            return msg;
+        }
+    }
+
+    //*************************************************************************************
+    // Class Block
+    //*************************************************************************************
+
+    // The messages buffered by a writer for the next block, held as columns
+    public static class Block
+    {
+        private Dictionary module_names = new Dictionary();
+        private Dictionary module_ids = new Dictionary();
+        private Dictionary msg_types = new Dictionary();
+        private Dictionary vehicle_ids = new Dictionary();
+        private Dictionary route_ids = new Dictionary();
+
+        private int count = 0;
+
+        private int[] module_name = new int[64];
+        private int[] module_id = new int[64];
+        private int[] msg_type = new int[64];
+        private int[] vehicle_id = new int[64];
+        private int[] route_id = new int[64];
+        private byte[] flags = new byte[64];
+        private long[] ts = new long[64];
+        private long[] duration = new long[64];
+        private long[] ts_delta = new long[64];
+
+        private long min_ts = Long.MAX_VALUE;
+        private long max_ts = Long.MIN_VALUE;
+
+        public int count()
+        {
+            return count;
+        }
+
+        public void add(JsonObject msg)
+        {
+            if (count == ts.length)
+                {
+                    grow();
+                }
+
+            module_name[count] = module_names.index(msg.getString("module_name"));
+            module_id[count] = module_ids.index(msg.getString("module_id"));
+            msg_type[count] = msg_types.index(msg.getString("msg_type"));
+            vehicle_id[count] = vehicle_ids.index(msg.getString("vehicle_id"));
+            route_id[count] = route_ids.index(msg.getString("route_id"));
+
+            long t = msg.getLong("ts", 0L);
+            ts[count] = t;
+            min_ts = Math.min(min_ts, t);
+            max_ts = Math.max(max_ts, t);
+
+            int f = 0;
+            Long d = msg.getLong("duration");
+            if (d != null)
+                {
+                    f |= FLAG_DURATION;
+                    duration[count] = d;
+                }
+            else
+                {
+                    duration[count] = 0;
+                }
+            Long td = msg.getLong("ts_delta");
+            if (td != null)
+                {
+                    f |= FLAG_TS_DELTA;
+                    ts_delta[count] = td;
+                }
+            else
+                {
+                    ts_delta[count] = 0;
+                }
+            flags[count] = (byte) f;
+
+            count++;
+        }
+
+        private void grow()
+        {
+            int n = ts.length * 2;
+            module_name = Arrays.copyOf(module_name, n);
+            module_id = Arrays.copyOf(module_id, n);
+            msg_type = Arrays.copyOf(msg_type, n);
+            vehicle_id = Arrays.copyOf(vehicle_id, n);
+            route_id = Arrays.copyOf(route_id, n);
+            flags = Arrays.copyOf(flags, n);
+            ts = Arrays.copyOf(ts, n);
+            duration = Arrays.copyOf(duration, n);
+            ts_delta = Arrays.copyOf(ts_delta, n);
+        }
+
+        // return the encoded block (header and compressed columns), leaving the messages in the block
+        public ByteBuffer encode() throws IOException
+        {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(count * 8 + 256);
+            DataOutputStream out = new DataOutputStream(raw);
+
+            module_names.write(out);
+            module_ids.write(out);
+            msg_types.write(out);
+            vehicle_ids.write(out);
+            route_ids.write(out);
+
+            for (int i=0; i<count; i++) write_varint(out, module_name[i]);
+            for (int i=0; i<count; i++) write_varint(out, module_id[i]);
+            for (int i=0; i<count; i++) write_varint(out, msg_type[i]);
+            for (int i=0; i<count; i++) write_varint(out, vehicle_id[i]);
+            for (int i=0; i<count; i++) write_varint(out, route_id[i]);
+            out.write(flags, 0, count);
+            long prev_ts = min_ts;
+            for (int i=0; i<count; i++)
+                {
+                    write_varint(out, zigzag(ts[i] - prev_ts));
+                    prev_ts = ts[i];
+                }
+            for (int i=0; i<count; i++) write_varint(out, zigzag(duration[i]));
+            for (int i=0; i<count; i++) write_varint(out, zigzag(ts_delta[i]));
+            out.flush();
+
+            byte[] raw_bytes = raw.toByteArray();
+
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            deflater.setInput(raw_bytes);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw_bytes.length / 4 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished())
+                {
+                    int n = deflater.deflate(chunk);
+                    compressed.write(chunk, 0, n);
+                }
+            deflater.end();
+            byte[] compressed_bytes = compressed.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(compressed_bytes);
+
+            ByteBuffer buf = ByteBuffer.allocate(BLOCK_HEADER_SIZE + compressed_bytes.length);
+            buf.putInt(BLOCK_MAGIC);
+            buf.putInt(count);
+            buf.putLong(min_ts);
+            buf.putLong(max_ts);
+            buf.putInt(raw_bytes.length);
+            buf.putInt(compressed_bytes.length);
+            buf.putInt((int) crc.getValue());
+            buf.put(compressed_bytes);
+            buf.flip();
+
+            return buf;
+        }
+
+        // reset the block to empty
+        public void clear()
+        {
+            module_names = new Dictionary();
+            module_ids = new Dictionary();
+            msg_types = new Dictionary();
+            vehicle_ids = new Dictionary();
+            route_ids = new Dictionary();
+            count = 0;
+            min_ts = Long.MAX_VALUE;
+            max_ts = Long.MIN_VALUE;
+        }
+    } // end class Block
+
+    // strings of a column, index 0 being null
+    private static class Dictionary
+    {
+        private HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+        private ArrayList<String> strings = new ArrayList<String>();
+
+        int index(String s)
+        {
+            if (s == null)
+                {
+                    return 0;
+                }
+            Integer i = indexes.get(s);
+            if (i == null)
+                {
+                    strings.add(s);
+                    i = strings.size();
+                    indexes.put(s, i);
+                }
+            return i;
+        }
+
+        void write(DataOutputStream out) throws IOException
+        {
+            write_varint(out, strings.size());
+            for (String s : strings)
+                {
+                    out.writeUTF(s);
+                }
+        }
+
+        static String[] read(DataInputStream in) throws IOException
+        {
+            int n = read_varint(in);
+            String[] strings = new String[n + 1];
+            for (int i=1; i<=n; i++)
+                {
+                    strings[i] = in.readUTF();
+                }
+            return strings;
+        }
+    } // end class Dictionary
+
+    //*************************************************************************************
+    // Reading
+    //*************************************************************************************
+
+    // return the messages of the column file with start_ts <= ts <= finish_ts, in file order
+    public static List<Transit> read(String path, long start_ts, long finish_ts) throws IOException
+    {
+        ArrayList<Transit> transits = new ArrayList<Transit>();
+
+        try (Reader reader = new Reader(path, start_ts, finish_ts))
+            {
+                for (List<Transit> block = reader.next_block(); block != null; block = reader.next_block())
+                    {
+                        transits.addAll(block);
+                    }
+            }
+
+        return transits;
+    }
+
+    // return all the messages of the column file
+    public static List<Transit> read(String path) throws IOException
+    {
+        return read(path, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // return the messages of the column file with start_ts <= ts <= finish_ts, as JsonObjects
+    public static JsonArray read_json(String path, long start_ts, long finish_ts) throws IOException
+    {
+        JsonArray messages = new JsonArray();
+        for (Transit transit : read(path, start_ts, finish_ts))
+            {
+                messages.add(transit.to_json());
+            }
+        return messages;
+    }
+
+    //*************************************************************************************
+    // Class Reader
+    //*************************************************************************************
+
+    // Reads a column file a block at a time, so a large file can be streamed without holding
+    // all its messages in memory.
+    public static class Reader implements Closeable
+    {
+        private String path;
+        private long start_ts;
+        private long finish_ts;
+
+        private FileChannel channel;
+        private long position = 0;
+
+        private ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+
+        private long last_position = -1; // position and count of the last complete block
+        private int last_count = 0;
+        private boolean tail_read = false;
+
+        public Reader(String path, long start_ts, long finish_ts) throws IOException
+        {
+            this.path = path;
+            this.start_ts = start_ts;
+            this.finish_ts = finish_ts;
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        }
+
+        // return the messages with start_ts <= ts <= finish_ts of the next block that has any (the
+        // messages of the side log of the open block being returned as the last), or null at the end
+        public List<Transit> next_block() throws IOException
+        {
+            long size = channel.size();
+
+            while (position + BLOCK_HEADER_SIZE <= size)
+                {
+                    header.clear();
+                    read_fully(channel, header, position);
+                    header.flip();
+
+                    if (header.getInt() != BLOCK_MAGIC)
+                        {
+                            Log.log_err("TransitColumns: bad block at "+position+" in "+path);
+                            return null;
+                        }
+                    int count = header.getInt();
+                    long min_ts = header.getLong();
+                    long max_ts = header.getLong();
+                    int raw_length = header.getInt();
+                    int compressed_length = header.getInt();
+                    int crc_value = header.getInt();
+                    if (compressed_length < 0 || position + BLOCK_HEADER_SIZE + compressed_length > size)
+                        {
+                            // truncated final block
+                            return read_tail();
+                        }
+
+                    long block_position = position;
+                    position += BLOCK_HEADER_SIZE + compressed_length;
+                    last_position = block_position;
+                    last_count = count;
+
+                    if (max_ts < start_ts || min_ts > finish_ts)
+                        {
+                            // no messages in the window
+                            continue;
+                        }
+
+                    ByteBuffer compressed = ByteBuffer.allocate(compressed_length);
+                    read_fully(channel, compressed, block_position + BLOCK_HEADER_SIZE);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(compressed.array());
+                    if ((int) crc.getValue() != crc_value)
+                        {
+                            if (position == size)
+                                {
+                                    // the final block is being rewritten by the writer
+                                    position = block_position;
+                                    return read_tail();
+                                }
+                            Log.log_err("TransitColumns: bad block crc at "+block_position+" in "+path);
+                            return null;
+                        }
+
+                    ArrayList<Transit> transits = new ArrayList<Transit>(count);
+                    decode(compressed.array(), raw_length, count, min_ts, start_ts, finish_ts, transits);
+                    if (transits.size() > 0)
+                        {
+                            return transits;
+                        }
+                }
+            return read_tail();
+        }
+
+        // return the messages in the window of the side log of the open block (if the file has one) that
+        // are not in the encoded copy of the open block, the scan of the blocks having ended at 'position'
+        private List<Transit> read_tail() throws IOException
+        {
+            if (tail_read)
+                {
+                    return null;
+                }
+            tail_read = true;
+
+            byte[] log;
+            try
+                {
+                    log = Files.readAllBytes(Paths.get(path+TAIL_SUFFIX));
+                }
+            catch (NoSuchFileException e)
+                {
+                    return null;
+                }
+
+            int header_end = index_of(log, 0, (byte) '\n');
+            if (log.length < 2 || log[0] != '#' || header_end < 0)
+                {
+                    return null;
+                }
+            long start;
+            try
+                {
+                    start = Long.parseLong(new String(log, 1, header_end - 1, StandardCharsets.UTF_8));
+                }
+            catch (NumberFormatException e)
+                {
+                    return null;
+                }
+
+            // the messages already read from the encoded copy of the open block
+            int skip;
+            if (start == position)
+                {
+                    skip = 0;
+                }
+            else if (start == last_position)
+                {
+                    skip = last_count;
+                }
+            else
+                {
+                    // the side log of a later block (e.g. the writer has since sealed this one)
+                    return null;
+                }
+
+            ArrayList<Transit> transits = new ArrayList<Transit>();
+            int line_start = header_end + 1;
+            for (int line_end = index_of(log, line_start, (byte) '\n'); line_end >= 0;
+                 line_end = index_of(log, line_start, (byte) '\n'))
+                {
+                    if (skip > 0)
+                        {
+                            skip--;
+                        }
+                    else
+                        {
+                            Transit transit = Transit.from_json(new JsonObject(new String(log, line_start,
+                                                                                          line_end - line_start,
+                                                                                          StandardCharsets.UTF_8)));
+                            if (transit.ts >= start_ts && transit.ts <= finish_ts)
+                                {
+                                    transits.add(transit);
+                                }
+                        }
+                    line_start = line_end + 1;
+                }
+            return transits.size() > 0 ? transits : null;
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    } // end class Reader
+
+    private static void read_fully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+    {
+        while (buf.hasRemaining())
+            {
+                int n = channel.read(buf, position);
+                if (n < 0)
+                    {
+                        throw new IOException("TransitColumns: unexpected end of file");
+                    }
+                position += n;
+            }
+    }
+
+    private static void decode(byte[] compressed, int raw_length, int count, long min_ts,
+                               long start_ts, long finish_ts, List<Transit> transits) throws IOException
+    {
+        byte[] raw = new byte[raw_length];
+        Inflater inflater = new Inflater();
+        try
+            {
+                inflater.setInput(compressed);
+                int n = 0;
+                while (n < raw_length && !inflater.finished())
+                    {
+                        n += inflater.inflate(raw, n, raw_length - n);
+                    }
+            }
+        catch (DataFormatException e)
+            {
+                throw new IOException("TransitColumns: bad block", e);
+            }
+        finally
+            {
+                inflater.end();
+            }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+
+        String[] module_names = Dictionary.read(in);
+        String[] module_ids = Dictionary.read(in);
+        String[] msg_types = Dictionary.read(in);
+        String[] vehicle_ids = Dictionary.read(in);
+        String[] route_ids = Dictionary.read(in);
+
+        Transit[] block = new Transit[count];
+        for (int i=0; i<count; i++)
+            {
+                block[i] = new Transit();
+            }
+
+        for (int i=0; i<count; i++) block[i].module_name = module_names[read_varint(in)];
+        for (int i=0; i<count; i++) block[i].module_id = module_ids[read_varint(in)];
+        for (int i=0; i<count; i++) block[i].msg_type = msg_types[read_varint(in)];
+        for (int i=0; i<count; i++) block[i].vehicle_id = vehicle_ids[read_varint(in)];
+        for (int i=0; i<count; i++) block[i].route_id = route_ids[read_varint(in)];
+        for (int i=0; i<count; i++)
+            {
+                int f = in.readByte();
+                block[i].has_duration = (f & FLAG_DURATION) != 0;
+                block[i].has_ts_delta = (f & FLAG_TS_DELTA) != 0;
+            }
+        long ts = min_ts;
+        for (int i=0; i<count; i++)
+            {
+                ts += unzigzag(read_varint_long(in));
+                block[i].ts = ts;
+            }
+        for (int i=0; i<count; i++) block[i].duration = unzigzag(read_varint_long(in));
+        for (int i=0; i<count; i++) block[i].ts_delta = unzigzag(read_varint_long(in));
+
+        for (int i=0; i<count; i++)
+            {
+                if (block[i].ts >= start_ts && block[i].ts <= finish_ts)
+                    {
+                        transits.add(block[i]);
+                    }
+            }
+    }
+
+    private static int index_of(byte[] bytes, int from, byte b)
+    {
+        for (int i=from; i<bytes.length; i++)
+            {
+                if (bytes[i] == b)
+                    {
+                        return i;
+                    }
+            }
+        return -1;
+    }
+
+    // return the message count of the block at position in the file open in channel, if it is
+    // the final complete block of the file's valid_length, otherwise -1
+    public static int final_block_count(FileChannel channel, long position, long valid_length) throws IOException
+    {
+        if (position + BLOCK_HEADER_SIZE > valid_length)
+            {
+                return -1;
+            }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        read_fully(channel, header, position);
+        if (header.getInt(0) != BLOCK_MAGIC ||
+            position + BLOCK_HEADER_SIZE + header.getInt(4 + 4 + 8 + 8 + 4) != valid_length)
+            {
+                return -1;
+            }
+        return header.getInt(4);
+    }
+
+    // return the length of the complete, valid blocks at the start of the file open in channel,
+    // so a writer can drop a partial final block before appending
+    public static long valid_length(FileChannel channel) throws IOException
+    {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        while (position + BLOCK_HEADER_SIZE <= size)
+            {
+                header.clear();
+                while (header.hasRemaining())
+                    {
+                        if (channel.read(header, position + header.position()) < 0)
+                            {
+                                return position;
+                            }
+                    }
+                if (header.getInt(0) != BLOCK_MAGIC)
+                    {
+                        return position;
+                    }
+                int compressed_length = header.getInt(4 + 4 + 8 + 8 + 4);
+                if (compressed_length < 0 || position + BLOCK_HEADER_SIZE + compressed_length > size)
+                    {
+                        return position;
+                    }
+                position += BLOCK_HEADER_SIZE + compressed_length;
+            }
+        return position;
+    }
+
+    //*************************************************************************************
+    // varint encoding
+    //*************************************************************************************
+
+    private static long zigzag(long n)
+    {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n)
+    {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void write_varint(OutputStream out, long n) throws IOException
+    {
+        while ((n & ~0x7FL) != 0)
+            {
+                out.write((int) ((n & 0x7F) | 0x80));
+                n >>>= 7;
+            }
+        out.write((int) n);
+    }
+
+    private static long read_varint_long(InputStream in) throws IOException
+    {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+            {
+                int b = in.read();
+                if (b < 0)
+                    {
+                        throw new IOException("TransitColumns: unexpected end of block");
+                    }
+                n |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    {
+                        return n;
+                    }
+            }
+        throw new IOException("TransitColumns: bad varint");
+    }
+
+    private static int read_varint(InputStream in) throws IOException
+    {
+        return (int) read_varint_long(in);
+    }
+
+    //*************************************************************************************
+    // Converting newline-delimited JSON transit files
+    //*************************************************************************************
+
+    // write the column file for the newline-delimited JSON transit file text_path, returning the message count
+    public static int convert(String text_path, int block_size) throws IOException
+    {
+        String path = column_path(text_path);
+        String tmp_path = path + ".tmp";
+
+        int count = 0;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(tmp_path),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE))
+            {
+                Block block = new Block();
+                for (String line : Files.readAllLines(Paths.get(text_path)))
+                    {
+                        if (line.trim().length() == 0)
+                            {
+                                continue;
+                            }
+                        block.add(new JsonObject(line));
+                        count++;
+                        if (block.count() >= block_size)
+                            {
+                                write_block(channel, block);
+                            }
+                    }
+                if (block.count() > 0)
+                    {
+                        write_block(channel, block);
+                    }
+            }
+        Files.move(Paths.get(tmp_path), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return count;
+    }
+
+    private static void write_block(FileChannel channel, Block block) throws IOException
+    {
+        ByteBuffer buf = block.encode();
+        block.clear();
+        while (buf.hasRemaining())
+            {
+                channel.write(buf);
+            }
+    }
+
+    // TransitColumns <file.txt> ...
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+            {
+                System.err.println("usage: TransitColumns <file.txt> ...");
+                System.exit(1);
+            }
+
+        for (String text_path : args)
+            {
+                int count = convert(text_path, BLOCK_SIZE);
+                System.out.println("TransitColumns: "+column_path(text_path)+" "+count+" messages");
+            }
+    }
+
+} // end TransitColumns
@@ -0,0 +1,159 @@
+package uk.ac.cam.tfc_server.zone;
+
+// VehicleTable.java
+//*************************************************************************************
+// Class VehicleTable
+//*************************************************************************************
+
+// VehicleTable stores the current and previous position of every vehicle seen in a feed.
+// One table is shared by all the ZoneComputes on the same feed (see ZoneSet), so each position
+// record is parsed once and each zone only holds its own (within, start_ts) state per vehicle.
+//
+// Each vehicle_id is given a compact integer id (its row in the table) the first time it is
+// seen, and the vehicle status is held in primitive column arrays indexed by that id, so that
+// updating a vehicle from a position record does not allocate any objects.
+// The columns grow (by doubling) as new vehicles appear.
+
+import io.vertx.core.json.JsonObject;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+
+import java.util.HashMap;
+
+public class VehicleTable {
+
+    private final int INITIAL_CAPACITY = 2048; // initial number of rows (i.e. vehicles)
+
+    private HashMap<String, Integer> ids; // vehicle_id -> row in table
+
+    public int size; // number of vehicles in the table
+
+    // These are attributes that come from the position record
+    public String[] vehicle_id;
+    public String[] route_id;
+    public double[] lat;
+    public double[] lng;
+    public long[]   ts;
+    public double[] prev_lat;
+    public double[] prev_lng;
+    public long[]   prev_ts;
+
+    public boolean[] init; // only true if this position has been initialized but not updated
+
+    public VehicleTable()
+    {
+        ids = new HashMap<String, Integer>();
+        size = 0;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    // return the number of rows currently allocated, i.e. every row is < capacity()
+    public int capacity()
+    {
+        return vehicle_id.length;
+    }
+
+    // Add or update the vehicle in this JSON position record, and return its row
+    public int put(JsonObject position_record)
+    {
+        return put(position_record.getString("vehicle_id"),
+                   position_record.getString("route_id",""),
+                   ((Number) position_record.getValue("timestamp")).longValue(),
+                   ((Number) position_record.getValue("latitude")).doubleValue(),
+                   ((Number) position_record.getValue("longitude")).doubleValue());
+    }
+
+    // Add or update the vehicle in position record i of a PositionBatch, and return its row
+    public int put(PositionBatch batch, int i)
+    {
+        return put(batch.vehicle_id[i],
+                   batch.route_id[i] == null ? "" : batch.route_id[i],
+                   batch.position_timestamp[i],
+                   batch.latitude[i],
+                   batch.longitude[i]);
+    }
+
+    // Add or update a vehicle with a new position, and return its row.
+    // If the vehicle already has a row, its current position is shifted to prev_lat/prev_lng/prev_ts.
+    public int put(String id, String route, long position_ts, double position_lat, double position_lng)
+    {
+        int v = get(id);
+        if (v < 0)
+            {
+                if (size == vehicle_id.length)
+                    {
+                        allocate(size * 2);
+                    }
+
+                v = size++;
+                ids.put(id, v);
+
+                vehicle_id[v] = id;
+                init[v] = true; // will be reset to false when this entry is updated
+            }
+        else
+            {
+                prev_lat[v] = lat[v];
+                prev_lng[v] = lng[v];
+                prev_ts[v] = ts[v];
+
+                init[v] = false;
+            }
+
+        route_id[v] = route;
+        ts[v] = position_ts;
+        lat[v] = position_lat;
+        lng[v] = position_lng;
+
+        return v;
+    }
+
+    // return the row for vehicle_id, or -1 if this vehicle has not been added
+    public int get(String vehicle_id)
+    {
+        Integer v = ids.get(vehicle_id);
+        return v == null ? -1 : v;
+    }
+
+    // (re)allocate the column arrays with the given capacity, keeping existing rows
+    private void allocate(int capacity)
+    {
+        vehicle_id = grow(vehicle_id, capacity);
+        route_id = grow(route_id, capacity);
+        lat = grow(lat, capacity);
+        lng = grow(lng, capacity);
+        ts = grow(ts, capacity);
+        prev_lat = grow(prev_lat, capacity);
+        prev_lng = grow(prev_lng, capacity);
+        prev_ts = grow(prev_ts, capacity);
+        init = grow(init, capacity);
+    }
+
+    private String[] grow(String[] a, int capacity)
+    {
+        String[] b = new String[capacity];
+        if (a != null) System.arraycopy(a, 0, b, 0, size);
+        return b;
+    }
+
+    private double[] grow(double[] a, int capacity)
+    {
+        double[] b = new double[capacity];
+        if (a != null) System.arraycopy(a, 0, b, 0, size);
+        return b;
+    }
+
+    private long[] grow(long[] a, int capacity)
+    {
+        long[] b = new long[capacity];
+        if (a != null) System.arraycopy(a, 0, b, 0, size);
+        return b;
+    }
+
+    private boolean[] grow(boolean[] a, int capacity)
+    {
+        boolean[] b = new boolean[capacity];
+        if (a != null) System.arraycopy(a, 0, b, 0, size);
+        return b;
+    }
+
+} // end class VehicleTable
@@ -58,7 +58,18 @@ package uk.ac.cam.tfc_server.zone;
 //   { "module_name": MODULE_NAME,
 //        "module_id", MODULE_ID),
 //        "msg_type", Constants.ZONE_UPDATE,
-//        "msgs", [ <zone message>, <zone message> ... ]
+//        "msgs", [ <zone message>, <zone message> ... ],
+//        "stats", [ <window stats>, ... ] // as in ZONE_STATS
+//   }
+
+// Every zone.stats_period seconds (default 60, 0 for none), the rolling statistics of the completion
+// durations over the last 5, 15 and 60 minutes (see ZoneStats)
+//   { "module_name": MODULE_NAME,
+//     "module_id": MODULE_ID,
+//     "msg_type": Constants.ZONE_STATS,
+//     "ts": ts, // timestamp of the latest completion, the end of the windows
+//     "stats": [ { "minutes": 5, "count": count, "mean": mean, "median": median, "p85": p85, "p95": p95 },
+//                { "minutes": 15, ... }, { "minutes": 60, ... } ]
 //   }
 
 // *************************************************************************************************
@@ -70,6 +81,8 @@ import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import uk.ac.cam.tfc_server.core.AbstractTFCVerticle;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+import uk.ac.cam.tfc_server.gtfs.PositionBatchCodec;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.IMsgHandler;
 import uk.ac.cam.tfc_server.util.Log;
@@ -203,15 +216,8 @@ public class Zone extends AbstractTFCVerticle {
 
         String ZONE_ADDRESS = request_msg.getString("zone.address");
 
-        JsonObject msg = new JsonObject();
-
-        msg.put("module_name", zone_config.MODULE_NAME); // "zone" don't really need this on ZONE_ADDRESS
-        msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
-        msg.put("msg_type", Constants.ZONE_UPDATE);
-        msg.put("msgs", msg_handlers.get(ZONE_ADDRESS).get_update());
-
-        // Send zone_completed message to common zone.address
-        vertx.eventBus().publish(ZONE_ADDRESS, msg);
+        // Send zone_update message (serialized once per change, see MsgHandler) to common zone.address
+        vertx.eventBus().publish(ZONE_ADDRESS, msg_handlers.get(ZONE_ADDRESS).get_update_msg());
     }
 
     // Zone has received a ZONE_INFO_REQUEST message on the eb.manager eventbus address
@@ -262,12 +268,26 @@ public class Zone extends AbstractTFCVerticle {
 
               msg_handlers.put(ZONE_ADDRESS, mh);
 
+              // publish the rolling completion statistics periodically
+              if (zone_config.STATS_PERIOD > 0)
+                  {
+                      vertx.setPeriodic(zone_config.STATS_PERIOD * 1000L, id -> mh.publish_stats());
+                  }
+
               // set up a handler for the actual vehicle position feed messages
               vertx.eventBus().consumer(ZONE_FEED, eb_message -> {
 
-                  JsonObject feed_message = new JsonObject(eb_message.body().toString());
-
-                  zc.handle_feed(feed_message);
+                  Object body = eb_message.body();
+
+                  // feed may be published as a PositionBatch or as JSON
+                  if (body instanceof PositionBatch)
+                      {
+                          zc.handle_batch((PositionBatch) body);
+                      }
+                  else
+                      {
+                          zc.handle_feed(PositionBatchCodec.json_body(body));
+                      }
               });
           }
     }
@@ -277,49 +297,87 @@ public class Zone extends AbstractTFCVerticle {
     //*************************************************************************************
     
     // Circular buffer to hold completion messages since start of day
-    // Initially buffer fills with elements from buffer[0], buffer[1] etc
-    // and when buffer[SIZE] would be reached 'full' is set to 'true' and the write index is
-    // reset to zero.
-    // So ordered complete set of entries are:
-    // full==false: buffer[0]..buffer[write_buffer-1]
-    // full==true:  buffer[write_buffer].. loop around end to buffer[write_buffer-1]
+    // The messages are held as primitive columns (rather than JsonObjects) in a fixed-size ring,
+    // buffer slots [start], [start+1] .. [start+count-1] (mod SIZE) holding the messages in order.
+    // When the buffer is full the oldest message is overwritten, so add() is O(1).
+    // All the messages are completion messages from this Zone (see ZoneCompute), so module_name,
+    // module_id and msg_type are not stored per message.
     class MsgBuffer {
         int SIZE;
-        JsonArray buffer;
+
+        String[] vehicle_id;
+        String[] route_id;
+        long[] ts;
+        long[] duration;
+        long[] ts_delta;
+
+        int start = 0; // slot of the oldest message
+        int count = 0; // number of messages in the buffer
 
         // initialize the object
         public MsgBuffer(int max_size)
         {
             SIZE = max_size;
-            buffer = new JsonArray();
+            vehicle_id = new String[SIZE];
+            route_id = new String[SIZE];
+            ts = new long[SIZE];
+            duration = new long[SIZE];
+            ts_delta = new long[SIZE];
         }
 
         // add a msg to the buffer
         public void add(JsonObject msg)
         {
-            //remove the first element if we've reached max size
-            if (buffer.size() == SIZE)
+            int i;
+            if (count < SIZE)
+                {
+                    i = (start + count) % SIZE;
+                    count++;
+                }
+            else
                 {
-                    buffer.remove(0);
+                    // overwrite the oldest message
+                    i = start;
+                    start = (start + 1) % SIZE;
                 }
-            buffer.add(msg);
+            vehicle_id[i] = msg.getString("vehicle_id");
+            route_id[i] = msg.getString("route_id");
+            ts[i] = msg.getLong("ts", 0L);
+            duration[i] = msg.getLong("duration", 0L);
+            ts_delta[i] = msg.getLong("ts_delta", 0L);
         }
 
         // reset the buffer to empty
         public void clear()
         {
-            buffer.clear();
+            start = 0;
+            count = 0;
         }
 
         // return the number of messages stored in the buffer
         public int size()
         {
-            return buffer.size();
+            return count;
         }
 
         // return the entire buffer as a JsonArray in the correct order
         public JsonArray json_array()
         {
+            JsonArray buffer = new JsonArray();
+            for (int n=0; n<count; n++)
+                {
+                    int i = (start + n) % SIZE;
+                    JsonObject msg = new JsonObject();
+                    msg.put("module_name", zone_config.MODULE_NAME);
+                    msg.put("module_id", zone_config.MODULE_ID);
+                    msg.put("msg_type", Constants.ZONE_COMPLETION);
+                    msg.put("vehicle_id", vehicle_id[i]);
+                    msg.put("route_id", route_id[i]);
+                    msg.put("ts", ts[i]);
+                    msg.put("duration", duration[i]);
+                    msg.put("ts_delta", ts_delta[i]);
+                    buffer.add(msg);
+                }
             return buffer;
         }
         
@@ -340,12 +398,19 @@ public class Zone extends AbstractTFCVerticle {
 
         MsgBuffer msg_buffer;
 
+        ZoneStats zone_stats;
+
+        // the "msgs" of the ZONE_UPDATE message, serialized when first requested after a change (null => changed)
+        // so a burst of update requests (e.g. browsers reconnecting to Rita) serializes the buffer only once
+        String update_msgs = null;
+
         MsgHandler(String s)
         {
             ZONE_ADDRESS = s;
             
             msg_buffer = new MsgBuffer(Constants.ZONE_BUFFER_SIZE);
             
+            zone_stats = new ZoneStats();
         }
         
         // general handle_msg function, called by ZoneCompute
@@ -355,16 +420,72 @@ public class Zone extends AbstractTFCVerticle {
                 {
                   // accumulate this Completion message in the ring buffer
                   msg_buffer.add(msg);
+                  update_msgs = null;
+                  // and its duration in the rolling statistics
+                  Long duration = msg.getLong("duration");
+                  if (duration != null)
+                      {
+                          zone_stats.add(msg.getLong("ts", 0L), duration);
+                      }
                 }
             //System.out.println("Zone handle_msg called with " + address);
             vertx.eventBus().publish(ZONE_ADDRESS, msg);
         }
 
         // Zone has received a ZONE_UPDATE_REQUEST message on the eb.manager eventbus address
-        // so return a JsonArray containing current message cache
-        public JsonArray get_update()
+        // so return the ZONE_UPDATE message (as a String) containing current message cache
+        // The stats are added fresh on each request, as with zone.stats_clock they move on with the clock.
+        public String get_update_msg()
         {
-            return msg_buffer.json_array();
+            if (update_msgs == null)
+                {
+                    update_msgs = msg_buffer.json_array().encode();
+                }
+
+            JsonObject msg = new JsonObject();
+
+            msg.put("module_name", zone_config.MODULE_NAME); // "zone" don't really need this on ZONE_ADDRESS
+            msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
+            msg.put("msg_type", Constants.ZONE_UPDATE);
+            msg.put("stats", get_stats());
+
+            // splice the cached "msgs" array into the end of the message
+            String head = msg.encode();
+            return head.substring(0, head.length() - 1) + ",\"msgs\":" + update_msgs + "}";
+        }
+
+        // return the current rolling statistics of the completion durations
+        public JsonArray get_stats()
+        {
+            return zone_stats.to_json(stats_end_ts());
+        }
+
+        // the end of the statistics windows, i.e. the latest completion, or the system clock if that is later
+        // and the feed is live (zone.stats_clock)
+        private long stats_end_ts()
+        {
+            long ts = zone_stats.latest_ts();
+            return zone_config.STATS_CLOCK ? Math.max(ts, System.currentTimeMillis() / 1000) : ts;
+        }
+
+        // publish a ZONE_STATS message to ZONE_ADDRESS (if there have been any completions)
+        public void publish_stats()
+        {
+            if (zone_stats.latest_ts() == 0)
+                {
+                    return;
+                }
+
+            JsonObject msg = new JsonObject();
+
+            msg.put("module_name", zone_config.MODULE_NAME);
+            msg.put("module_id", zone_config.MODULE_ID);
+            msg.put("msg_type", Constants.ZONE_STATS);
+            long ts = stats_end_ts();
+            msg.put("ts", ts);
+            msg.put("stats", zone_stats.to_json(ts));
+
+            vertx.eventBus().publish(ZONE_ADDRESS, msg);
         }
 
     } // end class MsgHandler
@@ -7,6 +7,7 @@ package uk.ac.cam.tfc_server.zone;
 //
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.IMsgHandler;
 import uk.ac.cam.tfc_server.util.Log;
@@ -14,8 +15,9 @@ import uk.ac.cam.tfc_server.util.Position;
 
 import java.text.SimpleDateFormat;
 import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.TimeZone;
 
 // time/date crapola
@@ -26,9 +28,14 @@ public class ZoneCompute {
 
     public IMsgHandler msg_handler; // will be called when Zone events occur
 
-    private HashMap<String, Vehicle> vehicles; // dictionary to store vehicle status updated from feed
+    private VehicleTable vehicles; // vehicle positions updated from feed, possibly shared with other zones
+
+    // per-vehicle state for this zone, indexed by VehicleTable row
+    private BitSet within; // bit v set if vehicle v is within this zone at its current position
+    private long[] start_ts; // timestamp of successful start (otherwise 0)
+    private long[] start_ts_delta; // reliability indicator: (ts - prev_ts) at time of start
     
-    private Box box;
+    Box box; // also used by ZoneIndex
 
     private Log logger;
 
@@ -39,12 +46,24 @@ public class ZoneCompute {
     //private HashMap<String, MsgBuffer> zone_msg_buffer; // stores zone completion messages since start of day
 
     public ZoneCompute(ZoneConfig zc, IMsgHandler mh)
+    {
+        this(zc, new VehicleTable(), mh);
+    }
+
+    // Create a ZoneCompute using a VehicleTable shared with other zones on the same feed (see ZoneSet).
+    // The owner of the table is then responsible for updating it, and calling update_vehicle(v).
+    public ZoneCompute(ZoneConfig zc, VehicleTable vt, IMsgHandler mh)
     {
         zone_config = zc;
 
         msg_handler = mh;
 
-        vehicles = new HashMap<String, Vehicle>();
+        vehicles = vt;
+
+        within = new BitSet();
+        start_ts = new long[vehicles.capacity()];
+        start_ts_delta = new long[vehicles.capacity()];
+
         // create box object with boundaries of rectangle that includes this zone polygon
         box = new Box();
         //zone_msg_buffer = new HashMap<String, MsgBuffer>();
@@ -66,39 +85,53 @@ public class ZoneCompute {
         for (int i = 0; i < entities.size(); i++)
             {
               JsonObject position_record = entities.getJsonObject(i);
-              update_vehicle(position_record);
+              update_vehicle(vehicles.put(position_record));
             }
     }
 
-        // Update the vehicles[vehicle_id] record with this feed entry
-    private void update_vehicle(JsonObject position_record)
+    // As handle_feed(), for a feed decoded directly from GTFS protobuf
+    public void handle_batch(PositionBatch batch)
     {
+        for (int i = 0; i < batch.size; i++)
+            {
+              if (batch.has_position[i])
+                  {
+                      update_vehicle(vehicles.put(batch, i));
+                  }
+            }
+    }
 
-        // update Vehicle object for this vehicle_id
-        // shifting earlier location info to prev_position and prev_within
-      String vehicle_id = position_record.getString("vehicle_id");
-      Vehicle v = vehicles.get(vehicle_id);
-      if (v == null)
+    // Update the zone state of vehicle v, after its VehicleTable row has been updated with a
+    // new position record.
+    // When the table is shared (via ZoneSet) this zone may not be called for every position record,
+    // but only those where the current or previous position is inside the zone Box. For the skipped
+    // records the vehicle was outside the zone, so the 'within' bit for the vehicle is still correct.
+    void update_vehicle(int v)
+    {
+      if (v >= start_ts.length)
           {
-              v = new Vehicle(position_record);
-              v.within = inside(v.position);
-              vehicles.put(vehicle_id, v);
-              return; // This is first position record for this vehicle, so just initialize entry
+              start_ts = Arrays.copyOf(start_ts, vehicles.capacity());
+              start_ts_delta = Arrays.copyOf(start_ts_delta, vehicles.capacity());
           }
 
-      // These is existing position record for this vehicle, so update with the latest attributes from feed
-      v.update(position_record);
-      // And set the flag for whether this vehicle is within this Zone
-      v.within = inside(v.position);
+      boolean prev_within = within.get(v);
+      // set the flag for whether this vehicle is within this Zone
+      within.set(v, inside(vehicles.lat[v], vehicles.lng[v]));
+
+      // This is first position record for this vehicle, so just initialize entry
+      if (vehicles.init[v])
+          {
+              return;
+          }
 
       // Error trap: If time between samples appears to have gone backwards, don't use for Zone entry/exit
-      if (v.position.ts <= v.prev_position.ts)
+      if (vehicles.ts[v] <= vehicles.prev_ts[v])
           {
               return;
           }
 
       // Another error trap: if time delta between samples is too large, don't use for Zone entry/exit
-      if (v.position.ts - v.prev_position.ts > TS_DELTA_LIMIT)
+      if (vehicles.ts[v] - vehicles.prev_ts[v] > TS_DELTA_LIMIT)
           {
               return;
           }
@@ -107,20 +140,22 @@ public class ZoneCompute {
       //*************************  This vehicle data is all ready, so do Zone enter/exit logic  ************
       //****************************************************************************************************
 
+      boolean within = this.within.get(v);
+
       // DID VEHICLE ENTER? either via the startline (zone_start) or into the zone some other way (zone_entry)
-      if (v.within && !v.prev_within)
+      if (within && !prev_within)
           {
               // Did vehicle cross start line?
-              Intersect i = start_line(v);
-              if (i.success)
+              double progress = start_line(v);
+              if (progress >= 0)
                   {
                       //debug - we need to set a confidence factor on start/finish times
 
                       // Set start timestamp to timestamp at Intersection with startline
-                      v.start_ts = i.position.ts;
+                      start_ts[v] = progress_ts(v, progress);
                       // calculate 'time delta' within which this start time was calculated
                       // i.e. the difference in timestamps between points when vehicle entered zone
-                      v.start_ts_delta = v.position.ts - v.prev_position.ts;
+                      start_ts_delta[v] = vehicles.ts[v] - vehicles.prev_ts[v];
 
                       // ZONE_START (entry via start line)
                       zone_start(v);
@@ -133,24 +168,24 @@ public class ZoneCompute {
                   }
           }
       // IS VEHICLE TRAVELLING WITHIN ZONE?
-      else if (v.within && v.prev_within)
+      else if (within && prev_within)
           {
               // vehicle is continuing to travel within zone
               //System.out.println("Zone: vehicle_id("+vehicle_id+") inside zone "+ZONE_NAME);
           }
       // HAS VEHICLE EXITTED ZONE? either via the finish line (zone_completion) or not (zone_exit)
-      else if (!v.within && v.prev_within)
+      else if (!within && prev_within)
           {
               // Vehicle has just exitted zone
 
               // did vehicle cross finish line?
-              Intersect i = finish_line(v);
-              if (i.success)
+              double progress = finish_line(v);
+              if (progress >= 0)
                   {
-                      Long finish_ts = i.position.ts;
+                      long finish_ts = progress_ts(v, progress);
                       
                       // if we also have a good entry, then this is a successful COMPLETION
-                      if (v.start_ts>0L)
+                      if (start_ts[v]>0L)
                         {
                             // ZONE_COMPLETION
                             zone_completion(v, finish_ts);
@@ -168,115 +203,102 @@ public class ZoneCompute {
                   }
               
               // Reset the Zone start time for this vehicle
-              v.start_ts = 0L;
-              v.start_ts_delta = 0L;
+              start_ts[v] = 0L;
+              start_ts_delta[v] = 0L;
           }
     }
 
     // return true if Position p is INSIDE the Zone
+    public boolean inside(Position p)
+    {
+        return inside(p.lat, p.lng);
+    }
+
+    // return true if point (lat, lng) is INSIDE the Zone
     // http://stackoverflow.com/questions/13950062/checking-if-a-longitude-latitude-coordinate-resides-inside-a-complex-polygon-in
-    public boolean inside(Position p) {
+    // Uses the edge tables compiled from the zone path by ZoneConfig.compile_path()
+    public boolean inside(double lat, double lng)
+    {
         // easy optimization - return false if position is outside bounding rectangle (box)
-        if (p.lat > box.north || p.lat < box.south || p.lng < box.west || p.lng > box.east)
+        if (lat > box.north || lat < box.south || lng < box.west || lng > box.east)
         return false;
 
-        Position lastPoint = zone_config.PATH.get(zone_config.PATH.size() - 1);
+        // choose the dateline normalisation of the edges appropriate to this point
+        double[] edge_x1 = lng > 0 ? zone_config.EDGE_X1_EAST : zone_config.EDGE_X1_WEST;
+        double[] edge_x2 = lng > 0 ? zone_config.EDGE_X2_EAST : zone_config.EDGE_X2_WEST;
+        double[] edge_lat = zone_config.EDGE_LAT;
+        double[] edge_grad = zone_config.EDGE_GRAD;
+
         boolean isInside = false;
-        double x = p.lng;
-        for (int i=0; i<zone_config.PATH.size(); i++)
+        double x = lng;
+        for (int i=0; i<zone_config.EDGE_COUNT; i++)
         {
-            Position point = zone_config.PATH.get(i);
-            double x1 = lastPoint.lng;
-            double x2 = point.lng;
-            double dx = x2 - x1;
-
-            if (Math.abs(dx) > 180.0)
-            {
-                // we have, most likely, just jumped the dateline.  Normalise the numbers.
-                if (x > 0)
-                {
-                    while (x1 < 0)
-                    x1 += 360;
-                    while (x2 < 0)
-                    x2 += 360;
-                }
-                else
-                {
-                    while (x1 > 0)
-                    x1 -= 360;
-                    while (x2 > 0)
-                    x2 -= 360;
-                }
-                dx = x2 - x1;
-            }
+            double x1 = edge_x1[i];
+            double x2 = edge_x2[i];
 
             if ((x1 <= x && x2 > x) || (x1 >= x && x2 < x))
             {
-                double grad = (point.lat - lastPoint.lat) / dx;
-                double intersectAtLat = lastPoint.lat + ((x - x1) * grad);
+                double intersectAtLat = edge_lat[i] + ((x - x1) * edge_grad[i]);
 
-                if (intersectAtLat > p.lat)
+                if (intersectAtLat > lat)
                 isInside = !isInside;
             }
-            lastPoint = point;
         }
 
         return isInside;
     }
 
-    // return a 'startline' Intersect
-    // .success = true if vehicle crossed startline between v.prev_position & v.position
-    // .position = lat, lnt, ts of point of intersection
-    public Intersect start_line(Vehicle v)
+    // return the 'startline' intersect progress (see intersect())
+    // i.e. >= 0 if vehicle v crossed startline between its previous and current positions
+    public double start_line(int v)
     {
         return intersect(0,v);
     }
 
     // as above, for finish line
-    public Intersect finish_line(Vehicle v)
+    public double finish_line(int v)
     {
         return intersect(zone_config.FINISH_INDEX, v);
     }
-    
-    // http://stackoverflow.com/questions/563198/how-do-you-detect-where-two-line-segments-intersect
-    // Detect whether lines A->B and C->D intersect
-    // return { intersect: true/false, position: LatLng (if lines do intersect), progress: 0..1 }
-    // where 'progress' is how far the intersection is along the A->B path
 
-    public Intersect intersect(int path_index, Vehicle v)
+    // http://stackoverflow.com/questions/563198/how-do-you-detect-where-two-line-segments-intersect
+    // Detect whether the vehicle path A->B (previous position -> current position of vehicle v)
+    // intersects the zone edge C->D (path[path_index] -> path[path_index+1])
+    // return 'progress' 0..1, i.e. how far the intersection is along the A->B path,
+    // or -1 if the lines don't intersect.
+    public double intersect(int path_index, int v)
     {
-        Intersect i = new Intersect();
-
-        Position A = v.prev_position;
-        Position B = v.position;
+        return intersect(path_index, vehicles.prev_lat[v], vehicles.prev_lng[v], vehicles.lat[v], vehicles.lng[v]);
+    }
 
-        Position C = zone_config.PATH.get(path_index);
-        Position D = zone_config.PATH.get(path_index+1);
+    // As above, with A->B given as (a_lat, a_lng) -> (b_lat, b_lng)
+    public double intersect(int path_index, double a_lat, double a_lng, double b_lat, double b_lng)
+    {
+        double c_lat = zone_config.EDGE_LAT[path_index];
+        double c_lng = zone_config.EDGE_LNG[path_index];
 
-        double s1_lat = B.lat - A.lat;
-        double s1_lng = B.lng - A.lng;
-        double s2_lat = D.lat - C.lat;
-        double s2_lng = D.lng - C.lng;
+        double s1_lat = b_lat - a_lat;
+        double s1_lng = b_lng - a_lng;
+        double s2_lat = zone_config.EDGE_DLAT[path_index];
+        double s2_lng = zone_config.EDGE_DLNG[path_index];
        
-        double s = (-s1_lat * (A.lng - C.lng) + s1_lng * (A.lat - C.lat)) / (-s2_lng * s1_lat + s1_lng * s2_lat);
-        double progress = ( s2_lng * (A.lat - C.lat) - s2_lat * (A.lng - C.lng)) / (-s2_lng * s1_lat + s1_lng * s2_lat);
+        double s = (-s1_lat * (a_lng - c_lng) + s1_lng * (a_lat - c_lat)) / (-s2_lng * s1_lat + s1_lng * s2_lat);
+        double progress = ( s2_lng * (a_lat - c_lat) - s2_lat * (a_lng - c_lng)) / (-s2_lng * s1_lat + s1_lng * s2_lat);
 
         if (s >= 0 && s <= 1 && progress >= 0 && progress <= 1)
             {
                 // lines A->B and C->D intersect
-                i.success = true;
-                i.position = new Position( A.lat + (progress * s1_lat), A.lng + (progress * s1_lng) );
-                i.position.ts = v.prev_position.ts + (Long) Math.round((v.position.ts - v.prev_position.ts) * progress);
-
-                //System.out.println("entry vector ("+A.lat+","+A.lng+")..("+B.lat+","+B.lng+")");
-                //System.out.println("start line   ("+C.lat+","+C.lng+")..("+D.lat+","+D.lng+")");
-                //System.out.println("progress     "+progress);
-                //System.out.println(v.position.ts + ","+v.prev_position.ts+","+progress+","+i.position.ts);
-                return i;
+                return progress;
             }
 
-        return i; // lines don't intersect
+        return -1; // lines don't intersect
     } // end intersect()
+
+    // return the timestamp at which vehicle v was 'progress' (0..1) along its previous->current position
+    private long progress_ts(int v, double progress)
+    {
+        return vehicles.prev_ts[v] + Math.round((vehicles.ts[v] - vehicles.prev_ts[v]) * progress);
+    }
     
     // ******************************************************************************************
     // ******************************************************************************************
@@ -285,11 +307,11 @@ public class ZoneCompute {
     // ******************************************************************************************
     // ******************************************************************************************
 
-    private void zone_start(Vehicle v)
+    private void zone_start(int v)
     {
-        logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
-                          ") clean start at "+ts_to_time_str(v.start_ts) +
-                          " start_ts_delta " + v.start_ts_delta);
+        logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+vehicles.vehicle_id[v]+
+                          ") clean start at "+ts_to_time_str(start_ts[v]) +
+                          " start_ts_delta " + start_ts_delta[v]);
 
       // ****************************************
       // Send ZONE_START msg
@@ -300,20 +322,20 @@ public class ZoneCompute {
       msg.put("module_name", zone_config.MODULE_NAME); 
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_START);
-      msg.put("vehicle_id", v.vehicle_id);
-      msg.put("route_id", v.route_id);
-      msg.put("ts", v.start_ts);
-      msg.put("ts_delta", v.start_ts_delta);
+      msg.put("vehicle_id", vehicles.vehicle_id[v]);
+      msg.put("route_id", vehicles.route_id[v]);
+      msg.put("ts", start_ts[v]);
+      msg.put("ts_delta", start_ts_delta[v]);
 
       // Send zone_start message to common zone.address
       msg_handler.handle_msg(msg);
     }
 
-    private void zone_entry(Vehicle v)
+    private void zone_entry(int v)
     {
-      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
-                         ") early entry at "+ts_to_time_str(v.position.ts)+
-                         " ts_delta " + (v.position.ts - v.prev_position.ts));
+      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+vehicles.vehicle_id[v]+
+                         ") early entry at "+ts_to_time_str(vehicles.ts[v])+
+                         " ts_delta " + (vehicles.ts[v] - vehicles.prev_ts[v]));
       // ****************************************
       // Send ZONE_ENTRY msg
       // ****************************************
@@ -323,36 +345,36 @@ public class ZoneCompute {
       msg.put("module_name", zone_config.MODULE_NAME); // e.g. "zone"
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_ENTRY);
-      msg.put("vehicle_id", v.vehicle_id);
-      msg.put("route_id", v.route_id);
-      msg.put("ts", v.position.ts);
-      msg.put("ts_delta", v.position.ts - v.prev_position.ts);
+      msg.put("vehicle_id", vehicles.vehicle_id[v]);
+      msg.put("route_id", vehicles.route_id[v]);
+      msg.put("ts", vehicles.ts[v]);
+      msg.put("ts_delta", vehicles.ts[v] - vehicles.prev_ts[v]);
 
       // Send zone_entry message to common zone.address
       msg_handler.handle_msg(msg);
     }
     
-    private void zone_completion(Vehicle v, Long finish_ts)
+    private void zone_completion(int v, long finish_ts)
     {
 
       // exit completion message
-      Long duration = finish_ts - v.start_ts; // time taken to transit this Zone
+      long duration = finish_ts - start_ts[v]; // time taken to transit this Zone
 
       // calculate duration of exit vector
-      Long finish_ts_delta = v.position.ts - v.prev_position.ts;
+      long finish_ts_delta = vehicles.ts[v] - vehicles.prev_ts[v];
       
       // Build console string and output
       // e.g. 2016-03-16 15:19:08,Cam Test,315,no_route,00:00:29,0.58,COMPLETED,15:11:41,15:18:55,00:07:14
       String completed_log = "Zone: ,"+zone_config.MODULE_ID+",";
       completed_log += "COMPLETED,";
-      completed_log += v.vehicle_id+",";
-      completed_log += v.route_id + ",";
+      completed_log += vehicles.vehicle_id[v]+",";
+      completed_log += vehicles.route_id[v] + ",";
       completed_log += finish_ts+",";
       completed_log += duration+",";
-      completed_log += ts_to_datetime_str(v.position.ts) + ",";
-      completed_log += ts_to_time_str(v.start_ts) + ",";
+      completed_log += ts_to_datetime_str(vehicles.ts[v]) + ",";
+      completed_log += ts_to_time_str(start_ts[v]) + ",";
       completed_log += ts_to_time_str(finish_ts) + ","; // finish time
-      completed_log += duration_to_time_str(v.start_ts_delta) + ",";
+      completed_log += duration_to_time_str(start_ts_delta[v]) + ",";
       completed_log += duration_to_time_str(finish_ts_delta);
 
       logger.log(Constants.LOG_DEBUG, completed_log);
@@ -366,23 +388,23 @@ public class ZoneCompute {
       msg.put("module_name", zone_config.MODULE_NAME); // "zone"
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_COMPLETION);
-      msg.put("vehicle_id", v.vehicle_id);
-      msg.put("route_id", v.route_id);
+      msg.put("vehicle_id", vehicles.vehicle_id[v]);
+      msg.put("route_id", vehicles.route_id[v]);
       msg.put("ts", finish_ts);
       msg.put("duration", duration);
       // note we send start_ts_delta + finish_ts_delta as the 'confidence' factor
-      msg.put("ts_delta", finish_ts_delta + v.start_ts_delta);
+      msg.put("ts_delta", finish_ts_delta + start_ts_delta[v]);
 
       // Send zone_completed message to common zone.address
       msg_handler.handle_msg(msg);
     }
     
-    private void zone_finish_no_start(Vehicle v, Long finish_ts)
+    private void zone_finish_no_start(int v, long finish_ts)
     {
       // output clean exit (no start) message
-      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
+      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+vehicles.vehicle_id[v]+
                          ") clean exit (no start) at "+ts_to_time_str(finish_ts) +
-                         " ts_delta " + (v.position.ts - v.prev_position.ts));
+                         " ts_delta " + (vehicles.ts[v] - vehicles.prev_ts[v]));
       // ****************************************
       // Send ZONE_EXIT msg
       // ****************************************
@@ -392,20 +414,20 @@ public class ZoneCompute {
       msg.put("module_name", zone_config.MODULE_NAME); // "zone"
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_EXIT);
-      msg.put("vehicle_id", v.vehicle_id);
-      msg.put("route_id", v.route_id);
+      msg.put("vehicle_id", vehicles.vehicle_id[v]);
+      msg.put("route_id", vehicles.route_id[v]);
       msg.put("ts", finish_ts);
-      msg.put("ts_delta", v.position.ts - v.prev_position.ts);
+      msg.put("ts_delta", vehicles.ts[v] - vehicles.prev_ts[v]);
 
       // Send zone_completed message to common zone.address
       msg_handler.handle_msg(msg);
     }
     
-    private void zone_exit(Vehicle v)
+    private void zone_exit(int v)
     {
-      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
-                         ") early exit at "+ts_to_time_str(v.position.ts)+
-                         " ts_delta " + (v.position.ts - v.prev_position.ts));
+      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+vehicles.vehicle_id[v]+
+                         ") early exit at "+ts_to_time_str(vehicles.ts[v])+
+                         " ts_delta " + (vehicles.ts[v] - vehicles.prev_ts[v]));
       // ****************************************
       // Send ZONE_EXIT event message
       // ****************************************
@@ -415,10 +437,10 @@ public class ZoneCompute {
       msg.put("module_name", zone_config.MODULE_NAME); // "zone"
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_EXIT);
-      msg.put("vehicle_id", v.vehicle_id);
-      msg.put("route_id", v.route_id);
-      msg.put("ts", v.position.ts);
-      msg.put("ts_delta", v.position.ts - v.prev_position.ts);
+      msg.put("vehicle_id", vehicles.vehicle_id[v]);
+      msg.put("route_id", vehicles.route_id[v]);
+      msg.put("ts", vehicles.ts[v]);
+      msg.put("ts_delta", vehicles.ts[v] - vehicles.prev_ts[v]);
 
       // Send zone_completed message to common zone.address
       msg_handler.handle_msg(msg);
@@ -457,22 +479,6 @@ public class ZoneCompute {
         return d_time.length() == 5 ? d_time + ":00" : d_time ;
     }
 
-    //*************************************************************************************
-    // Class Intersect
-    //*************************************************************************************
-    
-    // Intersect class holds the result of an intersect test
-    // Actual intersect method is in ZoneBoundary
-    class Intersect {
-        public Position position; // position is lat, long and timestamp (secs) of intersection point
-        public boolean success;
-
-        public Intersect()
-        {
-            success = false;
-        }
-    } // end class Intersect
-
     //*************************************************************************************
     // Class Box - rectangle surrounding zone polygon, for fast 'within zone' exclusion
     //*************************************************************************************
@@ -25,9 +25,26 @@ public class ZoneConfig {
     public int FINISH_INDEX;         // config zone.finish_index
 
     public int LOG_LEVEL;
+
+    public int STATS_PERIOD;         // config zone.stats_period, seconds between ZONE_STATS messages (0 => none)
+    public boolean STATS_CLOCK;      // config zone.stats_clock, stats windows end at the system clock if later than
+                                     // the latest completion (default true, false for a replayed feed)
     
     public boolean valid;
 
+    // PATH compiled into primitive edge tables, see compile_path()
+    // Edge i is the polygon side PATH[i] -> PATH[(i+1) % PATH.size()]
+    public int      EDGE_COUNT;
+    public double[] EDGE_LAT;        // latitude of start of edge i
+    public double[] EDGE_LNG;        // longitude of start of edge i
+    public double[] EDGE_DLAT;       // latitude delta along edge i
+    public double[] EDGE_DLNG;       // longitude delta along edge i
+    public double[] EDGE_X1_EAST;    // edge start longitude, normalised for a point with lng > 0
+    public double[] EDGE_X2_EAST;    // edge end longitude, normalised for a point with lng > 0
+    public double[] EDGE_X1_WEST;    // edge start longitude, normalised for a point with lng <= 0
+    public double[] EDGE_X2_WEST;    // edge end longitude, normalised for a point with lng <= 0
+    public double[] EDGE_GRAD;       // edge gradient, d(lat)/d(lng) after normalisation
+
     public ZoneConfig(JsonObject config)
     {
         valid = true;
@@ -56,12 +73,18 @@ public class ZoneConfig {
         
         ZONE_NAME = config.getString(MODULE_NAME+".name");
 
+        STATS_PERIOD = config.getInteger(MODULE_NAME+".stats_period", 60);
+
+        STATS_CLOCK = config.getBoolean(MODULE_NAME+".stats_clock", true);
+
         PATH = new ArrayList<Position>();
         JsonArray json_path = config.getJsonArray(MODULE_NAME+".path", new JsonArray());
         for (int i=0; i < json_path.size(); i++) {
             PATH.add(new Position(json_path.getJsonObject(i)));
         }
 
+        compile_path();
+
         CENTER = new Position(config.getJsonObject(MODULE_NAME+".center"));
 
         ZOOM = config.getInteger(MODULE_NAME+".zoom");
@@ -69,5 +92,58 @@ public class ZoneConfig {
         FINISH_INDEX = config.getInteger(MODULE_NAME+".finish_index");
 
     }
+
+    // Compile PATH into the EDGE_ arrays, so that ZoneCompute.inside() and ZoneCompute.intersect()
+    // do not need to walk PATH or repeat the dateline normalisation and gradient calculation
+    // for every edge on every call.
+    public void compile_path()
+    {
+        EDGE_COUNT = PATH.size();
+
+        EDGE_LAT = new double[EDGE_COUNT];
+        EDGE_LNG = new double[EDGE_COUNT];
+        EDGE_DLAT = new double[EDGE_COUNT];
+        EDGE_DLNG = new double[EDGE_COUNT];
+        EDGE_X1_EAST = new double[EDGE_COUNT];
+        EDGE_X2_EAST = new double[EDGE_COUNT];
+        EDGE_X1_WEST = new double[EDGE_COUNT];
+        EDGE_X2_WEST = new double[EDGE_COUNT];
+        EDGE_GRAD = new double[EDGE_COUNT];
+
+        for (int i=0; i<EDGE_COUNT; i++)
+            {
+                Position p1 = PATH.get(i);
+                Position p2 = PATH.get((i+1) % EDGE_COUNT);
+
+                EDGE_LAT[i] = p1.lat;
+                EDGE_LNG[i] = p1.lng;
+                EDGE_DLAT[i] = p2.lat - p1.lat;
+                EDGE_DLNG[i] = p2.lng - p1.lng;
+
+                double x1_east = p1.lng;
+                double x2_east = p2.lng;
+                double x1_west = p1.lng;
+                double x2_west = p2.lng;
+
+                double dx = p2.lng - p1.lng;
+
+                if (Math.abs(dx) > 180.0)
+                    {
+                        // this edge (most likely) crosses the dateline, so normalise the numbers
+                        // for points east (lng > 0) or west (lng <= 0) of the meridian
+                        while (x1_east < 0) x1_east += 360;
+                        while (x2_east < 0) x2_east += 360;
+                        while (x1_west > 0) x1_west -= 360;
+                        while (x2_west > 0) x2_west -= 360;
+                        dx = x2_east - x1_east;
+                    }
+
+                EDGE_X1_EAST[i] = x1_east;
+                EDGE_X2_EAST[i] = x2_east;
+                EDGE_X1_WEST[i] = x1_west;
+                EDGE_X2_WEST[i] = x2_west;
+                EDGE_GRAD[i] = (p2.lat - p1.lat) / dx;
+            }
+    }
     
 }
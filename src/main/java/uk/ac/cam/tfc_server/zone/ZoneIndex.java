@@ -0,0 +1,142 @@
+package uk.ac.cam.tfc_server.zone;
+
+// ZoneIndex.java
+//
+// Spatial index over the bounding Boxes of a set of ZoneComputes.
+// Used by ZoneSet (and so BatcherWorker) so that each position record is only
+// passed to the zones whose Box actually contains the point.
+//
+// The index is a simple uniform grid laid over the union of all the zone Boxes.
+// Each grid cell holds the list of zones whose Box overlaps that cell, so a lookup is
+// one cell calculation plus an exact Box test on the (typically 0..2) zones in that cell.
+//
+
+import java.util.ArrayList;
+
+public class ZoneIndex {
+
+    private final int GRID_SIZE = 64; // grid is GRID_SIZE x GRID_SIZE cells over the union of the zone Boxes
+
+    private ArrayList<ZoneCompute> zones; // the zones indexed, in the order given to the constructor
+
+    // union of all zone Boxes
+    private double north = -90;
+    private double south = 90;
+    private double east = -180;
+    private double west = 180;
+
+    private double cell_lat; // height of a grid cell in degrees
+    private double cell_lng; // width of a grid cell in degrees
+
+    private int[][] cells; // cells[row*GRID_SIZE+col] = indexes into zones of Boxes overlapping that cell
+
+    public ZoneIndex(ArrayList<ZoneCompute> zc_list)
+    {
+        zones = zc_list;
+
+        cells = new int[GRID_SIZE * GRID_SIZE][];
+
+        if (zones.size() == 0)
+            {
+                return;
+            }
+
+        for (int i=0; i<zones.size(); i++)
+            {
+                ZoneCompute.Box b = zones.get(i).box;
+                if (b.north > north) north = b.north;
+                if (b.south < south) south = b.south;
+                if (b.east > east) east = b.east;
+                if (b.west < west) west = b.west;
+            }
+
+        cell_lat = (north - south) / GRID_SIZE;
+        cell_lng = (east - west) / GRID_SIZE;
+
+        // accumulate the zone indexes for each cell, then fix them as int arrays
+        ArrayList<ArrayList<Integer>> cell_lists = new ArrayList<ArrayList<Integer>>();
+        for (int c=0; c<GRID_SIZE * GRID_SIZE; c++)
+            {
+                cell_lists.add(new ArrayList<Integer>());
+            }
+
+        for (int i=0; i<zones.size(); i++)
+            {
+                ZoneCompute.Box b = zones.get(i).box;
+                int row_min = row(b.south);
+                int row_max = row(b.north);
+                int col_min = col(b.west);
+                int col_max = col(b.east);
+                for (int r=row_min; r<=row_max; r++)
+                    {
+                        for (int c=col_min; c<=col_max; c++)
+                            {
+                                cell_lists.get(r * GRID_SIZE + c).add(i);
+                            }
+                    }
+            }
+
+        for (int c=0; c<GRID_SIZE * GRID_SIZE; c++)
+            {
+                ArrayList<Integer> cell_list = cell_lists.get(c);
+                cells[c] = new int[cell_list.size()];
+                for (int j=0; j<cell_list.size(); j++)
+                    {
+                        cells[c][j] = cell_list.get(j);
+                    }
+            }
+    }
+
+    // return the number of zones in the index
+    public int size()
+    {
+        return zones.size();
+    }
+
+    // return zone i, where i is an index as returned by candidates()
+    public ZoneCompute get(int i)
+    {
+        return zones.get(i);
+    }
+
+    // Find the zones whose Box contains the point (lat, lng).
+    // The zone indexes are written into result[0..n-1] (in ascending order) and n is returned.
+    // result must have length >= size()
+    public int candidates(double lat, double lng, int[] result)
+    {
+        if (zones.size() == 0 || lat > north || lat < south || lng < west || lng > east)
+            {
+                return 0;
+            }
+
+        int[] cell = cells[row(lat) * GRID_SIZE + col(lng)];
+
+        int n = 0;
+        for (int j=0; j<cell.length; j++)
+            {
+                ZoneCompute.Box b = zones.get(cell[j]).box;
+                if (lat <= b.north && lat >= b.south && lng >= b.west && lng <= b.east)
+                    {
+                        result[n++] = cell[j];
+                    }
+            }
+        return n;
+    }
+
+    // grid row for a given latitude, clamped to the grid
+    private int row(double lat)
+    {
+        if (cell_lat <= 0) return 0;
+        int r = (int) ((lat - south) / cell_lat);
+        return r < 0 ? 0 : (r >= GRID_SIZE ? GRID_SIZE - 1 : r);
+    }
+
+    // grid column for a given longitude, clamped to the grid
+    private int col(double lng)
+    {
+        if (cell_lng <= 0) return 0;
+        int c = (int) ((lng - west) / cell_lng);
+        return c < 0 ? 0 : (c >= GRID_SIZE ? GRID_SIZE - 1 : c);
+    }
+
+} // end class ZoneIndex
@@ -0,0 +1,170 @@
+package uk.ac.cam.tfc_server.zone;
+
+// ZoneSet.java
+//
+// Routes a feed of position records to a set of ZoneComputes, using a ZoneIndex so that
+// each record is only passed to the zones that could be affected by it.
+// Used by BatcherWorker, which runs many zones against the same feed.
+//
+// A zone has to see a position record if either:
+//   the zone Box contains the position (the vehicle may be entering or within the zone), or
+//   the zone Box contained the previous position of the same vehicle (the vehicle may have just exitted).
+// All other zones can ignore the record, as the vehicle is outside the zone now and was outside it
+// last time.
+//
+// ZoneSet is also the single vehicle-trajectory stage for the feed: it owns the VehicleTable
+// shared by all its zones, so the current and previous position of each vehicle is held once,
+// and each ZoneCompute only keeps its per-vehicle within/start_ts state (see ZoneCompute.update_vehicle).
+// Create the zones with new ZoneCompute(zone_config, zone_set.vehicles(), msg_handler) and add() them.
+//
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import uk.ac.cam.tfc_server.gtfs.PositionBatch;
+
+import java.util.ArrayList;
+
+public class ZoneSet {
+
+    private VehicleTable vehicles; // current and previous position of each vehicle, shared by the zones
+
+    private ArrayList<ZoneCompute> zones;
+
+    private ZoneIndex index; // built on first feed message, after all zones have been added
+
+    private ArrayList<Track> tracks; // VehicleTable row -> zones for the latest position of that vehicle
+
+    private int[] candidates; // working array for ZoneIndex lookups
+
+    public ZoneSet()
+    {
+        vehicles = new VehicleTable();
+
+        zones = new ArrayList<ZoneCompute>();
+
+        index = null;
+
+        tracks = new ArrayList<Track>();
+    }
+
+    // return the VehicleTable to be shared by the ZoneComputes in this set
+    public VehicleTable vehicles()
+    {
+        return vehicles;
+    }
+
+    // Add a zone to this set. The zone must have been created with the VehicleTable from vehicles(),
+    // and all zones must be added before the first feed message is handled.
+    public void add(ZoneCompute zc)
+    {
+        zones.add(zc);
+    }
+
+    // Process a feed message, i.e. { ..., "entities": [ <position record>, ... ] }
+    public void handle_feed(JsonObject feed_message)
+    {
+        JsonArray entities = feed_message.getJsonArray("entities");
+
+        for (int i = 0; i < entities.size(); i++)
+            {
+                handle_position(entities.getJsonObject(i));
+            }
+    }
+
+    // Process a feed decoded directly from GTFS protobuf, without any JSON
+    public void handle_batch(PositionBatch batch)
+    {
+        for (int i = 0; i < batch.size; i++)
+            {
+                handle_position(batch, i);
+            }
+    }
+
+    // Pass position record i of a PositionBatch to the zones that need it
+    public void handle_position(PositionBatch batch, int i)
+    {
+        // no position in this record, so nothing for the zones to do
+        if (!batch.has_position[i])
+            {
+                return;
+            }
+
+        // update the shared trajectory for this vehicle once, for all zones
+        handle_vehicle(vehicles.put(batch, i));
+    }
+
+    // Pass a single position record to the zones that need it
+    public void handle_position(JsonObject position_record)
+    {
+        // no position in this record, so nothing for the zones to do
+        if (position_record.getValue("latitude") == null || position_record.getValue("longitude") == null)
+            {
+                return;
+            }
+
+        // update the shared trajectory for this vehicle once, for all zones
+        handle_vehicle(vehicles.put(position_record));
+    }
+
+    // Pass the latest position of vehicle v (i.e. VehicleTable row v) to the zones that need it
+    private void handle_vehicle(int v)
+    {
+        if (index == null)
+            {
+                index = new ZoneIndex(zones);
+                candidates = new int[zones.size()];
+            }
+
+        if (v == tracks.size())
+            {
+                tracks.add(new Track(index.size()));
+            }
+        Track t = tracks.get(v);
+
+        int n = index.candidates(vehicles.lat[v], vehicles.lng[v], candidates);
+
+        // merge the (ascending) zone indexes for the current and the previous position
+        // and update each of those zones once
+        int i = 0; // index into candidates (current position)
+        int j = 0; // index into t.zones (previous position)
+        while (i < n || j < t.count)
+            {
+                int zone_index;
+                if (j >= t.count || (i < n && candidates[i] < t.zones[j]))
+                    {
+                        zone_index = candidates[i++];
+                    }
+                else if (i >= n || t.zones[j] < candidates[i])
+                    {
+                        zone_index = t.zones[j++];
+                    }
+                else
+                    {
+                        zone_index = candidates[i++];
+                        j++;
+                    }
+                index.get(zone_index).update_vehicle(v);
+            }
+
+        // remember the zones of this position for the next record for this vehicle
+        System.arraycopy(candidates, 0, t.zones, 0, n);
+        t.count = n;
+    }
+
+    //*************************************************************************************
+    // Class Track
+    //*************************************************************************************
+
+    // The indexes of the zones whose Box contains the latest position of a vehicle
+    class Track {
+        int[] zones;
+        int count;
+
+        Track(int zone_count)
+        {
+            zones = new int[zone_count];
+            count = 0;
+        }
+    } // end class Track
+
+} // end class ZoneSet
@@ -0,0 +1,199 @@
+package uk.ac.cam.tfc_server.zone;
+
+// ZoneStats.java
+//
+// Part of Zone package, sliding-window statistics of the zone completion durations, i.e. the count, mean and
+// quantiles (median, 85th and 95th percentile) of the durations of the transits completed in the last
+// 5, 15 and 60 minutes, published by Zone in its periodic ZONE_STATS message and ZONE_UPDATE reply.
+//
+// The completions are accumulated in a ring of one-minute buckets (covering the longest window), each bucket
+// holding the count and sum of its durations and a histogram of them. The histogram bins are 'HDR-style',
+// i.e. exact for durations under 64 seconds, then 32 bins for each doubling of the duration, so a quantile is
+// within about 3% of the true value. So add() is O(1), and the statistics of a window are computed by summing
+// its buckets when they are requested.
+//
+// Time is taken from the 'ts' of the completion messages, and completions older than the longest window
+// are ignored. to_json() ends the windows at the latest completion (event time, as for a replayed feed),
+// while to_json(end_ts) ends them at end_ts if that is later, so for a live feed (end_ts being the system
+// clock) the windows move on, and old completions drop out of them, even when no completions arrive.
+//
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+public class ZoneStats {
+
+    public static final int[] WINDOW_MINUTES = { 5, 15, 60 };
+
+    private static final int BUCKET_COUNT = 60; // one-minute buckets, for the longest window
+
+    private static final int LINEAR_BINS = 64;  // bins for 0..63 seconds
+    private static final int SUB_BIN_BITS = 5;  // 32 bins per doubling above that
+    private static final int SUB_BINS = 1 << SUB_BIN_BITS;
+    private static final int MAX_EXPONENT = 14; // up to 2^14 seconds (4.5 hours)
+    private static final int BIN_COUNT = LINEAR_BINS + (MAX_EXPONENT - 6) * SUB_BINS;
+
+    private final long[] bucket_minute = new long[BUCKET_COUNT]; // minute (ts/60) held by each bucket
+    private final int[] bucket_count = new int[BUCKET_COUNT];
+    private final long[] bucket_sum = new long[BUCKET_COUNT];
+    private final int[][] bucket_bins = new int[BUCKET_COUNT][BIN_COUNT];
+
+    private long latest_minute = Long.MIN_VALUE;
+    private long latest_ts = 0;
+
+    public ZoneStats()
+    {
+        for (int i=0; i<BUCKET_COUNT; i++)
+            {
+                bucket_minute[i] = Long.MIN_VALUE;
+            }
+    }
+
+    // add the duration (seconds) of a completion at ts
+    public void add(long ts, long duration)
+    {
+        long minute = Math.floorDiv(ts, 60);
+
+        if (latest_ts != 0 && minute <= latest_minute - BUCKET_COUNT)
+            {
+                return; // older than the longest window
+            }
+        if (minute > latest_minute)
+            {
+                latest_minute = minute;
+            }
+        if (ts > latest_ts)
+            {
+                latest_ts = ts;
+            }
+
+        int b = (int) Math.floorMod(minute, (long) BUCKET_COUNT);
+        if (bucket_minute[b] != minute)
+            {
+                // the bucket holds an expired minute, so reuse it
+                bucket_minute[b] = minute;
+                bucket_count[b] = 0;
+                bucket_sum[b] = 0;
+                Arrays.fill(bucket_bins[b], 0);
+            }
+        bucket_count[b]++;
+        bucket_sum[b] += duration;
+        bucket_bins[b][bin(duration)]++;
+    }
+
+    // timestamp of the latest completion added
+    public long latest_ts()
+    {
+        return latest_ts;
+    }
+
+    // the statistics of each window ending at the latest completion, i.e.
+    // [ { "minutes": 5, "count": 12, "mean": 310, "median": 298, "p85": 402, "p95": 455 }, ... ]
+    // the duration statistics being null for a window with no completions
+    public JsonArray to_json()
+    {
+        return to_json(latest_ts);
+    }
+
+    // the statistics of each window ending at the later of end_ts and the latest completion
+    public JsonArray to_json(long end_ts)
+    {
+        long end_minute = Math.max(latest_minute, Math.floorDiv(end_ts, 60));
+
+        JsonArray windows = new JsonArray();
+        for (int minutes : WINDOW_MINUTES)
+            {
+                windows.add(window_json(minutes, end_minute));
+            }
+        return windows;
+    }
+
+    private JsonObject window_json(int minutes, long end_minute)
+    {
+        int count = 0;
+        long sum = 0;
+        int[] bins = new int[BIN_COUNT];
+
+        for (int b=0; b<BUCKET_COUNT; b++)
+            {
+                if (bucket_minute[b] > end_minute - minutes && bucket_count[b] > 0)
+                    {
+                        count += bucket_count[b];
+                        sum += bucket_sum[b];
+                        int[] bucket = bucket_bins[b];
+                        for (int i=0; i<BIN_COUNT; i++)
+                            {
+                                bins[i] += bucket[i];
+                            }
+                    }
+            }
+
+        JsonObject window = new JsonObject();
+        window.put("minutes", minutes);
+        window.put("count", count);
+        if (count == 0)
+            {
+                window.putNull("mean");
+                window.putNull("median");
+                window.putNull("p85");
+                window.putNull("p95");
+            }
+        else
+            {
+                window.put("mean", Math.round((double) sum / count));
+                window.put("median", quantile(bins, count, 0.5));
+                window.put("p85", quantile(bins, count, 0.85));
+                window.put("p95", quantile(bins, count, 0.95));
+            }
+        return window;
+    }
+
+    // nearest-rank quantile q of the count values in bins
+    private static long quantile(int[] bins, int count, double q)
+    {
+        long rank = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int i=0; i<BIN_COUNT; i++)
+            {
+                seen += bins[i];
+                if (seen >= rank)
+                    {
+                        return bin_value(i);
+                    }
+            }
+        return bin_value(BIN_COUNT - 1);
+    }
+
+    // the histogram bin of duration
+    static int bin(long duration)
+    {
+        if (duration < LINEAR_BINS)
+            {
+                return duration < 0 ? 0 : (int) duration;
+            }
+        int exponent = 63 - Long.numberOfLeadingZeros(duration); // >= 6
+        if (exponent >= MAX_EXPONENT)
+            {
+                return BIN_COUNT - 1;
+            }
+        int sub_bin = (int) (duration >>> (exponent - SUB_BIN_BITS)) - SUB_BINS;
+        return LINEAR_BINS + (exponent - 6) * SUB_BINS + sub_bin;
+    }
+
+    // the (middle) value of histogram bin i
+    static long bin_value(int i)
+    {
+        if (i < LINEAR_BINS)
+            {
+                return i;
+            }
+        int exponent = 6 + (i - LINEAR_BINS) / SUB_BINS;
+        int sub_bin = (i - LINEAR_BINS) % SUB_BINS;
+        long width = 1L << (exponent - SUB_BIN_BITS);
+        long low = (long) (SUB_BINS + sub_bin) << (exponent - SUB_BIN_BITS);
+        return low + width / 2;
+    }
+
+} // end class ZoneStats
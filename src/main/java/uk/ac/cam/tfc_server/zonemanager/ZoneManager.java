@@ -33,6 +33,7 @@ public class ZoneManager extends AbstractTFCVerticle {
     
     private String ZONE_ADDRESS; // from config() - address for Zones to publish to
     private String ZONE_FEED; // from config() - address for Zones to subscribe to
+    private Boolean ZONE_STATS_CLOCK; // from config(), optional - zone.stats_clock for the Zones (false for a replay)
     
     //debug get ZONE_NAME from Rita
     private final String ZONE_NAME = "zone"; 
@@ -78,6 +79,11 @@ public class ZoneManager extends AbstractTFCVerticle {
 
     zone_conf.put(ZONE_NAME+".log_level", LOG_LEVEL);
 
+    if (ZONE_STATS_CLOCK != null)
+        {
+            zone_conf.put(ZONE_NAME+".stats_clock", ZONE_STATS_CLOCK);
+        }
+
     // iterate through all the zones to be started
     for (int i=0; i<START_ZONES.size(); i++)
         {
@@ -170,6 +176,8 @@ public class ZoneManager extends AbstractTFCVerticle {
                                    ": no "+MODULE_NAME+".zone.feed in config()");
                 return false;
             }
+
+        ZONE_STATS_CLOCK = config().getBoolean(MODULE_NAME+".zone.stats_clock");
         
         return true;
     }
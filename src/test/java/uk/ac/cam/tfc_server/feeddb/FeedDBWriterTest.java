@@ -0,0 +1,161 @@
+package uk.ac.cam.tfc_server.feeddb;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * FeedDBWriter against a StandInBatchStore, i.e. without a Cassandra cluster
+ */
+public class FeedDBWriterTest
+    extends TestCase
+{
+    private static final int VEHICLES = 50;
+
+    private Vertx vertx;
+    private Context context;
+    private StandInBatchStore store;
+
+    public FeedDBWriterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( FeedDBWriterTest.class );
+    }
+
+    protected void setUp()
+    {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+    }
+
+    protected void tearDown()
+    {
+        if (store != null)
+        {
+            store.close();
+        }
+        vertx.close();
+    }
+
+    /**
+     * Every row is written exactly once, despite slow and failing batches being retried
+     */
+    public void testExactlyOnce() throws Exception
+    {
+        store = new StandInBatchStore(20, 0.2);
+        FeedDBWriter writer = create_writer(4, 100000);
+
+        for (int feed = 0; feed < 200; feed++)
+        {
+            JsonArray entities = feed(1000000 + feed);
+            assertTrue(on_context(() -> writer.write_feed(entities)));
+        }
+        JsonObject stats = drain(writer);
+
+        assertEquals(200 * VEHICLES, store.writes.size());
+        for (AtomicInteger count : store.writes.values())
+        {
+            assertEquals(1, count.get());
+        }
+        assertTrue(store.failures.get() > 0);
+        assertEquals(0L, (long) stats.getLong("failed_rows"));
+        assertEquals(200L * VEHICLES, (long) stats.getLong("rows"));
+    }
+
+    /**
+     * No more than max_in_flight batches are written at once, and the cap is reached under load
+     */
+    public void testConcurrencyCap() throws Exception
+    {
+        store = new StandInBatchStore(10, 0);
+        FeedDBWriter writer = create_writer(3, 100000);
+
+        for (int feed = 0; feed < 50; feed++)
+        {
+            JsonArray entities = feed(1000000 + feed);
+            on_context(() -> writer.write_feed(entities));
+        }
+        drain(writer);
+
+        assertEquals(3, store.max_in_flight.get());
+    }
+
+    /**
+     * Feeds are dropped, not queued, once max_queued rows are waiting for the database
+     */
+    public void testDropOverQueueLimit() throws Exception
+    {
+        store = new StandInBatchStore(0, 0);
+        store.stall();
+        FeedDBWriter writer = create_writer(2, 2 * VEHICLES);
+
+        assertTrue(on_context(() -> writer.write_feed(feed(1000000))));
+        assertTrue(on_context(() -> writer.write_feed(feed(1000001))));
+        assertFalse(on_context(() -> writer.write_feed(feed(1000002))));
+
+        JsonObject stats = on_context(() -> writer.stats());
+        assertEquals(1L, (long) stats.getLong("dropped_feeds"));
+        assertEquals(2 * VEHICLES, (int) stats.getInteger("queued_rows"));
+        assertEquals(2, (int) stats.getInteger("in_flight"));
+    }
+
+    // a writer to the stand-in store, created on the test context, in batches of 10 with many fast retries
+    private FeedDBWriter create_writer(int max_in_flight, int max_queued) throws Exception
+    {
+        return on_context(() -> new FeedDBWriter(vertx, Arrays.<BatchStore>asList(store),
+                                                 10, max_in_flight, max_queued, 20, 1));
+    }
+
+    // a feed of a position record of each vehicle at timestamp
+    private static JsonArray feed(long timestamp)
+    {
+        JsonArray entities = new JsonArray();
+        for (int v = 0; v < VEHICLES; v++)
+        {
+            entities.add(new JsonObject()
+                         .put("timestamp", timestamp)
+                         .put("vehicle_id", "v"+v)
+                         .put("latitude", 52.2f)
+                         .put("longitude", 0.12f));
+        }
+        return entities;
+    }
+
+    // wait for the writer to have no rows queued, returning its stats
+    private JsonObject drain(FeedDBWriter writer) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (true)
+        {
+            JsonObject stats = on_context(() -> writer.stats());
+            if (stats.getInteger("queued_rows") == 0 || System.currentTimeMillis() > deadline)
+            {
+                return stats;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // run supplier on the test context (as the writer must be called on its event loop), returning its result
+    private <T> T on_context(Supplier<T> supplier) throws Exception
+    {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        context.runOnContext(v -> result.complete(supplier.get()));
+        return result.get(10, TimeUnit.SECONDS);
+    }
+}
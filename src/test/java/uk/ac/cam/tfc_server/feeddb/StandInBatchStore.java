@@ -0,0 +1,106 @@
+package uk.ac.cam.tfc_server.feeddb;
+
+// StandInBatchStore.java
+//
+// An in-memory BatchStore standing in for a Cassandra table, so FeedDBWriter can be tested without a cluster.
+//
+// Each batch completes (on a scheduler thread, as the driver does) after a random latency of up to max_latency_ms,
+// and fails with probability fail_rate, a failed batch writing none of its rows. The store counts the writes of
+// each row (by vehicle_id and timestamp) and the most batches it has had in flight at once.
+//
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StandInBatchStore implements BatchStore {
+
+    private final long max_latency_ms;
+    private final double fail_rate;
+    private final Random random = new Random(42);
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+
+    // writes of each row, keyed by vehicle_id/timestamp
+    final Map<String, AtomicInteger> writes = new ConcurrentHashMap<String, AtomicInteger>();
+
+    final AtomicInteger in_flight = new AtomicInteger();
+    final AtomicInteger max_in_flight = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+
+    private volatile boolean stalled = false; // batches never complete
+
+    public StandInBatchStore(long max_latency_ms, double fail_rate)
+    {
+        this.max_latency_ms = max_latency_ms;
+        this.fail_rate = fail_rate;
+    }
+
+    // stop completing batches, as a database that has stopped responding
+    public void stall()
+    {
+        stalled = true;
+    }
+
+    public void close()
+    {
+        scheduler.shutdownNow();
+    }
+
+    public String name()
+    {
+        return "stand_in";
+    }
+
+    // as the busdata table, a partition per timestamp
+    public Object partition_key(JsonObject record)
+    {
+        return record.getLong("timestamp");
+    }
+
+    public void write_batch(List<JsonObject> records, Handler<AsyncResult<Void>> handler)
+    {
+        int n = in_flight.incrementAndGet();
+        max_in_flight.accumulateAndGet(n, Math::max);
+
+        if (stalled)
+            {
+                return;
+            }
+
+        long latency;
+        boolean fail;
+        synchronized (random)
+            {
+                latency = max_latency_ms > 0 ? (long) (random.nextDouble() * max_latency_ms) : 0;
+                fail = random.nextDouble() < fail_rate;
+            }
+
+        scheduler.schedule(() -> {
+                in_flight.decrementAndGet();
+                if (fail)
+                    {
+                        failures.incrementAndGet();
+                        handler.handle(Future.failedFuture("stand-in write failure"));
+                        return;
+                    }
+                for (JsonObject record : records)
+                    {
+                        writes.computeIfAbsent(record.getString("vehicle_id")+"/"+record.getLong("timestamp"),
+                                               k -> new AtomicInteger()).incrementAndGet();
+                    }
+                handler.handle(Future.succeededFuture());
+            }, latency, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,208 @@
+package uk.ac.cam.tfc_server.msgfiler;
+
+// FilerTemplateBenchmark.java
+//
+// JMH benchmark comparing the per-message cost of filling in the FilerConfig store_path / store_name
+// patterns using the FilerTemplates compiled by FilerConfig against the original FilerUtils
+// implementation re-scanning the pattern string (reproduced below as legacy_build_string() and
+// legacy_fill_pattern()).
+//
+// Uses the store_path / store_name patterns of the zone MsgFiler and BatcherWorker configs, with
+// zone_completion messages from a day of 30-second timestamps.
+//
+// Run with:
+//   mvn test-compile
+//   java -cp target/test-classes:target/classes:<test classpath> uk.ac.cam.tfc_server.msgfiler.FilerTemplateBenchmark
+//
+
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilerTemplateBenchmark {
+
+    private final int MSG_COUNT = 2880; // a day of messages, 30 seconds apart
+
+    private final String STORE_PATH = "/media/tfc/vix/data_zone/{{ts|yyyy}}/{{ts|MM}}/{{ts|dd}}";
+    private final String STORE_NAME = "{{module_id}}_{{ts|yyyy}}-{{ts|MM}}-{{ts|dd}}.txt";
+
+    private FilerTemplate store_path_template;
+    private FilerTemplate store_name_template;
+
+    private JsonObject[] msgs;
+
+    private int next = 0;
+
+    @Setup
+    public void setup()
+    {
+        JsonObject config = new JsonObject()
+            .put("module_name", "msgfiler")
+            .put("module_id", "bench")
+            .put("source_address", "tfc.zone.cambridge")
+            .put("source_filter", new JsonObject().put("field", "msg_type").put("compare", "=").put("value", "zone_completion"))
+            .put("store_path", STORE_PATH)
+            .put("store_name", STORE_NAME)
+            .put("store_mode", "append");
+
+        FilerConfig filer_config = new FilerConfig(config);
+        store_path_template = filer_config.store_path_template;
+        store_name_template = filer_config.store_name_template;
+
+        msgs = new JsonObject[MSG_COUNT];
+        for (int i=0; i<MSG_COUNT; i++)
+            {
+                msgs[i] = new JsonObject()
+                    .put("module_name", "zone")
+                    .put("module_id", "madingley_road_in")
+                    .put("msg_type", "zone_completion")
+                    .put("vehicle_id", "1234")
+                    .put("route_id", "CBG-"+(i % 20))
+                    .put("ts", 1465603200L + i * 30L)
+                    .put("duration", 100L + i % 50);
+            }
+    }
+
+    private JsonObject next_msg()
+    {
+        JsonObject msg = msgs[next];
+        next = next + 1 == MSG_COUNT ? 0 : next + 1;
+        return msg;
+    }
+
+    // *****************************************************************************************
+    // Benchmarks - each fills in the store_path and store_name for one message
+    // *****************************************************************************************
+
+    @Benchmark
+    public void build_legacy(Blackhole bh)
+    {
+        JsonObject msg = next_msg();
+        bh.consume(legacy_build_string(STORE_PATH, msg));
+        bh.consume(legacy_build_string(STORE_NAME, msg));
+    }
+
+    @Benchmark
+    public void build_compiled(Blackhole bh)
+    {
+        JsonObject msg = next_msg();
+        bh.consume(store_path_template.build(msg));
+        bh.consume(store_name_template.build(msg));
+    }
+
+    // *****************************************************************************************
+    // The original FilerUtils implementation, re-scanning the pattern for each message
+    // *****************************************************************************************
+
+    private String legacy_build_string(String pattern, JsonObject msg)
+    {
+        final String PATTERN_START = "{{";
+        final String PATTERN_END = "}}";
+
+        int index = 0;
+        String result = "";
+
+        while (index < pattern.length())
+            {
+                int pos_start = pattern.indexOf(PATTERN_START, index);
+                int pos_end = pattern.indexOf(PATTERN_END, pos_start);
+                if (pos_start < 0 || pos_end < 0)
+                    {
+                        result = result + pattern.substring(index);
+                        return result;
+                    }
+                result = result + pattern.substring(index, pos_start);
+                String subst_pattern = pattern.substring(pos_start + PATTERN_START.length(), pos_end);
+
+                String filled_pattern = legacy_fill_pattern(subst_pattern, msg);
+
+                result = result + filled_pattern;
+
+                index = pos_end + PATTERN_END.length();
+            }
+        return result;
+    }
+
+    private String legacy_fill_pattern(String pattern, JsonObject msg)
+    {
+        final String PATTERN_FUN = "|";
+
+        String field_name;
+
+        int fun_pos = pattern.indexOf(PATTERN_FUN);
+        if (fun_pos < 0)
+            {
+                return msg.getString(pattern);
+            }
+        else
+            {
+                field_name = pattern.substring(0, fun_pos);
+            }
+
+        if (pattern.endsWith(PATTERN_FUN+"int"))
+            {
+                Long field_value =  msg.getLong(field_name, 0L);
+                return field_value.toString();
+            }
+
+        if (pattern.endsWith(PATTERN_FUN+"yyyy"))
+            {
+                Long field_value =  msg.getLong(field_name, 0L);
+                Instant instant = Instant.ofEpochSecond(field_value);
+                LocalDateTime local_time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+                return local_time.format(DateTimeFormatter.ofPattern("yyyy"));
+            }
+
+        if (pattern.endsWith(PATTERN_FUN+"MM"))
+            {
+                Long field_value =  msg.getLong(field_name, 0L);
+                Instant instant = Instant.ofEpochSecond(field_value);
+                LocalDateTime local_time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+                return local_time.format(DateTimeFormatter.ofPattern("MM"));
+            }
+
+        if (pattern.endsWith(PATTERN_FUN+"dd"))
+            {
+                Long field_value =  msg.getLong(field_name, 0L);
+                Instant instant = Instant.ofEpochSecond(field_value);
+                LocalDateTime local_time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+                return local_time.format(DateTimeFormatter.ofPattern("dd"));
+            }
+
+        return pattern;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Options opt = new OptionsBuilder()
+                .include(FilerTemplateBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+} // end class FilerTemplateBenchmark
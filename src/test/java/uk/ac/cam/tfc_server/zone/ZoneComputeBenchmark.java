@@ -0,0 +1,261 @@
+package uk.ac.cam.tfc_server.zone;
+
+// ZoneComputeBenchmark.java
+//
+// JMH benchmark comparing the ZoneCompute point-in-polygon and segment-intersection code
+// using the edge tables compiled by ZoneConfig.compile_path() against the original
+// implementation walking ZoneConfig.PATH (reproduced below as legacy_inside() and legacy_intersect()).
+//
+// Uses the real Cambridge zone configs from src/main/resources, as listed in
+// uk.ac.cam.tfc_server.batcher.zones.json
+//
+// Run with:
+//   mvn test-compile
+//   java -cp target/test-classes:target/classes:<test classpath> uk.ac.cam.tfc_server.zone.ZoneComputeBenchmark
+//
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Position;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZoneComputeBenchmark {
+
+    private final int POINT_COUNT = 1024; // number of random test points
+
+    private ArrayList<ZoneConfig> zone_configs;
+    private ArrayList<ZoneCompute> zones;
+
+    private Position[] points; // random points within the union of the zone boxes
+
+    @Setup
+    public void setup() throws Exception
+    {
+        zone_configs = new ArrayList<ZoneConfig>();
+        zones = new ArrayList<ZoneCompute>();
+
+        JsonArray zone_ids = read_config("/uk.ac.cam.tfc_server.batcher.zones.json")
+                                .getJsonArray("batcherworker.A.zones");
+
+        for (int i=0; i<zone_ids.size(); i++)
+            {
+                ZoneConfig zc = new ZoneConfig(read_config("/uk.ac.cam.tfc_server.zone."+zone_ids.getString(i)+".json"));
+                zc.LOG_LEVEL = Constants.LOG_WARN;
+                zone_configs.add(zc);
+                zones.add(new ZoneCompute(zc, msg -> { }));
+            }
+
+        double north = -90;
+        double south = 90;
+        double east = -180;
+        double west = 180;
+        for (ZoneConfig zc : zone_configs)
+            {
+                for (Position p : zc.PATH)
+                    {
+                        north = Math.max(north, p.lat);
+                        south = Math.min(south, p.lat);
+                        east = Math.max(east, p.lng);
+                        west = Math.min(west, p.lng);
+                    }
+            }
+
+        Random r = new Random(42L);
+        points = new Position[POINT_COUNT];
+        for (int i=0; i<POINT_COUNT; i++)
+            {
+                points[i] = new Position(south + r.nextDouble() * (north - south),
+                                         west + r.nextDouble() * (east - west),
+                                         1465603200L + i * 30L);
+            }
+    }
+
+    // return the "options"."config" object from a resource config file
+    private JsonObject read_config(String resource_path) throws Exception
+    {
+        StringBuffer sb = new StringBuffer();
+        BufferedReader br = new BufferedReader(
+                               new InputStreamReader(
+                                 getClass().getResourceAsStream(resource_path),
+                                 "UTF-8"));
+        for (int c = br.read(); c != -1; c = br.read()) sb.append((char)c);
+
+        return new JsonObject(sb.toString()).getJsonObject("options").getJsonObject("config");
+    }
+
+    // *****************************************************************************************
+    // Benchmarks - each tests every point against every zone
+    // *****************************************************************************************
+
+    @Benchmark
+    public int inside_legacy()
+    {
+        int count = 0;
+        for (int i=0; i<POINT_COUNT; i++)
+            {
+                for (int z=0; z<zone_configs.size(); z++)
+                    {
+                        if (legacy_inside(zone_configs.get(z), zones.get(z).box, points[i])) count++;
+                    }
+            }
+        return count;
+    }
+
+    @Benchmark
+    public int inside_compiled()
+    {
+        int count = 0;
+        for (int i=0; i<POINT_COUNT; i++)
+            {
+                for (int z=0; z<zones.size(); z++)
+                    {
+                        if (zones.get(z).inside(points[i].lat, points[i].lng)) count++;
+                    }
+            }
+        return count;
+    }
+
+    @Benchmark
+    public int intersect_legacy()
+    {
+        int count = 0;
+        for (int i=1; i<POINT_COUNT; i++)
+            {
+                for (int z=0; z<zone_configs.size(); z++)
+                    {
+                        ZoneConfig zc = zone_configs.get(z);
+                        if (legacy_intersect(zc, 0, points[i-1], points[i]) != null) count++;
+                        if (legacy_intersect(zc, zc.FINISH_INDEX, points[i-1], points[i]) != null) count++;
+                    }
+            }
+        return count;
+    }
+
+    @Benchmark
+    public int intersect_compiled()
+    {
+        int count = 0;
+        for (int i=1; i<POINT_COUNT; i++)
+            {
+                Position a = points[i-1];
+                Position b = points[i];
+                for (int z=0; z<zones.size(); z++)
+                    {
+                        ZoneCompute zc = zones.get(z);
+                        if (zc.intersect(0, a.lat, a.lng, b.lat, b.lng) >= 0) count++;
+                        if (zc.intersect(zone_configs.get(z).FINISH_INDEX, a.lat, a.lng, b.lat, b.lng) >= 0) count++;
+                    }
+            }
+        return count;
+    }
+
+    // *****************************************************************************************
+    // The original ZoneCompute implementations, walking ZoneConfig.PATH
+    // *****************************************************************************************
+
+    private boolean legacy_inside(ZoneConfig zone_config, ZoneCompute.Box box, Position p)
+    {
+        if (p.lat > box.north || p.lat < box.south || p.lng < box.west || p.lng > box.east)
+        return false;
+
+        Position lastPoint = zone_config.PATH.get(zone_config.PATH.size() - 1);
+        boolean isInside = false;
+        double x = p.lng;
+        for (int i=0; i<zone_config.PATH.size(); i++)
+        {
+            Position point = zone_config.PATH.get(i);
+            double x1 = lastPoint.lng;
+            double x2 = point.lng;
+            double dx = x2 - x1;
+
+            if (Math.abs(dx) > 180.0)
+            {
+                if (x > 0)
+                {
+                    while (x1 < 0)
+                    x1 += 360;
+                    while (x2 < 0)
+                    x2 += 360;
+                }
+                else
+                {
+                    while (x1 > 0)
+                    x1 -= 360;
+                    while (x2 > 0)
+                    x2 -= 360;
+                }
+                dx = x2 - x1;
+            }
+
+            if ((x1 <= x && x2 > x) || (x1 >= x && x2 < x))
+            {
+                double grad = (point.lat - lastPoint.lat) / dx;
+                double intersectAtLat = lastPoint.lat + ((x - x1) * grad);
+
+                if (intersectAtLat > p.lat)
+                isInside = !isInside;
+            }
+            lastPoint = point;
+        }
+
+        return isInside;
+    }
+
+    private Position legacy_intersect(ZoneConfig zone_config, int path_index, Position A, Position B)
+    {
+        Position C = zone_config.PATH.get(path_index);
+        Position D = zone_config.PATH.get(path_index+1);
+
+        double s1_lat = B.lat - A.lat;
+        double s1_lng = B.lng - A.lng;
+        double s2_lat = D.lat - C.lat;
+        double s2_lng = D.lng - C.lng;
+
+        double s = (-s1_lat * (A.lng - C.lng) + s1_lng * (A.lat - C.lat)) / (-s2_lng * s1_lat + s1_lng * s2_lat);
+        double progress = ( s2_lng * (A.lat - C.lat) - s2_lat * (A.lng - C.lng)) / (-s2_lng * s1_lat + s1_lng * s2_lat);
+
+        if (s >= 0 && s <= 1 && progress >= 0 && progress <= 1)
+            {
+                Position i = new Position( A.lat + (progress * s1_lat), A.lng + (progress * s1_lng) );
+                i.ts = A.ts + (Long) Math.round((B.ts - A.ts) * progress);
+                return i;
+            }
+
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Options opt = new OptionsBuilder()
+                .include(ZoneComputeBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+} // end class ZoneComputeBenchmark